@@ -235,7 +235,7 @@ public class GoogleDriveApiImpl implements DriveApi {
         driveApi
             .files()
             .list()
-            .setQ("title = '" + EXPERIMENT_PROTO_FILE + "'")
+            .setQ("title = '" + EXPERIMENT_PROTO_FILE + "' and trashed = false")
             .setFields("items(version,parents)")
             .execute();
     HashMap<String, Long> versionMap = new HashMap<>();
@@ -360,6 +360,16 @@ public class GoogleDriveApiImpl implements DriveApi {
     }
   }
 
+  @Override
+  public void deleteFileFromPackage(String fileName, String packageId) throws IOException {
+    for (File file : getFileFromPackage(packageId, fileName).getItems()) {
+      driveApi
+          .files()
+          .delete(file.getId())
+          .execute();
+    }
+  }
+
   @Override
   public int getPackageVersion(String packageId) throws IOException {
     FileList files =
@@ -46,4 +46,10 @@ public interface BleClient {
   boolean disableNotifications(String address, BluetoothGattCharacteristic characteristic);
 
   Single<BleClient> whenConnected();
+
+  /** The scheduler that flows for every device run their GATT operations through. */
+  GattOperationScheduler getOperationScheduler();
+
+  /** Where flows remember the layout of devices' services between connections. */
+  GattLayoutCache getLayoutCache();
 }
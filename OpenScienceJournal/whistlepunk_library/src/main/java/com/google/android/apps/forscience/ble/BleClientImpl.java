@@ -25,6 +25,8 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.IBinder;
 import android.util.Log;
+import com.google.android.apps.forscience.whistlepunk.scalarchart.UptimeClock;
+import com.google.android.apps.forscience.whistlepunk.sensors.SystemScheduler;
 import com.google.common.base.Optional;
 import io.reactivex.Single;
 import io.reactivex.subjects.BehaviorSubject;
@@ -42,6 +44,9 @@ public class BleClientImpl implements BleClient {
 
   private final Context context;
   private final List<BleFlow> flows;
+  private final GattOperationScheduler operationScheduler =
+      new GattOperationScheduler(new SystemScheduler(), new UptimeClock());
+  private final GattLayoutCache layoutCache;
 
   // service state changes
   private final ServiceConnection serviceConnection =
@@ -64,6 +69,7 @@ public class BleClientImpl implements BleClient {
   public BleClientImpl(Context context) {
     this.context = context;
     flows = new ArrayList<>();
+    layoutCache = new GattLayoutCache(context);
   }
 
   public final boolean create() {
@@ -172,4 +178,14 @@ public class BleClientImpl implements BleClient {
         .map(o -> (BleClient) this)
         .toSingle();
   }
+
+  @Override
+  public GattOperationScheduler getOperationScheduler() {
+    return operationScheduler;
+  }
+
+  @Override
+  public GattLayoutCache getLayoutCache() {
+    return layoutCache;
+  }
 }
@@ -23,10 +23,12 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Handler;
+import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 import androidx.collection.ArraySet;
 import android.util.ArrayMap;
 import android.util.Log;
+import com.google.android.apps.forscience.ble.GattOperationScheduler.Kind;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -54,6 +56,14 @@ import java.util.concurrent.atomic.AtomicBoolean;
  *          }
  * };
  * </code>
+ *
+ * <p>Actions that wait for a GATT event are run through the client's {@link
+ * GattOperationScheduler}, so that flows for different devices don't trip over each other, and a
+ * device that stops answering fails its flow rather than leaving it waiting.
+ *
+ * <p>Services that the connection has already discovered are used without discovering them again,
+ * and the client's {@link GattLayoutCache} lets callers recognize a device whose services haven't
+ * changed since it was last connected.
  */
 public class BleFlow {
   private static final long SERVICES_RETRY_DELAY_MILLIS = 500;
@@ -128,6 +138,8 @@ public class BleFlow {
   // TODO: add prefixes to fields to fit standard
   private final Context context;
   private final BleClient client;
+  private final GattOperationScheduler operations;
+  private final GattLayoutCache layoutCache;
   private final List<RichAction> actions;
   private final Set<UUID> serviceIdsToLookup = new ArraySet<>();
   private final Map<UUID, BluetoothGattService> serviceMap = new ArrayMap<>();
@@ -147,6 +159,13 @@ public class BleFlow {
   private String address;
   private AtomicBoolean flowEnded;
 
+  // Which reset this is on, so that operations submitted before a reset can tell.
+  private int generation = 0;
+  private GattOperationScheduler.Operation submittedOperation;
+  // Whether services have been discovered since the device last connected. Services found
+  // before a reconnect belong to the old connection and can't be reused.
+  private boolean servicesDiscoveredOnConnection;
+
   private BroadcastReceiver receiver =
       new BroadcastReceiver() {
 
@@ -161,6 +180,8 @@ public class BleFlow {
             listener.onNotification(characteristic, flags, data);
             return;
           }
+          completeOperation(action);
+          trackConnection(action);
           if (flowEnded.get()
               && (BleEvents.GATT_CONNECT_FAIL.equals(action)
                   || BleEvents.GATT_DISCONNECT.equals(action))) {
@@ -211,6 +232,7 @@ public class BleFlow {
               scheduleServiceLookupRetry(retriesLeft - 1);
             } else {
               serviceIdsToLookup.clear();
+              operations.onComplete(address, Kind.DISCOVER);
               listener.onServicesDiscovered();
               nextAction();
             }
@@ -223,6 +245,10 @@ public class BleFlow {
             byte[] data = intent.getByteArrayExtra(MyBleService.DATA);
             listener.onCharacteristicRead(characteristic, flags, data);
             nextAction();
+          } else if (BleEvents.READ_CHAR_FAIL.equals(action)) {
+            listener.onFailure(
+                new Exception("Reading characteristic fail for: " + currentCharacteristic));
+            flowEnded.set(true);
           } else if (BleEvents.WRITE_CHAR_OK.equals(action)) {
             nextAction();
           } else if (BleEvents.WRITE_CHAR_FAIL.equals(action)) {
@@ -240,6 +266,100 @@ public class BleFlow {
         }
       };
 
+  /** Tells the scheduler that the operation which {@code action} reports on is over. */
+  private void completeOperation(String action) {
+    if (BleEvents.GATT_CONNECT_FAIL.equals(action) || BleEvents.GATT_DISCONNECT.equals(action)) {
+      operations.onDisconnected(address);
+    } else if (BleEvents.GATT_CONNECT.equals(action)) {
+      operations.onComplete(address, Kind.CONNECT);
+    } else if (BleEvents.GATT_DISCONNECT_FAIL.equals(action)) {
+      operations.onComplete(address, Kind.DISCONNECT);
+    } else if (BleEvents.SERVICES_FAIL.equals(action)
+        || (BleEvents.SERVICES_OK.equals(action) && flowEnded.get())) {
+      // Otherwise, discovery may retry, and completes once it's done.
+      operations.onComplete(address, Kind.DISCOVER);
+    } else if (BleEvents.READ_CHAR_OK.equals(action) || BleEvents.READ_CHAR_FAIL.equals(action)) {
+      operations.onComplete(address, Kind.READ);
+    } else if (BleEvents.WRITE_CHAR_OK.equals(action)
+        || BleEvents.WRITE_CHAR_FAIL.equals(action)) {
+      operations.onComplete(address, Kind.WRITE);
+    } else if (BleEvents.WRITE_DESC_OK.equals(action)
+        || BleEvents.WRITE_DESC_FAIL.equals(action)) {
+      operations.onComplete(address, Kind.SUBSCRIBE);
+    }
+  }
+
+  /** Keeps track of whether the current connection has discovered its services. */
+  private void trackConnection(String action) {
+    if (BleEvents.GATT_CONNECT.equals(action)
+        || BleEvents.GATT_CONNECT_FAIL.equals(action)
+        || BleEvents.GATT_DISCONNECT.equals(action)) {
+      servicesDiscoveredOnConnection = false;
+    } else if (BleEvents.SERVICES_OK.equals(action)) {
+      servicesDiscoveredOnConnection = true;
+    }
+  }
+
+  /** A GATT call, which reports whether it was made. */
+  private interface GattCall {
+    boolean call();
+  }
+
+  /** Makes {@code call} once the scheduler lets this device run an operation of {@code kind}. */
+  private void submit(Kind kind, Action action, GattCall call) {
+    final int submittedGeneration = generation;
+    submittedOperation =
+        new GattOperationScheduler.Operation() {
+          @Override
+          public boolean start() {
+            return submittedGeneration == generation && !flowEnded.get() && call.call();
+          }
+
+          @Override
+          public void onTimeout() {
+            if (submittedGeneration != generation || flowEnded.get()) {
+              return;
+            }
+            if (kind == Kind.DISCONNECT) {
+              // Disconnecting a device that is already disconnected may never produce an event,
+              // so a disconnect that times out is treated as done, as GATT_DISCONNECT would be.
+              nextAction();
+            } else {
+              listener.onFailure(new Exception("Timed out on " + action + " for: " + address));
+              flowEnded.set(true);
+              if (kind == Kind.CONNECT) {
+                // The stack keeps trying to connect for longer than we wait. Cancel the attempt,
+                // so that it doesn't connect later behind the scheduler's back.
+                client.disconnectDevice(address);
+              }
+            }
+          }
+        };
+    operations.submit(address, kind, submittedOperation);
+  }
+
+  /**
+   * Looks up the services still wanted among those the current connection has already discovered,
+   * which it still has if it was kept open.
+   *
+   * @return true if all of them were found, so that there's no need to discover them again
+   */
+  private boolean lookupConnectedServices() {
+    if (!servicesDiscoveredOnConnection) {
+      return false;
+    }
+    for (UUID serviceId : serviceIdsToLookup) {
+      if (client.getService(address, serviceId) == null) {
+        return false;
+      }
+    }
+    for (UUID serviceId : serviceIdsToLookup) {
+      serviceMap.put(serviceId, client.getService(address, serviceId));
+    }
+    serviceIdsToLookup.clear();
+    return true;
+  }
+
   private void scheduleServiceLookupRetry(final int retriesLeft) {
     delayHandler.postDelayed(
         new Runnable() {
@@ -255,6 +375,8 @@ public class BleFlow {
   private BleFlow(BleClient client, Context context, String address) {
     this.client = client;
     this.context = context;
+    operations = client.getOperationScheduler();
+    layoutCache = client.getLayoutCache();
     actions = new ArrayList<>();
     characteristics = new ArrayList<>();
     values = new ArrayList<>();
@@ -290,16 +412,40 @@ public class BleFlow {
     if (DEBUG) Log.d(TAG, "current action: " + action);
     switch (action) {
       case CONNECT:
-        if (!client.connectToAddress(address)) {
-          listener.onFailure(new Exception("cannot connect to: " + address));
-          flowEnded.set(true);
-        }
+        submit(
+            Kind.CONNECT,
+            action,
+            () -> {
+              if (!client.connectToAddress(address)) {
+                listener.onFailure(new Exception("cannot connect to: " + address));
+                flowEnded.set(true);
+                return false;
+              }
+              return true;
+            });
         break;
       case DISCONNECT:
-        client.disconnectDevice(address);
+        submit(
+            Kind.DISCONNECT,
+            action,
+            () -> {
+              client.disconnectDevice(address);
+              return true;
+            });
         break;
       case LOOKUP_SRV:
-        client.findServices(address);
+        if (lookupConnectedServices()) {
+          listener.onServicesDiscovered();
+          nextAction();
+          break;
+        }
+        submit(
+            Kind.DISCOVER,
+            action,
+            () -> {
+              client.findServices(address);
+              return true;
+            });
         break;
       case LOOKUP_CHARACT:
         UUID charactId = characteristics.get(characteristicIndex++);
@@ -320,7 +466,14 @@ public class BleFlow {
           flowEnded.set(true);
         } else {
           if (DEBUG) Log.d(TAG, "Reading on characteristic " + currentCharacteristic.getUuid());
-          client.readValue(address, currentCharacteristic);
+          BluetoothGattCharacteristic characteristic = currentCharacteristic;
+          submit(
+              Kind.READ,
+              action,
+              () -> {
+                client.readValue(address, characteristic);
+                return true;
+              });
         }
         break;
       case WRITE_CHARACT:
@@ -335,7 +488,15 @@ public class BleFlow {
                     + currentCharacteristic.getUuid()
                     + " the value "
                     + Arrays.toString(values.get(valueIndex)));
-          client.writeValue(address, currentCharacteristic, values.get(valueIndex++));
+          BluetoothGattCharacteristic characteristic = currentCharacteristic;
+          byte[] value = values.get(valueIndex++);
+          submit(
+              Kind.WRITE,
+              action,
+              () -> {
+                client.writeValue(address, characteristic, value);
+                return true;
+              });
         }
         break;
       case LOOKUP_DESC:
@@ -360,7 +521,15 @@ public class BleFlow {
                     + currentDescriptor.getUuid()
                     + " the value "
                     + Arrays.toString(values.get(valueIndex)));
-          client.writeValue(address, currentDescriptor, values.get(valueIndex++));
+          BluetoothGattDescriptor descriptor = currentDescriptor;
+          byte[] value = values.get(valueIndex++);
+          submit(
+              Kind.SUBSCRIBE,
+              action,
+              () -> {
+                client.writeValue(address, descriptor, value);
+                return true;
+              });
         }
         break;
       case ENABLE_NOTIF:
@@ -400,6 +569,11 @@ public class BleFlow {
   }
 
   public BleFlow reset(boolean clearServiceMap) {
+    generation++;
+    if (submittedOperation != null) {
+      operations.cancel(address, submittedOperation);
+      submittedOperation = null;
+    }
     actions.clear();
     serviceIdsToLookup.clear();
     if (clearServiceMap) {
@@ -524,6 +698,34 @@ public class BleFlow {
     return currentService != null && currentService.getCharacteristic(characteristic) != null;
   }
 
+  /**
+   * @return the firmware version cached for this device, if the service with id {@code serviceId}
+   *     has the same characteristics as when it was cached; otherwise null
+   */
+  @Nullable
+  public byte[] getCachedFirmwareVersion(UUID serviceId) {
+    BluetoothGattService service = serviceMap.get(serviceId);
+    return service == null
+        ? null
+        : layoutCache.getFirmwareVersion(address, serviceId, getCharacteristicIds(service));
+  }
+
+  /** Caches {@code firmwareVersion} with the characteristics of service {@code serviceId}. */
+  public void cacheFirmwareVersion(UUID serviceId, byte[] firmwareVersion) {
+    BluetoothGattService service = serviceMap.get(serviceId);
+    if (service != null) {
+      layoutCache.put(address, serviceId, getCharacteristicIds(service), firmwareVersion);
+    }
+  }
+
+  private static List<UUID> getCharacteristicIds(BluetoothGattService service) {
+    List<UUID> ids = new ArrayList<>();
+    for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+      ids.add(characteristic.getUuid());
+    }
+    return ids;
+  }
+
   void close() {
     MyBleService.getBroadcastManager(context).unregisterReceiver(receiver);
   }
@@ -97,19 +97,36 @@ public abstract class DeviceDiscoverer {
     return bluetoothAdapter != null && bluetoothAdapter.getState() == BluetoothAdapter.STATE_ON;
   }
 
-  protected void addOrUpdateDevice(WhistlepunkBleDevice device, int rssi) {
-    DeviceRecord deviceRecord = devices.get(device.getAddress());
-    boolean previouslyFound = deviceRecord != null;
-    if (!previouslyFound) {
-      deviceRecord = new DeviceRecord();
-      deviceRecord.device = device;
-      devices.put(device.getAddress(), deviceRecord);
+  /**
+   * Updates the record for the device at {@code address}, if it's been found already.
+   *
+   * <p>Devices advertise many times a second, so this lets subclasses drop repeat advertisements
+   * before doing any work to describe the device.
+   *
+   * @return true if the device had been found already
+   */
+  protected boolean updateDevice(String address, int rssi) {
+    DeviceRecord deviceRecord = devices.get(address);
+    if (deviceRecord == null) {
+      return false;
     }
     // Update the last RSSI and last seen
     deviceRecord.lastRssi = rssi;
     deviceRecord.lastSeenTimestampMs = SystemClock.uptimeMillis();
+    return true;
+  }
+
+  protected void addOrUpdateDevice(WhistlepunkBleDevice device, int rssi) {
+    if (updateDevice(device.getAddress(), rssi)) {
+      return;
+    }
+    DeviceRecord deviceRecord = new DeviceRecord();
+    deviceRecord.device = device;
+    deviceRecord.lastRssi = rssi;
+    deviceRecord.lastSeenTimestampMs = SystemClock.uptimeMillis();
+    devices.put(device.getAddress(), deviceRecord);
 
-    if (!previouslyFound && callback != null) {
+    if (callback != null) {
       callback.onDeviceFound(deviceRecord);
     }
   }
@@ -54,6 +54,9 @@ import java.util.List;
         }
 
         private void manageScanResult(ScanResult result) {
+          if (updateDevice(result.getDevice().getAddress(), result.getRssi())) {
+            return;
+          }
           List<String> serviceUuids = new ArrayList<>();
           ScanRecord record = result.getScanRecord();
           if (record != null) {
@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.ble;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import androidx.annotation.Nullable;
+import com.google.common.base.Joiner;
+import com.google.common.io.BaseEncoding;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Remembers, across runs of the app, the characteristics that each device's services had and the
+ * firmware version it reported when it was last connected.
+ *
+ * <p>Reading the firmware version costs a round trip to the device on every connection. When a
+ * service turns out to have the same characteristics as last time, the device is most likely
+ * running the same firmware, so the version can be taken from here and checked once the device
+ * is streaming, instead of before.
+ */
+public class GattLayoutCache {
+  private static final String PREFS_FILE = "GattLayoutCache";
+  private static final BaseEncoding HEX = BaseEncoding.base16();
+
+  private final Context context;
+
+  public GattLayoutCache(Context context) {
+    this.context = context.getApplicationContext();
+  }
+
+  /**
+   * @return the firmware version stored for {@code serviceId} on {@code address}, or null if
+   *     there is none, or the service had different characteristics then than {@code
+   *     characteristics} now.
+   */
+  @Nullable
+  public byte[] getFirmwareVersion(String address, UUID serviceId, List<UUID> characteristics) {
+    String entry = getPrefs().getString(key(address, serviceId), null);
+    if (entry == null) {
+      return null;
+    }
+    String[] split = entry.split(";", 2);
+    if (split.length != 2 || !split[1].equals(encodeCharacteristics(characteristics))) {
+      return null;
+    }
+    return HEX.canDecode(split[0]) ? HEX.decode(split[0]) : null;
+  }
+
+  /** Stores the layout and firmware version seen for {@code serviceId} on {@code address}. */
+  public void put(
+      String address, UUID serviceId, List<UUID> characteristics, byte[] firmwareVersion) {
+    String entry = HEX.encode(firmwareVersion) + ";" + encodeCharacteristics(characteristics);
+    getPrefs().edit().putString(key(address, serviceId), entry).apply();
+  }
+
+  private SharedPreferences getPrefs() {
+    return context.getSharedPreferences(PREFS_FILE, Context.MODE_PRIVATE);
+  }
+
+  private static String key(String address, UUID serviceId) {
+    return address + "/" + serviceId;
+  }
+
+  // Characteristics are listed in order, so that the same set always encodes the same way.
+  private static String encodeCharacteristics(List<UUID> characteristics) {
+    List<String> ids = new ArrayList<>(characteristics.size());
+    for (UUID characteristic : characteristics) {
+      ids.add(characteristic.toString());
+    }
+    Collections.sort(ids);
+    return Joiner.on(',').join(ids);
+  }
+}
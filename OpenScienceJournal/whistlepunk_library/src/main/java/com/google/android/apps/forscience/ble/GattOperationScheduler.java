@@ -0,0 +1,307 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.ble;
+
+import androidx.annotation.VisibleForTesting;
+import com.google.android.apps.forscience.javalib.Delay;
+import com.google.android.apps.forscience.javalib.Scheduler;
+import com.google.android.apps.forscience.whistlepunk.Clock;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Schedules GATT operations across BLE devices.
+ *
+ * <p>A connection can only have one GATT operation outstanding, so each device's operations run
+ * one at a time, in the order they were submitted. Different devices go ahead concurrently, up to
+ * a limit, and when more are waiting than that, the highest priority {@link Kind} goes first: a
+ * sensor that is ready to stream isn't kept waiting by others reading their configuration.
+ * Connection attempts, which can stall for a long time when a device has gone away, have a lower
+ * limit of their own, and every operation times out rather than hold up its device for good.
+ *
+ * <p>This class is not thread-safe; BLE events are delivered on the main thread, so use it there.
+ */
+public class GattOperationScheduler {
+  /** Kinds of operation, highest priority first. */
+  public enum Kind {
+    DISCONNECT(5000),
+    SUBSCRIBE(5000),
+    WRITE(5000),
+    DISCOVER(10000),
+    CONNECT(10000),
+    READ(5000);
+
+    private final long timeoutMillis;
+
+    Kind(long timeoutMillis) {
+      this.timeoutMillis = timeoutMillis;
+    }
+  }
+
+  /** A GATT operation, which is complete once the event reporting its result arrives. */
+  public interface Operation {
+    /** @return false if the operation couldn't be started, so that no event will arrive for it */
+    boolean start();
+
+    /** Called instead of the event, if the operation takes too long. */
+    void onTimeout();
+  }
+
+  /** Counts and timings for one kind of operation. */
+  public static class Metrics {
+    private int started;
+    private int completed;
+    private int timedOut;
+    private int failedToStart;
+    private long totalWaitMillis;
+    private long maxWaitMillis;
+    private long totalRunMillis;
+
+    private Metrics() {}
+
+    private Metrics(Metrics other) {
+      started = other.started;
+      completed = other.completed;
+      timedOut = other.timedOut;
+      failedToStart = other.failedToStart;
+      totalWaitMillis = other.totalWaitMillis;
+      maxWaitMillis = other.maxWaitMillis;
+      totalRunMillis = other.totalRunMillis;
+    }
+
+    public int getStarted() {
+      return started;
+    }
+
+    public int getCompleted() {
+      return completed;
+    }
+
+    public int getTimedOut() {
+      return timedOut;
+    }
+
+    public int getFailedToStart() {
+      return failedToStart;
+    }
+
+    /** Total time operations spent queued, before they started. */
+    public long getTotalWaitMillis() {
+      return totalWaitMillis;
+    }
+
+    public long getMaxWaitMillis() {
+      return maxWaitMillis;
+    }
+
+    /** Total time completed operations took, from starting to their event arriving. */
+    public long getTotalRunMillis() {
+      return totalRunMillis;
+    }
+  }
+
+  private static final int DEFAULT_MAX_RUNNING = 4;
+  private static final int DEFAULT_MAX_CONNECTING = 1;
+
+  private final Scheduler scheduler;
+  private final Clock clock;
+  private final int maxRunning;
+  private final int maxConnecting;
+
+  // Devices with operations running or queued.
+  private final Map<String, DeviceQueue> devices = new HashMap<>();
+  private final Map<Kind, Metrics> metrics = new EnumMap<>(Kind.class);
+  private int running = 0;
+  private int connecting = 0;
+  private long submitCount = 0;
+
+  public GattOperationScheduler(Scheduler scheduler, Clock clock) {
+    this(scheduler, clock, DEFAULT_MAX_RUNNING, DEFAULT_MAX_CONNECTING);
+  }
+
+  @VisibleForTesting
+  GattOperationScheduler(Scheduler scheduler, Clock clock, int maxRunning, int maxConnecting) {
+    this.scheduler = scheduler;
+    this.clock = clock;
+    this.maxRunning = maxRunning;
+    this.maxConnecting = maxConnecting;
+    for (Kind kind : Kind.values()) {
+      metrics.put(kind, new Metrics());
+    }
+  }
+
+  /** Runs {@code operation} once the operations submitted for {@code address} before it finish. */
+  public void submit(String address, Kind kind, Operation operation) {
+    DeviceQueue device = devices.get(address);
+    if (device == null) {
+      device = new DeviceQueue(address);
+      devices.put(address, device);
+    }
+    device.queue.add(new Pending(device, kind, operation, submitCount++, clock.getNow()));
+    dispatch();
+  }
+
+  /** Drops {@code operation}, if it hasn't started yet. */
+  public void cancel(String address, Operation operation) {
+    DeviceQueue device = devices.get(address);
+    if (device == null) {
+      return;
+    }
+    for (Pending pending : device.queue) {
+      if (pending.operation == operation) {
+        device.queue.remove(pending);
+        break;
+      }
+    }
+    removeIfIdle(device);
+  }
+
+  /** The event for the operation of {@code kind} running on {@code address}, if any, arrived. */
+  public void onComplete(String address, Kind kind) {
+    DeviceQueue device = devices.get(address);
+    if (device != null && device.running != null && device.running.kind == kind) {
+      finish(device.running).completed++;
+      dispatch();
+    }
+  }
+
+  /** {@code address} has disconnected, so no event will arrive for what it was running. */
+  public void onDisconnected(String address) {
+    DeviceQueue device = devices.get(address);
+    if (device != null && device.running != null) {
+      finish(device.running).completed++;
+      dispatch();
+    }
+  }
+
+  /** Returns a copy of the metrics for {@code kind}. */
+  public Metrics getMetrics(Kind kind) {
+    return new Metrics(metrics.get(kind));
+  }
+
+  @VisibleForTesting
+  int getQueuedCount(String address) {
+    DeviceQueue device = devices.get(address);
+    return device == null ? 0 : device.queue.size();
+  }
+
+  private void dispatch() {
+    while (running < maxRunning) {
+      Pending next = null;
+      for (DeviceQueue device : devices.values()) {
+        Pending head = device.queue.peek();
+        if (device.running != null
+            || head == null
+            || (head.kind == Kind.CONNECT && connecting >= maxConnecting)) {
+          continue;
+        }
+        if (next == null
+            || head.kind.ordinal() < next.kind.ordinal()
+            || (head.kind == next.kind && head.sequence < next.sequence)) {
+          next = head;
+        }
+      }
+      if (next == null) {
+        return;
+      }
+      start(next);
+    }
+  }
+
+  private void start(Pending pending) {
+    DeviceQueue device = pending.device;
+    device.queue.remove();
+    device.running = pending;
+    running++;
+    if (pending.kind == Kind.CONNECT) {
+      connecting++;
+    }
+    pending.startedAt = clock.getNow();
+    Metrics kindMetrics = metrics.get(pending.kind);
+    long waited = pending.startedAt - pending.submittedAt;
+    kindMetrics.started++;
+    kindMetrics.totalWaitMillis += waited;
+    kindMetrics.maxWaitMillis = Math.max(kindMetrics.maxWaitMillis, waited);
+    scheduler.schedule(Delay.millis(pending.kind.timeoutMillis), pending);
+
+    if (!pending.operation.start() && device.running == pending) {
+      finish(pending).failedToStart++;
+    }
+  }
+
+  /** Stops tracking {@code pending}, which is running, and returns the metrics to update. */
+  private Metrics finish(Pending pending) {
+    DeviceQueue device = pending.device;
+    device.running = null;
+    running--;
+    if (pending.kind == Kind.CONNECT) {
+      connecting--;
+    }
+    scheduler.unschedule(pending);
+    removeIfIdle(device);
+    Metrics kindMetrics = metrics.get(pending.kind);
+    kindMetrics.totalRunMillis += clock.getNow() - pending.startedAt;
+    return kindMetrics;
+  }
+
+  private void removeIfIdle(DeviceQueue device) {
+    if (device.running == null && device.queue.isEmpty()) {
+      devices.remove(device.address);
+    }
+  }
+
+  private static class DeviceQueue {
+    final String address;
+    final Queue<Pending> queue = new ArrayDeque<>();
+    Pending running;
+
+    DeviceQueue(String address) {
+      this.address = address;
+    }
+  }
+
+  /** A submitted operation. It runs itself as its timeout. */
+  private class Pending implements Runnable {
+    final DeviceQueue device;
+    final Kind kind;
+    final Operation operation;
+    final long sequence;
+    final long submittedAt;
+    long startedAt;
+
+    Pending(DeviceQueue device, Kind kind, Operation operation, long sequence, long submittedAt) {
+      this.device = device;
+      this.kind = kind;
+      this.operation = operation;
+      this.sequence = sequence;
+      this.submittedAt = submittedAt;
+    }
+
+    @Override
+    public void run() {
+      if (device.running != this) {
+        return;
+      }
+      finish(this).timedOut++;
+      operation.onTimeout();
+      dispatch();
+    }
+  }
+}
@@ -12,13 +12,22 @@ import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
-import java.nio.ByteBuffer;
+import android.os.SystemClock;
+import androidx.annotation.VisibleForTesting;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
+import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This is the entry point for subscribing a sensor and receiving data from an Arduino MKR SCI
@@ -33,6 +42,10 @@ import java.util.UUID;
  *       class);
  *   <li>a listener for receiving values from subscribed characteristic.
  * </ul>
+ *
+ * <p>Values are delivered on the Bluetooth callback thread without taking any lock, so that
+ * several boards streaming at once don't hold each other up. GATT operations for each board run
+ * one at a time, on a worker thread of that board's own.
  */
 public class MkrSciBleManager {
 
@@ -53,6 +66,21 @@ public class MkrSciBleManager {
   private static final double MAX_VALUE = 2000000000D;
   private static final double MIN_VALUE = -2000000000D;
 
+  // characteristic > type of the values it notifies
+  private static final Map<UUID, ValueType> VALUE_TYPES = new HashMap<>();
+
+  static {
+    VALUE_TYPES.put(UUID.fromString(INPUT_1_UUID), ValueType.UINT16);
+    VALUE_TYPES.put(UUID.fromString(INPUT_2_UUID), ValueType.UINT16);
+    VALUE_TYPES.put(UUID.fromString(INPUT_3_UUID), ValueType.UINT16);
+    VALUE_TYPES.put(UUID.fromString(VOLTAGE_UUID), ValueType.SFLOAT);
+    VALUE_TYPES.put(UUID.fromString(CURRENT_UUID), ValueType.SFLOAT);
+    VALUE_TYPES.put(UUID.fromString(RESISTANCE_UUID), ValueType.SFLOAT);
+    VALUE_TYPES.put(UUID.fromString(ACCELEROMETER_UUID), ValueType.SFLOAT_ARR);
+    VALUE_TYPES.put(UUID.fromString(GYROSCOPE_UUID), ValueType.SFLOAT_ARR);
+    VALUE_TYPES.put(UUID.fromString(MAGNETOMETER_UUID), ValueType.SFLOAT_ARR);
+  }
+
   private static final Handler handler = new Handler(Looper.getMainLooper());
 
   // device bt address > gatt handler
@@ -97,24 +125,87 @@ public class MkrSciBleManager {
     }
   }
 
-  private static class GattHandler extends BluetoothGattCallback {
+  /**
+   * Returns how often each characteristic of the board at {@code address} has been notifying, or
+   * nothing if the board isn't connected.
+   */
+  public static List<NotificationRate> getNotificationRates(String address) {
+    GattHandler gattHandler;
+    synchronized (gattHandlers) {
+      gattHandler = gattHandlers.get(address);
+    }
+    if (gattHandler == null) {
+      return Collections.emptyList();
+    }
+    return gattHandler.getNotificationRates();
+  }
+
+  /** How often a characteristic has been notifying. */
+  public static class NotificationRate {
+    public final String characteristic;
+    /** Notifications since the board connected. */
+    public final long count;
+    /** Notifications per second, over the last second or so. */
+    public final double perSecond;
+
+    NotificationRate(String characteristic, long count, double perSecond) {
+      this.characteristic = characteristic;
+      this.count = count;
+      this.perSecond = perSecond;
+    }
+  }
+
+  @VisibleForTesting
+  static class GattHandler extends BluetoothGattCallback {
 
     private static final UUID NOTIFICATION_DESCRIPTOR =
         UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
-    private final Map<String, List<Listener>> listenersMap = new HashMap<>();
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 10;
+
+    // Read on every notification, but only written when subscribing and unsubscribing, so the
+    // arrays are replaced rather than modified, and readers don't need the lock.
+    private final Map<UUID, Listener[]> listenersMap = new ConcurrentHashMap<>();
+    private final Object listenersLock = new Object();
 
-    private BluetoothGatt gatt;
+    // Notifications for a connection arrive one at a time, so each characteristic can reuse one
+    // array to parse its values into.
+    private final Map<UUID, CharacteristicState> characteristicStates = new ConcurrentHashMap<>();
 
-    private final List<BluetoothGattCharacteristic> characteristics = new ArrayList<>();
+    private volatile BluetoothGatt gatt;
 
-    private final List<Runnable> gattActions = new ArrayList<>();
+    private volatile Map<String, BluetoothGattCharacteristic> characteristics =
+        Collections.emptyMap();
+
+    // A GATT operation has to wait for the callback of the one before, so they are queued, and
+    // the queue is only touched on this serial executor.
+    private final Executor gattWorker;
+
+    private final Queue<GattAction> gattActions = new ArrayDeque<>();
 
     private boolean readyForAction = false;
 
     private boolean busy = false;
 
-    private long firmwareVersion = -1;
+    private volatile long firmwareVersion = -1;
+
+    private GattHandler() {
+      this(newGattWorker());
+    }
+
+    @VisibleForTesting
+    GattHandler(Executor gattWorker) {
+      this.gattWorker = gattWorker;
+    }
+
+    private static Executor newGattWorker() {
+      // A single thread, which goes away when there's nothing to do.
+      ThreadPoolExecutor worker =
+          new ThreadPoolExecutor(
+              1, 1, WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+      worker.allowCoreThreadTimeOut(true);
+      return worker;
+    }
 
     private void disconnect() {
       if (gatt != null) {
@@ -122,94 +213,119 @@ public class MkrSciBleManager {
       }
     }
 
-    private void subscribe(String characteristicUuid, Listener listener) {
-      boolean subscribe = false;
-      synchronized (listenersMap) {
-        List<Listener> listeners = listenersMap.get(characteristicUuid);
+    @VisibleForTesting
+    void subscribe(String characteristicUuid, Listener listener) {
+      UUID uuid = UUID.fromString(characteristicUuid);
+      boolean subscribe;
+      synchronized (listenersLock) {
+        Listener[] listeners = listenersMap.get(uuid);
+        subscribe = listeners == null;
         if (listeners == null) {
-          listeners = new ArrayList<>();
-          listenersMap.put(characteristicUuid, listeners);
-          subscribe = true;
-        }
-        listeners.add(listener);
-        if (firmwareVersion > -1) {
-          listener.onFirmwareVersion(firmwareVersion);
+          listeners = new Listener[0];
         }
+        Listener[] updated = Arrays.copyOf(listeners, listeners.length + 1);
+        updated[listeners.length] = listener;
+        listenersMap.put(uuid, updated);
+      }
+      // If the version is read meanwhile, this listener may hear about it twice.
+      long version = firmwareVersion;
+      if (version > -1) {
+        listener.onFirmwareVersion(version);
       }
       if (subscribe) {
-        enqueueGattAction(
-            () -> {
-              BluetoothGattCharacteristic c = getCharacteristic(characteristicUuid);
-              if (c != null) {
-                gatt.setCharacteristicNotification(c, true);
-                BluetoothGattDescriptor d = c.getDescriptor(NOTIFICATION_DESCRIPTOR);
-                d.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                gatt.writeDescriptor(d);
-              }
-            });
+        enqueueGattAction(() -> setNotification(characteristicUuid, true));
       }
     }
 
-    private void unsubscribe(String characteristicUuid, Listener listener) {
+    @VisibleForTesting
+    void unsubscribe(String characteristicUuid, Listener listener) {
+      UUID uuid = UUID.fromString(characteristicUuid);
       boolean unsubscribe = false;
-      synchronized (listenersMap) {
-        List<Listener> listeners = listenersMap.get(characteristicUuid);
-        if (listeners != null) {
-          listeners.remove(listener);
-          if (listeners.size() == 0) {
-            listenersMap.remove(characteristicUuid);
+      synchronized (listenersLock) {
+        Listener[] listeners = listenersMap.get(uuid);
+        int index = listeners == null ? -1 : Arrays.asList(listeners).indexOf(listener);
+        if (index >= 0) {
+          if (listeners.length == 1) {
+            listenersMap.remove(uuid);
             unsubscribe = true;
+          } else {
+            Listener[] updated = new Listener[listeners.length - 1];
+            System.arraycopy(listeners, 0, updated, 0, index);
+            System.arraycopy(listeners, index + 1, updated, index, updated.length - index);
+            listenersMap.put(uuid, updated);
           }
         }
       }
       if (unsubscribe) {
-        enqueueGattAction(
-            () -> {
-              BluetoothGattCharacteristic c = getCharacteristic(characteristicUuid);
-              if (c != null) {
-                gatt.setCharacteristicNotification(c, true);
-                BluetoothGattDescriptor d = c.getDescriptor(NOTIFICATION_DESCRIPTOR);
-                d.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
-                gatt.writeDescriptor(d);
-              }
-            });
+        enqueueGattAction(() -> setNotification(characteristicUuid, false));
       }
     }
 
     private boolean hasSubscribers() {
-      synchronized (listenersMap) {
-        return listenersMap.size() > 0;
-      }
+      return !listenersMap.isEmpty();
     }
 
-    private BluetoothGattCharacteristic getCharacteristic(String uuid) {
-      for (BluetoothGattCharacteristic aux : characteristics) {
-        if (Objects.equals(uuid, aux.getUuid().toString())) {
-          return aux;
-        }
+    @VisibleForTesting
+    List<NotificationRate> getNotificationRates() {
+      long now = SystemClock.elapsedRealtime();
+      List<NotificationRate> rates = new ArrayList<>();
+      for (Map.Entry<UUID, CharacteristicState> entry : characteristicStates.entrySet()) {
+        CharacteristicState state = entry.getValue();
+        rates.add(
+            new NotificationRate(
+                entry.getKey().toString(), state.notificationCount, state.getPerSecond(now)));
       }
-      return null;
+      return rates;
     }
 
-    private void enqueueGattAction(Runnable action) {
-      synchronized (gattActions) {
-        if (readyForAction && !busy) {
-          busy = true;
-          action.run();
-        } else {
-          gattActions.add(action);
-        }
+    private boolean setNotification(String characteristicUuid, boolean enable) {
+      BluetoothGatt gatt = this.gatt;
+      BluetoothGattCharacteristic c = characteristics.get(characteristicUuid);
+      if (gatt == null || c == null) {
+        return false;
       }
+      gatt.setCharacteristicNotification(c, enable);
+      BluetoothGattDescriptor d = c.getDescriptor(NOTIFICATION_DESCRIPTOR);
+      if (d == null) {
+        return false;
+      }
+      d.setValue(
+          enable
+              ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
+              : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+      return gatt.writeDescriptor(d);
+    }
+
+    private void enqueueGattAction(GattAction action) {
+      gattWorker.execute(
+          () -> {
+            gattActions.add(action);
+            runGattActions();
+          });
     }
 
     private void onGattActionCompleted() {
-      synchronized (gattActions) {
-        if (readyForAction && gattActions.size() > 0) {
-          busy = true;
-          gattActions.remove(0).run();
-        } else {
-          busy = false;
-        }
+      gattWorker.execute(
+          () -> {
+            busy = false;
+            runGattActions();
+          });
+    }
+
+    private void setReadyForAction(boolean ready) {
+      // Either way, no callback is coming for an action that was in flight.
+      gattWorker.execute(
+          () -> {
+            readyForAction = ready;
+            busy = false;
+            runGattActions();
+          });
+    }
+
+    /** Runs queued actions until one is waiting for its callback. Only call on gattWorker. */
+    private void runGattActions() {
+      while (readyForAction && !busy && !gattActions.isEmpty()) {
+        busy = gattActions.remove().start();
       }
     }
 
@@ -217,21 +333,25 @@ public class MkrSciBleManager {
     public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
       if (status == BluetoothGatt.GATT_SUCCESS && newState == BluetoothProfile.STATE_CONNECTED) {
         this.gatt = gatt;
-        characteristics.clear();
+        characteristics = Collections.emptyMap();
         gatt.discoverServices();
       } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-        readyForAction = false;
+        setReadyForAction(false);
         gatt.disconnect();
       }
     }
 
     @Override
     public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+      Map<String, BluetoothGattCharacteristic> discovered = new HashMap<>();
       BluetoothGattService service = this.gatt.getService(UUID.fromString(SERVICE_UUID));
       if (service != null) {
-        characteristics.addAll(service.getCharacteristics());
+        for (BluetoothGattCharacteristic c : service.getCharacteristics()) {
+          discovered.put(c.getUuid().toString(), c);
+        }
       }
-      BluetoothGattCharacteristic c = getCharacteristic(VERSION_UUID);
+      characteristics = discovered;
+      BluetoothGattCharacteristic c = discovered.get(VERSION_UUID);
       if (c != null) {
         this.gatt.readCharacteristic(c);
       }
@@ -253,34 +373,22 @@ public class MkrSciBleManager {
     public void onCharacteristicRead(
         BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
       final String uuid = characteristic.getUuid().toString();
-      if (VERSION_UUID.equals(uuid) && firmwareVersion == -1) {
-        final byte[] value = characteristic.getValue();
-        if (value.length == 4) {
-          final ByteBuffer buffer = ByteBuffer.allocate(8);
-          buffer.put((byte) 0);
-          buffer.put((byte) 0);
-          buffer.put((byte) 0);
-          buffer.put((byte) 0);
-          buffer.put(value[3]);
-          buffer.put(value[2]);
-          buffer.put(value[1]);
-          buffer.put(value[0]);
-          buffer.position(0);
-          firmwareVersion = buffer.getLong();
-          // delivering to listener(s)
-          synchronized (listenersMap) {
-            for (List<Listener> listeners : listenersMap.values()) {
-              if (listeners != null) {
-                for (Listener l : listeners) {
-                  l.onFirmwareVersion(firmwareVersion);
-                }
-              }
-            }
+      if (!VERSION_UUID.equals(uuid)) {
+        onGattActionCompleted();
+        return;
+      }
+      final byte[] value = characteristic.getValue();
+      if (firmwareVersion == -1 && value.length == 4) {
+        firmwareVersion = readIntLittleEndian(value, 0) & 0xFFFFFFFFL;
+        // delivering to listener(s)
+        for (Listener[] listeners : listenersMap.values()) {
+          for (Listener l : listeners) {
+            l.onFirmwareVersion(firmwareVersion);
           }
         }
-        readyForAction = true;
       }
-      onGattActionCompleted();
+      // The version is read on every connection, before anything else.
+      setReadyForAction(true);
     }
 
     @Override
@@ -292,125 +400,147 @@ public class MkrSciBleManager {
     @Override
     public void onCharacteristicChanged(
         BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-      final String uuid = characteristic.getUuid().toString();
-      final ValueType type;
-      switch (uuid) {
-        case INPUT_1_UUID:
-        case INPUT_2_UUID:
-        case INPUT_3_UUID:
-          type = ValueType.UINT16;
-          break;
-        case VOLTAGE_UUID:
-        case CURRENT_UUID:
-        case RESISTANCE_UUID:
-          type = ValueType.SFLOAT;
-          break;
-        case ACCELEROMETER_UUID:
-        case GYROSCOPE_UUID:
-        case MAGNETOMETER_UUID:
-          type = ValueType.SFLOAT_ARR;
-          break;
-        default:
-          type = null;
+      final UUID uuid = characteristic.getUuid();
+      final ValueType type = VALUE_TYPES.get(uuid);
+      if (type == null) {
+        return;
       }
-      if (type != null) {
-        final double[] values = parse(type, characteristic.getValue());
-        if (values != null) {
-          // filter to avoid too large values blocking the UI
-          for (int i = 0; i < values.length; i++) {
-            if (values[i] > MAX_VALUE) {
-              values[i] = MAX_VALUE;
-            } else if (values[i] < MIN_VALUE) {
-              values[i] = MIN_VALUE;
-            }
-          }
-          // delivering to listener(s)
-          synchronized (listenersMap) {
-            List<Listener> listeners = listenersMap.get(uuid);
-            if (listeners != null) {
-              for (Listener l : listeners) {
-                l.onValuesUpdated(values);
-              }
-            }
-          }
+      CharacteristicState state = characteristicStates.get(uuid);
+      if (state == null) {
+        state = new CharacteristicState();
+        characteristicStates.put(uuid, state);
+      }
+      state.onNotification(SystemClock.elapsedRealtime());
+      final double[] values = parse(type, characteristic.getValue(), state.values);
+      if (values == null) {
+        return;
+      }
+      state.values = values;
+      // filter to avoid too large values blocking the UI
+      for (int i = 0; i < values.length; i++) {
+        if (values[i] > MAX_VALUE) {
+          values[i] = MAX_VALUE;
+        } else if (values[i] < MIN_VALUE) {
+          values[i] = MIN_VALUE;
+        }
+      }
+      // delivering to listener(s)
+      Listener[] listeners = listenersMap.get(uuid);
+      if (listeners != null) {
+        for (Listener l : listeners) {
+          l.onValuesUpdated(values);
         }
       }
     }
   }
 
-  private static double[] parse(ValueType valueType, byte[] value) {
-    if (ValueType.UINT8.equals(valueType)) {
-      if (value.length < 1) {
-        return null;
+  /** A GATT operation, which is complete once its callback arrives. */
+  private interface GattAction {
+    /** @return false if the operation couldn't be started, so that no callback will arrive */
+    boolean start();
+  }
+
+  /** The values last notified by a characteristic, and how often it notifies. */
+  private static class CharacteristicState {
+    private static final long RATE_WINDOW_MS = 1000;
+
+    // Only touched on the callback thread.
+    private double[] values = new double[0];
+    private long windowStartMs = -1;
+    private int windowCount = 0;
+
+    private volatile long notificationCount = 0;
+    private volatile long lastNotificationMs = 0;
+    private volatile double perSecond = 0;
+
+    private void onNotification(long nowMs) {
+      notificationCount++;
+      lastNotificationMs = nowMs;
+      if (windowStartMs < 0) {
+        windowStartMs = nowMs;
+        return;
       }
-      final ByteBuffer buffer = ByteBuffer.allocate(4);
-      buffer.put((byte) 0);
-      buffer.put((byte) 0);
-      buffer.put((byte) 0);
-      buffer.put(value[0]);
-      buffer.position(0);
-      return new double[] {buffer.getInt()};
-    }
-    if (ValueType.UINT16.equals(valueType)) {
-      if (value.length < 2) {
-        return null;
+      windowCount++;
+      long elapsed = nowMs - windowStartMs;
+      if (elapsed >= RATE_WINDOW_MS) {
+        perSecond = windowCount * 1000d / elapsed;
+        windowStartMs = nowMs;
+        windowCount = 0;
       }
-      final ByteBuffer buffer = ByteBuffer.allocate(4);
-      buffer.put((byte) 0);
-      buffer.put((byte) 0);
-      buffer.put(value[1]);
-      buffer.put(value[0]);
-      buffer.position(0);
-      return new double[] {buffer.getInt()};
     }
-    if (ValueType.UINT32.equals(valueType)) {
-      if (value.length < 4) {
-        return null;
-      }
-      final ByteBuffer buffer = ByteBuffer.allocate(8);
-      buffer.put((byte) 0);
-      buffer.put((byte) 0);
-      buffer.put((byte) 0);
-      buffer.put((byte) 0);
-      buffer.put(value[3]);
-      buffer.put(value[2]);
-      buffer.put(value[1]);
-      buffer.put(value[0]);
-      buffer.position(0);
-      return new double[] {buffer.getLong()};
+
+    private double getPerSecond(long nowMs) {
+      // A characteristic that has gone quiet isn't notifying at its last rate anymore.
+      return nowMs - lastNotificationMs > 2 * RATE_WINDOW_MS ? 0 : perSecond;
     }
-    if (ValueType.SFLOAT.equals(valueType)) {
-      if (value.length < 4) {
+  }
+
+  /**
+   * Parses {@code value} into {@code target}, or into a new array if {@code target} isn't the
+   * right size for it. Listeners only see the values until they return, so targets can be reused.
+   *
+   * @return the parsed values, or null if {@code value} is too short
+   */
+  @VisibleForTesting
+  static double[] parse(ValueType valueType, byte[] value, double[] target) {
+    final int size;
+    final int minLength;
+    switch (valueType) {
+      case UINT8:
+        size = 1;
+        minLength = 1;
+        break;
+      case UINT16:
+        size = 1;
+        minLength = 2;
+        break;
+      case UINT32:
+      case SFLOAT:
+        size = 1;
+        minLength = 4;
+        break;
+      case SFLOAT_ARR:
+        size = value.length / 4;
+        minLength = 0;
+        break;
+      default:
         return null;
-      }
-      final ByteBuffer buffer = ByteBuffer.allocate(4);
-      buffer.put(value[3]);
-      buffer.put(value[2]);
-      buffer.put(value[1]);
-      buffer.put(value[0]);
-      buffer.position(0);
-      return new double[] {buffer.getFloat()};
     }
-    if (ValueType.SFLOAT_ARR.equals(valueType)) {
-      final int size = value.length / 4;
-      final double[] array = new double[size];
-      final ByteBuffer buffer = ByteBuffer.allocate(4);
-      for (int i = 0; i < size; i++) {
-        final int offset = 4 * i;
-        buffer.position(0);
-        buffer.put(value[3 + offset]);
-        buffer.put(value[2 + offset]);
-        buffer.put(value[1 + offset]);
-        buffer.put(value[offset]);
-        buffer.position(0);
-        array[i] = buffer.getFloat();
-      }
-      return array;
+    if (value.length < minLength) {
+      return null;
     }
-    return null;
+    final double[] array = target != null && target.length == size ? target : new double[size];
+    switch (valueType) {
+      case UINT8:
+        array[0] = value[0] & 0xFF;
+        break;
+      case UINT16:
+        array[0] = (value[0] & 0xFF) | (value[1] & 0xFF) << 8;
+        break;
+      case UINT32:
+        array[0] = readIntLittleEndian(value, 0) & 0xFFFFFFFFL;
+        break;
+      case SFLOAT:
+        array[0] = Float.intBitsToFloat(readIntLittleEndian(value, 0));
+        break;
+      case SFLOAT_ARR:
+        for (int i = 0; i < size; i++) {
+          array[i] = Float.intBitsToFloat(readIntLittleEndian(value, 4 * i));
+        }
+        break;
+    }
+    return array;
+  }
+
+  private static int readIntLittleEndian(byte[] value, int offset) {
+    return (value[offset] & 0xFF)
+        | (value[offset + 1] & 0xFF) << 8
+        | (value[offset + 2] & 0xFF) << 16
+        | (value[offset + 3] & 0xFF) << 24;
   }
 
-  private enum ValueType {
+  @VisibleForTesting
+  enum ValueType {
     UINT8,
     UINT16,
     UINT32,
@@ -425,6 +555,10 @@ public class MkrSciBleManager {
   public interface Listener {
     void onFirmwareVersion(long firmwareVersion);
 
+    /**
+     * Called on the Bluetooth callback thread. {@code values} is reused for the next notification,
+     * so copy anything that's needed after returning.
+     */
     void onValuesUpdated(double[] values);
   }
 }
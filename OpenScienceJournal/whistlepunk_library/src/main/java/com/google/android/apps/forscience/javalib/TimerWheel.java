@@ -0,0 +1,241 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.android.apps.forscience.javalib;
+
+import java.util.IdentityHashMap;
+
+/**
+ * A hashed timer wheel: timers are hashed by their deadline into one of a fixed number of slots,
+ * each a doubly-linked list, so that scheduling and unscheduling are O(1). Timers are recycled, so
+ * that rescheduling the same runnable over and over does not allocate.
+ *
+ * <p>The wheel has no thread or clock of its own; its owner passes in the time, and calls {@link
+ * #poll(long)} to collect due runnables. Deadlines are rounded up to the next tick, so runnables
+ * are never returned early, and at most one tick late. Like {@link Scheduler}, a runnable can be
+ * scheduled more than once, and {@link #unschedule(Runnable)} removes all of its timers.
+ *
+ * <p>This class is thread-safe.
+ */
+public class TimerWheel {
+  /** Returned by {@link #getNextDeadlineMillis()} when no timers are scheduled. */
+  public static final long NO_DEADLINE = -1;
+
+  private static class Timer {
+    Runnable runnable;
+    long deadlineTick;
+    Timer previous;
+    Timer next;
+    // The next timer for the same runnable
+    Timer nextForRunnable;
+  }
+
+  private final long tickMillis;
+  private final int mask;
+  private final Timer[] heads;
+  private final Timer[] tails;
+  private final IdentityHashMap<Runnable, Timer> timersByRunnable = new IdentityHashMap<>();
+
+  // All guarded by this
+  private Timer recycled = null;
+  private int size = 0;
+  // Every timer due before this tick has been returned by poll.
+  private long currentTick;
+  // While known, no timer is due before this tick, so getNextDeadlineMillis doesn't have to look
+  // through the slots for every call.
+  private boolean nextDeadlineKnown = false;
+  private long nextDeadlineTick;
+
+  /**
+   * @param startMillis the current time, in the same time base as all later calls
+   * @param tickMillis the resolution of the wheel
+   * @param wheelSize the number of slots, a power of two. Timers further than this many ticks away
+   *     share slots with nearer ones, and are skipped over until they are due.
+   */
+  public TimerWheel(long startMillis, long tickMillis, int wheelSize) {
+    if (tickMillis <= 0 || wheelSize <= 0 || Integer.bitCount(wheelSize) != 1) {
+      throw new IllegalArgumentException(
+          "Bad timer wheel: tick " + tickMillis + "ms, " + wheelSize + " slots");
+    }
+    this.tickMillis = tickMillis;
+    mask = wheelSize - 1;
+    heads = new Timer[wheelSize];
+    tails = new Timer[wheelSize];
+    currentTick = startMillis / tickMillis;
+  }
+
+  /** Schedules {@code runnable} to be returned by {@link #poll} from {@code deadlineMillis}. */
+  public synchronized void schedule(long deadlineMillis, Runnable runnable) {
+    long deadlineTick = (deadlineMillis + tickMillis - 1) / tickMillis;
+    Timer timer = obtainTimer();
+    timer.runnable = runnable;
+    timer.deadlineTick = Math.max(deadlineTick, currentTick);
+    timer.nextForRunnable = timersByRunnable.put(runnable, timer);
+
+    int slot = (int) (timer.deadlineTick & mask);
+    timer.previous = tails[slot];
+    if (tails[slot] == null) {
+      heads[slot] = timer;
+    } else {
+      tails[slot].next = timer;
+    }
+    tails[slot] = timer;
+    if (size == 0) {
+      nextDeadlineKnown = true;
+      nextDeadlineTick = timer.deadlineTick;
+    } else if (nextDeadlineKnown) {
+      nextDeadlineTick = Math.min(nextDeadlineTick, timer.deadlineTick);
+    }
+    size++;
+  }
+
+  /** Removes every timer scheduled for {@code runnable}. */
+  public synchronized void unschedule(Runnable runnable) {
+    Timer timer = timersByRunnable.remove(runnable);
+    while (timer != null) {
+      Timer next = timer.nextForRunnable;
+      unlink(timer);
+      recycle(timer);
+      timer = next;
+    }
+  }
+
+  /**
+   * Removes and returns the earliest runnable due at {@code nowMillis}, or null if there are none.
+   * Call repeatedly to run everything that is due; since nothing is held between calls, runnables
+   * may schedule and unschedule others (including those that are also due) as they run.
+   *
+   * <p>If more than a full turn of the wheel has passed since the last poll, overdue runnables are
+   * returned in slot order rather than strictly in deadline order.
+   */
+  public synchronized Runnable poll(long nowMillis) {
+    long nowTick = nowMillis / tickMillis;
+    if (size == 0) {
+      currentTick = Math.max(currentTick, nowTick);
+      return null;
+    }
+    if (nowTick - currentTick > mask) {
+      // Only the last turn's worth of slots need visiting: every overdue timer is in one of them.
+      currentTick = nowTick - mask;
+      nextDeadlineKnown = false;
+    }
+    while (currentTick <= nowTick) {
+      int slot = (int) (currentTick & mask);
+      for (Timer timer = heads[slot]; timer != null; timer = timer.next) {
+        if (timer.deadlineTick <= currentTick) {
+          Runnable runnable = timer.runnable;
+          unlink(timer);
+          removeFromRunnable(timer);
+          recycle(timer);
+          return runnable;
+        }
+      }
+      if (currentTick == nowTick) {
+        break;
+      }
+      currentTick++;
+    }
+    return null;
+  }
+
+  /**
+   * @return the earliest time at which {@link #poll} may return a runnable, or {@link #NO_DEADLINE}
+   *     if there are none. This is never later than the earliest deadline, but may be earlier when
+   *     that deadline is more than one turn of the wheel away.
+   *     <p>The answer is remembered until the timer that it came from is removed, so asking again
+   *     after scheduling more timers, or after polling with nothing due, takes constant time.
+   */
+  public synchronized long getNextDeadlineMillis() {
+    if (size == 0) {
+      return NO_DEADLINE;
+    }
+    if (!nextDeadlineKnown || nextDeadlineTick <= currentTick) {
+      nextDeadlineTick = findNextDeadlineTick();
+      nextDeadlineKnown = true;
+    }
+    return nextDeadlineTick * tickMillis;
+  }
+
+  private long findNextDeadlineTick() {
+    long lastTick = currentTick + mask;
+    for (long tick = currentTick; tick <= lastTick; tick++) {
+      for (Timer timer = heads[(int) (tick & mask)]; timer != null; timer = timer.next) {
+        if (timer.deadlineTick <= tick) {
+          return tick;
+        }
+      }
+    }
+    return lastTick + 1;
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  private Timer obtainTimer() {
+    Timer timer = recycled;
+    if (timer == null) {
+      return new Timer();
+    }
+    recycled = timer.next;
+    timer.next = null;
+    return timer;
+  }
+
+  private void recycle(Timer timer) {
+    timer.runnable = null;
+    timer.previous = null;
+    timer.nextForRunnable = null;
+    timer.next = recycled;
+    recycled = timer;
+  }
+
+  private void unlink(Timer timer) {
+    int slot = (int) (timer.deadlineTick & mask);
+    if (timer.previous == null) {
+      heads[slot] = timer.next;
+    } else {
+      timer.previous.next = timer.next;
+    }
+    if (timer.next == null) {
+      tails[slot] = timer.previous;
+    } else {
+      timer.next.previous = timer.previous;
+    }
+    if (timer.deadlineTick <= nextDeadlineTick) {
+      // It may have been the timer that the next deadline came from.
+      nextDeadlineKnown = false;
+    }
+    size--;
+  }
+
+  private void removeFromRunnable(Timer timer) {
+    Timer first = timersByRunnable.get(timer.runnable);
+    if (first == timer) {
+      if (timer.nextForRunnable == null) {
+        timersByRunnable.remove(timer.runnable);
+      } else {
+        timersByRunnable.put(timer.runnable, timer.nextForRunnable);
+      }
+      return;
+    }
+    for (Timer other = first; other != null; other = other.nextForRunnable) {
+      if (other.nextForRunnable == timer) {
+        other.nextForRunnable = timer.nextForRunnable;
+        return;
+      }
+    }
+  }
+}
@@ -30,6 +30,7 @@ import com.google.android.apps.forscience.whistlepunk.devicemanager.SensorDiscov
 import com.google.android.apps.forscience.whistlepunk.filemetadata.ExperimentLibraryManager;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Label;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.LocalSyncManager;
+import com.google.android.apps.forscience.whistlepunk.metadata.LegacyMigrationProgress;
 import com.google.android.apps.forscience.whistlepunk.metadata.SimpleMetaDataManager;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorEnvironment;
 import com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabaseImpl;
@@ -72,6 +73,8 @@ public class AppSingleton {
   private BehaviorSubject<Boolean> exportServiceBusy = BehaviorSubject.create();
   private BehaviorSubject<Boolean> syncServiceBusy = BehaviorSubject.create();
   private final BehaviorSubject<Integer> experimentSynced = BehaviorSubject.create();
+  private final BehaviorSubject<LegacyMigrationProgress> legacyMigrationProgress =
+      BehaviorSubject.create();
   private BehaviorSubject<Optional<Activity>> resumedActivity = BehaviorSubject.create();
 
   private SensorEnvironment sensorEnvironment =
@@ -313,6 +316,15 @@ public class AppSingleton {
     return experimentSynced;
   }
 
+  public void setLegacyMigrationProgress(LegacyMigrationProgress progress) {
+    legacyMigrationProgress.onNext(progress);
+  }
+
+  /** Emits as experiments are moved from the legacy database to files, in the background. */
+  public Observable<LegacyMigrationProgress> whenLegacyMigrationProgresses() {
+    return legacyMigrationProgress;
+  }
+
   public Maybe<Activity> onNextActivity() {
     return resumedActivity.filter(Optional::isPresent).map(Optional::get).firstElement();
   }
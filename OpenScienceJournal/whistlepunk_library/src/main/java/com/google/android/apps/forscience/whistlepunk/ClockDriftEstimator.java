@@ -0,0 +1,125 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+/**
+ * Maps a device's clock onto the phone's, given pairs of (device time, phone time at which that
+ * device time was received).
+ *
+ * <p>The offset between the clocks is fitted as a line over device time, by least squares over a
+ * sliding window of observations, so that both the initial skew and the drift between the two
+ * crystals are corrected. Observations are bucketed by device time, and each bucket keeps the one
+ * with the smallest offset: that one was delayed least on its way to the phone. This class is not
+ * thread-safe.
+ */
+class ClockDriftEstimator {
+  // Cheap crystals are within a few hundred ppm; anything steeper is transmission jitter.
+  private static final double MAX_DRIFT = 0.001;
+
+  private final long bucketMs;
+  private final long[] deviceTimes;
+  private final long[] offsets;
+  private int start = 0;
+  private int count = 0;
+
+  private long bucketStartMs;
+
+  // offset(deviceTime) = intercept + slope * (deviceTime - origin)
+  private long origin;
+  private double intercept;
+  private double slope;
+
+  /**
+   * @param windowSize how many buckets to fit the line over
+   * @param bucketMs the length of each bucket, in device milliseconds
+   */
+  ClockDriftEstimator(int windowSize, long bucketMs) {
+    this.bucketMs = bucketMs;
+    deviceTimes = new long[windowSize];
+    offsets = new long[windowSize];
+  }
+
+  boolean hasObservations() {
+    return count > 0;
+  }
+
+  void reset() {
+    start = 0;
+    count = 0;
+  }
+
+  /** Records that device time {@code deviceTimeMs} reached the phone at {@code phoneTimeMs}. */
+  void addObservation(long deviceTimeMs, long phoneTimeMs) {
+    long offset = phoneTimeMs - deviceTimeMs;
+    if (count > 0 && deviceTimeMs < deviceTimes[last()]) {
+      // The device has restarted its clock, so what we know no longer applies.
+      reset();
+    }
+    if (count > 0 && deviceTimeMs - bucketStartMs < bucketMs) {
+      if (offset < offsets[last()]) {
+        deviceTimes[last()] = deviceTimeMs;
+        offsets[last()] = offset;
+        fit();
+      }
+      return;
+    }
+    bucketStartMs = deviceTimeMs;
+    if (count == deviceTimes.length) {
+      start = (start + 1) % deviceTimes.length;
+      count--;
+    }
+    deviceTimes[(start + count) % deviceTimes.length] = deviceTimeMs;
+    offsets[(start + count) % deviceTimes.length] = offset;
+    count++;
+    fit();
+  }
+
+  /** Returns the phone time at which the device clock read {@code deviceTimeMs}. */
+  long toPhoneTime(long deviceTimeMs) {
+    return deviceTimeMs + Math.round(intercept + slope * (deviceTimeMs - origin));
+  }
+
+  private int last() {
+    return (start + count - 1) % deviceTimes.length;
+  }
+
+  private void fit() {
+    // Fit about the window's means, so that large clock values don't cost precision.
+    origin = deviceTimes[start];
+    double meanX = 0;
+    double meanY = 0;
+    for (int i = 0; i < count; i++) {
+      int index = (start + i) % deviceTimes.length;
+      meanX += deviceTimes[index] - origin;
+      meanY += offsets[index];
+    }
+    meanX /= count;
+    meanY /= count;
+
+    double covariance = 0;
+    double variance = 0;
+    for (int i = 0; i < count; i++) {
+      int index = (start + i) % deviceTimes.length;
+      double dx = deviceTimes[index] - origin - meanX;
+      covariance += dx * (offsets[index] - meanY);
+      variance += dx * dx;
+    }
+    slope = variance > 0 ? covariance / variance : 0;
+    slope = Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, slope));
+    intercept = meanY - slope * meanX;
+  }
+}
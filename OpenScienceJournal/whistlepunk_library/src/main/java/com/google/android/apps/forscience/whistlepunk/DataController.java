@@ -30,6 +30,8 @@ import com.google.android.apps.forscience.whistlepunk.metadata.ExperimentSensors
 import com.google.android.apps.forscience.whistlepunk.metadata.ExternalSensorSpec;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrialDataChunks.TrialDataChunk;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrialDataChunks.TrialDataManifest;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
 import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
@@ -112,6 +114,16 @@ public interface DataController {
   void getExperimentOverviews(
       boolean includeArchived, MaybeConsumer<List<ExperimentOverviewPojo>> onSuccess);
 
+  /**
+   * Gets a page of experiment overviews, most recently used first. Useful for showing the start of
+   * the experiment list before the rest is needed.
+   */
+  void getExperimentOverviews(
+      boolean includeArchived,
+      int offset,
+      int limit,
+      MaybeConsumer<List<ExperimentOverviewPojo>> onSuccess);
+
   /** Gets all experiment overviews on the same thread as the caller. */
   List<ExperimentOverviewPojo> blockingGetExperimentOverviews(boolean includeArchived);
 
@@ -187,4 +199,27 @@ public interface DataController {
 
   void writeTrialProtoToFile(
       String experimentId, String trialId, final MaybeConsumer<File> onSuccess) throws IOException;
+
+  /**
+   * Writes a trial's sensor data into {@code chunkDirectory} as sync chunks, and returns the
+   * manifest that lists them.
+   */
+  void writeTrialDataChunks(
+      String experimentId,
+      String trialId,
+      File chunkDirectory,
+      MaybeConsumer<TrialDataManifest> onSuccess);
+
+  /**
+   * Replaces the stored readings of a sensor in each window with the readings in that window's
+   * chunk.
+   *
+   * @param chunks maps the start of each window to its chunk, or to null to clear the window.
+   */
+  void applyTrialDataChunks(
+      String trialId,
+      String sensorTag,
+      long chunkDurationMillis,
+      Map<Long, TrialDataChunk> chunks,
+      MaybeConsumer<Success> onSuccess);
 }
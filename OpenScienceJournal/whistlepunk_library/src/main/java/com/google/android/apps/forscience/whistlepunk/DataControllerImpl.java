@@ -39,12 +39,16 @@ import com.google.android.apps.forscience.whistlepunk.metadata.ExternalSensorSpe
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData.ScalarSensorDataDump;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrialDataChunks.TrialDataChunk;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrialDataChunks.TrialDataManifest;
 import com.google.android.apps.forscience.whistlepunk.metadata.MetaDataManager;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensorDumpReader;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
 import com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabase;
 import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
+import com.google.android.apps.forscience.whistlepunk.sensordb.TrialDataChunks;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.Range;
@@ -567,6 +571,18 @@ public class DataControllerImpl implements DataController, RecordingDataControll
         });
   }
 
+  @Override
+  public void getExperimentOverviews(
+      boolean includeArchived,
+      int offset,
+      int limit,
+      MaybeConsumer<List<ExperimentOverviewPojo>> onSuccess) {
+    background(
+        metaDataThread,
+        onSuccess,
+        () -> metaDataManager.getExperimentOverviews(includeArchived, offset, limit));
+  }
+
   @Override
   public List<ExperimentOverviewPojo> blockingGetExperimentOverviews(boolean includeArchived) {
     return metaDataManager.getExperimentOverviews(includeArchived);
@@ -1006,4 +1022,46 @@ public class DataControllerImpl implements DataController, RecordingDataControll
               }
             }));
   }
+
+  @Override
+  public void writeTrialDataChunks(
+      String experimentId,
+      String trialId,
+      File chunkDirectory,
+      MaybeConsumer<TrialDataManifest> onSuccess) {
+    getExperimentById(
+        experimentId,
+        MaybeConsumers.chainFailure(
+            onSuccess,
+            experiment ->
+                background(
+                    metaDataThread,
+                    onSuccess,
+                    () -> {
+                      for (GoosciTrial.Trial trial :
+                          experiment.getExperimentProto().getTrialsList()) {
+                        if (trial.getTrialId().equals(trialId)) {
+                          return TrialDataChunks.writeChunks(sensorDatabase, trial, chunkDirectory);
+                        }
+                      }
+                      throw new IOException("Trial not found: " + trialId);
+                    })));
+  }
+
+  @Override
+  public void applyTrialDataChunks(
+      String trialId,
+      String sensorTag,
+      long chunkDurationMillis,
+      Map<Long, TrialDataChunk> chunks,
+      MaybeConsumer<Success> onSuccess) {
+    background(
+        sensorDataThread,
+        onSuccess,
+        () -> {
+          TrialDataChunks.applyChunks(
+              sensorDatabase, trialId, sensorTag, chunkDurationMillis, chunks);
+          return Success.SUCCESS;
+        });
+  }
 }
@@ -414,9 +414,22 @@ public class ExportService extends Service {
     DataController dc = getDataController(appAccount).blockingGet();
     Experiment experiment = RxDataController.getExperimentById(dc, experimentId).blockingGet();
     experiment.cleanTrials(this, appAccount);
+    int[] lastPercent = {-1};
     File file =
         FileMetadataUtil.getInstance()
-            .getFileForExport(getApplicationContext(), appAccount, experiment, dc)
+            .getFileForExport(
+                getApplicationContext(),
+                appAccount,
+                experiment,
+                dc,
+                (bytesWritten, estimatedTotalBytes) -> {
+                  int percent = (int) (bytesWritten * 100 / Math.max(1, estimatedTotalBytes));
+                  if (percent != lastPercent[0]) {
+                    lastPercent[0] = percent;
+                    updateProgress(
+                        new ExportProgress(experimentId, ExportProgress.EXPORTING, percent));
+                  }
+                })
             .blockingGet();
 
     updateProgress(
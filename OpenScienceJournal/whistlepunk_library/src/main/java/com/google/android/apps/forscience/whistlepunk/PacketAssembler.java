@@ -20,21 +20,64 @@ import androidx.annotation.VisibleForTesting;
 import android.util.Log;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciSensor;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciSensor.Data;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciSensor.DataBatch;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciSensor.Pin;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorStatusListener;
 import com.google.protobuf.InvalidProtocolBufferException;
-import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
 
+/**
+ * Reassembles SensorData messages from the framed BLE packets they arrive in, and decodes them.
+ *
+ * <p>Sensors send a message per reading, so reassembly uses a reusable buffer, and the usual
+ * message (a single reading, with a pin and a matching value) is decoded by hand without
+ * allocating. Anything else falls back to the protobuf parser, which reports problems as before.
+ *
+ * <p>Devices that support protocol version 1.1.0 may instead send a DataBatch of several readings
+ * per message, which goes through the parser, as there are few enough of them. Their device times
+ * are mapped onto the phone's clock by a {@link ClockDriftEstimator}, which keeps correcting for
+ * drift over long recordings, rather than by the skew measured once from the first reading.
+ */
 public class PacketAssembler {
   private static final String TAG = "PacketAssembler";
 
+  // Wire types and field numbers from sensor.proto
+  private static final int WIRETYPE_VARINT = 0;
+  private static final int WIRETYPE_FIXED32 = 5;
+  private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+  private static final int SENSOR_DATA_TIMESTAMP_KEY = 1;
+  private static final int SENSOR_DATA_DATA = 11;
+  private static final int DATA_PIN = 1;
+  private static final int PIN_ANALOG = 10;
+  private static final int PIN_DIGITAL = 11;
+  private static final int PIN_VIRTUAL = 12;
+  private static final int VALUE_ANALOG = 10;
+  private static final int VALUE_DIGITAL = 11;
+  private static final int VALUE_FLOAT = 12;
+  private static final int VALUE_INT = 13;
+
   private final Clock defaultClock;
   private final Listener listener;
 
-  private final ByteArrayOutputStream packetStream = new ByteArrayOutputStream();
+  private byte[] packetBuffer = new byte[64];
+  private int packetLength = 0;
+
+  // Decoding state, reused for every message.
+  private int position;
+  private boolean malformed;
+  private int pinType;
+  private int valueType;
+  private long valueBits;
+  private long rawValue;
+
+  private boolean fastDecodeEnabled = true;
 
   private long timeSkew = -1;
 
+  // Fit over the last minute of batches, keeping the least delayed batch from each second.
+  private final ClockDriftEstimator clockDrift = new ClockDriftEstimator(60, 1000);
+  private long lastBatchTimestampMs = Long.MIN_VALUE;
+
   private static float DIGITAL_HIGH = 1023f;
   private static float DIGITAL_LOW = 0f;
 
@@ -59,10 +102,22 @@ public class PacketAssembler {
     listener.onError(SensorStatusListener.ERROR_INVALID_PROTO, message);
   }
 
+  /** Turns off the hand-written decoder, so that benchmarks can compare it to the parser. */
+  @VisibleForTesting
+  void setFastDecodeEnabled(boolean enabled) {
+    fastDecodeEnabled = enabled;
+  }
+
   private void parse() {
-    byte[] bs = packetStream.toByteArray();
-    packetStream.reset();
+    int length = packetLength;
+    packetLength = 0;
+    if (fastDecodeEnabled && decode(length)) {
+      return;
+    }
+    parseProto(Arrays.copyOf(packetBuffer, length));
+  }
 
+  private void parseProto(byte[] bs) {
     GoosciSensor.SensorData sensorData;
 
     try {
@@ -75,6 +130,11 @@ public class PacketAssembler {
       return;
     }
 
+    if (sensorData.hasDataBatch()) {
+      parseBatch(sensorData.getTimestampKey(), sensorData.getDataBatch());
+      return;
+    }
+
     if (!sensorData.hasData()) {
       raiseError("Unable to read data from external sensor");
       if (Log.isLoggable(TAG, Log.DEBUG)) {
@@ -113,8 +173,210 @@ public class PacketAssembler {
       return;
     }
 
-    long relativeTime = sensorData.getTimestampKey();
+    onDataDecoded(sensorData.getTimestampKey(), data);
+  }
+
+  private void parseBatch(long relativeTime, DataBatch batch) {
+    Pin sensorPin = batch.getPin();
+    int count = batch.getTimeDeltaCount();
+    int batchValueType;
+    if (sensorPin.hasAnalogPin() && batch.getAnalogValueCount() == count) {
+      batchValueType = VALUE_ANALOG;
+    } else if (sensorPin.hasDigitalPin() && batch.getDigitalValueCount() == count) {
+      batchValueType = VALUE_DIGITAL;
+    } else if (sensorPin.hasVirtualPin() && batch.getFloatValueCount() == count) {
+      batchValueType = VALUE_FLOAT;
+    } else if (sensorPin.hasVirtualPin() && batch.getIntValueCount() == count) {
+      batchValueType = VALUE_INT;
+    } else {
+      raiseError("Unable to read data from external sensor");
+      if (Log.isLoggable(TAG, Log.DEBUG)) {
+        Log.d(TAG, "Sensor data batch has unknown pin or mismatched sensor values");
+      }
+      return;
+    }
+    if (count == 0) {
+      return;
+    }
+
+    // The device sends a batch as soon as it takes the last reading in it.
+    long deviceTime = relativeTime;
+    for (int i = 0; i < count; i++) {
+      deviceTime += batch.getTimeDelta(i) & 0xFFFFFFFFL;
+    }
+    clockDrift.addObservation(deviceTime, defaultClock.getNow());
+
+    deviceTime = relativeTime;
+    for (int i = 0; i < count; i++) {
+      deviceTime += batch.getTimeDelta(i) & 0xFFFFFFFFL;
+      double data;
+      if (batchValueType == VALUE_ANALOG) {
+        data = (double) batch.getAnalogValue(i);
+      } else if (batchValueType == VALUE_DIGITAL) {
+        data = booleanToDigital(batch.getDigitalValue(i));
+      } else if (batchValueType == VALUE_FLOAT) {
+        data = (double) batch.getFloatValue(i);
+      } else {
+        data = (double) batch.getIntValue(i);
+      }
+      // A new fit can move times back a little; never let them run backwards.
+      long timestamp = Math.max(clockDrift.toPhoneTime(deviceTime), lastBatchTimestampMs);
+      lastBatchTimestampMs = timestamp;
+      listener.onDataParsed(timestamp, data);
+    }
+  }
+
+  /**
+   * Decodes the first {@code length} bytes of packetBuffer, if they are a single reading with a
+   * pin and a matching value, and all of their fields appear once, with the expected wire types.
+   *
+   * @return false if not, without reporting anything; the protobuf parser should handle it.
+   */
+  private boolean decode(int length) {
+    position = 0;
+    malformed = false;
+    pinType = 0;
+    valueType = 0;
+    boolean hasTimestamp = false;
+    boolean hasData = false;
+    int timestamp = 0;
+    while (position < length) {
+      int tag = (int) readVarint(length);
+      if (malformed) {
+        return false;
+      }
+      if (tag == makeTag(SENSOR_DATA_TIMESTAMP_KEY, WIRETYPE_VARINT) && !hasTimestamp) {
+        // uint32 fields are read into a Java int, just as the parser does.
+        timestamp = (int) readVarint(length);
+        hasTimestamp = true;
+      } else if (tag == makeTag(SENSOR_DATA_DATA, WIRETYPE_LENGTH_DELIMITED) && !hasData) {
+        int end = readLengthDelimitedEnd(length);
+        if (malformed || !decodeData(end)) {
+          return false;
+        }
+        hasData = true;
+      } else {
+        // Errors, unknown fields and repeated fields are all left to the parser.
+        return false;
+      }
+    }
+    if (malformed || !hasTimestamp || !hasData) {
+      return false;
+    }
+
+    double data;
+    if (pinType == PIN_ANALOG && valueType == VALUE_ANALOG) {
+      data = (double) (int) valueBits;
+    } else if (pinType == PIN_DIGITAL && valueType == VALUE_DIGITAL) {
+      data = booleanToDigital(valueBits != 0);
+    } else if (pinType == PIN_VIRTUAL && valueType == VALUE_FLOAT) {
+      data = (double) Float.intBitsToFloat((int) valueBits);
+    } else if (pinType == PIN_VIRTUAL && valueType == VALUE_INT) {
+      data = (double) (int) valueBits;
+    } else {
+      return false;
+    }
+    onDataDecoded(timestamp, data);
+    return true;
+  }
+
+  /** Decodes a Data message that ends at {@code end}, into pinType, valueType and valueBits. */
+  private boolean decodeData(int end) {
+    while (position < end) {
+      int tag = (int) readVarint(end);
+      if (malformed) {
+        return false;
+      }
+      int field = tag >>> 3;
+      if (tag == makeTag(DATA_PIN, WIRETYPE_LENGTH_DELIMITED) && pinType == 0) {
+        int pinEnd = readLengthDelimitedEnd(end);
+        if (malformed) {
+          return false;
+        }
+        // A Pin holds a single AnalogPin, DigitalPin or VirtualPin, each just a pin number.
+        int pinTag = (int) readVarint(pinEnd);
+        int pinField = pinTag >>> 3;
+        if (malformed
+            || (pinTag & 7) != WIRETYPE_LENGTH_DELIMITED
+            || pinField < PIN_ANALOG
+            || pinField > PIN_VIRTUAL
+            || !decodeSingleField(readLengthDelimitedEnd(pinEnd), WIRETYPE_VARINT)
+            || position != pinEnd) {
+          return false;
+        }
+        pinType = pinField;
+      } else if ((tag & 7) == WIRETYPE_LENGTH_DELIMITED
+          && field >= VALUE_ANALOG
+          && field <= VALUE_INT
+          && valueType == 0) {
+        int valueEnd = readLengthDelimitedEnd(end);
+        int wireType = field == VALUE_FLOAT ? WIRETYPE_FIXED32 : WIRETYPE_VARINT;
+        if (malformed || !decodeSingleField(valueEnd, wireType)) {
+          return false;
+        }
+        valueType = field;
+        valueBits = rawValue;
+      } else {
+        return false;
+      }
+    }
+    return !malformed && position == end;
+  }
+
+  /**
+   * Decodes a message that ends at {@code end} and holds exactly one field, field 1 of the given
+   * wire type, into rawValue.
+   */
+  private boolean decodeSingleField(int end, int wireType) {
+    if (malformed || readVarint(end) != makeTag(1, wireType) || malformed) {
+      return false;
+    }
+    if (wireType == WIRETYPE_FIXED32) {
+      if (end - position < 4) {
+        return false;
+      }
+      rawValue =
+          (packetBuffer[position] & 0xff)
+              | (packetBuffer[position + 1] & 0xff) << 8
+              | (packetBuffer[position + 2] & 0xff) << 16
+              | (packetBuffer[position + 3] & 0xff) << 24;
+      position += 4;
+    } else {
+      rawValue = readVarint(end);
+    }
+    return !malformed && position == end;
+  }
+
+  private int readLengthDelimitedEnd(int limit) {
+    long length = readVarint(limit);
+    if (length < 0 || length > limit - position) {
+      malformed = true;
+      return limit;
+    }
+    return position + (int) length;
+  }
 
+  private long readVarint(int limit) {
+    long result = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      if (position >= limit) {
+        break;
+      }
+      byte b = packetBuffer[position++];
+      result |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return result;
+      }
+    }
+    malformed = true;
+    return 0;
+  }
+
+  private static int makeTag(int field, int wireType) {
+    return field << 3 | wireType;
+  }
+
+  private void onDataDecoded(long relativeTime, double data) {
     if (timeSkew == -1) {
       // Haven't seen a value yet. Let's calculate the time skew assuming no
       // delay.
@@ -128,7 +390,11 @@ public class PacketAssembler {
     int length = (int) packet[0];
     boolean isLast = packet[1] == 1;
 
-    packetStream.write(packet, 2, length);
+    if (packetLength + length > packetBuffer.length) {
+      packetBuffer = Arrays.copyOf(packetBuffer, Math.max(packetLength + length, 2 * packetLength));
+    }
+    System.arraycopy(packet, 2, packetBuffer, packetLength, length);
+    packetLength += length;
 
     if (isLast) {
       parse();
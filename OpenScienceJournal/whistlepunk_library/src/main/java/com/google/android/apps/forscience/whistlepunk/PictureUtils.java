@@ -33,6 +33,7 @@ import android.widget.ImageView;
 import com.bumptech.glide.load.engine.DiskCacheStrategy;
 import com.bumptech.glide.signature.ObjectKey;
 import com.google.android.apps.forscience.whistlepunk.accounts.AppAccount;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.ExperimentOverviewPojo;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.FileMetadataUtil;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -208,10 +209,28 @@ public class PictureUtils {
 
   public static void loadExperimentOverviewImage(
       AppAccount appAccount, ImageView imageView, String experimentOverviewFilePath) {
-    imageView.setScaleType(ImageView.ScaleType.CENTER_CROP);
     String fullPath =
         PictureUtils.getExperimentOverviewFullImagePath(appAccount, experimentOverviewFilePath);
-    File file = new File(fullPath);
+    loadExperimentOverviewImage(imageView, fullPath, new File(fullPath).lastModified());
+  }
+
+  /**
+   * Loads an overview's image without touching the disk, if the overview came from the overview
+   * index, which resolved the image path when the overview was last updated.
+   */
+  public static void loadExperimentOverviewImage(
+      AppAccount appAccount, ImageView imageView, ExperimentOverviewPojo overview) {
+    if (overview.getFullImagePath() == null) {
+      loadExperimentOverviewImage(appAccount, imageView, overview.getImagePath());
+      return;
+    }
+    loadExperimentOverviewImage(
+        imageView, overview.getFullImagePath(), overview.getImageLastModifiedMs());
+  }
+
+  private static void loadExperimentOverviewImage(
+      ImageView imageView, String fullPath, long lastModifiedMs) {
+    imageView.setScaleType(ImageView.ScaleType.CENTER_CROP);
     Context context = imageView.getContext();
     GlideApp.with(context)
         .load(fullPath)
@@ -220,7 +239,7 @@ public class PictureUtils {
         // not be used if the underlying file changes. This may happen if the user has
         // picked an experiment photo from the "edit experiment" page because there is only
         // one filename used for that photo.
-        .signature(new ObjectKey(file.getPath() + file.lastModified()))
+        .signature(new ObjectKey(fullPath + lastModifiedMs))
         .into(imageView);
   }
 
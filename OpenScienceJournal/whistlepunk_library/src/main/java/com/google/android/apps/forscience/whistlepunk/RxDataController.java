@@ -23,10 +23,13 @@ import com.google.android.apps.forscience.whistlepunk.filemetadata.FileSyncColle
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Label;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.LabelListHolder;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrialDataChunks.TrialDataChunk;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrialDataChunks.TrialDataManifest;
 import io.reactivex.Completable;
 import io.reactivex.Maybe;
 import io.reactivex.Single;
 import java.io.File;
+import java.util.Map;
 
 /** Utility methods for bridging DataController calls with code that uses Rx */
 public class RxDataController {
@@ -50,6 +53,10 @@ public class RxDataController {
         mc -> dc.updateExperiment(e.getExperimentId(), shouldMarkDirty, mc));
   }
 
+  public static Completable saveImmediately(DataController dc) {
+    return MaybeConsumers.buildCompleteable(mc -> dc.saveImmediately(mc));
+  }
+
   public static Completable deleteExperiment(DataController dc, Experiment e) {
     return MaybeConsumers.buildCompleteable(mc -> dc.deleteExperiment(e, mc));
   }
@@ -126,4 +133,20 @@ public class RxDataController {
       DataController dc, String experimentId, String trialId) {
     return MaybeConsumers.buildSingle(mc -> dc.writeTrialProtoToFile(experimentId, trialId, mc));
   }
+
+  public static Single<TrialDataManifest> writeTrialDataChunks(
+      DataController dc, String experimentId, String trialId, File chunkDirectory) {
+    return MaybeConsumers.buildSingle(
+        mc -> dc.writeTrialDataChunks(experimentId, trialId, chunkDirectory, mc));
+  }
+
+  public static Completable applyTrialDataChunks(
+      DataController dc,
+      String trialId,
+      String sensorTag,
+      long chunkDurationMillis,
+      Map<Long, TrialDataChunk> chunks) {
+    return MaybeConsumers.buildCompleteable(
+        mc -> dc.applyTrialDataChunks(trialId, sensorTag, chunkDurationMillis, chunks, mc));
+  }
 }
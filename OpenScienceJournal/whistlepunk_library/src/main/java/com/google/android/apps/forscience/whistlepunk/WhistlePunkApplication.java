@@ -34,6 +34,7 @@ import com.google.android.apps.forscience.whistlepunk.cloudsync.CloudSyncProvide
 import com.google.android.apps.forscience.whistlepunk.devicemanager.SensorDiscoverer;
 import com.google.android.apps.forscience.whistlepunk.featurediscovery.FeatureDiscoveryProvider;
 import com.google.android.apps.forscience.whistlepunk.feedback.FeedbackProvider;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.ChangeClientId;
 import com.google.android.apps.forscience.whistlepunk.licenses.LicenseProvider;
 import com.google.android.apps.forscience.whistlepunk.performance.PerfTrackerProvider;
 import com.google.android.apps.forscience.whistlepunk.sensors.VelocitySensor;
@@ -161,6 +162,7 @@ public abstract class WhistlePunkApplication extends Application {
     }
     refWatcher = installLeakCanary();
     versionCode = populateVersionCode();
+    ChangeClientId.init(this);
     onCreateInjector();
     enableStrictMode();
     setupBackupAgent();
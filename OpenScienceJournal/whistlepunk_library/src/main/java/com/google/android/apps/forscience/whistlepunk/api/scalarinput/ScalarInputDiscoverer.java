@@ -41,6 +41,11 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Executor;
 
+/**
+ * Scans every scalar input provider at once. A scan has one deadline, {@code scanTimeoutMillis}
+ * after it starts: providers, devices and sensors that haven't finished reporting by then are
+ * timed out together, rather than each getting the full timeout from whenever it turned up.
+ */
 public class ScalarInputDiscoverer implements SensorDiscoverer {
   private static final long DEFAULT_SCAN_TIMEOUT_MILLIS = 10_000;
   private static String TAG = "SIDiscoverer";
@@ -53,6 +58,7 @@ public class ScalarInputDiscoverer implements SensorDiscoverer {
   private UsageTracker usageTracker;
   private ScanListener scanListener;
   private List<String> activeServices = new ArrayList<>();
+  private ScanDeadline scanDeadline;
 
   public ScalarInputDiscoverer(
       Consumer<AppDiscoveryCallbacks> serviceFinder, Context context, UsageTracker usageTracker) {
@@ -124,6 +130,20 @@ public class ScalarInputDiscoverer implements SensorDiscoverer {
               }
             },
             discoveryTaskId);
+    if (scanDeadline != null) {
+      scheduler.unschedule(scanDeadline);
+    }
+    final ScanDeadline deadline = new ScanDeadline();
+    scanDeadline = deadline;
+    // The finder reports discovery done itself, but don't count on it.
+    deadline.add(
+        new Runnable() {
+          @Override
+          public void run() {
+            pool.taskDone(discoveryTaskId);
+          }
+        });
+    scheduler.schedule(Delay.millis(scanTimeoutMillis), deadline);
     serviceFinder.take(
         new AppDiscoveryCallbacks() {
           @Override
@@ -167,7 +187,7 @@ public class ScalarInputDiscoverer implements SensorDiscoverer {
                     }
                   });
 
-              service.scanDevices(makeDeviceConsumer(service, serviceId, pool));
+              service.scanDevices(makeDeviceConsumer(service, serviceId, pool, deadline));
             } catch (RemoteException e) {
               onScanError.fail(e);
             } catch (RuntimeException e) {
@@ -185,11 +205,13 @@ public class ScalarInputDiscoverer implements SensorDiscoverer {
 
   @NonNull
   private IDeviceConsumer.Stub makeDeviceConsumer(
-      final ISensorDiscoverer service, final String serviceId, final TaskPool pool) {
+      final ISensorDiscoverer service,
+      final String serviceId,
+      final TaskPool pool,
+      final ScanDeadline deadline) {
     final String serviceTaskId = "SERVICE:" + serviceId;
     pool.addTask(serviceTaskId);
-    scheduler.schedule(
-        Delay.millis(scanTimeoutMillis),
+    deadline.add(
         new Runnable() {
           @Override
           public void run() {
@@ -210,7 +232,13 @@ public class ScalarInputDiscoverer implements SensorDiscoverer {
         }
         final String deviceTaskId = "DEVICE:" + deviceId;
         pool.addTask(deviceTaskId);
-        scheduleTaskTimeout(pool, deviceTaskId);
+        deadline.add(
+            new Runnable() {
+              @Override
+              public void run() {
+                markTaskTimeout(pool, deviceTaskId);
+              }
+            });
 
         uiThreadExecutor.execute(
             new Runnable() {
@@ -267,17 +295,6 @@ public class ScalarInputDiscoverer implements SensorDiscoverer {
     };
   }
 
-  private void scheduleTaskTimeout(final TaskPool pool, final String taskId) {
-    scheduler.schedule(
-        Delay.millis(scanTimeoutMillis),
-        new Runnable() {
-          @Override
-          public void run() {
-            markTaskTimeout(pool, taskId);
-          }
-        });
-  }
-
   private void markTaskTimeout(TaskPool pool, String taskId) {
     if (pool.taskDone(taskId) && usageTracker != null) {
       usageTracker.trackEvent(
@@ -364,6 +381,10 @@ public class ScalarInputDiscoverer implements SensorDiscoverer {
 
   @Override
   public void stopScanning() {
+    if (scanDeadline != null) {
+      scheduler.unschedule(scanDeadline);
+      scanDeadline = null;
+    }
     markAllScansDone();
     scanListener = null;
   }
@@ -377,4 +398,36 @@ public class ScalarInputDiscoverer implements SensorDiscoverer {
     }
     activeServices.clear();
   }
+
+  /**
+   * Timeouts for one scan, which all run when it reaches its deadline. Providers report devices
+   * and sensors on binder threads, so timeouts may be added from any thread.
+   */
+  private static class ScanDeadline implements Runnable {
+    private final List<Runnable> timeouts = new ArrayList<>();
+    private boolean passed = false;
+
+    void add(Runnable timeout) {
+      synchronized (this) {
+        if (!passed) {
+          timeouts.add(timeout);
+          return;
+        }
+      }
+      timeout.run();
+    }
+
+    @Override
+    public void run() {
+      List<Runnable> due;
+      synchronized (this) {
+        passed = true;
+        due = new ArrayList<>(timeouts);
+        timeouts.clear();
+      }
+      for (Runnable timeout : due) {
+        timeout.run();
+      }
+    }
+  }
 }
@@ -16,7 +16,10 @@
 package com.google.android.apps.forscience.whistlepunk.api.scalarinput;
 
 import android.content.Context;
+import android.os.Build;
 import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
 import com.google.android.apps.forscience.javalib.Consumer;
 import com.google.android.apps.forscience.javalib.Delay;
 import com.google.android.apps.forscience.javalib.Scheduler;
@@ -29,11 +32,13 @@ import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorStatusList
 import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
 import java.util.Objects;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /** Sensor that receives data through the scalar input API. */
 class ScalarInputSensor extends ScalarSensor {
   public static final Delay CONNECTION_TIME_OUT = Delay.seconds(20);
   private static final int MINIMUM_REFRESH_RATE_MILLIS = 1000;
+  private static final int SAMPLE_RING_READ_SIZE = 256;
   private final String address;
   private final String serviceId;
   private final Scheduler scheduler;
@@ -76,9 +81,17 @@ class ScalarInputSensor extends ScalarSensor {
             }
           };
       public Runnable refreshRunnable;
+      private RefreshableObserver observer;
 
       class RefreshableObserver extends ISensorObserver.Stub {
         private final StreamConsumer consumer;
+        private final AtomicBoolean refreshStarted = new AtomicBoolean(false);
+        private volatile boolean receivedSinceRefresh = false;
+
+        // All guarded by this, so that the ring isn't closed while it's being read.
+        private SampleRing ring;
+        private long[] ringTimestamps;
+        private double[] ringValues;
 
         public RefreshableObserver(StreamConsumer consumer) {
           this.consumer = consumer;
@@ -90,10 +103,71 @@ class ScalarInputSensor extends ScalarSensor {
             // We're disconnected, nothing to do here.
             return;
           }
+          addData(timestamp, data);
+          onDataReceived();
+        }
+
+        @Override
+        public void onNewDataBatch(long[] timestamps, double[] data, int count) {
+          if (connector == null || count <= 0 || timestamps == null || data == null) {
+            return;
+          }
+          // count comes from another process, so don't trust it to fit the arrays.
+          int length = Math.min(count, Math.min(timestamps.length, data.length));
+          if (length == 0) {
+            return;
+          }
+          for (int i = 0; i < length; i++) {
+            addData(timestamps[i], data[i]);
+          }
+          onDataReceived();
+        }
+
+        @Override
+        public synchronized void onSampleRingCreated(SharedMemory memory) {
+          if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O_MR1) {
+            // Services only create rings on API 27 and above.
+            return;
+          }
+          close();
+          try {
+            ring = SampleRing.map(memory);
+            ringTimestamps = new long[SAMPLE_RING_READ_SIZE];
+            ringValues = new double[SAMPLE_RING_READ_SIZE];
+          } catch (ErrnoException | IllegalArgumentException e) {
+            complain(e);
+          }
+        }
+
+        @Override
+        public synchronized void onSampleRingWritten() {
+          if (connector == null || ring == null) {
+            return;
+          }
+          int count;
+          boolean received = false;
+          while ((count = ring.read(ringTimestamps, ringValues)) > 0) {
+            for (int i = 0; i < count; i++) {
+              addData(ringTimestamps[i], ringValues[i]);
+            }
+            received = true;
+          }
+          if (received) {
+            onDataReceived();
+          }
+        }
+
+        private void addData(long timestamp, double data) {
           latestData = data;
-          scheduler.unschedule(refreshRunnable);
-          scheduler.schedule(Delay.millis(MINIMUM_REFRESH_RATE_MILLIS), refreshRunnable);
           this.consumer.addData(timestamp, data);
+        }
+
+        private void onDataReceived() {
+          receivedSinceRefresh = true;
+          // The refresh reschedules itself, rather than being rescheduled for every sample.
+          if (refreshStarted.compareAndSet(false, true)) {
+            scheduleRefresh();
+          }
 
           // Some sensors may forget to set to connected, but if we're getting data,
           //   we're probably connected.  (This actually happened in a version of the
@@ -102,6 +176,28 @@ class ScalarInputSensor extends ScalarSensor {
             sensorStatusListener.onSensorConnected();
           }
         }
+
+        /** Repeats the latest value if no data has arrived since the last refresh. */
+        void refresh(long now) {
+          if (!receivedSinceRefresh) {
+            addData(now, latestData);
+          }
+          receivedSinceRefresh = false;
+        }
+
+        synchronized void close() {
+          if (ring != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            ring.close();
+          }
+          ring = null;
+        }
+      }
+
+      private void scheduleRefresh() {
+        Runnable refresh = refreshRunnable;
+        if (refresh != null) {
+          scheduler.schedule(Delay.millis(MINIMUM_REFRESH_RATE_MILLIS), refresh);
+        }
       }
 
       @Override
@@ -151,7 +247,7 @@ class ScalarInputSensor extends ScalarSensor {
               }
 
               private ISensorObserver makeObserver(final StreamConsumer c) {
-                final RefreshableObserver observer = new RefreshableObserver(c);
+                final RefreshableObserver newObserver = new RefreshableObserver(c);
 
                 // TODO: only refresh if expected sample rate is low
                 removeOldRefresh();
@@ -159,11 +255,16 @@ class ScalarInputSensor extends ScalarSensor {
                     new Runnable() {
                       @Override
                       public void run() {
-                        observer.onNewData(clock.getNow(), latestData);
+                        if (refreshRunnable != this || connector == null) {
+                          return;
+                        }
+                        newObserver.refresh(clock.getNow());
+                        scheduleRefresh();
                       }
                     };
 
-                return observer;
+                observer = newObserver;
+                return newObserver;
               }
 
               @Override
@@ -203,6 +304,10 @@ class ScalarInputSensor extends ScalarSensor {
           }
           removeOldRefresh();
         }
+        if (observer != null) {
+          observer.close();
+          observer = null;
+        }
       }
 
       private void removeOldRefresh() {
@@ -24,26 +24,53 @@ import android.content.pm.ResolveInfo;
 import android.content.pm.ServiceInfo;
 import android.os.Bundle;
 import android.os.IBinder;
-import androidx.annotation.NonNull;
+import android.os.RemoteException;
 import androidx.annotation.VisibleForTesting;
 import android.util.Log;
 import com.google.android.apps.forscience.javalib.Consumer;
+import com.google.android.apps.forscience.javalib.Delay;
+import com.google.android.apps.forscience.javalib.Scheduler;
+import com.google.android.apps.forscience.whistlepunk.sensors.SystemScheduler;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-/** Finds services that implement the scalarinput API */
+/**
+ * Finds services that implement the scalarinput API.
+ *
+ * <p>Binding to a provider's service can mean starting the provider's process, which takes a
+ * while, so bindings are kept once made: later scans, and sensors that start observing, are handed
+ * the service that is already connected straight away. A binding is dropped once it has gone
+ * unused for {@link #IDLE_TIMEOUT}, but never while a sensor is observing through it.
+ *
+ * <p>Each {@link #take} binds every provider it doesn't have yet at once, and reports discovery
+ * done as soon as all of them have connected, or after {@link #DISCOVERY_DEADLINE} if some never
+ * do.
+ */
 public class ScalarSensorServiceFinder extends Consumer<AppDiscoveryCallbacks> {
   public static final String INTENT_ACTION =
       "com.google.android.apps.forscience.whistlepunk.SCALAR_SENSOR";
   public static final String METADATA_KEY_CLASS_NAME_OVERRIDE = "api_service_logical_name";
   private static final String TAG = "ScalarFinder";
 
+  @VisibleForTesting static final Delay DISCOVERY_DEADLINE = Delay.seconds(10);
+  @VisibleForTesting static final Delay IDLE_TIMEOUT = Delay.seconds(5 * 60);
+
   private final Context context;
-  private final Map<String, ServiceConnection> connections = new HashMap<>();
+  private final Scheduler scheduler;
+
+  // Bindings by service id, whether or not they have connected yet. Guarded by this.
+  private final Map<String, Binding> bindings = new HashMap<>();
 
   public ScalarSensorServiceFinder(Context context) {
+    this(context, new SystemScheduler());
+  }
+
+  @VisibleForTesting
+  ScalarSensorServiceFinder(Context context, Scheduler scheduler) {
     this.context = context;
+    this.scheduler = scheduler;
   }
 
   @Override
@@ -51,26 +78,69 @@ public class ScalarSensorServiceFinder extends Consumer<AppDiscoveryCallbacks> {
     List<ResolveInfo> resolveInfos = getResolveInfos();
     if (resolveInfos == null) {
       // b/32122408
+      callbacks.onDiscoveryDone();
       return;
     }
-    for (ResolveInfo info : resolveInfos) {
-      ServiceInfo serviceInfo = info.serviceInfo;
-      String packageName = serviceInfo.packageName;
-      ComponentName name = new ComponentName(packageName, serviceInfo.name);
-      Intent intent = new Intent();
-      intent.setComponent(name);
-      if (versionCheck(packageName)) {
-        final ServiceConnection conn =
-            makeServiceConnection(connections, name, callbacks, serviceInfo.metaData);
-        connections.put(packageName, conn);
-        context.bindService(intent, conn, Context.BIND_AUTO_CREATE);
+    Discovery discovery = new Discovery(callbacks);
+    List<Binding> connected = new ArrayList<>();
+    boolean waitingForAny;
+    synchronized (this) {
+      for (ResolveInfo info : resolveInfos) {
+        ServiceInfo serviceInfo = info.serviceInfo;
+        ComponentName name = new ComponentName(serviceInfo.packageName, serviceInfo.name);
+        String serviceId = extractServiceId(name, serviceInfo.metaData);
+        Binding binding = bindings.get(serviceId);
+        if (binding == null) {
+          if (!versionCheck(serviceInfo.packageName)) {
+            continue;
+          }
+          binding = new Binding(serviceId);
+          Intent intent = new Intent();
+          intent.setComponent(name);
+          if (!bindService(intent, binding)) {
+            unbindService(binding);
+            continue;
+          }
+          bindings.put(serviceId, binding);
+        }
+        binding.resetIdleTimeout();
+        if (binding.service != null) {
+          connected.add(binding);
+        } else {
+          binding.waiting.add(discovery);
+          discovery.remaining++;
+        }
       }
+      waitingForAny = discovery.remaining > 0;
+      if (waitingForAny) {
+        scheduler.schedule(DISCOVERY_DEADLINE, discovery);
+      }
+    }
+    for (Binding binding : connected) {
+      callbacks.onServiceFound(binding.serviceId, binding.service);
+    }
+    if (!waitingForAny) {
+      callbacks.onDiscoveryDone();
     }
-    // TODO: need to figure out when to call onDiscovery done (after every service we know
-    // about has connected or timed out).
   }
 
-  private boolean versionCheck(String packageName) {
+  @VisibleForTesting
+  synchronized int getBindingCount() {
+    return bindings.size();
+  }
+
+  @VisibleForTesting
+  protected boolean bindService(Intent intent, ServiceConnection connection) {
+    return context.bindService(intent, connection, Context.BIND_AUTO_CREATE);
+  }
+
+  @VisibleForTesting
+  protected void unbindService(ServiceConnection connection) {
+    context.unbindService(connection);
+  }
+
+  @VisibleForTesting
+  protected boolean versionCheck(String packageName) {
     try {
       int myVersion =
           Versions.getScalarApiVersion(context.getPackageName(), context.getResources());
@@ -107,30 +177,196 @@ public class ScalarSensorServiceFinder extends Consumer<AppDiscoveryCallbacks> {
     return pm.queryIntentServices(new Intent(INTENT_ACTION), PackageManager.GET_META_DATA);
   }
 
-  @NonNull
-  @VisibleForTesting
-  public static ServiceConnection makeServiceConnection(
-      final Map<String, ServiceConnection> connections,
-      final ComponentName name,
-      final AppDiscoveryCallbacks callbacks,
-      final Bundle metaData) {
-    final String serviceId = extractServiceId(name, metaData);
-    ServiceConnection connection =
-        new ServiceConnection() {
-          @Override
-          public void onServiceConnected(ComponentName name, IBinder service) {
-            // TODO: think harder about threading here?
-            callbacks.onServiceFound(serviceId, ISensorDiscoverer.Stub.asInterface(service));
+  /** The services found by one call to {@link #take}. Runs itself at the deadline. */
+  private class Discovery implements Runnable {
+    final AppDiscoveryCallbacks callbacks;
+
+    // Bindings this is still waiting to connect. Guarded by the finder.
+    int remaining = 0;
+    boolean done = false;
+
+    Discovery(AppDiscoveryCallbacks callbacks) {
+      this.callbacks = callbacks;
+    }
+
+    /** Called outside the finder's lock, once the last binding has connected. */
+    void finish() {
+      scheduler.unschedule(this);
+      callbacks.onDiscoveryDone();
+    }
+
+    @Override
+    public void run() {
+      int stillConnecting;
+      synchronized (ScalarSensorServiceFinder.this) {
+        if (done) {
+          return;
+        }
+        done = true;
+        stillConnecting = remaining;
+        for (Binding binding : bindings.values()) {
+          binding.waiting.remove(this);
+        }
+      }
+      if (Log.isLoggable(TAG, Log.INFO)) {
+        Log.i(TAG, "Services still connecting at the discovery deadline: " + stillConnecting);
+      }
+      callbacks.onDiscoveryDone();
+    }
+  }
+
+  /** A binding to one service, kept until it has been idle for long enough. */
+  private class Binding implements ServiceConnection {
+    final String serviceId;
+    final List<Discovery> waiting = new ArrayList<>();
+    final Runnable idleTimeout = this::onIdle;
+
+    // All guarded by the finder.
+    ISensorDiscoverer service;
+    int observing = 0;
+
+    Binding(String serviceId) {
+      this.serviceId = serviceId;
+    }
+
+    void resetIdleTimeout() {
+      scheduler.unschedule(idleTimeout);
+      if (observing == 0) {
+        scheduler.schedule(IDLE_TIMEOUT, idleTimeout);
+      }
+    }
+
+    @Override
+    public void onServiceConnected(ComponentName name, IBinder binder) {
+      ISensorDiscoverer connected =
+          new ObservingDiscoverer(this, ISensorDiscoverer.Stub.asInterface(binder));
+      List<Discovery> finished = new ArrayList<>();
+      List<Discovery> found;
+      synchronized (ScalarSensorServiceFinder.this) {
+        if (bindings.get(serviceId) != this) {
+          return;
+        }
+        service = connected;
+        found = new ArrayList<>(waiting);
+        waiting.clear();
+        for (Discovery discovery : found) {
+          if (--discovery.remaining == 0) {
+            discovery.done = true;
+            finished.add(discovery);
           }
+        }
+      }
+      for (Discovery discovery : found) {
+        discovery.callbacks.onServiceFound(serviceId, connected);
+      }
+      for (Discovery discovery : finished) {
+        discovery.finish();
+      }
+    }
 
-          @Override
-          public void onServiceDisconnected(ComponentName name) {
-            // TODO: when should disconnection happen?
-            connections.remove(serviceId);
+    @Override
+    public void onServiceDisconnected(ComponentName name) {
+      // The service's process has gone away. The system binds it again when it restarts, so keep
+      // the binding, and have anything that asks for it in the meantime wait for that.
+      synchronized (ScalarSensorServiceFinder.this) {
+        service = null;
+      }
+    }
+
+    private void onIdle() {
+      synchronized (ScalarSensorServiceFinder.this) {
+        if (observing > 0 || bindings.get(serviceId) != this) {
+          return;
+        }
+        bindings.remove(serviceId);
+      }
+      if (Log.isLoggable(TAG, Log.DEBUG)) {
+        Log.d(TAG, "Unbinding idle service: " + serviceId);
+      }
+      unbindService(this);
+    }
+
+    void onObservingChanged(boolean started) {
+      synchronized (ScalarSensorServiceFinder.this) {
+        observing += started ? 1 : -1;
+        resetIdleTimeout();
+      }
+    }
+  }
+
+  /**
+   * Hands out connectors that tell their binding when they start and stop observing, so that the
+   * binding stays while sensors are streaming from it.
+   */
+  private static class ObservingDiscoverer implements ISensorDiscoverer {
+    private final Binding binding;
+    private final ISensorDiscoverer delegate;
+
+    ObservingDiscoverer(Binding binding, ISensorDiscoverer delegate) {
+      this.binding = binding;
+      this.delegate = delegate;
+    }
+
+    @Override
+    public String getName() throws RemoteException {
+      return delegate.getName();
+    }
+
+    @Override
+    public void scanDevices(IDeviceConsumer c) throws RemoteException {
+      delegate.scanDevices(c);
+    }
+
+    @Override
+    public void scanSensors(String deviceId, ISensorConsumer c) throws RemoteException {
+      delegate.scanSensors(deviceId, c);
+    }
+
+    @Override
+    public ISensorConnector getConnector() throws RemoteException {
+      final ISensorConnector connector = delegate.getConnector();
+      if (connector == null) {
+        return null;
+      }
+      // Each connector connects to exactly one sensor.
+      return new ISensorConnector() {
+        private boolean observing = false;
+
+        @Override
+        public void startObserving(
+            String sensorAddress,
+            ISensorObserver observer,
+            ISensorStatusListener listener,
+            String settingsKey)
+            throws RemoteException {
+          connector.startObserving(sensorAddress, observer, listener, settingsKey);
+          setObserving(true);
+        }
+
+        @Override
+        public void stopObserving(String sensorAddress) throws RemoteException {
+          setObserving(false);
+          connector.stopObserving(sensorAddress);
+        }
+
+        private synchronized void setObserving(boolean nowObserving) {
+          if (observing != nowObserving) {
+            observing = nowObserving;
+            binding.onObservingChanged(nowObserving);
           }
-        };
-    connections.put(serviceId, connection);
-    return connection;
+        }
+
+        @Override
+        public IBinder asBinder() {
+          return connector.asBinder();
+        }
+      };
+    }
+
+    @Override
+    public IBinder asBinder() {
+      return delegate.asBinder();
+    }
   }
 
   private static String extractServiceId(ComponentName name, Bundle metaData) {
@@ -95,9 +95,10 @@ public interface DriveApi {
   boolean getFileExists(String fileId) throws IOException;
 
   /**
-   * Gets the current file version (Drive revision) of all experiments on Drive.
+   * Gets the current file version (Drive revision) of all experiments on Drive that are not
+   * trashed.
    *
-   * @return A map between the Drive fileIds and the file versions.
+   * @return A map between the experiment package fileIds and the file versions.
    * @throws IOException
    */
   Map<String, Long> getAllDriveExperimentVersions() throws IOException;
@@ -165,6 +166,15 @@ public interface DriveApi {
    */
   void uploadFile(File localFile, String packageId) throws IOException;
 
+  /**
+   * Deletes a file from a package on Drive, if the package has it.
+   *
+   * @param fileName the name of the file in the package.
+   * @param packageId the packageId of the embedding parent.
+   * @throws IOException
+   */
+  void deleteFileFromPackage(String fileName, String packageId) throws IOException;
+
   /**
    * Checks the version of an SJ package on Drive.
    *
@@ -2,6 +2,7 @@ package com.google.android.apps.forscience.whistlepunk.cloudsync;
 
 import android.content.Context;
 import android.util.Log;
+import androidx.annotation.VisibleForTesting;
 import com.google.android.apps.forscience.whistlepunk.AppSingleton;
 import com.google.android.apps.forscience.whistlepunk.DataController;
 import com.google.android.apps.forscience.whistlepunk.PictureUtils;
@@ -11,6 +12,7 @@ import com.google.android.apps.forscience.whistlepunk.WhistlePunkApplication;
 import com.google.android.apps.forscience.whistlepunk.accounts.AppAccount;
 import com.google.android.apps.forscience.whistlepunk.analytics.TrackerConstants;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciExperimentLibrary;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciLocalSyncStatus.SyncedFile;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Experiment;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.ExperimentLibraryManager;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.ExperimentOverviewPojo;
@@ -21,18 +23,28 @@ import com.google.android.apps.forscience.whistlepunk.filemetadata.LocalSyncMana
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciLabel;
-import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData;
-import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensorDumpReader;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrialDataChunks.ChunkReference;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrialDataChunks.SensorChunks;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrialDataChunks.TrialDataChunk;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrialDataChunks.TrialDataManifest;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamingScalarSensorDumpReader;
+import com.google.android.apps.forscience.whistlepunk.sensordb.TrialDataChunks;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.common.base.Strings;
 import com.google.common.base.Supplier;
+import com.google.protobuf.ByteString;
+import java.io.BufferedInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
@@ -52,6 +64,7 @@ public class DriveSyncManager implements CloudSyncManager {
   private final AppAccount appAccount;
   private final DataController dc;
   private final RecordingDataController rdc;
+  private final Supplier<SyncScheduler> schedulerSupplier;
   private boolean sjFolderExists = false;
   // State-holders for kicking off a second sync if one is requested during an active sync.
   private boolean syncAgain = false;
@@ -77,10 +90,33 @@ public class DriveSyncManager implements CloudSyncManager {
       DataController dc,
       DriveApi driveWrapper,
       RecordingDataController rdc) {
+    this(
+        appAccount,
+        dc,
+        driveWrapper,
+        rdc,
+        () ->
+            new SyncScheduler(
+                SyncScheduler.DEFAULT_PARALLELISM,
+                (finished, submitted) -> {
+                  if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "Sync progress: " + finished + "/" + submitted);
+                  }
+                }));
+  }
+
+  @VisibleForTesting
+  DriveSyncManager(
+      AppAccount appAccount,
+      DataController dc,
+      DriveApi driveWrapper,
+      RecordingDataController rdc,
+      Supplier<SyncScheduler> schedulerSupplier) {
     this.appAccount = appAccount;
     this.driveApi = driveWrapper;
     this.dc = dc;
     this.rdc = rdc;
+    this.schedulerSupplier = schedulerSupplier;
   }
 
   @Override
@@ -158,7 +194,6 @@ public class DriveSyncManager implements CloudSyncManager {
       ExperimentLibraryManager experimentLibraryManager,
       LocalSyncManager localSyncManager)
       throws IOException {
-    Map<String, FileSyncCollection> fileSyncCollectionMap = new HashMap<>();
     if (!appAccount.isSignedIn()) {
       AppSingleton.getInstance(context).setSyncServiceBusy(false);
       return;
@@ -190,99 +225,36 @@ public class DriveSyncManager implements CloudSyncManager {
 
     String sjDirectoryId = getSJDirectoryId(experimentLibraryManager);
     experimentLibraryManager.setFolderId(sjDirectoryId);
-    List<ExperimentOverviewPojo> overviews = dc.blockingGetExperimentOverviews(true);
-    for (String id : experimentLibraryManager.getKnownExperiments()) {
-      // For each experiment that we know about (past or current)
-      ExperimentOverviewPojo matching = null;
-      for (ExperimentOverviewPojo overview : overviews) {
-        // For each experiment that is currently not-deleted
-        if (id.equals(overview.getExperimentId())) {
-          // Find if the known experiment currently exists locally
-          matching = overview;
-        }
-      }
-      if (experimentLibraryManager.isDeleted(id)) {
-        // If the known experiment has been marked deleted
-        if (matching != null) {
-          // If it exists locally, delete it.
-          if (Log.isLoggable(TAG, Log.INFO)) {
-            Log.i(TAG, "Deleting locally: Marked deleted in library");
-          }
-          deleteExperiment(id);
-          deleteExperimentRemotely(context, experimentLibraryManager, id, sjDirectoryId);
-        }
-        if (localSyncManager.getDirty(id)) {
-          if (Log.isLoggable(TAG, Log.INFO)) {
-            Log.i(TAG, "Deleting locally: Marked deleted and dirty in library");
-          }
-          deleteExperimentRemotely(context, experimentLibraryManager, id, sjDirectoryId);
-          localSyncManager.setDirty(id, false);
-        }
-      } else {
-        String remoteFileId = experimentLibraryManager.getFileId(id);
-        long remoteDriveExperimentVersion = -1;
-        if (remoteFileId != null && driveExperimentVersions.get(remoteFileId) != null) {
-          remoteDriveExperimentVersion = driveExperimentVersions.get(remoteFileId);
-        }
-        // Else the experiment hasn't been deleted
-        if (matching == null) {
-          // And it doesn't exist locally, so add it, if it exists remotely!
-          if (Strings.isNullOrEmpty(remoteFileId)) {
-            // This happens if the ExperimentLibrary file doesn't have a file ID yet. For example
-            // see bug 123845261, where an iOS device and an Android device have both been offline
-            // and both come online and attempt to sync at the same time. One device could update
-            // the experiment library file and before it finished uploading all the individual
-            // experiments, the other device downloads the experiment library file.
-            // TODO(b/135479937): Reconcile experiments in drive.
-            // For now, track this to find out how often this happens in the wild.
-            WhistlePunkApplication.getUsageTracker(context)
-                .trackEvent(
-                    TrackerConstants.CATEGORY_SYNC,
-                    TrackerConstants.ACTION_MISSING_REMOTE_FILE_ID,
-                    null,
-                    0);
-            continue;
-          } else if (!driveApi.getFileExists(remoteFileId)) {
-            if (Log.isLoggable(TAG, Log.INFO)) {
-              Log.i(TAG, "Marking deleted: package not found and local not found");
-            }
-            experimentLibraryManager.setDeleted(id, true);
-          } else {
-            Experiment newExperiment =
-                Experiment.newExperiment(
-                    context,
-                    appAccount,
-                    experimentLibraryManager,
-                    experimentLibraryManager.getModified(id),
-                    id,
-                    0,
-                    experimentLibraryManager.getModified(id));
-            fileSyncCollectionMap.put(
-                id,
-                syncNewRemoteExperimentProtoFileInBackgroundThread(
-                    context, id, experimentLibraryManager, localSyncManager, dc, newExperiment));
-          }
-        } else {
-          // It does exist locally. Let's sync it!
-          try {
-            fileSyncCollectionMap.put(id, syncExperimentProtoFileInBackgroundThread(
-                context,
-                id,
-                remoteDriveExperimentVersion,
-                experimentLibraryManager,
-                localSyncManager));
-          } catch (IOException ioe) {
-            Log.e(TAG, "IOException", ioe);
-          }
-        }
+    Map<String, ExperimentOverviewPojo> overviewsById = new HashMap<>();
+    for (ExperimentOverviewPojo overview : dc.blockingGetExperimentOverviews(true)) {
+      // For each experiment that is currently not-deleted
+      overviewsById.put(overview.getExperimentId(), overview);
+    }
+    Map<String, Long> remoteVersionsById =
+        getRemoteVersionsById(experimentLibraryManager, driveExperimentVersions);
+    SyncScheduler scheduler = schedulerSupplier.get();
+    try {
+      for (String id : experimentLibraryManager.getKnownExperiments()) {
+        // For each experiment that we know about (past or current), find if it currently exists
+        // locally. Each experiment is synced on its own, in parallel with the others.
+        scheduleExperimentSync(
+            context,
+            id,
+            overviewsById.get(id),
+            remoteVersionsById.get(id),
+            sjDirectoryId,
+            experimentLibraryManager,
+            localSyncManager,
+            scheduler);
       }
-      AppSingleton.getInstance(context).notifyNewExperimentSynced();
+      scheduler.awaitCompletion();
+    } finally {
+      scheduler.shutdown();
     }
 
-    transferFileSyncCollections(context, experimentLibraryManager, fileSyncCollectionMap);
     AppSingleton.getInstance(context).notifyNewExperimentSynced();
     // Now upload the library back to Drive
-    remoteLibraryVersion = uploadExperimentLibraryToDrive();
+    remoteLibraryVersion = uploadExperimentLibraryToDrive(experimentLibraryManager);
     localSyncManager.setLastSyncedLibraryVersion(remoteLibraryVersion);
     AppSingleton.getInstance(context).setSyncServiceBusy(false);
     sjFolderExists = false;
@@ -292,9 +264,138 @@ public class DriveSyncManager implements CloudSyncManager {
       syncExperimentLibrary(context, lastLogMessage);
     }
     cleanUpDrive(context, experimentLibraryManager, localSyncManager, sjDirectoryId);
+    // The sync is a checkpoint: save its results instead of waiting for the next scheduled write.
+    localSyncManager.flush();
+  }
+
+  private void scheduleExperimentSync(
+      Context context,
+      String id,
+      ExperimentOverviewPojo matching,
+      Long remoteDriveExperimentVersion,
+      String sjDirectoryId,
+      ExperimentLibraryManager experimentLibraryManager,
+      LocalSyncManager localSyncManager,
+      SyncScheduler scheduler) {
+    if (experimentLibraryManager.isDeleted(id)) {
+      // If the known experiment has been marked deleted
+      scheduler.submitRequired(
+          id,
+          () -> {
+            if (matching != null) {
+              // If it exists locally, delete it.
+              if (Log.isLoggable(TAG, Log.INFO)) {
+                Log.i(TAG, "Deleting locally: Marked deleted in library");
+              }
+              deleteExperiment(id);
+              deleteExperimentRemotely(context, experimentLibraryManager, id, sjDirectoryId);
+            }
+            if (localSyncManager.getDirty(id)) {
+              if (Log.isLoggable(TAG, Log.INFO)) {
+                Log.i(TAG, "Deleting locally: Marked deleted and dirty in library");
+              }
+              deleteExperimentRemotely(context, experimentLibraryManager, id, sjDirectoryId);
+              localSyncManager.setDirty(id, false);
+            }
+            notifyExperimentSynced(context);
+          });
+      return;
+    }
+    // Else the experiment hasn't been deleted
+    if (matching == null) {
+      // And it doesn't exist locally, so add it, if it exists remotely!
+      String remoteFileId = experimentLibraryManager.getFileId(id);
+      if (Strings.isNullOrEmpty(remoteFileId)) {
+        // This happens if the ExperimentLibrary file doesn't have a file ID yet. For example
+        // see bug 123845261, where an iOS device and an Android device have both been offline
+        // and both come online and attempt to sync at the same time. One device could update
+        // the experiment library file and before it finished uploading all the individual
+        // experiments, the other device downloads the experiment library file.
+        // TODO(b/135479937): Reconcile experiments in drive.
+        // For now, track this to find out how often this happens in the wild.
+        WhistlePunkApplication.getUsageTracker(context)
+            .trackEvent(
+                TrackerConstants.CATEGORY_SYNC,
+                TrackerConstants.ACTION_MISSING_REMOTE_FILE_ID,
+                null,
+                0);
+        return;
+      }
+      scheduler.submitRequired(
+          id,
+          () -> {
+            if (!driveApi.getFileExists(remoteFileId)) {
+              if (Log.isLoggable(TAG, Log.INFO)) {
+                Log.i(TAG, "Marking deleted: package not found and local not found");
+              }
+              experimentLibraryManager.setDeleted(id, true);
+            } else {
+              Experiment newExperiment =
+                  Experiment.newExperiment(
+                      context,
+                      appAccount,
+                      experimentLibraryManager,
+                      experimentLibraryManager.getModified(id),
+                      id,
+                      0,
+                      experimentLibraryManager.getModified(id));
+              scheduleTransfers(
+                  context,
+                  experimentLibraryManager,
+                  localSyncManager,
+                  id,
+                  syncNewRemoteExperimentProtoFileInBackgroundThread(
+                      context, id, experimentLibraryManager, localSyncManager, dc, newExperiment),
+                  scheduler);
+            }
+            notifyExperimentSynced(context);
+          });
+    } else {
+      // It does exist locally. Let's sync it!
+      long remoteVersion = remoteDriveExperimentVersion != null ? remoteDriveExperimentVersion : -1;
+      scheduler.submit(
+          id,
+          () -> {
+            try {
+              FileSyncCollection sync =
+                  syncExperimentProtoFileInBackgroundThread(
+                      context, id, remoteVersion, experimentLibraryManager, localSyncManager);
+              // The merge may have deleted trials or labels, and with them their files.
+              pruneSyncedFiles(id, localSyncManager);
+              scheduleTransfers(
+                  context, experimentLibraryManager, localSyncManager, id, sync, scheduler);
+            } finally {
+              notifyExperimentSynced(context);
+            }
+          });
+    }
+  }
+
+  /**
+   * Maps the versions of the experiment packages on Drive, which are keyed by package file ID, to
+   * the experiments in the library.
+   */
+  private static Map<String, Long> getRemoteVersionsById(
+      ExperimentLibraryManager elm, Map<String, Long> driveExperimentVersions) {
+    Map<String, Long> remoteVersionsById = new HashMap<>();
+    for (Map.Entry<String, Long> entry : driveExperimentVersions.entrySet()) {
+      String experimentId = elm.getExperimentIdForFileId(entry.getKey());
+      if (experimentId != null) {
+        remoteVersionsById.put(experimentId, entry.getValue());
+      }
+    }
+    return remoteVersionsById;
   }
 
-  private long uploadExperimentLibraryToDrive() throws IOException {
+  // Experiment syncs finish on several threads, but observers expect one notification at a time.
+  private synchronized void notifyExperimentSynced(Context context) {
+    AppSingleton.getInstance(context).notifyNewExperimentSynced();
+  }
+
+  private long uploadExperimentLibraryToDrive(ExperimentLibraryManager elm) throws IOException {
+    // The library file may lag behind the in-memory library; write it out before uploading it.
+    // This has to happen outside the lock, which the write takes.
+    elm.flush();
     synchronized (appAccount.getLockForExperimentLibraryFile()) {
       java.io.File libraryFile = getLocalLibraryFile();
       String fileId = driveApi.getRemoteExperimentLibraryFileId();
@@ -311,7 +412,17 @@ public class DriveSyncManager implements CloudSyncManager {
   }
 
   private java.io.File downloadFileInBackgroundThread(
-      String experimentId, String fileName, ExperimentLibraryManager elm)
+      String experimentId, String fileName, ExperimentLibraryManager elm, LocalSyncManager lsm)
+      throws IOException {
+    return downloadFileInBackgroundThread(experimentId, fileName, elm, lsm, null);
+  }
+
+  private java.io.File downloadFileInBackgroundThread(
+      String experimentId,
+      String fileName,
+      ExperimentLibraryManager elm,
+      LocalSyncManager lsm,
+      ByteString sourceFingerprint)
       throws IOException {
     if (!appAccount.isSignedIn()) {
       return null;
@@ -323,11 +434,18 @@ public class DriveSyncManager implements CloudSyncManager {
     String packageId = elm.getFileId(experimentId);
     java.io.File localExperimentDirectory =
         FileMetadataUtil.getInstance().getExperimentDirectory(appAccount, experimentId);
-    return driveApi.downloadExperimentAsset(packageId, localExperimentDirectory, fileName);
+    java.io.File localFile =
+        driveApi.downloadExperimentAsset(packageId, localExperimentDirectory, fileName);
+    if (localFile != null && localFile.exists()) {
+      // Remember what was downloaded, so that it isn't uploaded straight back.
+      lsm.setSyncedFile(
+          experimentId, SyncedFiles.describe(localFile, fileName, packageId, sourceFingerprint));
+    }
+    return localFile;
   }
 
   private void uploadFileInBackgroundThread(
-      String experimentId, String fileName, ExperimentLibraryManager elm)
+      String experimentId, String fileName, ExperimentLibraryManager elm, LocalSyncManager lsm)
       throws IOException {
     if (!appAccount.isSignedIn()) {
       return;
@@ -336,56 +454,122 @@ public class DriveSyncManager implements CloudSyncManager {
     java.io.File localExperimentDirectory =
         FileMetadataUtil.getInstance().getExperimentDirectory(appAccount, experimentId);
     java.io.File localFile = new java.io.File(localExperimentDirectory, fileName);
-    driveApi.uploadFile(localFile, packageId);
+    SyncedFile synced = lsm.getSyncedFile(experimentId, fileName);
+    if (SyncedFiles.isUntouched(synced, localFile, packageId)) {
+      return;
+    }
+    uploadIfChanged(experimentId, fileName, localFile, packageId, lsm, null);
+  }
+
+  /**
+   * Uploads {@code localFile} unless its contents match the last version synced with the package,
+   * and records its current state.
+   */
+  private void uploadIfChanged(
+      String experimentId,
+      String fileName,
+      java.io.File localFile,
+      String packageId,
+      LocalSyncManager lsm,
+      ByteString sourceFingerprint)
+      throws IOException {
+    SyncedFile current = SyncedFiles.describe(localFile, fileName, packageId, sourceFingerprint);
+    if (!SyncedFiles.hasSameContents(lsm.getSyncedFile(experimentId, fileName), current)) {
+      driveApi.uploadFile(localFile, packageId);
+    }
+    lsm.setSyncedFile(experimentId, current);
+  }
+
+  // Returns null if the trial can't be found, in which case its data is always regenerated.
+  private ByteString getTrialFingerprint(String experimentId, String trialId) {
+    Experiment experiment = RxDataController.getExperimentById(dc, experimentId).blockingGet();
+    Trial trial = experiment.getTrial(trialId);
+    return trial == null ? null : SyncedFiles.getTrialFingerprint(trial);
   }
 
   private void downloadTrialInBackgroundThread(
-      String experimentId, String trialId, ExperimentLibraryManager elm)
+      String experimentId, String trialId, ExperimentLibraryManager elm, LocalSyncManager lsm)
       throws IOException {
     if (!appAccount.isSignedIn()) {
       return;
     }
+    if (downloadTrialDataChunks(experimentId, trialId, elm, lsm)) {
+      return;
+    }
+    // The package has no chunks for this trial, so import the whole trial. Whatever chunks were
+    // applied before no longer describe the local data.
+    new java.io.File(
+            FileMetadataUtil.getInstance().getExperimentDirectory(appAccount, experimentId),
+            FileMetadataUtil.getInstance().getTrialDataManifestFileName(trialId))
+        .delete();
     java.io.File localFile =
         downloadFileInBackgroundThread(
-            experimentId, FileMetadataUtil.getInstance().getTrialProtoFileName(trialId), elm);
-    ScalarSensorDumpReader dumpReader = new ScalarSensorDumpReader(rdc);
+            experimentId,
+            FileMetadataUtil.getInstance().getTrialProtoFileName(trialId),
+            elm,
+            lsm,
+            getTrialFingerprint(experimentId, trialId));
+    StreamingScalarSensorDumpReader dumpReader = new StreamingScalarSensorDumpReader(rdc);
     HashMap<String, String> trialIdMap = new HashMap<>();
     trialIdMap.put(trialId, trialId);
 
-    GoosciScalarSensorData.ScalarSensorData dataProto = null;
     if (localFile.canRead()) {
-      try (FileInputStream fis = new FileInputStream(localFile)) {
-        dataProto = GoosciScalarSensorData.ScalarSensorData.parseFrom(fis);
+      try (InputStream in = new BufferedInputStream(new FileInputStream(localFile))) {
+        dumpReader.readData(in, trialIdMap);
       } catch (Exception e) {
         Log.e(TAG, "Exception reading trial data file", e);
       }
     }
-
-    if (dataProto == null) {
-      dataProto = GoosciScalarSensorData.ScalarSensorData.getDefaultInstance();
-    }
-
-    dumpReader.readData(dataProto, trialIdMap);
   }
 
   private void uploadTrialInBackgroundThread(
-      Context context, String experimentId, String trialId, ExperimentLibraryManager elm)
+      Context context,
+      String experimentId,
+      String trialId,
+      ExperimentLibraryManager elm,
+      LocalSyncManager lsm)
       throws IOException {
     if (!appAccount.isSignedIn()) {
       return;
     }
-    java.io.File localFile =
-        RxDataController.writeTrialProtoToFile(dc, experimentId, trialId).blockingGet();
+    String fileName = FileMetadataUtil.getInstance().getTrialProtoFileName(trialId);
     try {
+      // Get the remote Drive "Science Journal" folder.
+      String sjDirectoryId = getSJDirectoryId(elm);
+      // Get the Drive embedded package ID and metadata for the Experiment
+      String packageId = getExperimentPackageId(context, elm, experimentId, sjDirectoryId);
+
+      java.io.File experimentDirectory =
+          FileMetadataUtil.getInstance().getExperimentDirectory(appAccount, experimentId);
+      String manifestName = FileMetadataUtil.getInstance().getTrialDataManifestFileName(trialId);
+      SyncedFile syncedManifest = lsm.getSyncedFile(experimentId, manifestName);
+      SyncedFile syncedDump = lsm.getSyncedFile(experimentId, fileName);
+
+      // Splitting and dumping a trial's sensor data is expensive, so skip it if the trial hasn't
+      // been recorded or cropped since its data was last synced.
+      ByteString fingerprint = getTrialFingerprint(experimentId, trialId);
+      if (SyncedFiles.isUpToDate(
+              syncedManifest,
+              new java.io.File(experimentDirectory, manifestName),
+              packageId,
+              fingerprint)
+          && SyncedFiles.isUpToDate(
+              syncedDump,
+              new java.io.File(experimentDirectory, fileName),
+              packageId,
+              fingerprint)) {
+        return;
+      }
+
+      uploadTrialDataChunks(experimentId, trialId, packageId, lsm, fingerprint);
+      // iOS and older Android clients don't read chunks, and only see the whole-trial file, so it
+      // is always uploaded too.
+      java.io.File localFile =
+          RxDataController.writeTrialProtoToFile(dc, experimentId, trialId).blockingGet();
       if (localFile == null) {
         throw new IOException("Trial not found");
-      } else {
-        // Get the remote Drive "Science Journal" folder.
-        String sjDirectoryId = getSJDirectoryId(elm);
-        // Get the Drive embedded package ID and metadata for the Experiment
-        String packageId = getExperimentPackageId(context, elm, experimentId, sjDirectoryId);
-        driveApi.uploadFile(localFile, packageId);
       }
+      uploadIfChanged(experimentId, fileName, localFile, packageId, lsm, fingerprint);
     } catch (IOException ioe) {
       if (Log.isLoggable(TAG, Log.ERROR)) {
         Log.e(TAG, "File write failed", ioe);
@@ -393,6 +577,232 @@ public class DriveSyncManager implements CloudSyncManager {
     }
   }
 
+  /**
+   * Uploads the chunks of a trial's sensor data that the package doesn't have yet, then the
+   * manifest that lists them, then deletes the chunks that the manifest replaced. Chunks are named
+   * by their contents, so a chunk never needs to be uploaded to the same package twice.
+   */
+  private void uploadTrialDataChunks(
+      String experimentId,
+      String trialId,
+      String packageId,
+      LocalSyncManager lsm,
+      ByteString fingerprint)
+      throws IOException {
+    java.io.File experimentDirectory =
+        FileMetadataUtil.getInstance().getExperimentDirectory(appAccount, experimentId);
+    java.io.File chunkDirectory =
+        new java.io.File(experimentDirectory, FileMetadataUtil.CHUNK_DIRECTORY);
+    String manifestName = FileMetadataUtil.getInstance().getTrialDataManifestFileName(trialId);
+    java.io.File manifestFile = new java.io.File(experimentDirectory, manifestName);
+    // The local manifest lists the chunks the package had for this trial when it was last synced.
+    TrialDataManifest previous = TrialDataChunks.readManifest(manifestFile);
+    try {
+      TrialDataManifest manifest =
+          RxDataController.writeTrialDataChunks(dc, experimentId, trialId, chunkDirectory)
+              .blockingGet();
+      for (SensorChunks sensor : manifest.getSensorsList()) {
+        for (ChunkReference chunk : sensor.getChunksList()) {
+          String fileName = getChunkPath(chunk.getChunkId());
+          SyncedFile synced = lsm.getSyncedFile(experimentId, fileName);
+          if (synced != null && packageId.equals(synced.getPackageId())) {
+            continue;
+          }
+          java.io.File chunkFile = new java.io.File(experimentDirectory, fileName);
+          driveApi.uploadFile(chunkFile, packageId);
+          lsm.setSyncedFile(
+              experimentId, SyncedFiles.describe(chunkFile, fileName, packageId, null));
+        }
+      }
+      // The manifest goes last, so that it never lists chunks that the package doesn't have.
+      TrialDataChunks.writeManifest(manifest, manifestFile);
+      uploadIfChanged(experimentId, manifestName, manifestFile, packageId, lsm, fingerprint);
+      deleteReplacedChunks(experimentId, packageId, previous, lsm);
+    } finally {
+      deleteChunkFiles(chunkDirectory);
+    }
+  }
+
+  /**
+   * Deletes the chunks of {@code previous} from the package once no trial's manifest lists them.
+   * This is best effort: a chunk that is left behind only takes up space.
+   */
+  private void deleteReplacedChunks(
+      String experimentId, String packageId, TrialDataManifest previous, LocalSyncManager lsm) {
+    if (previous == null) {
+      return;
+    }
+    Experiment experiment = RxDataController.getExperimentById(dc, experimentId).blockingGet();
+    Set<String> referencedChunks =
+        getReferencedChunkPaths(
+            FileMetadataUtil.getInstance().getExperimentDirectory(appAccount, experimentId),
+            experiment);
+    Set<String> deleted = new HashSet<>();
+    try {
+      for (SensorChunks sensor : previous.getSensorsList()) {
+        for (ChunkReference chunk : sensor.getChunksList()) {
+          String fileName = getChunkPath(chunk.getChunkId());
+          if (!referencedChunks.contains(fileName) && !deleted.contains(fileName)) {
+            driveApi.deleteFileFromPackage(
+                TrialDataChunks.getChunkFileName(chunk.getChunkId()), packageId);
+            deleted.add(fileName);
+          }
+        }
+      }
+    } catch (IOException e) {
+      if (Log.isLoggable(TAG, Log.WARN)) {
+        Log.w(TAG, "Could not delete replaced chunks", e);
+      }
+    } finally {
+      lsm.removeSyncedFiles(experimentId, deleted);
+    }
+  }
+
+  /** Returns the paths of the chunks that the experiment's local trial manifests list. */
+  private static Set<String> getReferencedChunkPaths(
+      java.io.File experimentDirectory, Experiment experiment) {
+    Set<String> referencedChunks = new HashSet<>();
+    for (Trial trial : experiment.getTrials()) {
+      TrialDataManifest manifest =
+          TrialDataChunks.readManifest(
+              new java.io.File(
+                  experimentDirectory,
+                  FileMetadataUtil.getInstance().getTrialDataManifestFileName(trial.getTrialId())));
+      if (manifest != null) {
+        for (SensorChunks sensor : manifest.getSensorsList()) {
+          for (ChunkReference chunk : sensor.getChunksList()) {
+            referencedChunks.add(getChunkPath(chunk.getChunkId()));
+          }
+        }
+      }
+    }
+    return referencedChunks;
+  }
+
+  /**
+   * Applies the chunks of a trial's sensor data that changed since the trial's chunks were last
+   * applied locally. Only those chunks are downloaded, and their readings already include the zoom
+   * tiers.
+   *
+   * @return false if the package has no usable chunks for the trial, for example because it was
+   *     uploaded by a client that doesn't write them.
+   */
+  private boolean downloadTrialDataChunks(
+      String experimentId, String trialId, ExperimentLibraryManager elm, LocalSyncManager lsm)
+      throws IOException {
+    String packageId = elm.getFileId(experimentId);
+    if (Strings.isNullOrEmpty(packageId)) {
+      return false;
+    }
+    java.io.File experimentDirectory =
+        FileMetadataUtil.getInstance().getExperimentDirectory(appAccount, experimentId);
+    java.io.File chunkDirectory =
+        new java.io.File(experimentDirectory, FileMetadataUtil.CHUNK_DIRECTORY);
+    String manifestName = FileMetadataUtil.getInstance().getTrialDataManifestFileName(trialId);
+    java.io.File localManifestFile = new java.io.File(experimentDirectory, manifestName);
+    // The remote manifest is downloaded next to the chunks, and only replaces the local one once
+    // its chunks have been applied.
+    String remoteManifestPath = FileMetadataUtil.CHUNK_DIRECTORY + "/" + manifestName;
+    java.io.File remoteManifestFile = new java.io.File(experimentDirectory, remoteManifestPath);
+    try {
+      remoteManifestFile.delete();
+      driveApi.downloadExperimentAsset(packageId, experimentDirectory, remoteManifestPath);
+      TrialDataManifest remote = TrialDataChunks.readManifest(remoteManifestFile);
+      if (remote == null) {
+        return false;
+      }
+      TrialDataManifest local = TrialDataChunks.readManifest(localManifestFile);
+      if (local != null && local.getChunkDurationMillis() != remote.getChunkDurationMillis()) {
+        local = null;
+      }
+      Map<String, SensorChunks> localSensors = TrialDataChunks.getSensorChunks(local);
+
+      for (SensorChunks sensor : remote.getSensorsList()) {
+        Map<Long, TrialDataChunk> chunks = new LinkedHashMap<>();
+        for (Map.Entry<Long, String> window :
+            TrialDataChunks.getChangedWindows(sensor, localSensors.get(sensor.getTag()))
+                .entrySet()) {
+          String chunkId = window.getValue();
+          if (chunkId == null) {
+            chunks.put(window.getKey(), null);
+            continue;
+          }
+          String fileName = getChunkPath(chunkId);
+          java.io.File chunkFile =
+              driveApi.downloadExperimentAsset(packageId, experimentDirectory, fileName);
+          if (chunkFile == null || !chunkFile.exists()) {
+            if (Log.isLoggable(TAG, Log.WARN)) {
+              Log.w(TAG, "Chunk listed in manifest is missing, importing the whole trial");
+            }
+            return false;
+          }
+          lsm.setSyncedFile(
+              experimentId, SyncedFiles.describe(chunkFile, fileName, packageId, null));
+          chunks.put(window.getKey(), TrialDataChunks.readChunk(chunkFile, chunkId));
+        }
+        if (!chunks.isEmpty()) {
+          RxDataController.applyTrialDataChunks(
+                  dc, trialId, sensor.getTag(), remote.getChunkDurationMillis(), chunks)
+              .blockingAwait();
+        }
+      }
+
+      localManifestFile.delete();
+      if (!remoteManifestFile.renameTo(localManifestFile)) {
+        throw new IOException("Could not save " + localManifestFile);
+      }
+      lsm.setSyncedFile(
+          experimentId,
+          SyncedFiles.describe(
+              localManifestFile,
+              manifestName,
+              packageId,
+              getTrialFingerprint(experimentId, trialId)));
+      return true;
+    } finally {
+      deleteChunkFiles(chunkDirectory);
+    }
+  }
+
+  /** Forgets the synced state of files that no longer belong to the experiment. */
+  private void pruneSyncedFiles(String experimentId, LocalSyncManager lsm) {
+    if (!RxDataController.experimentExists(dc, experimentId).blockingGet()) {
+      lsm.clearSyncedFiles(experimentId);
+      return;
+    }
+    Experiment experiment = RxDataController.getExperimentById(dc, experimentId).blockingGet();
+    java.io.File experimentDirectory =
+        FileMetadataUtil.getInstance().getExperimentDirectory(appAccount, experimentId);
+    Set<String> trialDataFiles = new HashSet<>();
+    for (Trial trial : experiment.getTrials()) {
+      trialDataFiles.add(FileMetadataUtil.getInstance().getTrialProtoFileName(trial.getTrialId()));
+      trialDataFiles.add(
+          FileMetadataUtil.getInstance().getTrialDataManifestFileName(trial.getTrialId()));
+    }
+    lsm.removeSyncedFiles(
+        experimentId,
+        SyncedFiles.getStalePaths(
+            lsm.getSyncedFiles(experimentId),
+            trialDataFiles,
+            getReferencedChunkPaths(experimentDirectory, experiment),
+            experimentDirectory));
+  }
+
+  private static String getChunkPath(String chunkId) {
+    return FileMetadataUtil.CHUNK_DIRECTORY + "/" + TrialDataChunks.getChunkFileName(chunkId);
+  }
+
+  // Chunks are only kept on disk while they are being transferred.
+  private static void deleteChunkFiles(java.io.File chunkDirectory) {
+    java.io.File[] files = chunkDirectory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (java.io.File file : files) {
+      file.delete();
+    }
+  }
+
   private GoosciExperimentLibrary.ExperimentLibrary downloadExperimentLibraryFile()
       throws IOException {
     String fileId = driveApi.getRemoteExperimentLibraryFileId();
@@ -504,16 +914,19 @@ public class DriveSyncManager implements CloudSyncManager {
               dc, localExperiment, elm.getModified(experimentId), false)
           .blockingAwait();
       localSyncManager.setServerArchived(experimentId, elm.isArchived(experimentId));
+      // Make sure experiment.proto is complete on its own before uploading it.
+      RxDataController.saveImmediately(dc).blockingAwait();
       insertExperimentProto(experimentId, packageId, localSyncManager, localExperiment.getTitle());
       for (Trial t : localExperiment.getTrials()) {
-        uploadTrialInBackgroundThread(context, experimentId, t.getTrialId(), elm);
+        uploadTrialInBackgroundThread(
+            context, experimentId, t.getTrialId(), elm, localSyncManager);
         for (Label l : t.getLabels()) {
-          uploadLabelIfNecessary(l, experimentId, elm);
+          uploadLabelIfNecessary(l, experimentId, elm, localSyncManager);
         }
       }
 
       for (Label l : localExperiment.getLabels()) {
-        uploadLabelIfNecessary(l, experimentId, elm);
+        uploadLabelIfNecessary(l, experimentId, elm, localSyncManager);
       }
 
     } else {
@@ -576,13 +989,15 @@ public class DriveSyncManager implements CloudSyncManager {
                 experimentId,
                 FileMetadataUtil.getInstance()
                     .getRelativePathInExperiment(experimentId, overviewImage),
-                elm);
+                elm,
+                localSyncManager);
           } else {
             downloadFileInBackgroundThread(
                 experimentId,
                 FileMetadataUtil.getInstance()
                     .getRelativePathInExperiment(experimentId, overviewImage),
-                elm);
+                elm,
+                localSyncManager);
           }
           return sync;
         } catch (IOException ioe) {
@@ -647,14 +1062,14 @@ public class DriveSyncManager implements CloudSyncManager {
         .blockingAwait();
 
     for (Trial t : localExperiment.getTrials()) {
-      downloadTrialInBackgroundThread(experimentId, t.getTrialId(), elm);
+      downloadTrialInBackgroundThread(experimentId, t.getTrialId(), elm, localSyncManager);
       for (Label l : t.getLabels()) {
-        downloadLabelIfNecessary(l, experimentId, elm);
+        downloadLabelIfNecessary(l, experimentId, elm, localSyncManager);
       }
     }
 
     for (Label l : localExperiment.getLabels()) {
-      downloadLabelIfNecessary(l, experimentId, elm);
+      downloadLabelIfNecessary(l, experimentId, elm, localSyncManager);
     }
 
     try {
@@ -672,12 +1087,14 @@ public class DriveSyncManager implements CloudSyncManager {
         uploadFileInBackgroundThread(
             experimentId,
             FileMetadataUtil.getInstance().getRelativePathInExperiment(experimentId, overviewImage),
-            elm);
+            elm,
+            localSyncManager);
       } else {
         downloadFileInBackgroundThread(
             experimentId,
             FileMetadataUtil.getInstance().getRelativePathInExperiment(experimentId, overviewImage),
-            elm);
+            elm,
+            localSyncManager);
       }
     } catch (IOException ioe) {
       Log.e(TAG, "IOException", ioe);
@@ -689,10 +1106,11 @@ public class DriveSyncManager implements CloudSyncManager {
   }
 
   private void uploadLabelIfNecessary(
-      Label l, String experimentId, ExperimentLibraryManager elm) {
+      Label l, String experimentId, ExperimentLibraryManager elm, LocalSyncManager lsm) {
     if (l.getType() == GoosciLabel.Label.ValueType.PICTURE) {
       try {
-        uploadFileInBackgroundThread(experimentId, l.getPictureLabelValue().getFilePath(), elm);
+        uploadFileInBackgroundThread(
+            experimentId, l.getPictureLabelValue().getFilePath(), elm, lsm);
       } catch (IOException ioe) {
         if (Log.isLoggable(TAG, Log.ERROR)) {
           Log.e(TAG, "IOException", ioe);
@@ -702,10 +1120,11 @@ public class DriveSyncManager implements CloudSyncManager {
   }
 
   private void downloadLabelIfNecessary(
-      Label l, String experimentId, ExperimentLibraryManager elm) {
+      Label l, String experimentId, ExperimentLibraryManager elm, LocalSyncManager lsm) {
     if (l.getType() == GoosciLabel.Label.ValueType.PICTURE) {
       try {
-        downloadFileInBackgroundThread(experimentId, l.getPictureLabelValue().getFilePath(), elm);
+        downloadFileInBackgroundThread(
+            experimentId, l.getPictureLabelValue().getFilePath(), elm, lsm);
       } catch (IOException ioe) {
         if (Log.isLoggable(TAG, Log.ERROR)) {
           Log.e(TAG, "IOException", ioe);
@@ -714,8 +1133,9 @@ public class DriveSyncManager implements CloudSyncManager {
     }
   }
 
-  // Gets the Science Journal folder file ID.
-  private String getSJDirectoryId(ExperimentLibraryManager experimentLibraryManager)
+  // Gets the Science Journal folder file ID. Synchronized so that parallel experiment syncs don't
+  // each create a new folder.
+  private synchronized String getSJDirectoryId(ExperimentLibraryManager experimentLibraryManager)
       throws IOException {
     String folderId = experimentLibraryManager.getFolderId();
     if (Strings.isNullOrEmpty(folderId)) {
@@ -768,6 +1188,13 @@ public class DriveSyncManager implements CloudSyncManager {
       LocalSyncManager localSyncManager,
       String experimentTitle)
       throws IOException {
+    // If this is a retry, the previous attempt may have created the proto even though the request
+    // failed here. Update that one instead of adding a second proto to the package.
+    DriveFile existing = driveApi.getExperimentProtoMetadata(packageId);
+    if (existing != null) {
+      updateExperimentProto(experimentId, existing, localSyncManager, packageId, experimentTitle);
+      return;
+    }
     long newVersion;
     synchronized (appAccount.getLockForExperimentProtoFile()) {
       newVersion =
@@ -816,7 +1243,14 @@ public class DriveSyncManager implements CloudSyncManager {
       return elmId;
     }
 
-    String id = driveApi.getExperimentPackageId(context, directoryId);
+    String id;
+    try {
+      id = driveApi.getExperimentPackageId(context, directoryId);
+    } catch (IOException e) {
+      // This creates the package folder, and a retry can't tell whether the failed request did. The
+      // next sync will start over instead.
+      throw new SyncScheduler.NotRetryableException(e);
+    }
     elm.setFileId(experimentId, id);
     return id;
   }
@@ -824,8 +1258,10 @@ public class DriveSyncManager implements CloudSyncManager {
   private void cleanUpDrive(
       Context context, ExperimentLibraryManager elm, LocalSyncManager lsm, String directoryId)
       throws IOException {
-    for (String id : elm.getKnownExperiments()) {
-      if (elm.isDeleted(id) && lsm.getDirty(id)) {
+    // Only dirty experiments can need a remote delete, so there is no need to visit the others.
+    Set<String> knownExperiments = elm.getKnownExperiments();
+    for (String id : lsm.getDirtyExperiments()) {
+      if (knownExperiments.contains(id) && elm.isDeleted(id)) {
         if (Log.isLoggable(TAG, Log.INFO)) {
           Log.i(TAG, "Deleting remotely: Marked deleted in library");
         }
@@ -835,57 +1271,50 @@ public class DriveSyncManager implements CloudSyncManager {
     }
   }
 
-  private void transferFileSyncCollections(Context context, ExperimentLibraryManager elm,
-      Map<String, FileSyncCollection> collectionMap) {
-    for (String experimentId : collectionMap.keySet()) {
-      FileSyncCollection sync = collectionMap.get(experimentId);
-      for (String download : sync.getImageDownloads()) {
-        try {
-          downloadFileInBackgroundThread(experimentId, download, elm);
-        } catch (IOException ioe) {
-          if (Log.isLoggable(TAG, Log.ERROR)) {
-            Log.e(TAG, "IOException", ioe);
-          }
-        }
-      }
+  /**
+   * Schedules the file transfers for one experiment. They run after everything already scheduled
+   * for the experiment, and in parallel with the transfers of other experiments. A failed transfer
+   * doesn't fail the sync.
+   */
+  private void scheduleTransfers(
+      Context context,
+      ExperimentLibraryManager elm,
+      LocalSyncManager lsm,
+      String experimentId,
+      FileSyncCollection sync,
+      SyncScheduler scheduler) {
+    for (String download : sync.getImageDownloads()) {
+      scheduler.submit(
+          experimentId, () -> downloadFileInBackgroundThread(experimentId, download, elm, lsm));
+    }
 
-      for (String upload : sync.getImageUploads()) {
-        try {
-          uploadFileInBackgroundThread(experimentId, upload, elm);
-        } catch (IOException ioe) {
-          if (Log.isLoggable(TAG, Log.ERROR)) {
-            Log.e(TAG, "IOException", ioe);
-          }
-        }
-      }
+    for (String upload : sync.getImageUploads()) {
+      scheduler.submit(
+          experimentId, () -> uploadFileInBackgroundThread(experimentId, upload, elm, lsm));
+    }
 
-      for (String download : sync.getTrialDownloads()) {
-        try {
-          downloadTrialInBackgroundThread(experimentId, download, elm);
-        } catch (IOException ioe) {
-          if (Log.isLoggable(TAG, Log.ERROR)) {
-            Log.e(TAG, "IOException", ioe);
-          }
-        }
-      }
+    for (String download : sync.getTrialDownloads()) {
+      scheduler.submit(
+          experimentId, () -> downloadTrialInBackgroundThread(experimentId, download, elm, lsm));
+    }
 
-      for (String upload : sync.getTrialUploads()) {
-        try {
-          uploadTrialInBackgroundThread(context, experimentId, upload, elm);
-        } catch (IOException ioe) {
-          if (Log.isLoggable(TAG, Log.ERROR)) {
-            Log.e(TAG, "IOException", ioe);
-          }
-        }
-      }
+    for (String upload : sync.getTrialUploads()) {
+      scheduler.submit(
+          experimentId,
+          () -> uploadTrialInBackgroundThread(context, experimentId, upload, elm, lsm));
     }
   }
 
   private void checkForDeletions(ExperimentLibraryManager elm) throws IOException {
+    // One listing of the packages on Drive finds most experiments, instead of a request for each.
+    Map<String, Long> remoteVersionsById =
+        getRemoteVersionsById(elm, driveApi.getAllDriveExperimentVersions());
     List<String> toDelete = new ArrayList<>();
     for (String experiment : elm.getKnownExperiments()) {
-      String fileId = elm.getFileId(experiment);
-      if (!elm.isDeleted(experiment) && !driveApi.getFileExists(fileId)) {
+      // A package missing from the listing may still exist without an experiment file in it.
+      if (!elm.isDeleted(experiment)
+          && !remoteVersionsById.containsKey(experiment)
+          && !driveApi.getFileExists(elm.getFileId(experiment))) {
         toDelete.add(experiment);
       }
     }
@@ -0,0 +1,244 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.cloudsync;
+
+import android.util.Log;
+import androidx.annotation.VisibleForTesting;
+import com.google.api.client.googleapis.extensions.android.gms.auth.GoogleAuthIOException;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the work of a Drive sync on a bounded pool of worker threads.
+ *
+ * <p>Tasks are submitted under a key, usually an experiment ID. Tasks with the same key run one at
+ * a time, in the order they were submitted, so the transfers for an experiment never start before
+ * its experiment proto has been synced. Tasks with different keys run in parallel, up to the size
+ * of the pool.
+ *
+ * <p>Tasks that throw an IOException are retried with exponential backoff, except for errors that
+ * retrying won't fix, like missing local files or auth failures. A retry runs the whole task again,
+ * so tasks must either be safe to repeat or fail with a {@link NotRetryableException} after a step
+ * that isn't.
+ */
+class SyncScheduler {
+  private static final String TAG = "SyncScheduler";
+
+  // Drive's per-user rate limits make more parallel requests than this counterproductive.
+  static final int DEFAULT_PARALLELISM = 4;
+  static final int DEFAULT_MAX_ATTEMPTS = 3;
+  static final long DEFAULT_INITIAL_BACKOFF_MS = 1000;
+
+  /** A unit of sync work. */
+  interface Task {
+    void run() throws IOException;
+  }
+
+  /**
+   * Thrown by a task when a step that isn't safe to repeat failed, but may still have taken effect
+   * on Drive. For example, a request to create a file can time out after Drive created it, and
+   * retrying would create a second one. Tasks that fail with this are not retried.
+   */
+  static class NotRetryableException extends IOException {
+    NotRetryableException(IOException cause) {
+      super(cause);
+    }
+  }
+
+  /** Receives the number of finished tasks and the number submitted so far. */
+  interface ProgressListener {
+    void onProgress(int finished, int submitted);
+  }
+
+  @VisibleForTesting
+  interface Sleeper {
+    void sleep(long millis) throws InterruptedException;
+  }
+
+  private final Executor pool;
+  private final ExecutorService ownedPool;
+  private final int maxAttempts;
+  private final long initialBackoffMs;
+  private final Sleeper sleeper;
+  private final ProgressListener progressListener;
+
+  private final Object lock = new Object();
+  private final Map<String, Executor> serialExecutors = new HashMap<>();
+  private final List<IOException> requiredFailures = new ArrayList<>();
+  private int submitted = 0;
+  private int finished = 0;
+  private int failed = 0;
+
+  SyncScheduler(int parallelism, ProgressListener progressListener) {
+    this(
+        Executors.newFixedThreadPool(parallelism),
+        true,
+        DEFAULT_MAX_ATTEMPTS,
+        DEFAULT_INITIAL_BACKOFF_MS,
+        Thread::sleep,
+        progressListener);
+  }
+
+  @VisibleForTesting
+  SyncScheduler(
+      Executor pool,
+      int maxAttempts,
+      long initialBackoffMs,
+      Sleeper sleeper,
+      ProgressListener progressListener) {
+    this(pool, false, maxAttempts, initialBackoffMs, sleeper, progressListener);
+  }
+
+  private SyncScheduler(
+      Executor pool,
+      boolean ownsPool,
+      int maxAttempts,
+      long initialBackoffMs,
+      Sleeper sleeper,
+      ProgressListener progressListener) {
+    this.pool = pool;
+    this.ownedPool = ownsPool ? (ExecutorService) pool : null;
+    this.maxAttempts = maxAttempts;
+    this.initialBackoffMs = initialBackoffMs;
+    this.sleeper = sleeper;
+    this.progressListener = progressListener;
+  }
+
+  /**
+   * Submits a task whose failure should fail the whole sync. The first such failure is rethrown by
+   * {@link #awaitCompletion()}.
+   */
+  void submitRequired(String key, Task task) {
+    submit(key, task, true);
+  }
+
+  /** Submits a best-effort task. Failures are logged and counted, but don't fail the sync. */
+  void submit(String key, Task task) {
+    submit(key, task, false);
+  }
+
+  private void submit(String key, Task task, boolean required) {
+    Executor serialExecutor;
+    synchronized (lock) {
+      submitted++;
+      serialExecutor = serialExecutors.get(key);
+      if (serialExecutor == null) {
+        serialExecutor = MoreExecutors.newSequentialExecutor(pool);
+        serialExecutors.put(key, serialExecutor);
+      }
+    }
+    serialExecutor.execute(() -> runWithRetries(task, required));
+  }
+
+  private void runWithRetries(Task task, boolean required) {
+    IOException failure = null;
+    try {
+      for (int attempt = 1; ; attempt++) {
+        try {
+          task.run();
+          failure = null;
+          break;
+        } catch (IOException e) {
+          failure = e;
+          if (attempt >= maxAttempts || !isRetryable(e)) {
+            break;
+          }
+          long backoffMs = initialBackoffMs << (attempt - 1);
+          if (Log.isLoggable(TAG, Log.INFO)) {
+            Log.i(TAG, "Retrying in " + backoffMs + "ms after attempt " + attempt + " failed", e);
+          }
+          sleeper.sleep(backoffMs);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      failure = new IOException("Interrupted while waiting to retry", e);
+    } catch (RuntimeException e) {
+      failure = new IOException(e);
+    }
+    if (failure != null && Log.isLoggable(TAG, Log.ERROR)) {
+      Log.e(TAG, "Sync task failed", failure);
+    }
+    finish(failure, required);
+  }
+
+  private static boolean isRetryable(IOException e) {
+    return !(e instanceof FileNotFoundException)
+        && !(e instanceof GoogleAuthIOException)
+        && !(e instanceof NotRetryableException);
+  }
+
+  private void finish(IOException failure, boolean required) {
+    synchronized (lock) {
+      finished++;
+      if (failure != null) {
+        failed++;
+        if (required) {
+          requiredFailures.add(failure);
+        }
+      }
+      // Called while holding the lock so that listeners see progress updates one at a time.
+      if (progressListener != null) {
+        progressListener.onProgress(finished, submitted);
+      }
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * Blocks until every submitted task has finished, including tasks submitted by other tasks in the
+   * meantime.
+   *
+   * @throws IOException the first failure of a task submitted with {@link #submitRequired}.
+   */
+  void awaitCompletion() throws IOException {
+    synchronized (lock) {
+      try {
+        while (finished < submitted) {
+          lock.wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for sync to finish", e);
+      }
+      if (!requiredFailures.isEmpty()) {
+        throw requiredFailures.get(0);
+      }
+    }
+  }
+
+  int getFailedCount() {
+    synchronized (lock) {
+      return failed;
+    }
+  }
+
+  /** Stops the worker threads, if this scheduler created them. */
+  void shutdown() {
+    if (ownedPool != null) {
+      ownedPool.shutdown();
+    }
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.cloudsync;
+
+import com.google.android.apps.forscience.whistlepunk.data.GoosciLocalSyncStatus.SyncedFile;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.FileMetadataUtil;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.protobuf.ByteString;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compares local files against their state when they were last synced, so that unchanged files
+ * aren't transferred again.
+ */
+class SyncedFiles {
+  private SyncedFiles() {}
+
+  /** Describes the current state of {@code localFile}, hashing its contents. */
+  static SyncedFile describe(
+      File localFile, String path, String packageId, ByteString sourceFingerprint)
+      throws IOException {
+    // Read the metadata first, so that a write during hashing makes the file look touched.
+    long size = localFile.length();
+    long lastModified = localFile.lastModified();
+    byte[] contentHash = Files.asByteSource(localFile).hash(Hashing.sha256()).asBytes();
+    SyncedFile.Builder builder =
+        SyncedFile.newBuilder()
+            .setPath(path)
+            .setPackageId(packageId)
+            .setSize(size)
+            .setLastModified(lastModified)
+            .setContentHash(ByteString.copyFrom(contentHash));
+    if (sourceFingerprint != null) {
+      builder.setSourceFingerprint(sourceFingerprint);
+    }
+    return builder.build();
+  }
+
+  /**
+   * Whether {@code localFile} has the same size and modification time it had when it was synced
+   * with {@code packageId}. This is cheap to check, and avoids hashing files that haven't been
+   * touched.
+   */
+  static boolean isUntouched(SyncedFile synced, File localFile, String packageId) {
+    return synced != null
+        && packageId != null
+        && packageId.equals(synced.getPackageId())
+        && localFile.exists()
+        && localFile.length() == synced.getSize()
+        && localFile.lastModified() == synced.getLastModified();
+  }
+
+  /**
+   * Whether {@code localFile} is untouched since it was synced with {@code packageId}, and was
+   * generated from metadata with {@code sourceFingerprint}.
+   */
+  static boolean isUpToDate(
+      SyncedFile synced, File localFile, String packageId, ByteString sourceFingerprint) {
+    return sourceFingerprint != null
+        && synced != null
+        && sourceFingerprint.equals(synced.getSourceFingerprint())
+        && isUntouched(synced, localFile, packageId);
+  }
+
+  /** Whether {@code current} has the same contents as {@code synced}, in the same package. */
+  static boolean hasSameContents(SyncedFile synced, SyncedFile current) {
+    return synced != null
+        && synced.getPackageId().equals(current.getPackageId())
+        && synced.getSize() == current.getSize()
+        && synced.getContentHash().equals(current.getContentHash());
+  }
+
+  /**
+   * Returns the paths in {@code syncedFiles} that no longer belong to the experiment: data files of
+   * trials that aren't in {@code trialDataFiles}, chunks that aren't in {@code referencedChunks},
+   * and other files that are gone from {@code experimentDirectory}. Chunks are only on disk while
+   * they are transferred, so they are kept for as long as a trial's manifest lists them.
+   */
+  static List<String> getStalePaths(
+      List<SyncedFile> syncedFiles,
+      Set<String> trialDataFiles,
+      Set<String> referencedChunks,
+      File experimentDirectory) {
+    List<String> stale = new ArrayList<>();
+    for (SyncedFile synced : syncedFiles) {
+      String path = synced.getPath();
+      boolean live;
+      if (path.startsWith(FileMetadataUtil.CHUNK_DIRECTORY + "/")) {
+        live = referencedChunks.contains(path);
+      } else if (FileMetadataUtil.getInstance().isTrialDataFileName(path)) {
+        live = trialDataFiles.contains(path);
+      } else {
+        live = new File(experimentDirectory, path).exists();
+      }
+      if (!live) {
+        stale.add(path);
+      }
+    }
+    return stale;
+  }
+
+  /**
+   * Returns a fingerprint of the trial metadata that its sensor data file is generated from. The
+   * file only needs to be regenerated when this changes, which happens when the trial is recorded
+   * or cropped.
+   */
+  static ByteString getTrialFingerprint(Trial trial) {
+    Hasher hasher =
+        Hashing.sha256()
+            .newHasher()
+            .putString(trial.getTrialId(), StandardCharsets.UTF_8)
+            .putLong(trial.getOriginalFirstTimestamp())
+            .putLong(trial.getOriginalLastTimestamp());
+    GoosciTrial.Range cropRange = trial.getCropRange();
+    if (cropRange != null) {
+      hasher.putLong(cropRange.getStartMs()).putLong(cropRange.getEndMs());
+    }
+    for (String sensorId : trial.getSensorIds()) {
+      hasher.putInt(sensorId.length()).putString(sensorId, StandardCharsets.UTF_8);
+    }
+    return ByteString.copyFrom(hasher.hash().asBytes());
+  }
+}
@@ -41,8 +41,10 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.Runnables;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -58,11 +60,20 @@ public class ConnectableSensorRegistry {
   private static final long ASSUME_GONE_TIMEOUT_MILLIS = 15_000;
   private static final String EXTERNAL_SENSOR_KEY_PREFIX = "sensorKey";
 
+  // Sensors found while scanning are shown at most once a frame, rather than one at a time as
+  // advertisements come in.
+  private static final Delay FOUND_SENSORS_DELAY = Delay.millis(16);
+
   private final DataController dataController;
   private final Map<String, SensorDiscoverer> discoverers;
 
   private final DevicesPresenter presenter;
   private final Map<String, ConnectableSensor> sensors = new ArrayMap<>();
+
+  // Maps from the address of each sensor in sensors to its keys.  Only sensors at the same address
+  // can be the same sensor, so finding one doesn't need to compare it with every other sensor.
+  private final Map<String, List<String>> keysByAddress = new HashMap<>();
+
   private final Map<String, SensorDiscoverer.SettingsInterface> settingsIntents = new ArrayMap<>();
   private final Scheduler scheduler;
   private final Map<String, SensorProvider> providers;
@@ -70,7 +81,12 @@ public class ConnectableSensorRegistry {
   private int scanCount = 0;
 
   // Maps from sensorKey to the timestamp (from clock) of the last time it showed up in a scan.
-  private Map<String, Long> mostRecentlySeen = new ArrayMap<>();
+  // Entries are kept in the order they were seen, so the ones to age out are always at the front.
+  private Map<String, Long> mostRecentlySeen = new LinkedHashMap<>();
+
+  // Sensors found while scanning that haven't been shown yet.
+  private final List<FoundSensor> foundSensors = new ArrayList<>();
+  private final Runnable showFoundSensors = this::showFoundSensors;
 
   private int keyNum = 0;
   private String experimentId = null;
@@ -246,17 +262,20 @@ public class ConnectableSensorRegistry {
               long nowMillis = clock.getNow();
 
               for (String key : keysSeen) {
+                // Moves the key to the back.
+                mostRecentlySeen.remove(key);
                 mostRecentlySeen.put(key, nowMillis);
               }
 
-              Set<Map.Entry<String, Long>> entries = mostRecentlySeen.entrySet();
-              Iterator<Map.Entry<String, Long>> iter = entries.iterator();
+              Iterator<Map.Entry<String, Long>> iter = mostRecentlySeen.entrySet().iterator();
               while (iter.hasNext()) {
                 Map.Entry<String, Long> entry = iter.next();
-                if (nowMillis - entry.getValue() > timeout) {
-                  getAvailableGroup().removeSensor(entry.getKey());
-                  iter.remove();
+                if (nowMillis - entry.getValue() <= timeout) {
+                  // Everything after this was seen more recently.
+                  break;
                 }
+                getAvailableGroup().removeSensor(entry.getKey());
+                iter.remove();
               }
             },
             discovererTaskIds);
@@ -265,6 +284,8 @@ public class ConnectableSensorRegistry {
       SensorDiscoverer discoverer = entry.getValue();
       startScanning(entry.getKey(), discoverer, pool, keysSeen, true);
     }
+    // Whatever the discoverers already knew about is shown right away.
+    showFoundSensors();
     presenter.refreshScanningUI();
   }
 
@@ -282,7 +303,10 @@ public class ConnectableSensorRegistry {
         new SensorDiscoverer.ScanListener() {
           @Override
           public void onSensorFound(SensorDiscoverer.DiscoveredSensor sensor) {
-            ConnectableSensorRegistry.this.onSensorFound(sensor, keysSeen);
+            if (foundSensors.isEmpty()) {
+              scheduler.schedule(FOUND_SENSORS_DELAY, showFoundSensors);
+            }
+            foundSensors.add(new FoundSensor(sensor, keysSeen));
           }
 
           @Override
@@ -305,6 +329,8 @@ public class ConnectableSensorRegistry {
 
           @Override
           public void onScanDone() {
+            // Sensors must be shown before the pool can tell which ones weren't seen.
+            showFoundSensors();
             pool.taskDone(providerKey);
           }
         };
@@ -333,6 +359,30 @@ public class ConnectableSensorRegistry {
     }
   }
 
+  /** A sensor found while scanning, and the keys seen by the scan that found it. */
+  private static class FoundSensor {
+    final SensorDiscoverer.DiscoveredSensor sensor;
+    final Set<String> keysSeen;
+
+    FoundSensor(SensorDiscoverer.DiscoveredSensor sensor, Set<String> keysSeen) {
+      this.sensor = sensor;
+      this.keysSeen = keysSeen;
+    }
+  }
+
+  private void showFoundSensors() {
+    scheduler.unschedule(showFoundSensors);
+    // Copied, in case showing a sensor leads to more being found.
+    List<FoundSensor> found = new ArrayList<>(foundSensors);
+    foundSensors.clear();
+    if (presenter.isDestroyed()) {
+      return;
+    }
+    for (FoundSensor sensor : found) {
+      onSensorFound(sensor.sensor, sensor.keysSeen);
+    }
+  }
+
   private void onSensorFound(SensorDiscoverer.DiscoveredSensor ds, Set<String> availableKeysSeen) {
     ConnectableSensor sensor = connector.disconnected(ds.getSensorSpec());
     final String sensorKey = findSensorKey(sensor);
@@ -389,7 +439,7 @@ public class ConnectableSensorRegistry {
             @Override
             public void success(String newSensorId) {
               optionsListener.onExperimentSensorReplaced(oldSensorId, newSensorId);
-              sensors.put(sensorKey, connector.connected(newSensor.getSensorSpec(), newSensorId));
+              putSensor(sensorKey, connector.connected(newSensor.getSensorSpec(), newSensorId));
             }
           });
     }
@@ -401,14 +451,42 @@ public class ConnectableSensorRegistry {
   }
 
   private String findSensorKey(ConnectableSensor sensor) {
-    for (Map.Entry<String, ConnectableSensor> entry : sensors.entrySet()) {
-      if (entry.getValue().isSameSensor(sensor)) {
-        return entry.getKey();
+    List<String> keys = keysByAddress.get(getIndexAddress(sensor));
+    if (keys == null) {
+      return null;
+    }
+    for (String key : keys) {
+      if (sensors.get(key).isSameSensor(sensor)) {
+        return key;
       }
     }
     return null;
   }
 
+  private void putSensor(String key, ConnectableSensor sensor) {
+    ConnectableSensor previous = sensors.put(key, sensor);
+    if (previous != null) {
+      List<String> keys = keysByAddress.get(getIndexAddress(previous));
+      if (keys != null) {
+        keys.remove(key);
+      }
+    }
+    String address = getIndexAddress(sensor);
+    List<String> keys = keysByAddress.get(address);
+    if (keys == null) {
+      keys = new ArrayList<>(1);
+      keysByAddress.put(address, keys);
+    }
+    keys.add(key);
+  }
+
+  // Built-in sensors, which have no spec, are the same sensor only if they have the same id.
+  private static String getIndexAddress(ConnectableSensor sensor) {
+    return sensor.isBuiltIn()
+        ? "builtIn:" + sensor.getConnectedSensorId()
+        : sensor.getSpec().getAddress();
+  }
+
   // TODO: need to get My Devices from database
   public void setMyDevices(InputDeviceSpec... deviceSpecs) {
     for (InputDeviceSpec deviceSpec : deviceSpecs) {
@@ -437,7 +515,7 @@ public class ConnectableSensorRegistry {
         getPairedGroup().addSensor(sensorKey, newSensor);
       }
       // TODO(saff): test that this happens?
-      this.sensors.put(sensorKey, newSensor);
+      putSensor(sensorKey, newSensor);
       if (newSensor.isPaired()) {
         atLeastOneWasPaired = true;
       }
@@ -451,7 +529,7 @@ public class ConnectableSensorRegistry {
     for (String sensorKey : this.sensors.keySet()) {
       ConnectableSensor sensor = this.sensors.get(sensorKey);
       if (sensor.isPaired() && !sensors.containsKey(sensor.getConnectedSensorId())) {
-        this.sensors.put(sensorKey, connector.asDisconnected(sensor));
+        putSensor(sensorKey, connector.asDisconnected(sensor));
         getPairedGroup().removeSensor(sensorKey);
       }
     }
@@ -463,7 +541,7 @@ public class ConnectableSensorRegistry {
     if (key == null) {
       key = EXTERNAL_SENSOR_KEY_PREFIX + (keyNum++);
     }
-    sensors.put(key, sensor);
+    putSensor(key, sensor);
     settingsIntents.put(key, settingsInterface);
     return key;
   }
@@ -530,6 +608,7 @@ public class ConnectableSensorRegistry {
     for (SensorDiscoverer discoverer : discoverers.values()) {
       discoverer.stopScanning();
     }
+    showFoundSensors();
     if (timeoutRunnable != null) {
       scheduler.unschedule(timeoutRunnable);
       timeoutRunnable = null;
@@ -675,5 +754,6 @@ public class ConnectableSensorRegistry {
         new TaskPool(Runnables.doNothing()),
         new HashSet<String>(),
         startSpinners);
+    showFoundSensors();
   }
 }
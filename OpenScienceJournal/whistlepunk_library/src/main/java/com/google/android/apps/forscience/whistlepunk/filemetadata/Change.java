@@ -97,6 +97,21 @@ public class Change {
     return changeProto.getType();
   }
 
+  /** Returns the install that made this change, or an empty string for older changes. */
+  public String getClientId() {
+    return changeProto.getClientId();
+  }
+
+  /** Returns where this change falls among the changes its client made to the experiment. */
+  public long getSequence() {
+    return changeProto.getSequence();
+  }
+
+  /** Returns a copy of this change, stamped as change number {@code sequence} from a client. */
+  Change withClientSequence(String clientId, long sequence) {
+    return new Change(changeProto.toBuilder().setClientId(clientId).setSequence(sequence).build());
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) {
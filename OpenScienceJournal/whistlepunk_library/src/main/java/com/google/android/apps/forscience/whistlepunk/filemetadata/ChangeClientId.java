@@ -0,0 +1,67 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.filemetadata;
+
+import android.content.Context;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import androidx.core.content.ContextCompat;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * The ID that this install stamps on the experiment changes it makes. See {@link ChangeLog}.
+ *
+ * <p>It is kept out of backups, so that a restored install on another device gets its own ID.
+ */
+public class ChangeClientId {
+  private static final String TAG = "ChangeClientId";
+  private static final String CLIENT_ID_FILE = "change_client_id";
+
+  private static volatile String clientId;
+
+  /** Loads this install's ID, creating it the first time. Call before any experiment is loaded. */
+  public static void init(Context context) {
+    File file = new File(ContextCompat.getNoBackupFilesDir(context), CLIENT_ID_FILE);
+    try {
+      if (file.exists()) {
+        String id = Files.asCharSource(file, StandardCharsets.UTF_8).read().trim();
+        if (!id.isEmpty()) {
+          clientId = id;
+          return;
+        }
+      }
+      String id = UUID.randomUUID().toString();
+      Files.asCharSink(file, StandardCharsets.UTF_8).write(id);
+      clientId = id;
+    } catch (IOException e) {
+      // Each change log falls back to an ID of its own. See ChangeLog.
+      if (Log.isLoggable(TAG, Log.ERROR)) {
+        Log.e(TAG, "Unable to read or create the change client ID", e);
+      }
+    }
+  }
+
+  /** Returns this install's ID, or null if it hasn't been loaded. */
+  @Nullable
+  static String get() {
+    return clientId;
+  }
+}
@@ -0,0 +1,347 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.filemetadata;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * An experiment's change log, indexed by changed element.
+ *
+ * <p>Every change is stamped with the client that made it and that client's next sequence number.
+ * A client's changes are always merged in order, so for each element the log only needs the latest
+ * sequence number it has seen from each client to know which changes it has seen. Comparing those
+ * lets a merge skip every element that hasn't changed since the last sync.
+ *
+ * <p>Once the log is mostly superseded changes, {@link #compactIfNeeded()} folds them out of it,
+ * keeping only their sequence numbers. Changes made by clients that don't stamp them are compared
+ * by ID, and stay in the log.
+ *
+ * <p>Clients that don't know about compacted changes would treat the missing ones as never seen, so
+ * experiments move to {@link ExperimentCache#MINOR_VERSION_COMPACTED_CHANGES} once their log is
+ * compacted. Older clients won't overwrite those.
+ */
+class ChangeLog {
+  // Compacting small logs isn't worth it, and keeps them readable by older clients as-is.
+  @VisibleForTesting static final int MIN_CHANGES_TO_COMPACT = 1000;
+
+  /** The changes to one element that a log has seen. */
+  private static class ElementVersion {
+    final GoosciExperiment.ChangedElement element;
+    // The changes still in the log, oldest first.
+    final List<Change> changes = new ArrayList<>();
+    // The latest sequence number from each client, whether its change is in the log or not.
+    final Map<String, Long> sequences = new HashMap<>();
+    // The latest sequence number from each client among the compacted changes. Sorted, so that
+    // the same versions are always written the same way.
+    final Map<String, Long> compacted = new TreeMap<>();
+    // The IDs of the changes that were made without a sequence number.
+    final Set<String> unsequencedIds = new HashSet<>();
+
+    ElementVersion(GoosciExperiment.ChangedElement element) {
+      this.element = element;
+    }
+
+    @Nullable
+    Change getLatest() {
+      return changes.isEmpty() ? null : changes.get(changes.size() - 1);
+    }
+
+    boolean hasSeen(Change change) {
+      if (change.getClientId().isEmpty()) {
+        return unsequencedIds.contains(change.getChangeId());
+      }
+      Long sequence = sequences.get(change.getClientId());
+      return sequence != null && sequence >= change.getSequence();
+    }
+
+    void addCompacted(String clientId, long sequence) {
+      putMax(compacted, clientId, sequence);
+      putMax(sequences, clientId, sequence);
+    }
+
+    /** Whether {@code version} has seen every change that {@code other} has. */
+    static boolean hasSeenAll(@Nullable ElementVersion version, ElementVersion other) {
+      for (Map.Entry<String, Long> entry : other.sequences.entrySet()) {
+        Long sequence = version == null ? null : version.sequences.get(entry.getKey());
+        if (sequence == null || sequence < entry.getValue()) {
+          return false;
+        }
+      }
+      for (String id : other.unsequencedIds) {
+        if (version == null || !version.unsequencedIds.contains(id)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  // The client that this log stamps new changes with.
+  private final String clientId;
+  private final List<Change> changes = new ArrayList<>();
+  private final Map<String, ElementVersion> elements = new LinkedHashMap<>();
+  // The sequence number of the latest change this client made to the experiment.
+  private long lastSequence;
+  private int unsequencedCount;
+
+  ChangeLog(GoosciExperiment.Experiment proto) {
+    String installId = ChangeClientId.get();
+    // Without an install ID (in tests, for example), this log acts as a client of its own.
+    clientId = installId != null ? installId : UUID.randomUUID().toString();
+    for (GoosciExperiment.CompactedChanges compacted : proto.getCompactedChangesList()) {
+      ElementVersion version = getOrCreateVersion(compacted.getChangedData());
+      for (GoosciExperiment.ClientSequence sequence : compacted.getClientSequencesList()) {
+        addCompacted(version, sequence.getClientId(), sequence.getSequence());
+      }
+    }
+    for (GoosciExperiment.Change change : proto.getChangesList()) {
+      append(Change.fromProto(change));
+    }
+  }
+
+  /** Writes the log and the compacted sequence numbers into {@code proto}. */
+  void writeTo(GoosciExperiment.Experiment.Builder proto) {
+    for (Change change : changes) {
+      proto.addChanges(change.getChangeProto());
+    }
+    for (ElementVersion version : elements.values()) {
+      if (version.compacted.isEmpty()) {
+        continue;
+      }
+      GoosciExperiment.CompactedChanges.Builder compacted =
+          GoosciExperiment.CompactedChanges.newBuilder().setChangedData(version.element);
+      for (Map.Entry<String, Long> entry : version.compacted.entrySet()) {
+        compacted.addClientSequences(
+            GoosciExperiment.ClientSequence.newBuilder()
+                .setClientId(entry.getKey())
+                .setSequence(entry.getValue()));
+      }
+      proto.addCompactedChanges(compacted);
+    }
+  }
+
+  /** Adds a change made by this client, stamped with the client's next sequence number. */
+  void add(Change change) {
+    append(change.withClientSequence(clientId, lastSequence + 1));
+  }
+
+  List<Change> getChanges() {
+    return changes;
+  }
+
+  /** Replaces the contents of this log with a copy of {@code other}. */
+  void copyFrom(ChangeLog other) {
+    changes.clear();
+    elements.clear();
+    // lastSequence is kept, in case the changes being dropped were already synced elsewhere.
+    unsequencedCount = 0;
+    for (ElementVersion otherVersion : other.elements.values()) {
+      ElementVersion version = getOrCreateVersion(otherVersion.element);
+      for (Map.Entry<String, Long> entry : otherVersion.compacted.entrySet()) {
+        addCompacted(version, entry.getKey(), entry.getValue());
+      }
+    }
+    for (Change change : other.changes) {
+      append(change);
+    }
+  }
+
+  /**
+   * Returns the latest change to each element that has changes {@code other} hasn't seen. Elements
+   * whose versions {@code other} has already seen are skipped without looking at their changes.
+   */
+  List<Change> getLatestChangesUnseenBy(ChangeLog other) {
+    List<Change> changedElements = new ArrayList<>();
+    for (Map.Entry<String, ElementVersion> entry : elements.entrySet()) {
+      ElementVersion version = entry.getValue();
+      Change latest = version.getLatest();
+      if (latest != null
+          && !ElementVersion.hasSeenAll(other.elements.get(entry.getKey()), version)) {
+        changedElements.add(latest);
+      }
+    }
+    return changedElements;
+  }
+
+  /**
+   * Adds the changes that {@code other} has and this log hasn't seen, including ones it has
+   * compacted. Changes in this log that {@code other} has compacted are removed from it, unless
+   * they are still their element's latest change here.
+   *
+   * @return the latest change in {@code other} to each element that had such changes. Those
+   *     elements changed in ways this log hasn't seen.
+   */
+  List<Change> addUnseenFrom(ChangeLog other) {
+    List<Change> changedElements = new ArrayList<>();
+    Set<Change> nowCompacted = newIdentitySet();
+    for (Map.Entry<String, ElementVersion> entry : other.elements.entrySet()) {
+      ElementVersion otherVersion = entry.getValue();
+      ElementVersion version = elements.get(entry.getKey());
+      if (ElementVersion.hasSeenAll(version, otherVersion)) {
+        continue;
+      }
+      if (version == null) {
+        version = getOrCreateVersion(otherVersion.element);
+      }
+      List<Change> unseen = new ArrayList<>();
+      for (Change change : otherVersion.changes) {
+        if (!version.hasSeen(change)) {
+          unseen.add(change);
+        }
+      }
+      for (Change change : unseen) {
+        append(change);
+      }
+      if (!otherVersion.compacted.isEmpty()) {
+        for (Map.Entry<String, Long> compacted : otherVersion.compacted.entrySet()) {
+          addCompacted(version, compacted.getKey(), compacted.getValue());
+        }
+        Change latest = version.getLatest();
+        for (Iterator<Change> iterator = version.changes.iterator(); iterator.hasNext(); ) {
+          Change change = iterator.next();
+          Long sequence = version.compacted.get(change.getClientId());
+          if (change != latest && sequence != null && sequence >= change.getSequence()) {
+            nowCompacted.add(change);
+            iterator.remove();
+          }
+        }
+      }
+      if (otherVersion.getLatest() != null) {
+        changedElements.add(otherVersion.getLatest());
+      }
+    }
+    if (!nowCompacted.isEmpty()) {
+      removeFromLog(nowCompacted);
+    }
+    return changedElements;
+  }
+
+  /**
+   * Folds superseded changes out of the log once they make up at least half of a large log. The
+   * latest change to every element stays in the log, in its original order.
+   *
+   * @return whether the log was compacted.
+   */
+  boolean compactIfNeeded() {
+    if (changes.size() < MIN_CHANGES_TO_COMPACT) {
+      return false;
+    }
+    // Changes without a sequence number are never compacted, so this undercounts at most.
+    int superseded = changes.size() - elements.size() - unsequencedCount;
+    if (superseded < changes.size() / 2) {
+      return false;
+    }
+    compact();
+    return true;
+  }
+
+  @VisibleForTesting
+  void compact() {
+    Set<Change> superseded = newIdentitySet();
+    for (ElementVersion version : elements.values()) {
+      Change latest = version.getLatest();
+      for (Iterator<Change> iterator = version.changes.iterator(); iterator.hasNext(); ) {
+        Change change = iterator.next();
+        if (change != latest && !change.getClientId().isEmpty()) {
+          version.addCompacted(change.getClientId(), change.getSequence());
+          superseded.add(change);
+          iterator.remove();
+        }
+      }
+    }
+    removeFromLog(superseded);
+  }
+
+  /** Whether any changes have been folded out of the log, here or by another client. */
+  boolean isCompacted() {
+    for (ElementVersion version : elements.values()) {
+      if (!version.compacted.isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void append(Change change) {
+    changes.add(change);
+    ElementVersion version = getOrCreateVersion(change.getChangeProto().getChangedData());
+    version.changes.add(change);
+    if (change.getClientId().isEmpty()) {
+      version.unsequencedIds.add(change.getChangeId());
+      unsequencedCount++;
+    } else {
+      putMax(version.sequences, change.getClientId(), change.getSequence());
+      noteSequence(change.getClientId(), change.getSequence());
+    }
+  }
+
+  private void addCompacted(ElementVersion version, String clientId, long sequence) {
+    version.addCompacted(clientId, sequence);
+    noteSequence(clientId, sequence);
+  }
+
+  private void noteSequence(String clientId, long sequence) {
+    if (this.clientId.equals(clientId)) {
+      lastSequence = Math.max(lastSequence, sequence);
+    }
+  }
+
+  private void removeFromLog(Set<Change> removed) {
+    for (Iterator<Change> iterator = changes.iterator(); iterator.hasNext(); ) {
+      if (removed.contains(iterator.next())) {
+        iterator.remove();
+      }
+    }
+  }
+
+  private ElementVersion getOrCreateVersion(GoosciExperiment.ChangedElement element) {
+    String key = element.getId() + element.getType().getNumber();
+    ElementVersion version = elements.get(key);
+    if (version == null) {
+      version = new ElementVersion(element);
+      elements.put(key, version);
+    }
+    return version;
+  }
+
+  // Changes are equal if their IDs are, but only the exact ones removed from an element's list
+  // should be removed from the log.
+  private static Set<Change> newIdentitySet() {
+    return Collections.newSetFromMap(new IdentityHashMap<Change, Boolean>());
+  }
+
+  private static void putMax(Map<String, Long> sequences, String clientId, long sequence) {
+    Long current = sequences.get(clientId);
+    if (current == null || current < sequence) {
+      sequences.put(clientId, sequence);
+    }
+  }
+}
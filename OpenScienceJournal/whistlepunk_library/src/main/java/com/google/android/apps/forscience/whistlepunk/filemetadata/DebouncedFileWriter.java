@@ -0,0 +1,140 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.filemetadata;
+
+import android.util.Log;
+import androidx.annotation.VisibleForTesting;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Batches the writes of a file that changes often. Each change calls {@link #schedule()}, and the
+ * file is written once, {@code delayMs} after the first unwritten change, or sooner if {@link
+ * #flush()} is called. A burst of changes costs one write instead of one per change. A failed
+ * write is retried on the timer, waiting twice as long after each failure in a row.
+ */
+class DebouncedFileWriter {
+  // The longest wait between retries of a write that keeps failing.
+  private static final long MAX_RETRY_DELAY_MS = 60 * 1000;
+
+  /** Writes the current state to the file. */
+  interface Write {
+    void write() throws IOException;
+  }
+
+  private static ScheduledExecutorService sharedExecutor;
+
+  private final String tag;
+  private final long delayMs;
+  private final Write write;
+  private final ScheduledExecutorService executor;
+
+  private final AtomicBoolean pending = new AtomicBoolean(false);
+  // Held while writing, so that a flush never returns while another write is still in progress.
+  private final Object writeLock = new Object();
+  private ScheduledFuture<?> timer;
+  // How long to wait before retrying the next failed write. Guarded by writeLock.
+  private long retryDelayMs;
+
+  DebouncedFileWriter(String tag, long delayMs, Write write) {
+    this(tag, delayMs, write, getSharedExecutor());
+  }
+
+  @VisibleForTesting
+  DebouncedFileWriter(String tag, long delayMs, Write write, ScheduledExecutorService executor) {
+    this.tag = tag;
+    this.delayMs = delayMs;
+    this.write = write;
+    this.executor = executor;
+    retryDelayMs = delayMs;
+  }
+
+  /**
+   * The serial executor that metadata files are written on, so that writes never run on the main
+   * thread and never overlap each other.
+   */
+  static synchronized ScheduledExecutorService getSharedExecutor() {
+    if (sharedExecutor == null) {
+      sharedExecutor =
+          Executors.newSingleThreadScheduledExecutor(
+              runnable -> {
+                Thread thread = new Thread(runnable, "DebouncedFileWriter");
+                thread.setDaemon(true);
+                return thread;
+              });
+    }
+    return sharedExecutor;
+  }
+
+  /** Notes that the state changed, and starts the timer unless it is already running. */
+  void schedule() {
+    pending.set(true);
+    startTimer(delayMs);
+  }
+
+  private synchronized void startTimer(long timerDelayMs) {
+    if (timer == null) {
+      timer = executor.schedule(this::onTimer, timerDelayMs, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void onTimer() {
+    synchronized (this) {
+      timer = null;
+    }
+    flush();
+  }
+
+  /**
+   * Writes the file now if there are unwritten changes, on the calling thread. Callers must not
+   * hold locks that the write takes.
+   */
+  void flush() {
+    synchronized (this) {
+      if (timer != null) {
+        timer.cancel(false);
+        timer = null;
+      }
+    }
+    synchronized (writeLock) {
+      if (!pending.getAndSet(false)) {
+        return;
+      }
+      try {
+        write.write();
+        retryDelayMs = delayMs;
+      } catch (IOException ioe) {
+        // Keep the changes pending, and try again later, backing off while the write keeps
+        // failing.
+        pending.set(true);
+        startTimer(retryDelayMs);
+        retryDelayMs = Math.min(retryDelayMs * 2, Math.max(delayMs, MAX_RETRY_DELAY_MS));
+        if (Log.isLoggable(tag, Log.ERROR)) {
+          Log.e(tag, "Write failed", ioe);
+        }
+      }
+    }
+  }
+
+  boolean hasPendingWrite() {
+    return pending.get();
+  }
+}
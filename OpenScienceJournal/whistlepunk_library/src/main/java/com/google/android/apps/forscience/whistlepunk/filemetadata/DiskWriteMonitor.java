@@ -0,0 +1,49 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.filemetadata;
+
+import android.os.Looper;
+import androidx.annotation.VisibleForTesting;
+import java.io.File;
+
+/**
+ * Reports each write of a metadata file, and whether it happened on the main thread. Like
+ * StrictMode's disk write detection, this lets tests check that persistence stays off the main
+ * thread.
+ */
+class DiskWriteMonitor {
+  interface Listener {
+    void onDiskWrite(File file, boolean onMainThread);
+  }
+
+  private static volatile Listener listener;
+
+  private DiskWriteMonitor() {}
+
+  @VisibleForTesting
+  static void setListener(Listener newListener) {
+    listener = newListener;
+  }
+
+  /** Called just before {@code file} is written. */
+  static void onDiskWrite(File file) {
+    Listener current = listener;
+    if (current != null) {
+      current.onDiskWrite(file, Looper.myLooper() == Looper.getMainLooper());
+    }
+  }
+}
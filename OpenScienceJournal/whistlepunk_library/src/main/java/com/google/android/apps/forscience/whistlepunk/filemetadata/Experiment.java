@@ -43,9 +43,7 @@ import io.reactivex.functions.Consumer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Set;
 
 /**
  * Represents a Science Journal experiment. All changes should be made using the getters and setters
@@ -64,7 +62,7 @@ public class Experiment extends LabelListHolder {
   private List<ExperimentSensor> experimentSensors;
   private List<SensorTrigger> sensorTriggers;
   private List<Trial> trials;
-  private final List<Change> changes;
+  private final ChangeLog changeLog;
   private String title;
   private String description;
   private FileVersion.Builder fileVersion;
@@ -86,11 +84,12 @@ public class Experiment extends LabelListHolder {
     proto.setCreationTimeMs(creationTime);
     proto.setTotalTrials(0);
 
-    // This experiment is being created with the latest VERSION available.
+    // This experiment is being created with the latest VERSION available. Its change log hasn't
+    // been compacted, so older clients can still write it.
     proto.setFileVersion(
         Version.FileVersion.newBuilder()
             .setVersion(ExperimentCache.VERSION)
-            .setMinorVersion(ExperimentCache.MINOR_VERSION)
+            .setMinorVersion(ExperimentCache.MINOR_VERSION_UNCOMPACTED_CHANGES)
             .setPlatformVersion(ExperimentCache.PLATFORM_VERSION)
             .setPlatform(GoosciGadgetInfo.GadgetInfo.Platform.ANDROID)
             .build());
@@ -136,11 +135,7 @@ public class Experiment extends LabelListHolder {
     for (GoosciSensorTrigger.SensorTrigger proto : experimentProto.getSensorTriggersList()) {
       sensorTriggers.add(SensorTrigger.fromProto(proto));
     }
-    changes = new ArrayList<>();
-    for (com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment.Change proto :
-        experimentProto.getChangesList()) {
-      addChange(Change.fromProto(proto));
-    }
+    changeLog = new ChangeLog(experimentProto);
 
     sensorLayouts = new ArrayList<>();
     for (SensorLayout layout : experimentProto.getSensorLayoutsList()) {
@@ -212,11 +207,7 @@ public class Experiment extends LabelListHolder {
         proto.addLabels(label.getLabelProto());
       }
     }
-    if (changes != null) {
-      for (Change change : changes) {
-        proto.addChanges(change.getChangeProto());
-      }
-    }
+    changeLog.writeTo(proto);
     // Relative to the experiment.
     proto.setImagePath(getPathRelativeToExperiment(imagePath));
     if (title != null) {
@@ -297,6 +288,17 @@ public class Experiment extends LabelListHolder {
     return fileVersion.build();
   }
 
+  /**
+   * Moves this experiment to the minor version that tells older clients its change log may be
+   * compacted, so they won't overwrite it.
+   */
+  private void markChangesCompacted() {
+    if (fileVersion.getVersion() == ExperimentCache.VERSION
+        && fileVersion.getMinorVersion() < ExperimentCache.MINOR_VERSION_COMPACTED_CHANGES) {
+      fileVersion.setMinorVersion(ExperimentCache.MINOR_VERSION_COMPACTED_CHANGES);
+    }
+  }
+
   public void setFileVersion(FileVersion fileVersion) {
     this.fileVersion = fileVersion.toBuilder();
   }
@@ -745,11 +747,15 @@ public class Experiment extends LabelListHolder {
   }
 
   public void addChange(Change change) {
-    changes.add(change);
+    changeLog.add(change);
   }
 
+  /**
+   * Returns the change log. Changes that were superseded by a later change to the same element may
+   * have been compacted out of it.
+   */
   public List<Change> getChanges() {
-    return changes;
+    return changeLog.getChanges();
   }
 
   /**
@@ -816,8 +822,7 @@ public class Experiment extends LabelListHolder {
   public FileSyncCollection mergeFrom(
       Experiment externalExperiment, Context context, AppAccount appAccount, boolean overwrite) {
     if (overwrite) {
-      changes.clear();
-      changes.addAll(externalExperiment.changes);
+      changeLog.copyFrom(externalExperiment.changeLog);
       trials.clear();
       trials.addAll(externalExperiment.trials);
       labels.clear();
@@ -830,25 +835,15 @@ public class Experiment extends LabelListHolder {
       totalTrials = externalExperiment.totalTrials;
       return new FileSyncCollection();
     } else {
-      // First, we have to calculate the changes made in the local and external experiment.
-      List<Change> localChanges = changes;
-      List<Change> externalChanges = externalExperiment.getChanges();
-
-      Set<Change> localOnly = new LinkedHashSet<>();
-      Set<Change> externalOnly = new LinkedHashSet<>();
+      // First, we have to calculate the changes made in the local and external experiment. Each
+      // log knows the latest change it has seen from every client to every element, so elements
+      // that haven't changed since the last sync are skipped without looking at their changes.
+      List<Change> localOnly = changeLog.getLatestChangesUnseenBy(externalExperiment.changeLog);
 
       FileSyncCollection filesToSync = new FileSyncCollection();
 
-      localOnly.addAll(localChanges);
-      localOnly.removeAll(externalChanges);
-
-      externalOnly.addAll(externalChanges);
-      externalOnly.removeAll(localChanges);
-
       // Next, we have to add all of the external-only change records to the local change log.
-      for (Change c : externalOnly) {
-        addChange(c);
-      }
+      List<Change> externalOnly = changeLog.addUnseenFrom(externalExperiment.changeLog);
 
       // Now, build a set of every element that changed externally and locally. This way,
       // we can intersect those sets to find conflicts.
@@ -883,6 +878,14 @@ public class Experiment extends LabelListHolder {
         handleLocalOnlyMerge(appAccount, fileMetadataUtil, local, filesToSync);
       }
 
+      // Both sides will have this log once it has been uploaded, so this is a good time to fold
+      // superseded changes out of it. The log may also have taken compacted changes from the
+      // external experiment.
+      changeLog.compactIfNeeded();
+      if (changeLog.isCompacted()) {
+        markChangesCompacted();
+      }
+
       return filesToSync;
     }
   }
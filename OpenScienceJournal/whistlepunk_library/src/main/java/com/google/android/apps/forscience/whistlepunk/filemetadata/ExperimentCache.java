@@ -17,10 +17,7 @@
 package com.google.android.apps.forscience.whistlepunk.filemetadata;
 
 import android.content.Context;
-import android.os.Handler;
-import android.os.Looper;
 import androidx.annotation.VisibleForTesting;
-import android.text.TextUtils;
 import android.util.Log;
 import com.google.android.apps.forscience.whistlepunk.AppSingleton;
 import com.google.android.apps.forscience.whistlepunk.WhistlePunkApplication;
@@ -31,13 +28,19 @@ import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
 import com.google.android.apps.forscience.whistlepunk.metadata.Version;
 import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
- * This reads and writes experiments to disk. It caches the last used experiment to avoid extra file
- * operations. This class should be constructed and used from a background thread because it does
- * file operations.
+ * This reads and writes experiments to disk. It caches the most recently used experiments to avoid
+ * extra file operations. Each cached experiment has its own dirty bit and write timer. This class
+ * should be constructed and used from a background thread because it does file operations.
  */
 class ExperimentCache {
   private static final String TAG = "ExperimentCache";
@@ -48,7 +51,15 @@ class ExperimentCache {
 
   // The current minor version number we expect from experiments.
   // See upgradeExperimentVersionIfNeeded for the meaning of version numbers.
-  protected static final int MINOR_VERSION = 2;
+  protected static final int MINOR_VERSION = 3;
+
+  // The minor version of experiments whose change log may have been compacted. See ChangeLog.
+  // Experiments only move to it once their log is compacted, so that older clients can keep
+  // writing all other experiments.
+  protected static final int MINOR_VERSION_COMPACTED_CHANGES = 3;
+
+  // The minor version new experiments are created with.
+  protected static final int MINOR_VERSION_UNCOMPACTED_CHANGES = 2;
 
   // The current platform version number for experiments we write.
   // This is implementation-specific; it _shouldn't_ affect future readers of the data, but it
@@ -57,9 +68,13 @@ class ExperimentCache {
   // Increment this each time the file-writing logic changes.
   protected static final int PLATFORM_VERSION = WhistlePunkApplication.getVersionCode();
 
-  // Write the experiment file no more than once per every WRITE_DELAY_MS.
+  // Write each experiment file no more than once per every WRITE_DELAY_MS.
   private static final long WRITE_DELAY_MS = 1000;
 
+  // How many parsed experiments to keep in memory. Moving between recently used experiments is a
+  // lookup instead of a write of the old one and a read of the new one.
+  @VisibleForTesting static final int MAX_CACHED_EXPERIMENTS = 5;
+
   public interface FailureListener {
     // TODO: What's helpful to pass back here? Maybe info about the type of error?
     // When writing an experiment failed
@@ -72,21 +87,55 @@ class ExperimentCache {
     void onNewerVersionDetected(ExperimentOverviewPojo experimentOverview);
   }
 
+  /** Told about each experiment written to disk, so that derived state can catch up. */
+  interface WriteListener {
+    // Called on the thread that wrote the experiment.
+    void onExperimentWritten(ExperimentOverviewPojo experimentOverview);
+  }
+
   private final FailureListener failureListener;
   private final Context context;
   private final AppAccount appAccount;
-  private final LiteProtoFileHelper<GoosciExperiment.Experiment> experimentProtoFileHelper;
   private final LocalSyncManager localSyncManager;
   private final ExperimentLibraryManager experimentLibraryManager;
   private final boolean enableAutoWrite;
+  // Experiments are written on the shared metadata write thread, never on the caller's thread.
+  private final ScheduledExecutorService writeExecutor;
 
-  private final Handler handler;
-  private final ExecutorService backgroundWriteThread;
-  private final Runnable writeRunnable;
+  private WriteListener writeListener;
 
-  private final Object activeExperimentLock = new Object();
-  private Experiment activeExperiment;
-  private boolean activeExperimentNeedsWrite;
+  // Parsed experiments by ID, least recently used first. Guarded by cacheLock.
+  private final LinkedHashMap<String, CachedExperiment> cachedExperiments =
+      new LinkedHashMap<>(MAX_CACHED_EXPERIMENTS + 1, 0.75f, true /* accessOrder */);
+  // Experiments dropped from the cache that still have to be written. Until they are, they are
+  // served from here rather than from the stale file. Guarded by cacheLock.
+  private final Map<String, CachedExperiment> evictedExperiments = new HashMap<>();
+  // Held only to change or copy cached experiments, never while writing to disk.
+  private final Object cacheLock = new Object();
+
+  /**
+   * An experiment in the cache, with its own dirty bit and write timer.
+   *
+   * <p>Locks are taken in this order: writeLock, then cacheLock, then the account's experiment
+   * proto file lock.
+   */
+  private class CachedExperiment {
+    // Guarded by cacheLock.
+    Experiment experiment;
+    boolean needsWrite = false;
+    ScheduledFuture<?> writeTimer;
+
+    // Held from taking the snapshot to the end of its write, so that snapshots of this experiment
+    // reach the disk in the order they were taken.
+    final Object writeLock = new Object();
+    // The journal of the experiment on disk. Guarded by writeLock.
+    ExperimentJournal journal;
+
+    CachedExperiment(Experiment experiment, ExperimentJournal journal) {
+      this.experiment = experiment;
+      this.journal = journal;
+    }
+  }
 
   public ExperimentCache(Context context, AppAccount appAccount, FailureListener failureListener) {
     this(context, appAccount, failureListener, true);
@@ -115,39 +164,55 @@ class ExperimentCache {
       boolean enableAutoWrite,
       ExperimentLibraryManager elm,
       LocalSyncManager lsm) {
+    this(
+        context,
+        appAccount,
+        failureListener,
+        enableAutoWrite,
+        elm,
+        lsm,
+        DebouncedFileWriter.getSharedExecutor());
+  }
+
+  @VisibleForTesting
+  ExperimentCache(
+      Context context,
+      AppAccount appAccount,
+      FailureListener failureListener,
+      boolean enableAutoWrite,
+      ExperimentLibraryManager elm,
+      LocalSyncManager lsm,
+      ScheduledExecutorService writeExecutor) {
     this.context = context;
     this.appAccount = appAccount;
     this.failureListener = failureListener;
-    experimentProtoFileHelper = new LiteProtoFileHelper<>();
-    if (Looper.myLooper() == null) {
-      Looper.prepare();
-    }
-    handler = new Handler();
-    backgroundWriteThread = Executors.newSingleThreadExecutor();
-    writeRunnable =
-        () -> {
-          synchronized (activeExperimentLock) {
-            if (activeExperimentNeedsWrite) {
-              final Experiment experimentToWrite = activeExperiment;
-              if (experimentToWrite != null) {
-                backgroundWriteThread.execute(
-                    () -> {
-                      writeExperimentFile(experimentToWrite);
-                    });
-              }
-            }
-          }
-        };
+    this.writeExecutor = writeExecutor;
     this.enableAutoWrite = enableAutoWrite;
 
     localSyncManager = lsm;
     experimentLibraryManager = elm;
   }
 
+  void setWriteListener(WriteListener writeListener) {
+    this.writeListener = writeListener;
+  }
+
+  /** Returns the most recently used experiment in the cache, or null if the cache is empty. */
   @VisibleForTesting
   Experiment getActiveExperimentForTests() {
-    synchronized (activeExperimentLock) {
-      return activeExperiment;
+    synchronized (cacheLock) {
+      CachedExperiment newest = null;
+      for (CachedExperiment cached : cachedExperiments.values()) {
+        newest = cached;
+      }
+      return newest == null ? null : newest.experiment;
+    }
+  }
+
+  @VisibleForTesting
+  boolean isCachedForTests(String localExperimentId) {
+    synchronized (cacheLock) {
+      return cachedExperiments.containsKey(localExperimentId);
     }
   }
 
@@ -161,65 +226,73 @@ class ExperimentCache {
       failureListener.onWriteFailed(experiment);
       return false;
     }
-    setExistingActiveExperiment(experiment);
+    synchronized (cacheLock) {
+      markNeedsWrite(experiment);
+    }
+    writeEvictedExperiments();
     return true;
   }
 
   /** Updates the given experiment. */
   void updateExperiment(Experiment experiment, boolean setDirty) {
-    synchronized (activeExperimentLock) {
-      if (isDifferentFromActive(experiment.getExperimentOverview())) {
-        immediateWriteIfActiveChanging(experiment.getExperimentOverview());
-      }
+    synchronized (cacheLock) {
       experimentLibraryManager.setModified(
           experiment.getExperimentId(), experiment.getLastUsedTime());
       localSyncManager.setDirty(experiment.getExperimentId(), setDirty);
-      activeExperiment = experiment;
-      startWriteTimer();
+      markNeedsWrite(experiment);
     }
+    writeEvictedExperiments();
   }
 
   /**
-   * Updates the experiment overview of the active experiment if the active experiment has the same
-   * ID. This allows us to keep the experimentOverview fresh without doing extra writes to disk. If
-   * the active experiment is not the same ID as the experiment overview to update, no action needs
-   * to be taken.
+   * Updates the experiment overview of the cached experiment with the same ID, if there is one.
+   * This allows us to keep the experimentOverview fresh without doing extra writes to disk.
    *
    * @param experimentOverview the updated experimentOverview to set on the cached experiment if
    *     they have the same ID.
    */
   void onExperimentOverviewUpdated(ExperimentOverviewPojo experimentOverview) {
-    synchronized (activeExperimentLock) {
-      if (!isDifferentFromActive(experimentOverview)) {
-        activeExperiment.setLastUsedTime(experimentOverview.getLastUsedTimeMs());
-        activeExperiment.setArchived(context, appAccount, experimentOverview.isArchived());
-        activeExperiment.getExperimentOverview().setImagePath(experimentOverview.getImagePath());
+    synchronized (cacheLock) {
+      CachedExperiment cached = cachedExperiments.get(experimentOverview.getExperimentId());
+      if (cached != null) {
+        Experiment experiment = cached.experiment;
+        experiment.setLastUsedTime(experimentOverview.getLastUsedTimeMs());
+        experiment.setArchived(context, appAccount, experimentOverview.isArchived());
+        experiment.getExperimentOverview().setImagePath(experimentOverview.getImagePath());
       }
     }
   }
 
   /**
-   * Loads an active experiment from the disk if it is different from the currently cached active
-   * experiment, otherwise just returns the current cached experiment.
+   * Returns the cached experiment with the overview's ID, loading it from disk if it isn't cached.
    *
    * @param localExperimentOverview The local ExperimentOverview of the experiment to load. This is
    *     used for lookup.
    */
   Experiment getExperiment(ExperimentOverviewPojo localExperimentOverview) {
-    synchronized (activeExperimentLock) {
-      // Write only if the experiment ID is changing. If it's not changing, we just want to
-      // reload even if it was dirty.
-      if (isDifferentFromActive(localExperimentOverview)) {
-        immediateWriteIfActiveChanging(localExperimentOverview);
-        loadActiveExperimentFromFile(localExperimentOverview);
+    String localExperimentId = localExperimentOverview.getExperimentId();
+    synchronized (cacheLock) {
+      CachedExperiment cached = cachedExperiments.get(localExperimentId);
+      if (cached == null) {
+        // An evicted experiment that hasn't been written yet is newer than its file.
+        cached = evictedExperiments.remove(localExperimentId);
+        if (cached != null) {
+          cache(cached);
+          if (cached.needsWrite) {
+            startWriteTimer(cached);
+          }
+        }
+      }
+      if (cached != null) {
+        return cached.experiment;
       }
-      return activeExperiment;
     }
+    return loadActiveExperimentFromFile(localExperimentOverview);
   }
 
   /**
-   * Deletes an experiment from disk. Doesn't need to be the active one to be deleted. Sets the
-   * active experiment to null if it is the same one
+   * Deletes an experiment from disk. Doesn't need to be cached to be deleted. If it was cached, it
+   * is dropped from the cache and marked deleted in the experiment library.
    */
   void deleteExperiment(String localExperimentId) {
     File expDirectory = getExperimentDirectory(localExperimentId);
@@ -230,13 +303,8 @@ class ExperimentCache {
       // so that the user can't see pictures any more?
       return;
     }
-    synchronized (activeExperimentLock) {
-      if (activeExperiment != null
-          && TextUtils.equals(
-              activeExperiment.getExperimentOverview().getExperimentId(), localExperimentId)) {
-        activeExperiment = null;
-        cancelWriteTimer();
-        activeExperimentNeedsWrite = false;
+    synchronized (cacheLock) {
+      if (removeFromCache(localExperimentId) != null) {
         if (experimentLibraryManager.getExperiment(localExperimentId) != null) {
           experimentLibraryManager.setDeleted(localExperimentId, true);
           localSyncManager.setDirty(localExperimentId, true);
@@ -259,36 +327,37 @@ class ExperimentCache {
 
   void beforeMovingAllExperimentsToAnotherAccount() {
     // This ExperimentCache is losing all experiments.
-    synchronized (activeExperimentLock) {
-      activeExperiment = null;
+    synchronized (cacheLock) {
+      for (String localExperimentId : new ArrayList<>(cachedExperiments.keySet())) {
+        removeFromCache(localExperimentId);
+      }
+      evictedExperiments.clear();
     }
   }
 
   void beforeMovingExperimentToAnotherAccount(String localExperimentId) {
     // This ExperimentCache is losing the experiment.
-    synchronized (activeExperimentLock) {
-      if (activeExperiment != null
-          && TextUtils.equals(
-              activeExperiment.getExperimentOverview().getExperimentId(), localExperimentId)) {
-        activeExperiment = null;
-      }
+    synchronized (cacheLock) {
+      removeFromCache(localExperimentId);
     }
   }
 
   /**
-   * Used to set the active experiment when the experiment already exists, not when it's being made
-   * for the first time. Sets the dirty bit to true, then starts a timer if needed to make sure that
-   * the write happens within a reasonable time frame.
+   * Drops an experiment from the cache without writing it, and cancels its write timer. Must be
+   * called while holding cacheLock.
+   *
+   * @return the dropped entry, or null if the experiment wasn't cached.
    */
-  private void setExistingActiveExperiment(Experiment experiment) {
-    synchronized (activeExperimentLock) {
-      immediateWriteIfActiveChanging(experiment.getExperimentOverview());
-
-      // Then set the new experiment and set the dirty bit to true, resetting the write timer,
-      // so that we save it soon.
-      activeExperiment = experiment;
-      startWriteTimer();
+  private CachedExperiment removeFromCache(String localExperimentId) {
+    CachedExperiment cached = cachedExperiments.remove(localExperimentId);
+    if (cached == null) {
+      cached = evictedExperiments.remove(localExperimentId);
     }
+    if (cached != null) {
+      cancelWriteTimer(cached);
+      cached.needsWrite = false;
+    }
+    return cached;
   }
 
   /** Create a folder with the experiment ID, and create the appropriate folders within it. */
@@ -321,133 +390,284 @@ class ExperimentCache {
   }
 
   /**
-   * Immediately writes the current active experiment to disk if it is different from the given
-   * parameter localExperimentId.
+   * Puts an experiment in the cache as the most recently used one, replacing any cached object with
+   * the same ID. Must be called while holding cacheLock.
    */
-  private void immediateWriteIfActiveChanging(ExperimentOverviewPojo localExperimentOverview) {
-    synchronized (activeExperimentLock) {
-      if (activeExperiment != null
-          && activeExperimentNeedsWrite
-          && isDifferentFromActive(localExperimentOverview)) {
-        // First write the old active experiment if the ID has changed.
-        // Then cancel the write timer on the old experiment. We will reset it below.
-        cancelWriteTimer();
-        writeActiveExperimentFile();
+  private CachedExperiment putInCache(Experiment experiment) {
+    CachedExperiment cached = cachedExperiments.get(experiment.getExperimentId());
+    if (cached == null) {
+      cached = evictedExperiments.remove(experiment.getExperimentId());
+      if (cached == null) {
+        cached = new CachedExperiment(experiment, null);
       }
+      cache(cached);
     }
+    cached.experiment = experiment;
+    return cached;
   }
 
-  private void cancelWriteTimer() {
-    handler.removeCallbacks(writeRunnable);
+  /**
+   * Adds an entry to the cache as the most recently used one, evicting the least recently used
+   * experiments if the cache is full. An evicted experiment that has unsaved changes or a journal
+   * waits in evictedExperiments until {@link #writeEvictedExperiments()} writes it. Must be called
+   * while holding cacheLock.
+   */
+  private void cache(CachedExperiment cached) {
+    cachedExperiments.put(cached.experiment.getExperimentId(), cached);
+    while (cachedExperiments.size() > MAX_CACHED_EXPERIMENTS) {
+      CachedExperiment eldest = cachedExperiments.values().iterator().next();
+      String eldestId = eldest.experiment.getExperimentId();
+      cachedExperiments.remove(eldestId);
+      cancelWriteTimer(eldest);
+      evictedExperiments.put(eldestId, eldest);
+    }
   }
 
-  private void startWriteTimer() {
-    synchronized (activeExperimentLock) {
-      if (activeExperimentNeedsWrite) {
-        // The timer is already running.
+  /**
+   * Writes the experiments evicted from the cache as full snapshots, so that only cached
+   * experiments ever have a journal. Must not be called while holding cacheLock.
+   */
+  private void writeEvictedExperiments() {
+    List<CachedExperiment> evicted;
+    synchronized (cacheLock) {
+      if (evictedExperiments.isEmpty()) {
         return;
       }
-
-      // TODO: I think this can only be null during tests.  Can we rewrite the tests to remove
-      //       this possibility?
-      if (activeExperiment != null) {
-        // We're going to write a new file, so rev the platform version
-        activeExperiment.setPlatformVersion(PLATFORM_VERSION);
+      evicted = new ArrayList<>(evictedExperiments.values());
+    }
+    for (CachedExperiment cached : evicted) {
+      writeCachedExperiment(cached, /* compact */ true);
+      synchronized (cacheLock) {
+        String localExperimentId = cached.experiment.getExperimentId();
+        if (evictedExperiments.get(localExperimentId) == cached && !cached.needsWrite) {
+          evictedExperiments.remove(localExperimentId);
+        }
       }
+    }
+  }
 
-      activeExperimentNeedsWrite = true;
+  /**
+   * Caches the experiment and marks it as changed, so that it is written within a reasonable time
+   * frame. Must be called while holding cacheLock.
+   */
+  private void markNeedsWrite(Experiment experiment) {
+    // We're going to write a new file, so rev the platform version
+    experiment.setPlatformVersion(PLATFORM_VERSION);
+    startWriteTimer(putInCache(experiment));
+  }
 
-      if (enableAutoWrite) {
-        handler.postDelayed(writeRunnable, WRITE_DELAY_MS);
+  /**
+   * Sets the dirty bit of a cached experiment, and starts its timer unless it is already running.
+   * Must be called while holding cacheLock.
+   */
+  private void startWriteTimer(CachedExperiment cached) {
+    cached.needsWrite = true;
+    if (enableAutoWrite && cached.writeTimer == null) {
+      cached.writeTimer =
+          writeExecutor.schedule(
+              () -> onWriteTimer(cached), WRITE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void onWriteTimer(CachedExperiment cached) {
+    synchronized (cacheLock) {
+      cached.writeTimer = null;
+      if (cachedExperiments.get(cached.experiment.getExperimentId()) != cached) {
+        // Evicted or dropped since the timer started.
+        return;
       }
     }
+    writeCachedExperiment(cached, /* compact */ false);
+  }
+
+  /** Must be called while holding cacheLock. */
+  private void cancelWriteTimer(CachedExperiment cached) {
+    if (cached.writeTimer != null) {
+      cached.writeTimer.cancel(false);
+      cached.writeTimer = null;
+    }
   }
 
+  /** Whether any cached experiment has changes that have not been written yet. */
   @VisibleForTesting
   boolean needsWrite() {
-    synchronized (activeExperimentLock) {
-      return activeExperimentNeedsWrite;
+    synchronized (cacheLock) {
+      for (CachedExperiment cached : cachedExperiments.values()) {
+        if (cached.needsWrite) {
+          return true;
+        }
+      }
+      for (CachedExperiment cached : evictedExperiments.values()) {
+        if (cached.needsWrite) {
+          return true;
+        }
+      }
+      return false;
     }
   }
 
-  /** Writes the active experiment to a file immediately, if needed. */
+  /**
+   * Writes every cached experiment that needs it to a file immediately, on the calling thread.
+   * Afterwards each experiment.proto is complete on its own, so it is safe to upload or export.
+   */
   void saveImmediately() {
-    synchronized (activeExperimentLock) {
-      if (activeExperimentNeedsWrite) {
-        cancelWriteTimer();
-        writeActiveExperimentFile();
-      }
+    writeEvictedExperiments();
+    List<CachedExperiment> cached;
+    synchronized (cacheLock) {
+      cached = new ArrayList<>(cachedExperiments.values());
+    }
+    for (CachedExperiment entry : cached) {
+      writeCachedExperiment(entry, /* compact */ true);
     }
   }
 
-  /** Writes the active experiment to a file. */
+  /** Writes the most recently used experiment to a file. */
   @VisibleForTesting
   void writeActiveExperimentFile() {
-    writeExperimentFile(activeExperiment);
+    writeExperimentFile(getActiveExperimentForTests());
   }
 
-  /** Writes the given experiment to a file. */
+  /** Writes the given experiment to a file as a full snapshot. */
   @VisibleForTesting
   void writeExperimentFile(Experiment experimentToWrite) {
-    boolean writingActiveExperiment = (activeExperiment == experimentToWrite);
-    // If we are writing the active experiment, hold the activeExperimentLock until after we've set
-    // activeExperimentNeedsWrite to false. Otherwise, if startWriteTimer is called on another
-    // thread after we've got the proto from the experimentToWrite and before we set
-    // activeExperimentNeedsWrite to false, it will see that activeExperimentNeedsWrite is true and
-    // incorrectly decide that it doesn't need to start the timer.
-    synchronized (writingActiveExperiment ? activeExperimentLock : new Object()) {
-      GoosciExperiment.Experiment proto = experimentToWrite.getExperimentProto();
-      if ((proto.getVersion() > VERSION)
-          || (proto.getVersion() == VERSION && proto.getMinorVersion() > MINOR_VERSION)) {
-        // If the major version is too new, or the minor version is too new, we can't save this.
-        // TODO: Or should this throw onWriteFailed?
-        failureListener.onNewerVersionDetected(experimentToWrite.getExperimentOverview());
-        return;
+    CachedExperiment cached;
+    synchronized (cacheLock) {
+      cached = cachedExperiments.get(experimentToWrite.getExperimentId());
+      if (cached != null && cached.experiment == experimentToWrite) {
+        cached.needsWrite = true;
+      } else {
+        cached = null;
       }
+    }
+    if (cached != null) {
+      writeCachedExperiment(cached, /* compact */ true);
+      return;
+    }
+    ExperimentJournal journal =
+        new ExperimentJournal(
+            experimentToWrite.getExperimentId(),
+            getExperimentDirectory(experimentToWrite.getExperimentId()));
+    writeExperimentFile(
+        experimentToWrite, experimentToWrite.getExperimentProto(), journal, /* compact */ true);
+  }
 
-      File experimentFile = getExperimentFile(experimentToWrite.getExperimentOverview());
-      boolean success;
-      synchronized (appAccount.getLockForExperimentProtoFile()) {
-        success =
-            experimentProtoFileHelper.writeToFile(
-                experimentFile, experimentToWrite.getExperimentProto(), getUsageTracker());
+  /**
+   * Writes a cached experiment to disk if it has unsaved changes. The lock on the cache is only
+   * held while a copy of the experiment is taken, not while it is written.
+   *
+   * @param compact if true, a full snapshot is written, also when the only thing to do is fold the
+   *     journal into it. Otherwise only what changed since the last write is appended to the
+   *     experiment's journal, when possible.
+   */
+  private void writeCachedExperiment(CachedExperiment cached, boolean compact) {
+    synchronized (cached.writeLock) {
+      boolean hasJournal = compact && hasJournal(cached);
+      Experiment experiment;
+      GoosciExperiment.Experiment proto;
+      synchronized (cacheLock) {
+        if (!cached.needsWrite && !hasJournal) {
+          return;
+        }
+        cancelWriteTimer(cached);
+        experiment = cached.experiment;
+        // The proto is an immutable copy, so the experiment can keep changing while it is written.
+        proto = experiment.getExperimentProto();
+        // Cleared before the write, so that a change made during the write starts a new timer.
+        cached.needsWrite = false;
+      }
+      if (cached.journal == null) {
+        cached.journal =
+            new ExperimentJournal(
+                experiment.getExperimentId(), getExperimentDirectory(experiment.getExperimentId()));
       }
-      if (success) {
-        if (writingActiveExperiment) {
-          activeExperimentNeedsWrite = false;
+      if (!writeExperimentFile(experiment, proto, cached.journal, compact)) {
+        synchronized (cacheLock) {
+          // Try again with the next change, or the next saveImmediately.
+          cached.needsWrite = true;
         }
-      } else {
-        failureListener.onWriteFailed(experimentToWrite);
       }
     }
   }
 
+  /** Must be called while holding the entry's writeLock. */
+  private boolean hasJournal(CachedExperiment cached) {
+    synchronized (appAccount.getLockForExperimentProtoFile()) {
+      return cached.journal != null && cached.journal.hasJournal();
+    }
+  }
+
+  /**
+   * Writes a copy of the experiment to disk through its journal.
+   *
+   * @return whether the write succeeded.
+   */
+  private boolean writeExperimentFile(
+      Experiment experimentToWrite,
+      GoosciExperiment.Experiment proto,
+      ExperimentJournal journal,
+      boolean compact) {
+    if ((proto.getVersion() > VERSION)
+        || (proto.getVersion() == VERSION && proto.getMinorVersion() > MINOR_VERSION)) {
+      // If the major version is too new, or the minor version is too new, we can't save this.
+      // TODO: Or should this throw onWriteFailed?
+      failureListener.onNewerVersionDetected(experimentToWrite.getExperimentOverview());
+      return false;
+    }
+
+    boolean success;
+    synchronized (appAccount.getLockForExperimentProtoFile()) {
+      success =
+          compact
+              ? journal.writeSnapshot(proto, getUsageTracker())
+              : journal.write(proto, getUsageTracker());
+    }
+    if (success) {
+      if (writeListener != null) {
+        writeListener.onExperimentWritten(experimentToWrite.getExperimentOverview());
+      }
+    } else {
+      failureListener.onWriteFailed(experimentToWrite);
+    }
+    return success;
+  }
+
   private UsageTracker getUsageTracker() {
     return WhistlePunkApplication.getUsageTracker(context);
   }
 
+  /**
+   * Reads an experiment from disk and caches it, replacing any cached copy.
+   *
+   * @return the experiment, or null if it could not be read.
+   */
   @VisibleForTesting
-  void loadActiveExperimentFromFile(ExperimentOverviewPojo experimentOverview) {
-    File experimentFile = getExperimentFile(experimentOverview);
+  Experiment loadActiveExperimentFromFile(ExperimentOverviewPojo experimentOverview) {
+    String localExperimentId = experimentOverview.getExperimentId();
+    ExperimentJournal journal =
+        new ExperimentJournal(localExperimentId, getExperimentDirectory(localExperimentId));
     GoosciExperiment.Experiment proto;
     synchronized (appAccount.getLockForExperimentProtoFile()) {
-      proto =
-          experimentProtoFileHelper.readFromFile(
-              experimentFile, GoosciExperiment.Experiment::parseFrom, getUsageTracker());
-    }
-    synchronized (activeExperimentLock) {
-      if (proto != null) {
-        Experiment toLoad = Experiment.fromExperiment(proto, experimentOverview);
-        upgradeExperimentVersionIfNeeded(toLoad);
-        activeExperiment = toLoad;
-        localSyncManager.addExperiment(activeExperiment.getExperimentId());
-        experimentLibraryManager.addExperiment(activeExperiment.getExperimentId());
-      } else {
-        // Or maybe pass a FailureListener into the load instead of failing here.
-        failureListener.onReadFailed(experimentOverview);
-        activeExperiment = null;
+      proto = journal.read(getUsageTracker());
+    }
+    if (proto == null) {
+      // Or maybe pass a FailureListener into the load instead of failing here.
+      failureListener.onReadFailed(experimentOverview);
+      synchronized (cacheLock) {
+        removeFromCache(localExperimentId);
       }
+      return null;
+    }
+    Experiment toLoad = Experiment.fromExperiment(proto, experimentOverview);
+    synchronized (cacheLock) {
+      // The copy on disk replaces any cached one.
+      removeFromCache(localExperimentId);
+      cache(new CachedExperiment(toLoad, journal));
     }
+    upgradeExperimentVersionIfNeeded(toLoad);
+    localSyncManager.addExperiment(toLoad.getExperimentId());
+    experimentLibraryManager.addExperiment(toLoad.getExperimentId());
+    writeEvictedExperiments();
+    return toLoad;
   }
 
   private void upgradeExperimentVersionIfNeeded(Experiment experiment) {
@@ -509,6 +729,9 @@ class ExperimentCache {
         fileVersion.setMinorVersion(2);
       }
 
+      // Minor version 3 isn't an upgrade: experiments move to it when their change log is
+      // compacted. See Experiment#mergeFrom.
+
       // More minor version upgrades for major version 1 could be done here.
 
       // Also, update any data from incomplete or buggy platformVersions here.
@@ -557,7 +780,10 @@ class ExperimentCache {
     experiment.setFileVersion(fileVersion.build());
 
     // We've made changes we need to save.
-    startWriteTimer();
+    synchronized (cacheLock) {
+      startWriteTimer(putInCache(experiment));
+    }
+    writeEvictedExperiments();
   }
 
   private static void revMajorVersionTo(Version.FileVersion.Builder fileVersion, int majorVersion) {
@@ -571,10 +797,6 @@ class ExperimentCache {
         .setPlatformVersion(platformVersion);
   }
 
-  private File getExperimentFile(ExperimentOverviewPojo experimentOverview) {
-    return getExperimentFile(experimentOverview.getExperimentId());
-  }
-
   private File getExperimentFile(String localExperimentId) {
     return new File(getExperimentDirectory(localExperimentId), FileMetadataManager.EXPERIMENT_FILE);
   }
@@ -587,16 +809,6 @@ class ExperimentCache {
     return new File(experimentDirectory, FileMetadataManager.ASSETS_DIRECTORY);
   }
 
-  private boolean isDifferentFromActive(ExperimentOverviewPojo other) {
-    synchronized (activeExperimentLock) {
-      if (activeExperiment == null) {
-        return true;
-      }
-      return !TextUtils.equals(
-          other.getExperimentId(), activeExperiment.getExperimentOverview().getExperimentId());
-    }
-  }
-
   @VisibleForTesting
   static boolean deleteRecursive(File file) {
     if (file.isDirectory()) {
@@ -0,0 +1,349 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.filemetadata;
+
+import android.util.Log;
+import androidx.annotation.VisibleForTesting;
+import com.google.android.apps.forscience.whistlepunk.analytics.UsageTracker;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperimentJournal.ExperimentJournalEntry;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciLabel;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
+import com.google.protobuf.CodedInputStream;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Stores an experiment as a full experiment.proto snapshot plus an append-only journal of the
+ * trials, labels and changes that were modified since that snapshot was written.
+ *
+ * <p>Appending a journal record costs time proportional to what changed rather than to the size of
+ * the experiment. Once the journal grows past a threshold, the next write compacts it into a new
+ * snapshot. Reading the snapshot and replaying the journal produces exactly the proto that was last
+ * written.
+ *
+ * <p>This class is not thread-safe; callers hold the account's experiment proto file lock.
+ */
+class ExperimentJournal {
+  private static final String TAG = "ExperimentJournal";
+
+  static final String JOURNAL_FILE = "experiment.journal";
+
+  // The journal is compacted once it is larger than this, or than half of the snapshot, whichever
+  // is larger. Small experiments compact rarely; large ones don't replay huge journals on load.
+  @VisibleForTesting static final long MIN_COMPACTION_BYTES = 64 * 1024;
+
+  private final String experimentId;
+  private final File snapshotFile;
+  private final File journalFile;
+  private final LiteProtoFileHelper<GoosciExperiment.Experiment> protoFileHelper;
+
+  // What is on disk, as of the last read or write. Null until then.
+  private GoosciExperiment.Experiment header;
+  private LinkedHashMap<String, GoosciTrial.Trial> trials;
+  private LinkedHashMap<String, GoosciLabel.Label> labels;
+  private List<GoosciExperiment.Change> changes;
+  private List<GoosciExperiment.CompactedChanges> compactedChanges;
+  private long snapshotCrc;
+  private long snapshotLength;
+
+  ExperimentJournal(String experimentId, File experimentDirectory) {
+    this.experimentId = experimentId;
+    snapshotFile = new File(experimentDirectory, FileMetadataManager.EXPERIMENT_FILE);
+    journalFile = new File(experimentDirectory, JOURNAL_FILE);
+    protoFileHelper = new LiteProtoFileHelper<>();
+  }
+
+  String getExperimentId() {
+    return experimentId;
+  }
+
+  /** Whether there are journal records that have not been compacted into the snapshot. */
+  boolean hasJournal() {
+    return journalFile.length() > 0;
+  }
+
+  /**
+   * Reads the snapshot and replays the journal on top of it.
+   *
+   * @return the experiment, or null if the snapshot could not be read.
+   */
+  GoosciExperiment.Experiment read(UsageTracker tracker) {
+    CRC32 crc = new CRC32();
+    GoosciExperiment.Experiment snapshot =
+        protoFileHelper.readFromFile(
+            snapshotFile,
+            bytes -> {
+              crc.update(bytes, 0, bytes.length);
+              return GoosciExperiment.Experiment.parseFrom(bytes);
+            },
+            tracker);
+    if (snapshot == null) {
+      return null;
+    }
+    setBaseline(snapshot, crc.getValue(), snapshotFile.length());
+    if (!journalFile.exists()) {
+      return snapshot;
+    }
+    replayJournal();
+    return buildFromBaseline();
+  }
+
+  /**
+   * Persists {@code proto}, appending a journal record when possible and writing a new snapshot
+   * when there is nothing to append to or the journal has grown too large.
+   */
+  boolean write(GoosciExperiment.Experiment proto, UsageTracker tracker) {
+    if (header == null || journalFile.length() > getCompactionThreshold()) {
+      return writeSnapshot(proto, tracker);
+    }
+    ExperimentJournalEntry entry = diffAgainstBaseline(proto);
+    if (entry == null) {
+      // Duplicate IDs can't be expressed as a delta.
+      return writeSnapshot(proto, tracker);
+    }
+    if (isEmpty(entry, proto)) {
+      return true;
+    }
+    long oldLength = journalFile.length();
+    DiskWriteMonitor.onDiskWrite(journalFile);
+    try (FileOutputStream outputStream = new FileOutputStream(journalFile, true)) {
+      entry.writeDelimitedTo(outputStream);
+      outputStream.flush();
+      outputStream.getFD().sync();
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to append to journal, writing a snapshot instead", e);
+      truncateJournal(oldLength);
+      return writeSnapshot(proto, tracker);
+    }
+    applyEntry(entry);
+    return true;
+  }
+
+  /** Writes {@code proto} as a new snapshot and discards the journal. */
+  boolean writeSnapshot(GoosciExperiment.Experiment proto, UsageTracker tracker) {
+    CRC32 crc = new CRC32();
+    if (!protoFileHelper.writeToFile(snapshotFile, proto, tracker, crc)) {
+      return false;
+    }
+    // Any records left behind if this delete fails no longer match the snapshot's CRC, so they
+    // will be ignored on the next read.
+    journalFile.delete();
+    setBaseline(proto, crc.getValue(), proto.getSerializedSize());
+    return true;
+  }
+
+  private long getCompactionThreshold() {
+    return Math.max(MIN_COMPACTION_BYTES, snapshotLength / 2);
+  }
+
+  private void setBaseline(GoosciExperiment.Experiment proto, long crc, long length) {
+    snapshotCrc = crc;
+    snapshotLength = length;
+    header = toHeader(proto);
+    trials = new LinkedHashMap<>();
+    for (GoosciTrial.Trial trial : proto.getTrialsList()) {
+      trials.put(trial.getTrialId(), trial);
+    }
+    labels = new LinkedHashMap<>();
+    for (GoosciLabel.Label label : proto.getLabelsList()) {
+      labels.put(label.getLabelId(), label);
+    }
+    changes = new ArrayList<>(proto.getChangesList());
+    compactedChanges = new ArrayList<>(proto.getCompactedChangesList());
+  }
+
+  private static GoosciExperiment.Experiment toHeader(GoosciExperiment.Experiment proto) {
+    return proto
+        .toBuilder()
+        .clearTrials()
+        .clearLabels()
+        .clearChanges()
+        .clearCompactedChanges()
+        .build();
+  }
+
+  /**
+   * Returns a record describing how {@code proto} differs from the baseline, or null if it can't be
+   * described as a delta.
+   */
+  private ExperimentJournalEntry diffAgainstBaseline(GoosciExperiment.Experiment proto) {
+    ExperimentJournalEntry.Builder entry =
+        ExperimentJournalEntry.newBuilder()
+            .setBaseSnapshotCrc(snapshotCrc)
+            .setBaseSnapshotLength(snapshotLength)
+            .setHeader(toHeader(proto));
+
+    Map<String, GoosciTrial.Trial> seenTrials = new HashMap<>();
+    for (GoosciTrial.Trial trial : proto.getTrialsList()) {
+      if (seenTrials.put(trial.getTrialId(), trial) != null) {
+        return null;
+      }
+      entry.addTrialIds(trial.getTrialId());
+      if (!trial.equals(trials.get(trial.getTrialId()))) {
+        entry.addChangedTrials(trial);
+      }
+    }
+
+    Map<String, GoosciLabel.Label> seenLabels = new HashMap<>();
+    for (GoosciLabel.Label label : proto.getLabelsList()) {
+      if (seenLabels.put(label.getLabelId(), label) != null) {
+        return null;
+      }
+      entry.addLabelIds(label.getLabelId());
+      if (!label.equals(labels.get(label.getLabelId()))) {
+        entry.addChangedLabels(label);
+      }
+    }
+
+    // The change log only ever grows, except when a merge replaces it wholesale.
+    int changeCount = changes.size();
+    int newChangeCount = proto.getChangesCount();
+    boolean appendOnly =
+        newChangeCount >= changeCount
+            && (changeCount == 0
+                || proto.getChanges(changeCount - 1).equals(changes.get(changeCount - 1)));
+    if (appendOnly) {
+      for (int i = changeCount; i < newChangeCount; i++) {
+        entry.addNewChanges(proto.getChanges(i));
+      }
+    } else {
+      entry.setReplacesChanges(true);
+      entry.addAllNewChanges(proto.getChangesList());
+    }
+
+    // Compacted changes only change when the log is compacted or merged, and then many of them
+    // change at once, so they are recorded whole and only when they differ.
+    if (!proto.getCompactedChangesList().equals(compactedChanges)) {
+      entry.setReplacesCompactedChanges(true);
+      entry.addAllCompactedChanges(proto.getCompactedChangesList());
+    }
+    return entry.build();
+  }
+
+  private boolean isEmpty(ExperimentJournalEntry entry, GoosciExperiment.Experiment proto) {
+    return entry.getChangedTrialsCount() == 0
+        && entry.getChangedLabelsCount() == 0
+        && entry.getNewChangesCount() == 0
+        && !entry.getReplacesChanges()
+        && !entry.getReplacesCompactedChanges()
+        && entry.getTrialIdsList().equals(new ArrayList<>(trials.keySet()))
+        && entry.getLabelIdsList().equals(new ArrayList<>(labels.keySet()))
+        && entry.getHeader().equals(header);
+  }
+
+  /** Applies {@code entry} to the baseline. */
+  private void applyEntry(ExperimentJournalEntry entry) {
+    header = entry.getHeader();
+
+    Map<String, GoosciTrial.Trial> changedTrials = new HashMap<>();
+    for (GoosciTrial.Trial trial : entry.getChangedTrialsList()) {
+      changedTrials.put(trial.getTrialId(), trial);
+    }
+    LinkedHashMap<String, GoosciTrial.Trial> newTrials = new LinkedHashMap<>();
+    for (String trialId : entry.getTrialIdsList()) {
+      GoosciTrial.Trial trial = changedTrials.get(trialId);
+      newTrials.put(trialId, trial != null ? trial : trials.get(trialId));
+    }
+    trials = newTrials;
+
+    Map<String, GoosciLabel.Label> changedLabels = new HashMap<>();
+    for (GoosciLabel.Label label : entry.getChangedLabelsList()) {
+      changedLabels.put(label.getLabelId(), label);
+    }
+    LinkedHashMap<String, GoosciLabel.Label> newLabels = new LinkedHashMap<>();
+    for (String labelId : entry.getLabelIdsList()) {
+      GoosciLabel.Label label = changedLabels.get(labelId);
+      newLabels.put(labelId, label != null ? label : labels.get(labelId));
+    }
+    labels = newLabels;
+
+    if (entry.getReplacesChanges()) {
+      changes.clear();
+    }
+    changes.addAll(entry.getNewChangesList());
+
+    if (entry.getReplacesCompactedChanges()) {
+      compactedChanges = new ArrayList<>(entry.getCompactedChangesList());
+    }
+  }
+
+  /**
+   * Applies every record that matches the snapshot, then drops anything after the last good record
+   * so that later appends don't land behind a torn or stale one.
+   */
+  private void replayJournal() {
+    long goodLength = 0;
+    try (InputStream in = new BufferedInputStream(new FileInputStream(journalFile))) {
+      CodedInputStream input = CodedInputStream.newInstance(in);
+      input.setSizeLimit(Integer.MAX_VALUE);
+      while (!input.isAtEnd()) {
+        int length = input.readRawVarint32();
+        int oldLimit = input.pushLimit(length);
+        ExperimentJournalEntry entry = ExperimentJournalEntry.parseFrom(input);
+        input.popLimit(oldLimit);
+        if (entry.getBaseSnapshotCrc() != snapshotCrc
+            || entry.getBaseSnapshotLength() != snapshotLength) {
+          // The snapshot was rewritten after this record, but the journal wasn't deleted.
+          break;
+        }
+        applyEntry(entry);
+        goodLength = input.getTotalBytesRead();
+      }
+    } catch (IOException e) {
+      // Most likely a record that was only partly written when the app died.
+      Log.w(TAG, "Ignoring unreadable journal tail in " + journalFile, e);
+    }
+    if (goodLength == 0) {
+      journalFile.delete();
+    } else {
+      truncateJournal(goodLength);
+    }
+  }
+
+  private GoosciExperiment.Experiment buildFromBaseline() {
+    return header
+        .toBuilder()
+        .addAllTrials(trials.values())
+        .addAllLabels(labels.values())
+        .addAllChanges(changes)
+        .addAllCompactedChanges(compactedChanges)
+        .build();
+  }
+
+  private void truncateJournal(long length) {
+    if (journalFile.length() <= length) {
+      return;
+    }
+    try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+      file.setLength(length);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to truncate journal", e);
+    }
+  }
+}
@@ -17,7 +17,6 @@
 package com.google.android.apps.forscience.whistlepunk.filemetadata;
 
 import androidx.annotation.VisibleForTesting;
-import android.util.Log;
 import com.google.android.apps.forscience.whistlepunk.accounts.AppAccount;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciExperimentLibrary.ExperimentLibrary;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciExperimentLibrary.SyncExperiment;
@@ -29,17 +28,23 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 
 /**
  * Manages a Science Journal experiment library.
  */
 public class ExperimentLibraryManager {
   private static final String TAG = "experimentLibrary";
+
+  // Write the library file no more than once per every WRITE_DELAY_MS, unless flushed.
+  private static final long WRITE_DELAY_MS = 1000;
+
   private String folderId;
   private final Map<String, LibrarySyncExperiment> experiments = new HashMap<>();
+  // Experiment ids by Drive file id, for experiments that have a file id.
+  private final Map<String, String> experimentIdsByFileId = new HashMap<>();
   private final AppAccount account;
+  private final DebouncedFileWriter writer;
+  private boolean loaded = false;
 
   /** Constructor for an ExperimentLibraryManager that creates a new ExperimentLibrary. */
   public ExperimentLibraryManager(AppAccount account) {
@@ -53,6 +58,7 @@ public class ExperimentLibraryManager {
   @VisibleForTesting
   public ExperimentLibraryManager(ExperimentLibrary library, AppAccount account) {
     this.account = account;
+    this.writer = new DebouncedFileWriter(TAG, WRITE_DELAY_MS, this::writeExperimentLibrary);
     if (library != null) {
       setLibrary(library);
     }
@@ -63,8 +69,10 @@ public class ExperimentLibraryManager {
    *
    * @param library The library to manage.
    */
-  public void setLibrary(ExperimentLibrary library) {
+  public synchronized void setLibrary(ExperimentLibrary library) {
+    loaded = true;
     experiments.clear();
+    experimentIdsByFileId.clear();
     if (library == null) {
       this.folderId = null;
       return;
@@ -79,6 +87,7 @@ public class ExperimentLibraryManager {
               experiment.getDeleted(),
               experiment.getArchived());
       experiments.put(experiment.getExperimentId(), lse);
+      indexFileId(lse);
     }
     this.folderId = library.getFolderId();
   }
@@ -89,7 +98,7 @@ public class ExperimentLibraryManager {
    * @param experimentId The experiment to find.
    * @return The SyncExperiment if found, or null.
    */
-  LibrarySyncExperiment getExperiment(String experimentId) {
+  synchronized LibrarySyncExperiment getExperiment(String experimentId) {
     populateExperimentLibraryManager();
     return experiments.get(experimentId);
   }
@@ -100,12 +109,12 @@ public class ExperimentLibraryManager {
    *
    * @param experimentId The experiment to find.
    */
-  public void addExperiment(String experimentId) {
+  public synchronized void addExperiment(String experimentId) {
     if (getExperiment(experimentId) != null) {
       return;
     }
     experiments.put(experimentId, new LibrarySyncExperiment(experimentId));
-    writeExperimentLibrary();
+    writer.schedule();
   }
 
   /**
@@ -113,7 +122,7 @@ public class ExperimentLibraryManager {
    *
    * @param experiment The SyncEcperiment to add.
    */
-  void addExperiment(SyncExperiment experiment) {
+  synchronized void addExperiment(SyncExperiment experiment) {
     if (experiments.containsKey(experiment.getExperimentId())) {
       throw new IllegalArgumentException("Experiment already exists");
     }
@@ -127,8 +136,9 @@ public class ExperimentLibraryManager {
             experiment.getDeleted(),
             experiment.getArchived());
     experiments.put(lse.getExperimentId(), lse);
+    indexFileId(lse);
 
-    writeExperimentLibrary();
+    writer.schedule();
   }
 
   /**
@@ -173,11 +183,11 @@ public class ExperimentLibraryManager {
    * @param experimentId The experiment to update.
    * @param archived Whether or not the experiment is locally archived.
    */
-  public void setArchived(String experimentId, boolean archived) {
+  public synchronized void setArchived(String experimentId, boolean archived) {
     LibrarySyncExperiment lse = experiments.get(experimentId);
     if (lse != null) {
       lse.setArchived(archived);
-      writeExperimentLibrary();
+      writer.schedule();
     }
   }
 
@@ -187,16 +197,16 @@ public class ExperimentLibraryManager {
    * @param experimentId The experiment to get state for.
    * @return Whether or not the experiment is locally archived.
    */
-  public boolean isArchived(String experimentId) {
+  public synchronized boolean isArchived(String experimentId) {
     return getExperiment(experimentId).isArchived();
   }
 
-  public void setAllDeleted(boolean deleted) {
+  public synchronized void setAllDeleted(boolean deleted) {
     populateExperimentLibraryManager();
     for (LibrarySyncExperiment experiment : experiments.values()) {
       experiment.setDeleted(deleted);
     }
-    writeExperimentLibrary();
+    writer.schedule();
   }
 
   /**
@@ -205,11 +215,11 @@ public class ExperimentLibraryManager {
    * @param experimentId The experiment to update.
    * @param deleted Whether or not the experiment is locally deleted.
    */
-  public void setDeleted(String experimentId, boolean deleted) {
+  public synchronized void setDeleted(String experimentId, boolean deleted) {
     LibrarySyncExperiment lse = experiments.get(experimentId);
     if (lse != null) {
       lse.setDeleted(deleted);
-      writeExperimentLibrary();
+      writer.schedule();
     }
   }
 
@@ -219,7 +229,7 @@ public class ExperimentLibraryManager {
    * @param experimentId The experiment to get state for.
    * @return Whether or not the experiment is locally deleted.
    */
-  public boolean isDeleted(String experimentId) {
+  public synchronized boolean isDeleted(String experimentId) {
     return getExperiment(experimentId).isDeleted();
   }
 
@@ -228,7 +238,7 @@ public class ExperimentLibraryManager {
    *
    * @param experimentId The experiment to update.
    */
-  public void setOpened(String experimentId) {
+  public synchronized void setOpened(String experimentId) {
     setOpened(experimentId, System.currentTimeMillis());
   }
 
@@ -238,11 +248,11 @@ public class ExperimentLibraryManager {
    * @param experimentId The experiment to update.
    * @param timeInMillis The time the experiment was last opened.
    */
-  public void setOpened(String experimentId, long timeInMillis) {
+  public synchronized void setOpened(String experimentId, long timeInMillis) {
     LibrarySyncExperiment lse = experiments.get(experimentId);
     if (lse != null) {
       lse.setLastOpened(timeInMillis);
-      writeExperimentLibrary();
+      writer.schedule();
     }
   }
 
@@ -252,7 +262,7 @@ public class ExperimentLibraryManager {
    * @param experimentId The experiment get times from.
    * @return the last opened time for the experiment, in millis.
    */
-  public long getOpened(String experimentId) {
+  public synchronized long getOpened(String experimentId) {
     return getExperiment(experimentId).getLastOpened();
   }
 
@@ -261,7 +271,7 @@ public class ExperimentLibraryManager {
    *
    * @param experimentId The experiment to update.
    */
-  public void setModified(String experimentId) {
+  public synchronized void setModified(String experimentId) {
     setModified(experimentId, System.currentTimeMillis());
   }
 
@@ -271,11 +281,11 @@ public class ExperimentLibraryManager {
    * @param experimentId The experiment to update.
    * @param timeInMillis The time the experiment was last modified.
    */
-  public void setModified(String experimentId, long timeInMillis) {
+  public synchronized void setModified(String experimentId, long timeInMillis) {
     LibrarySyncExperiment lse = experiments.get(experimentId);
     if (lse != null) {
       lse.setLastModified(timeInMillis);
-      writeExperimentLibrary();
+      writer.schedule();
     }
   }
 
@@ -285,7 +295,7 @@ public class ExperimentLibraryManager {
    * @param experimentId The experiment get times from.
    * @return the last modified time for the experiment, in millis.
    */
-  public long getModified(String experimentId) {
+  public synchronized long getModified(String experimentId) {
     return getExperiment(experimentId).getLastModified();
   }
 
@@ -295,11 +305,15 @@ public class ExperimentLibraryManager {
    * @param experimentId The experiment to update.
    * @param fileId The file id for the experiment.
    */
-  public void setFileId(String experimentId, String fileId) {
+  public synchronized void setFileId(String experimentId, String fileId) {
     LibrarySyncExperiment lse = experiments.get(experimentId);
     if (lse != null) {
+      if (lse.getFileId() != null) {
+        experimentIdsByFileId.remove(lse.getFileId());
+      }
       lse.setFileId(fileId);
-      writeExperimentLibrary();
+      indexFileId(lse);
+      writer.schedule();
     }
   }
 
@@ -309,7 +323,7 @@ public class ExperimentLibraryManager {
    * @param experimentId The experiment get the file id from.
    * @return the file id for the experiment.
    */
-  public String getFileId(String experimentId) {
+  public synchronized String getFileId(String experimentId) {
     return getExperiment(experimentId).getFileId();
   }
 
@@ -318,7 +332,7 @@ public class ExperimentLibraryManager {
    *
    * @param library The experiment to merge from.
    */
-  public void merge(ExperimentLibrary library, LocalSyncManager syncManager) {
+  public synchronized void merge(ExperimentLibrary library, LocalSyncManager syncManager) {
     populateExperimentLibraryManager();
     if (!Strings.isNullOrEmpty(library.getFolderId())) {
       folderId = library.getFolderId();
@@ -333,38 +347,50 @@ public class ExperimentLibraryManager {
       }
       updateExperiment(experiment, serverArchived);
     }
-    writeExperimentLibrary();
+    writer.schedule();
   }
 
-  public Set<String> getKnownExperiments() {
+  public synchronized Set<String> getKnownExperiments() {
     populateExperimentLibraryManager();
 
     // Returning a local copy of this set will defend against concurrent modification.
     return new HashSet<>(experiments.keySet());
   }
 
-  private void writeExperimentLibrary() {
-    Executor thread = Executors.newSingleThreadExecutor();
-    thread.execute(
-        new Runnable() {
-          @Override
-          public void run() {
-            synchronized (account.getLockForExperimentLibraryFile()) {
-              try {
-                FileMetadataUtil.getInstance().writeExperimentLibraryFile(generateProto(), account);
-              } catch (IOException ioe) {
-                // Would like to do something else here, but not sure what else there really is to
-                // do.
-                if (Log.isLoggable(TAG, Log.ERROR)) {
-                  Log.e(TAG, "ExperimentLibrary Write failed", ioe);
-                }
-              }
-            }
-          }
-        });
+  /**
+   * Gets the id of the experiment stored in a Drive file.
+   *
+   * @param fileId The Drive file id.
+   * @return The experiment id, or null if no known experiment has that file id.
+   */
+  public synchronized String getExperimentIdForFileId(String fileId) {
+    populateExperimentLibraryManager();
+    return experimentIdsByFileId.get(fileId);
+  }
+
+  /**
+   * Writes any unsaved changes to the library file now, instead of waiting for the next scheduled
+   * write. Call this before reading the library file directly. Must not be called while holding
+   * the account's experiment library file lock.
+   */
+  public void flush() {
+    writer.flush();
+  }
+
+  private void indexFileId(LibrarySyncExperiment lse) {
+    if (!Strings.isNullOrEmpty(lse.getFileId())) {
+      experimentIdsByFileId.put(lse.getFileId(), lse.getExperimentId());
+    }
+  }
+
+  private void writeExperimentLibrary() throws IOException {
+    ExperimentLibrary library = generateProto();
+    synchronized (account.getLockForExperimentLibraryFile()) {
+      FileMetadataUtil.getInstance().writeExperimentLibraryFile(library, account);
+    }
   }
 
-  private ExperimentLibrary generateProto() {
+  private synchronized ExperimentLibrary generateProto() {
     ExperimentLibrary.Builder library = ExperimentLibrary.newBuilder();
     if (folderId != null) {
       library.setFolderId(folderId);
@@ -377,21 +403,21 @@ public class ExperimentLibraryManager {
   }
 
   // Reads the saved experiment library manager file from disk, if the Library has not already
-  // been set to a non-null value. This lets us move initialization of this object to the background
+  // been set or read. This lets us move initialization of this object to the background
   // TODO(b/111649596) Test this
   private void populateExperimentLibraryManager() {
-    if (experiments.isEmpty()) {
+    if (!loaded) {
       setLibrary(FileMetadataUtil.getInstance().readExperimentLibraryFile(account));
     }
   }
 
-  public void setFolderId(String folderId) {
+  public synchronized void setFolderId(String folderId) {
     populateExperimentLibraryManager();
     this.folderId = folderId;
-    writeExperimentLibrary();
+    writer.schedule();
   }
 
-  public String getFolderId() {
+  public synchronized String getFolderId() {
     populateExperimentLibraryManager();
     return folderId;
   }
@@ -0,0 +1,278 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.filemetadata;
+
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperimentOverviewSnapshot.ExperimentOverviewSnapshotHeader;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciUserMetadata.ExperimentOverview;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciUserMetadata.UserMetadata;
+import com.google.common.io.Files;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * An in-memory index of the experiment overviews, kept in most-recently-used order so that the
+ * experiment list can be served, a page at a time, without reading or sorting the user metadata.
+ *
+ * <p>The index holds immutable copies of the overviews, and returns new ExperimentOverviewPojos.
+ * It is updated one overview at a time as experiments change, and saved as a snapshot next to the
+ * user metadata file. It also resolves each overview's image when the overview is put, off the UI
+ * thread, so that the list can show the image without touching the disk. This class is
+ * thread-safe.
+ */
+class ExperimentOverviewIndex {
+  private static final Comparator<ExperimentOverview> MOST_RECENT_FIRST =
+      (first, second) -> {
+        int byTime = Long.compare(second.getLastUsedTimeMs(), first.getLastUsedTimeMs());
+        return byTime != 0 ? byTime : first.getExperimentId().compareTo(second.getExperimentId());
+      };
+
+  /** An overview image's absolute path, and when the file was last modified. */
+  private static class ResolvedImage {
+    final String fullPath;
+    final long lastModifiedMs;
+
+    ResolvedImage(String fullPath, long lastModifiedMs) {
+      this.fullPath = fullPath;
+      this.lastModifiedMs = lastModifiedMs;
+    }
+  }
+
+  private final File filesDir;
+  private final Map<String, ExperimentOverview> overviews = new HashMap<>();
+  private final TreeSet<ExperimentOverview> mostRecentFirst = new TreeSet<>(MOST_RECENT_FIRST);
+  private final Map<String, ResolvedImage> images = new HashMap<>();
+  private int archivedCount = 0;
+  private boolean loaded = false;
+
+  /** @param filesDir the directory that overview image paths are relative to. */
+  ExperimentOverviewIndex(File filesDir) {
+    this.filesDir = filesDir;
+  }
+
+  /** Whether the index has been filled, either from the user metadata or from a snapshot. */
+  synchronized boolean isLoaded() {
+    return loaded;
+  }
+
+  /** Replaces the contents of the index. */
+  synchronized void reset(Collection<ExperimentOverviewPojo> allOverviews) {
+    clear();
+    for (ExperimentOverviewPojo overview : allOverviews) {
+      put(overview);
+    }
+  }
+
+  /** Empties the index. An empty index is still loaded. */
+  synchronized void clear() {
+    overviews.clear();
+    mostRecentFirst.clear();
+    images.clear();
+    archivedCount = 0;
+    loaded = true;
+  }
+
+  /**
+   * Adds or replaces an overview. Its image is resolved again even if the overview is unchanged,
+   * because the image file may have been replaced under the same name.
+   *
+   * @return whether the index changed; false if it already held an identical overview.
+   */
+  synchronized boolean put(ExperimentOverviewPojo overview) {
+    return put(overview.toProto());
+  }
+
+  private boolean put(ExperimentOverview overview) {
+    loaded = true;
+    resolveImage(overview);
+    ExperimentOverview old = overviews.put(overview.getExperimentId(), overview);
+    if (overview.equals(old)) {
+      return false;
+    }
+    if (old != null) {
+      mostRecentFirst.remove(old);
+      if (old.getIsArchived()) {
+        archivedCount--;
+      }
+    }
+    mostRecentFirst.add(overview);
+    if (overview.getIsArchived()) {
+      archivedCount++;
+    }
+    return true;
+  }
+
+  private void resolveImage(ExperimentOverview overview) {
+    if (overview.getImagePath().isEmpty()) {
+      images.remove(overview.getExperimentId());
+      return;
+    }
+    File image = new File(filesDir, overview.getImagePath());
+    images.put(
+        overview.getExperimentId(), new ResolvedImage(image.getPath(), image.lastModified()));
+  }
+
+  synchronized void remove(String experimentId) {
+    images.remove(experimentId);
+    ExperimentOverview old = overviews.remove(experimentId);
+    if (old != null) {
+      mostRecentFirst.remove(old);
+      if (old.getIsArchived()) {
+        archivedCount--;
+      }
+    }
+  }
+
+  synchronized boolean contains(String experimentId) {
+    return overviews.containsKey(experimentId);
+  }
+
+  /** The number of overviews, optionally leaving out the archived ones. */
+  synchronized int size(boolean includeArchived) {
+    return includeArchived ? overviews.size() : overviews.size() - archivedCount;
+  }
+
+  /**
+   * Gets a page of overviews, most recently used first.
+   *
+   * @param includeArchived Whether to include the archived experiments.
+   * @param offset How many overviews to skip.
+   * @param limit The maximum number of overviews to return.
+   */
+  synchronized List<ExperimentOverviewPojo> getPage(
+      boolean includeArchived, int offset, int limit) {
+    List<ExperimentOverviewPojo> page = new ArrayList<>(Math.min(limit, overviews.size()));
+    int skipped = 0;
+    for (ExperimentOverview overview : mostRecentFirst) {
+      if (page.size() >= limit) {
+        break;
+      }
+      if (!includeArchived && overview.getIsArchived()) {
+        continue;
+      }
+      if (skipped < offset) {
+        skipped++;
+        continue;
+      }
+      ExperimentOverviewPojo pojo = ExperimentOverviewPojo.fromProto(overview);
+      ResolvedImage image = images.get(overview.getExperimentId());
+      if (image != null) {
+        pojo.setResolvedImage(image.fullPath, image.lastModifiedMs);
+      }
+      page.add(pojo);
+    }
+    return page;
+  }
+
+  /** Gets every overview, most recently used first. */
+  synchronized List<ExperimentOverviewPojo> getAll(boolean includeArchived) {
+    return getPage(includeArchived, 0, Integer.MAX_VALUE);
+  }
+
+  /** Gets the most recently used overview, or null if there are none. */
+  synchronized ExperimentOverviewPojo getMostRecent(boolean includeArchived) {
+    List<ExperimentOverviewPojo> page = getPage(includeArchived, 0, 1);
+    return page.isEmpty() ? null : page.get(0);
+  }
+
+  /**
+   * Writes a snapshot of the overviews in {@code source}, which was just written to the user
+   * metadata file.
+   *
+   * @param sourceCrc the CRC32 of the user metadata file.
+   */
+  static void writeSnapshot(File snapshotFile, UserMetadata source, long sourceCrc)
+      throws IOException {
+    List<ExperimentOverview> sorted = new ArrayList<>(source.getExperimentsList());
+    Collections.sort(sorted, MOST_RECENT_FIRST);
+    File temp = new File(snapshotFile.getPath() + ".tmp");
+    try {
+      try (FileOutputStream fos = new FileOutputStream(temp);
+          OutputStream out = new BufferedOutputStream(fos)) {
+        ExperimentOverviewSnapshotHeader.newBuilder()
+            .setSourceCrc(sourceCrc)
+            .setSourceLength(source.getSerializedSize())
+            .setOverviewCount(sorted.size())
+            .build()
+            .writeDelimitedTo(out);
+        for (ExperimentOverview overview : sorted) {
+          overview.writeDelimitedTo(out);
+        }
+        out.flush();
+        fos.getFD().sync();
+      }
+      if (!temp.renameTo(snapshotFile)) {
+        throw new IOException("Could not replace " + snapshotFile);
+      }
+    } finally {
+      temp.delete();
+    }
+  }
+
+  /**
+   * Fills the index from a snapshot, if there is one that matches the user metadata file.
+   *
+   * @return whether the index was loaded. If not, the caller should load it from the user
+   *     metadata instead.
+   */
+  synchronized boolean loadSnapshot(File snapshotFile, File sourceFile) {
+    if (!snapshotFile.canRead() || !sourceFile.canRead()) {
+      return false;
+    }
+    try (InputStream in = new BufferedInputStream(new FileInputStream(snapshotFile))) {
+      ExperimentOverviewSnapshotHeader header =
+          ExperimentOverviewSnapshotHeader.parseDelimitedFrom(in);
+      if (header == null || header.getSourceLength() != sourceFile.length()) {
+        return false;
+      }
+      CRC32 crc = new CRC32();
+      crc.update(Files.toByteArray(sourceFile));
+      if (crc.getValue() != header.getSourceCrc()) {
+        return false;
+      }
+      List<ExperimentOverview> read = new ArrayList<>(header.getOverviewCount());
+      for (int i = 0; i < header.getOverviewCount(); i++) {
+        ExperimentOverview overview = ExperimentOverview.parseDelimitedFrom(in);
+        if (overview == null) {
+          return false;
+        }
+        read.add(overview);
+      }
+      clear();
+      for (ExperimentOverview overview : read) {
+        put(overview);
+      }
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+}
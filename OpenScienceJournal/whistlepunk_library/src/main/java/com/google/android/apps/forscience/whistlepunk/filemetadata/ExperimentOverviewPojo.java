@@ -30,6 +30,11 @@ public class ExperimentOverviewPojo {
   private int trialCount;
   private String title = "";
 
+  // Resolved by ExperimentOverviewIndex, so the experiment list doesn't touch the disk to show
+  // the image. Not saved, and not part of equals().
+  private String fullImagePath;
+  private long imageLastModifiedMs;
+
   public String getTitle() {
     return title;
   }
@@ -46,6 +51,24 @@ public class ExperimentOverviewPojo {
     this.imagePath = imagePath;
   }
 
+  /**
+   * @return the absolute path of the overview image, or null if it hasn't been resolved, in which
+   *     case PictureUtils resolves it from {@link #getImagePath}.
+   */
+  public String getFullImagePath() {
+    return fullImagePath;
+  }
+
+  /** @return when the overview image was last modified, if {@link #getFullImagePath} is set. */
+  public long getImageLastModifiedMs() {
+    return imageLastModifiedMs;
+  }
+
+  void setResolvedImage(String fullImagePath, long imageLastModifiedMs) {
+    this.fullImagePath = fullImagePath;
+    this.imageLastModifiedMs = imageLastModifiedMs;
+  }
+
   public int getTrialCount() {
     return trialCount;
   }
@@ -0,0 +1,143 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.filemetadata;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes experiment files into an .sj archive.
+ *
+ * <p>Media that is already compressed (photos, mostly) is not compressed again, since deflating a
+ * JPEG costs CPU and saves nothing. It is written with deflate's stored blocks rather than as a
+ * STORED entry: a STORED entry needs its CRC in the header, before the data, which would mean
+ * reading the file twice, whereas a deflated entry's CRC is computed while the data is copied and
+ * written after it. Everything else is deflated as usual. File content is copied with {@link
+ * FileChannel#transferTo} instead of through a small heap buffer.
+ */
+public class ExperimentZipWriter {
+  /** Receives the number of bytes written so far and the estimated total for the archive. */
+  public interface ProgressListener {
+    void onProgress(long bytesWritten, long estimatedTotalBytes);
+  }
+
+  private static final ProgressListener NO_PROGRESS = (written, total) -> {};
+
+  private static final String[] COMPRESSED_EXTENSIONS = {
+    ".jpg", ".jpeg", ".png", ".gif", ".webp", ".mp4", ".m4a", ".zip", ".sj"
+  };
+
+  // Protos and other small metadata files typically deflate to around half their size.
+  private static final double DEFLATE_RATIO_ESTIMATE = 0.5;
+
+  // Local file header and central directory record, excluding the file name.
+  private static final int PER_ENTRY_OVERHEAD = 76;
+
+  private final ZipOutputStream zipOutputStream;
+  private final WritableByteChannel zipChannel;
+  private final ProgressListener progressListener;
+  private long estimatedTotalBytes = 0;
+  private long bytesWritten = 0;
+
+  public ExperimentZipWriter(ZipOutputStream zipOutputStream) {
+    this(zipOutputStream, NO_PROGRESS);
+  }
+
+  public ExperimentZipWriter(ZipOutputStream zipOutputStream, ProgressListener progressListener) {
+    this.zipOutputStream = zipOutputStream;
+    this.zipChannel = Channels.newChannel(zipOutputStream);
+    this.progressListener = progressListener;
+  }
+
+  /** Whether a file with this name should be written without compressing it. */
+  public static boolean isAlreadyCompressed(String fileName) {
+    String lower = fileName.toLowerCase(Locale.US);
+    for (String extension : COMPRESSED_EXTENSIONS) {
+      if (lower.endsWith(extension)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Estimates the archive size of a single file. */
+  public static long estimateEntrySize(File file, String zipPath) {
+    long length = file.length();
+    long content =
+        isAlreadyCompressed(zipPath) ? length : (long) (length * DEFLATE_RATIO_ESTIMATE);
+    return content + PER_ENTRY_OVERHEAD + 2 * zipPath.length();
+  }
+
+  /**
+   * Adds the estimated size of everything under {@code directory} to the total used for progress
+   * reporting. Call this before adding any entries.
+   */
+  public void addToEstimate(File directory, String path) {
+    File[] fileList = directory.listFiles();
+    if (fileList == null) {
+      return;
+    }
+    for (File f : fileList) {
+      if (f.isDirectory()) {
+        addToEstimate(f, path + f.getName() + "/");
+      } else {
+        estimatedTotalBytes += estimateEntrySize(f, path + f.getName());
+      }
+    }
+  }
+
+  /** Adds the estimated size of a single file to the total used for progress reporting. */
+  public void addFileToEstimate(File file, String zipPath) {
+    estimatedTotalBytes += estimateEntrySize(file, zipPath);
+  }
+
+  public long getEstimatedTotalBytes() {
+    return estimatedTotalBytes;
+  }
+
+  /**
+   * Writes {@code file} as an entry named {@code zipPath}. The caller is responsible for closing
+   * the entry.
+   */
+  public void putFile(File file, String zipPath) throws IOException {
+    try (FileInputStream fis = new FileInputStream(file);
+        FileChannel channel = fis.getChannel()) {
+      long size = channel.size();
+      zipOutputStream.setLevel(
+          isAlreadyCompressed(zipPath) ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+      zipOutputStream.putNextEntry(new ZipEntry(zipPath));
+      long position = 0;
+      while (position < size) {
+        long transferred = channel.transferTo(position, size - position, zipChannel);
+        if (transferred <= 0) {
+          break;
+        }
+        position += transferred;
+        bytesWritten += transferred;
+        progressListener.onProgress(bytesWritten, Math.max(bytesWritten, estimatedTotalBytes));
+      }
+    }
+  }
+}
@@ -34,20 +34,30 @@ import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciLabel;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciLabel.Label.ValueType;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciPictureLabelValue;
-import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
 import com.google.android.apps.forscience.whistlepunk.metadata.Version;
-import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensorDumpReader;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamingScalarSensorDumpReader;
 import com.google.common.collect.Sets;
 import com.google.protobuf.InvalidProtocolBufferException;
 import io.reactivex.Single;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
@@ -63,6 +73,8 @@ public class FileMetadataManager {
   public static final String SYNC_STATUS_FILE = "sync_status.proto";
   private static final String TAG = "FileMetadataManager";
   public static final String DOT_PROTO = ".proto";
+  // Lost experiments are parsed on at most this many threads at once.
+  private static final int MAX_RECOVERY_THREADS = 4;
 
   private AppAccount appAccount;
   private Clock clock;
@@ -136,6 +148,7 @@ public class FileMetadataManager {
     activeExperimentCache = new ExperimentCache(applicationContext, appAccount, failureListener);
     userMetadataManager =
         new UserMetadataManager(applicationContext, appAccount, userMetadataListener);
+    activeExperimentCache.setWriteListener(userMetadataManager::onExperimentWritten);
     localSyncManager = lsm;
     experimentLibraryManager = elm;
     colorAllocator =
@@ -143,96 +156,175 @@ public class FileMetadataManager {
             applicationContext.getResources().getIntArray(R.array.experiment_colors_array).length);
   }
 
+  /** Told about each lost experiment as soon as it has been recovered. */
+  public interface RecoveryListener {
+    void onExperimentRecovered(ExperimentOverviewPojo overview);
+  }
+
   /**
    * Recovers experiments that are found in the file system of this account, but are not known by
    * the UserMetadataManater.
    */
   public void recoverLostExperimentsIfNeeded(Context context) {
+    recoverLostExperimentsIfNeeded(context, new Object(), overview -> {});
+  }
+
+  /**
+   * Recovers experiments that are found in the file system of this account, but are not known by
+   * the UserMetadataManater. Lost experiments are parsed in parallel, and each one is added to the
+   * experiment list and reported to {@code listener} as soon as it is ready. Directories that could
+   * not be recovered before are skipped until their files change.
+   *
+   * @param lock held while the experiment directories are listed and while each recovered
+   *     experiment is added, so that callers who create experiments under the same lock can run
+   *     alongside the recovery.
+   */
+  public void recoverLostExperimentsIfNeeded(
+      Context context, Object lock, RecoveryListener listener) {
     UsageTracker usageTracker = WhistlePunkApplication.getUsageTracker(context);
-    File[] files =
-        FileMetadataUtil.getInstance().getExperimentsRootDirectory(appAccount).listFiles();
-    if (files != null) {
-      for (File file : files) {
-        if (file.isDirectory() && new File(file, EXPERIMENT_FILE).isFile()) {
-          File experimentDirectory = file;
-          String experimentId = experimentDirectory.getName();
-          if (userMetadataManager.getExperimentOverview(experimentId) == null) {
-            usageTracker.trackEvent(
-                TrackerConstants.CATEGORY_STORAGE,
-                TrackerConstants.ACTION_RECOVER_EXPERIMENT_ATTEMPTED,
-                null,
-                0);
-            try {
-              GoosciExperiment.Experiment.Builder proto =
-                  populateExperimentProto(context, experimentDirectory);
-              if (proto == null) {
-                throw new IOException("Lost experiment has corrupt or missing experiment proto.");
-              }
+    File fingerprintFile = FileMetadataUtil.getInstance().getLostExperimentScanFile(appAccount);
+    LostExperimentFingerprints previouslyUnrecoverable =
+        LostExperimentFingerprints.readFrom(fingerprintFile, usageTracker);
+    LostExperimentFingerprints unrecoverable = new LostExperimentFingerprints();
+
+    List<File> lostDirectories = new ArrayList<>();
+    synchronized (lock) {
+      File[] files =
+          FileMetadataUtil.getInstance().getExperimentsRootDirectory(appAccount).listFiles();
+      if (files != null) {
+        for (File file : files) {
+          if (file.isDirectory()
+              && new File(file, EXPERIMENT_FILE).isFile()
+              && userMetadataManager.getExperimentOverview(file.getName()) == null) {
+            if (previouslyUnrecoverable.matches(file)) {
+              unrecoverable.add(file);
+            } else {
+              lostDirectories.add(file);
+            }
+          }
+        }
+      }
+    }
 
-              ExperimentOverviewPojo overview = populateOverview(proto.build(), experimentId);
-
-              if (proto.getImagePath().isEmpty()) {
-                // proto.imagePath may be empty, even if the lost experiment had a cover image.
-                // The imagePath field was added to the Experiment proto in order to let it sync.
-                // Before 3.0, imagePath was stored only in the ExperimentOverview.
-                try {
-                  String likelyCoverImage =
-                      findLikelyCoverImage(experimentDirectory, experimentId, proto.build());
-                  if (likelyCoverImage != null) {
-                    // likelyCoverImage is relative to the experiment directory.
-                    // proto.imagePath is relative to the experiment directory.
-                    proto.setImagePath(likelyCoverImage);
-                    // overview.imagePath is relative to the account files directory.
-                    overview.setImagePath(
-                        PictureUtils.getExperimentOverviewRelativeImagePath(
-                            experimentId, proto.getImagePath()));
-                  }
-                } catch (Exception e) {
-                  if (Log.isLoggable(TAG, Log.WARN)) {
-                    Log.w(TAG, "Failed to determine cover image of lost experiment", e);
-                  }
-                }
-              } else {
-                // proto.imagePath is relative to the experiment directory.
-                // overview.imagePath is relative to the account files directory.
-                overview.setImagePath(
-                    PictureUtils.getExperimentOverviewRelativeImagePath(
-                        experimentId, proto.getImagePath()));
+    if (!lostDirectories.isEmpty()) {
+      int threads =
+          Math.min(
+              lostDirectories.size(),
+              Math.min(MAX_RECOVERY_THREADS, Runtime.getRuntime().availableProcessors()));
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      CompletionService<Experiment> completionService = new ExecutorCompletionService<>(pool);
+      Map<Future<Experiment>, File> directories = new HashMap<>();
+      try {
+        for (File experimentDirectory : lostDirectories) {
+          usageTracker.trackEvent(
+              TrackerConstants.CATEGORY_STORAGE,
+              TrackerConstants.ACTION_RECOVER_EXPERIMENT_ATTEMPTED,
+              null,
+              0);
+          directories.put(
+              completionService.submit(() -> readLostExperiment(context, experimentDirectory)),
+              experimentDirectory);
+        }
+        // Publish each experiment as soon as it has been parsed, rather than after the slowest.
+        for (int i = 0; i < lostDirectories.size(); i++) {
+          Future<Experiment> done = completionService.take();
+          try {
+            Experiment experiment = done.get();
+            synchronized (lock) {
+              if (userMetadataManager.getExperimentOverview(experiment.getExperimentId())
+                  != null) {
+                // Added by someone else while it was being read.
+                continue;
               }
-
-              Experiment experiment = Experiment.fromExperiment(proto.build(), overview);
               afterMovingExperimentFromAnotherAccount(experiment);
 
               localSyncManager.setLastSyncedLibraryVersion(-1);
               localSyncManager.setDirty(experiment.getExperimentId(), true);
+            }
 
-              usageTracker.trackEvent(
-                  TrackerConstants.CATEGORY_STORAGE,
-                  TrackerConstants.ACTION_RECOVER_EXPERIMENT_SUCCEEDED,
-                  null,
-                  0);
-
-            } catch (Exception e) {
-              // Unable to recover this lost experiment.
-              if (Log.isLoggable(TAG, Log.ERROR)) {
-                Log.e(TAG, "Recovery of lost experiment failed", e);
-              }
-              String labelFromStackTrace = TrackerConstants.createLabelFromStackTrace(e);
-              usageTracker.trackEvent(
-                  TrackerConstants.CATEGORY_STORAGE,
-                  TrackerConstants.ACTION_RECOVER_EXPERIMENT_FAILED,
-                  labelFromStackTrace,
-                  0);
-              usageTracker.trackEvent(
-                  TrackerConstants.CATEGORY_FAILURE,
-                  TrackerConstants.ACTION_RECOVER_EXPERIMENT_FAILED,
-                  labelFromStackTrace,
-                  0);
+            usageTracker.trackEvent(
+                TrackerConstants.CATEGORY_STORAGE,
+                TrackerConstants.ACTION_RECOVER_EXPERIMENT_SUCCEEDED,
+                null,
+                0);
+            listener.onExperimentRecovered(experiment.getExperimentOverview());
+          } catch (Exception e) {
+            // Unable to recover this lost experiment.
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            if (Log.isLoggable(TAG, Log.ERROR)) {
+              Log.e(TAG, "Recovery of lost experiment failed", cause);
             }
+            unrecoverable.add(directories.get(done));
+            String labelFromStackTrace = TrackerConstants.createLabelFromStackTrace(cause);
+            usageTracker.trackEvent(
+                TrackerConstants.CATEGORY_STORAGE,
+                TrackerConstants.ACTION_RECOVER_EXPERIMENT_FAILED,
+                labelFromStackTrace,
+                0);
+            usageTracker.trackEvent(
+                TrackerConstants.CATEGORY_FAILURE,
+                TrackerConstants.ACTION_RECOVER_EXPERIMENT_FAILED,
+                labelFromStackTrace,
+                0);
           }
         }
+      } catch (InterruptedException e) {
+        // Whatever wasn't recovered is tried again next time.
+        Thread.currentThread().interrupt();
+      } finally {
+        pool.shutdownNow();
+      }
+    }
+
+    if (!unrecoverable.sameAs(previouslyUnrecoverable)) {
+      unrecoverable.writeTo(fingerprintFile, usageTracker);
+    }
+  }
+
+  /**
+   * Parses a lost experiment and rebuilds its overview. Only reads the experiment directory, so
+   * several lost experiments can be read at once.
+   */
+  private Experiment readLostExperiment(Context context, File experimentDirectory)
+      throws IOException {
+    String experimentId = experimentDirectory.getName();
+    GoosciExperiment.Experiment.Builder proto =
+        populateExperimentProto(context, experimentDirectory);
+    if (proto == null) {
+      throw new IOException("Lost experiment has corrupt or missing experiment proto.");
+    }
+
+    ExperimentOverviewPojo overview = populateOverview(proto.build(), experimentId);
+
+    if (proto.getImagePath().isEmpty()) {
+      // proto.imagePath may be empty, even if the lost experiment had a cover image.
+      // The imagePath field was added to the Experiment proto in order to let it sync.
+      // Before 3.0, imagePath was stored only in the ExperimentOverview.
+      try {
+        String likelyCoverImage =
+            findLikelyCoverImage(experimentDirectory, experimentId, proto.build());
+        if (likelyCoverImage != null) {
+          // likelyCoverImage is relative to the experiment directory.
+          // proto.imagePath is relative to the experiment directory.
+          proto.setImagePath(likelyCoverImage);
+          // overview.imagePath is relative to the account files directory.
+          overview.setImagePath(
+              PictureUtils.getExperimentOverviewRelativeImagePath(
+                  experimentId, proto.getImagePath()));
+        }
+      } catch (Exception e) {
+        if (Log.isLoggable(TAG, Log.WARN)) {
+          Log.w(TAG, "Failed to determine cover image of lost experiment", e);
+        }
       }
+    } else {
+      // proto.imagePath is relative to the experiment directory.
+      // overview.imagePath is relative to the account files directory.
+      overview.setImagePath(
+          PictureUtils.getExperimentOverviewRelativeImagePath(experimentId, proto.getImagePath()));
     }
+
+    return Experiment.fromExperiment(proto.build(), overview);
   }
 
   /**
@@ -360,6 +452,8 @@ public class FileMetadataManager {
   public void saveImmediately() {
     activeExperimentCache.saveImmediately();
     userMetadataManager.saveImmediately();
+    experimentLibraryManager.flush();
+    localSyncManager.flush();
   }
 
   public void deleteExperiment(Experiment experiment) {
@@ -371,6 +465,7 @@ public class FileMetadataManager {
     activeExperimentCache.deleteExperiment(experimentId);
     userMetadataManager.deleteExperimentOverview(experimentId);
     experimentLibraryManager.setDeleted(experimentId, true);
+    localSyncManager.clearSyncedFiles(experimentId);
   }
 
   public void beforeMovingAllExperimentsToAnotherAccount() {
@@ -378,6 +473,7 @@ public class FileMetadataManager {
     activeExperimentCache.beforeMovingAllExperimentsToAnotherAccount();
     userMetadataManager.deleteAllExperimentOverviews();
     experimentLibraryManager.setAllDeleted(true);
+    localSyncManager.clearAllSyncedFiles();
   }
 
   public void beforeMovingExperimentToAnotherAccount(Experiment experiment) {
@@ -385,6 +481,7 @@ public class FileMetadataManager {
     activeExperimentCache.beforeMovingExperimentToAnotherAccount(experiment.getExperimentId());
     userMetadataManager.deleteExperimentOverview(experiment.getExperimentId());
     experimentLibraryManager.setDeleted(experiment.getExperimentId(), true);
+    localSyncManager.clearSyncedFiles(experiment.getExperimentId());
   }
 
   public void afterMovingExperimentFromAnotherAccount(Experiment experiment) {
@@ -405,20 +502,20 @@ public class FileMetadataManager {
     userMetadataManager.updateExperimentOverview(experiment.getExperimentOverview());
   }
 
+  /** Gets all the experiment overviews, most recently used first. */
   public List<ExperimentOverviewPojo> getExperimentOverviews(boolean includeArchived) {
     return userMetadataManager.getExperimentOverviews(includeArchived);
   }
 
+  /** Gets a page of the experiment overviews, most recently used first. */
+  public List<ExperimentOverviewPojo> getExperimentOverviews(
+      boolean includeArchived, int offset, int limit) {
+    return userMetadataManager.getExperimentOverviews(includeArchived, offset, limit);
+  }
+
   public Experiment getLastUsedUnarchivedExperiment() {
-    List<ExperimentOverviewPojo> overviews = getExperimentOverviews(false);
-    long mostRecent = Long.MIN_VALUE;
-    ExperimentOverviewPojo overviewToGet = null;
-    for (ExperimentOverviewPojo overview : overviews) {
-      if (overview.getLastUsedTimeMs() > mostRecent) {
-        mostRecent = overview.getLastUsedTimeMs();
-        overviewToGet = overview;
-      }
-    }
+    ExperimentOverviewPojo overviewToGet =
+        userMetadataManager.getMostRecentExperimentOverview(false);
     if (overviewToGet != null) {
       return activeExperimentCache.getExperiment(overviewToGet);
     }
@@ -492,21 +589,23 @@ public class FileMetadataManager {
     File dataFile = new File(externalPath, "sensorData.proto");
 
     if (dataFile.exists()) {
-      LiteProtoFileHelper<GoosciScalarSensorData.ScalarSensorData> dataProtoFileHelper =
-          new LiteProtoFileHelper<>();
-      GoosciScalarSensorData.ScalarSensorData dataProto =
-          dataProtoFileHelper.readFromFile(
-              dataFile,
-              GoosciScalarSensorData.ScalarSensorData::parseFrom,
-              WhistlePunkApplication.getUsageTracker(context));
-
-      if (dataProto != null) {
-        ScalarSensorDumpReader dumpReader =
-            new ScalarSensorDumpReader(
-                AppSingleton.getInstance(context)
-                    .getSensorEnvironment()
-                    .getDataController(appAccount));
-        dumpReader.readData(dataProto, trialIdMap);
+      // Stream the dump rather than parsing it in one go; classroom exports can hold many
+      // long trials.
+      StreamingScalarSensorDumpReader dumpReader =
+          new StreamingScalarSensorDumpReader(
+              AppSingleton.getInstance(context)
+                  .getSensorEnvironment()
+                  .getDataController(appAccount));
+      try (InputStream in = new BufferedInputStream(new FileInputStream(dataFile))) {
+        dumpReader.readData(in, trialIdMap);
+      } catch (IOException e) {
+        Log.e(TAG, "Exception reading sensor data from import", e);
+        WhistlePunkApplication.getUsageTracker(context)
+            .trackEvent(
+                TrackerConstants.CATEGORY_STORAGE,
+                TrackerConstants.ACTION_READ_FAILED,
+                TrackerConstants.createLabelFromStackTrace(e),
+                0);
       }
     }
 
@@ -612,13 +711,10 @@ public class FileMetadataManager {
       return null;
     }
 
-    LiteProtoFileHelper<GoosciExperiment.Experiment> experimentProtoFileHelper =
-        new LiteProtoFileHelper<>();
+    // Lost experiments may have journal records that were never compacted into the proto.
     GoosciExperiment.Experiment proto =
-        experimentProtoFileHelper.readFromFile(
-            experimentFile,
-            GoosciExperiment.Experiment::parseFrom,
-            WhistlePunkApplication.getUsageTracker(context));
+        new ExperimentJournal(experimentPath.getName(), experimentPath)
+            .read(WhistlePunkApplication.getUsageTracker(context));
 
     return proto.toBuilder();
   }
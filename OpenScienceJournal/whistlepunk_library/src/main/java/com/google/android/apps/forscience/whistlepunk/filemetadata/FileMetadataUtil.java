@@ -57,8 +57,13 @@ public class FileMetadataUtil {
   public static final String SYNC_STATUS_FILE = "sync_status.proto";
   private static final String TAG = "FileMetadataManager";
   private static final String USER_METADATA_FILE = "user_metadata.proto";
+  private static final String EXPERIMENT_OVERVIEW_SNAPSHOT_FILE = "experiment_overviews.snapshot";
+  private static final String LOST_EXPERIMENT_SCAN_FILE = "lost_experiment_scan.proto";
   public static final String DOT_PROTO = ".proto";
   private static final String RECORDING = "recording_";
+  private static final String DOT_CHUNKS = ".chunks";
+  // Holds trial data chunks while they are being synced. Never exported.
+  public static final String CHUNK_DIRECTORY = "chunks";
 
   public static final FileMetadataUtil instance = new FileMetadataUtil();
 
@@ -80,6 +85,14 @@ public class FileMetadataUtil {
     return new File(getFilesDir(appAccount), USER_METADATA_FILE);
   }
 
+  public File getExperimentOverviewSnapshotFile(AppAccount appAccount) {
+    return new File(getFilesDir(appAccount), EXPERIMENT_OVERVIEW_SNAPSHOT_FILE);
+  }
+
+  public File getLostExperimentScanFile(AppAccount appAccount) {
+    return new File(getFilesDir(appAccount), LOST_EXPERIMENT_SCAN_FILE);
+  }
+
   public File getExperimentLibraryFile(AppAccount appAccount) {
     return new File(getFilesDir(appAccount), EXPERIMENT_LIBRARY_FILE);
   }
@@ -147,6 +160,19 @@ public class FileMetadataUtil {
    */
   public Single<File> getFileForExport(
       Context context, AppAccount appAccount, Experiment experiment, DataController dc) {
+    return getFileForExport(context, appAccount, experiment, dc, (written, total) -> {});
+  }
+
+  /**
+   * Like {@link #getFileForExport(Context, AppAccount, Experiment, DataController)}, reporting
+   * progress while the archive is written.
+   */
+  public Single<File> getFileForExport(
+      Context context,
+      AppAccount appAccount,
+      Experiment experiment,
+      DataController dc,
+      ExperimentZipWriter.ProgressListener progressListener) {
     return Single.create(
         s -> {
           dc.saveImmediately(
@@ -188,16 +214,25 @@ public class FileMetadataUtil {
 
                           try (FileOutputStream fos = new FileOutputStream(zipFile);
                               ZipOutputStream zos = new ZipOutputStream(fos); ) {
+                            ExperimentZipWriter writer =
+                                new ExperimentZipWriter(zos, progressListener);
                             File experimentDirectory =
                                 getExperimentDirectory(appAccount, experiment.getExperimentId());
-                            zipDirectory(experimentDirectory, zos, "");
-
+                            File experimentImage = null;
                             if (!experiment.getExperimentOverview().getImagePath().isEmpty()) {
-                              File experimentImage =
+                              experimentImage =
                                   new File(
                                       getFilesDir(appAccount),
                                       experiment.getExperimentOverview().getImagePath());
-                              zipExperimentImage(experimentImage, zos);
+                            }
+
+                            writer.addToEstimate(experimentDirectory, "");
+                            if (experimentImage != null) {
+                              writer.addFileToEstimate(experimentImage, COVER_IMAGE_FILE);
+                            }
+                            zipDirectory(experimentDirectory, writer, zos, "");
+                            if (experimentImage != null) {
+                              zipExperimentImage(experimentImage, writer, zos);
                             }
                           } catch (IOException ioException) {
                             s.onError(ioException);
@@ -224,54 +259,53 @@ public class FileMetadataUtil {
 
   public void zipDirectory(File directory, ZipOutputStream zipOutputStream, String path)
       throws IOException {
+    zipDirectory(directory, new ExperimentZipWriter(zipOutputStream), zipOutputStream, path);
+  }
+
+  private void zipDirectory(
+      File directory, ExperimentZipWriter writer, ZipOutputStream zipOutputStream, String path)
+      throws IOException {
     File[] fileList = directory.listFiles();
     for (File f : fileList) {
       if (f.isDirectory()) {
-        zipDirectory(f, zipOutputStream, path + f.getName() + "/");
+        if (!(path + f.getName()).equals(CHUNK_DIRECTORY)) {
+          zipDirectory(f, writer, zipOutputStream, path + f.getName() + "/");
+        }
         continue;
       }
-      FileInputStream fis = new FileInputStream(f.getAbsolutePath());
       String zipPath = path + f.getName();
-      if (!zipPath.equals(COVER_IMAGE_FILE)) {
-        ZipEntry zipEntry = new ZipEntry(zipPath);
-        zipOutputStream.putNextEntry(zipEntry);
-
-        byte[] bytes = new byte[1024];
-        int length;
-        while ((length = fis.read(bytes)) >= 0) {
-          zipOutputStream.write(bytes, 0, length);
-        }
+      // The journal is device-local; saveImmediately() has already folded it into the proto.
+      // Chunk manifests only describe what has been synced, and don't belong in exports.
+      if (!zipPath.equals(COVER_IMAGE_FILE)
+          && !zipPath.equals(ExperimentJournal.JOURNAL_FILE)
+          && !zipPath.endsWith(DOT_CHUNKS)) {
+        writer.putFile(f, zipPath);
         zipOutputStream.closeEntry();
       }
-
-      fis.close();
     }
   }
 
   public void zipExperimentImage(File image, ZipOutputStream zipOutputStream) throws IOException {
-    try {
-      FileInputStream fis = new FileInputStream(image.getAbsolutePath());
-      ZipEntry zipEntry = new ZipEntry(COVER_IMAGE_FILE);
-
-      try {
-        zipOutputStream.putNextEntry(zipEntry);
-
-        byte[] bytes = new byte[1024];
-        int length;
-        while ((length = fis.read(bytes)) >= 0) {
-          zipOutputStream.write(bytes, 0, length);
-        }
-      } catch (ZipException zipException) {
-        // Already zipped the cover image, because the image name was COVER_IMAGE_FILE.
-        // This is ok.
-        Log.d(TAG, "Trying to zip the cover again.", zipException);
-      }
+    zipExperimentImage(image, new ExperimentZipWriter(zipOutputStream), zipOutputStream);
+  }
 
-      zipOutputStream.closeEntry();
-      fis.close();
+  private void zipExperimentImage(
+      File image, ExperimentZipWriter writer, ZipOutputStream zipOutputStream) throws IOException {
+    if (!image.exists()) {
+      Log.d(TAG, "Image not found when exporting: " + image);
+      return;
+    }
+    try {
+      writer.putFile(image, COVER_IMAGE_FILE);
+    } catch (ZipException zipException) {
+      // Already zipped the cover image, because the image name was COVER_IMAGE_FILE.
+      // This is ok.
+      Log.d(TAG, "Trying to zip the cover again.", zipException);
     } catch (FileNotFoundException fileException) {
       Log.d(TAG, "Image not found when exporting.", fileException);
+      return;
     }
+    zipOutputStream.closeEntry();
   }
 
   public boolean validateShareIntent(Context context, AppAccount appAccount, String experimentId) {
@@ -346,7 +380,7 @@ public class FileMetadataUtil {
   public boolean canImportFromVersion(Version.FileVersion fileVersion) {
     switch (fileVersion.getPlatform()) {
       case ANDROID:
-        return fileVersion.getVersion() == 1 && fileVersion.getMinorVersion() <= 2;
+        return fileVersion.getVersion() == 1 && fileVersion.getMinorVersion() <= 3;
       case IOS:
         if (fileVersion.getVersion() != 1) {
           return false;
@@ -362,9 +396,21 @@ public class FileMetadataUtil {
     return fileVersion.getVersion() == 1 && fileVersion.getMinorVersion() == 2;
   }
 
+  // Writes to a temporary file and renames it over the old one, so that a crash mid-write leaves
+  // either the old file or the new one, never a truncated one.
   private void writeProtoToFile(byte[] protoBytes, File file) throws IOException {
-    try (FileOutputStream fos = new FileOutputStream(file)) {
-      fos.write(protoBytes);
+    DiskWriteMonitor.onDiskWrite(file);
+    File temp = new File(file.getPath() + ".tmp");
+    try {
+      try (FileOutputStream fos = new FileOutputStream(temp)) {
+        fos.write(protoBytes);
+        fos.getFD().sync();
+      }
+      if (!temp.renameTo(file)) {
+        throw new IOException("Could not replace " + file);
+      }
+    } finally {
+      temp.delete();
     }
   }
 
@@ -412,6 +458,16 @@ public class FileMetadataUtil {
     return RECORDING + protoId + DOT_PROTO;
   }
 
+  public String getTrialDataManifestFileName(String trialId) {
+    return RECORDING + trialId + DOT_CHUNKS;
+  }
+
+  /** Whether {@code fileName} is a trial's sensor data file or chunk manifest. */
+  public boolean isTrialDataFileName(String fileName) {
+    return fileName.startsWith(RECORDING)
+        && (fileName.endsWith(DOT_PROTO) || fileName.endsWith(DOT_CHUNKS));
+  }
+
   public long getFreeSpaceInMb() {
     File path = Environment.getDataDirectory();
     StatFs stat = new StatFs(path.getPath());
@@ -20,22 +20,32 @@ import androidx.annotation.VisibleForTesting;
 import android.util.Log;
 import com.google.android.apps.forscience.whistlepunk.analytics.TrackerConstants;
 import com.google.android.apps.forscience.whistlepunk.analytics.UsageTracker;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.MessageLite;
 import io.reactivex.functions.Function;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
 
 /** Helper to write Protocol Buffers written to and read them from files. */
 // TODO: Check free storage space before writing anything?
 public class LiteProtoFileHelper<T extends MessageLite> {
   private static final String TAG = "LiteProtoFileHelper";
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final int MIN_BUFFER_SIZE = 512;
+  private static final int MAX_BUFFER_SIZE = 64 * 1024;
 
   public T readFromFile(File file, Function<byte[], T> parseFrom, UsageTracker tracker) {
-    try (FileInputStream inputStream = new FileInputStream(file)) {
+    try (DataInputStream inputStream = new DataInputStream(new FileInputStream(file))) {
+      // Read straight into a buffer of exactly the file's size. A single read() may return fewer
+      // bytes than requested, so make sure we get all of them.
       byte[] bytes = new byte[(int) file.length()];
-      inputStream.read(bytes);
+      inputStream.readFully(bytes);
       return parseFrom.apply(bytes);
     } catch (IOException ex) {
       logError(tracker, ex, TrackerConstants.ACTION_READ_FAILED);
@@ -63,46 +73,61 @@ public class LiteProtoFileHelper<T extends MessageLite> {
     return writeToFile(file, protoToWrite, /* don't throw an error for testing */ false, tracker);
   }
 
+  /**
+   * Like {@link #writeToFile(File, MessageLite, UsageTracker)}, also feeding every byte written
+   * into {@code checksum}.
+   */
+  public boolean writeToFile(File file, T protoToWrite, UsageTracker tracker, Checksum checksum) {
+    return writeToFile(file, protoToWrite, false, tracker, checksum);
+  }
+
+  /**
+   * Writes the proto to a temporary file next to {@code file}, syncs it to disk, then renames it
+   * over {@code file}. The rename is atomic, so readers see either the old or the new contents, and
+   * a failure part way through leaves the old contents in place.
+   */
   @VisibleForTesting
   boolean writeToFile(File file, T protoToWrite, boolean failWritingForTest, UsageTracker tracker) {
-    // TODO(b/140145435): serialize the proto directly to the stream.
-
-    // Do this outside the file-writing blocks. If it fails it throws a RuntimeException
-    // which we don't want to have happen during reading or writing.
-    byte[] protoBytes = protoToWrite.toByteArray();
-
-    // Save what's in the file in case the write fails. This is a safety net because
-    // the FileOutputStream clears the file and we need a way to put the data back
-    // to how it was.
-    byte[] bytes = new byte[(int) file.length()];
-    try (FileInputStream inputStream = new FileInputStream(file)) {
-      inputStream.read(bytes);
-    } catch (IOException ex) {
-      logError(tracker, ex, TrackerConstants.ACTION_WRITE_FAILED);
-      return false;
-    }
+    return writeToFile(file, protoToWrite, failWritingForTest, tracker, null);
+  }
 
-    // Now try to write.
-    try (FileOutputStream outputStream = new FileOutputStream(file)) {
-      if (failWritingForTest) {
-        throw new IOException("Failing for the test");
-      } else {
-        outputStream.write(protoBytes);
-        return true;
+  private boolean writeToFile(
+      File file,
+      T protoToWrite,
+      boolean failWritingForTest,
+      UsageTracker tracker,
+      Checksum checksum) {
+    DiskWriteMonitor.onDiskWrite(file);
+    File tempFile = new File(file.getParentFile(), file.getName() + TEMP_SUFFIX);
+    try {
+      try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+        int size = protoToWrite.getSerializedSize();
+        OutputStream target =
+            checksum == null ? outputStream : new CheckedOutputStream(outputStream, checksum);
+        CodedOutputStream codedOutput =
+            CodedOutputStream.newInstance(target, clampBufferSize(size));
+        protoToWrite.writeTo(codedOutput);
+        codedOutput.flush();
+        if (failWritingForTest) {
+          throw new IOException("Failing for the test");
+        }
+        outputStream.getFD().sync();
       }
+      if (!tempFile.renameTo(file)) {
+        throw new IOException("Could not rename " + tempFile + " to " + file);
+      }
+      return true;
     } catch (IOException ex) {
       logError(tracker, ex, TrackerConstants.ACTION_WRITE_FAILED);
-      replaceContents(file, bytes, tracker);
       return false;
+    } finally {
+      if (tempFile.exists()) {
+        tempFile.delete();
+      }
     }
   }
 
-  private void replaceContents(File file, byte[] bytes, UsageTracker tracker) {
-    // If write failed, might be the proto's fault, try to write back what we had before.
-    try (FileOutputStream outputStream = new FileOutputStream(file)) {
-      outputStream.write(bytes);
-    } catch (IOException ex) {
-      logError(tracker, ex, TrackerConstants.ACTION_WRITE_FAILED);
-    }
+  private static int clampBufferSize(long size) {
+    return (int) Math.max(MIN_BUFFER_SIZE, Math.min(size, MAX_BUFFER_SIZE));
   }
 }
@@ -17,12 +17,18 @@
 package com.google.android.apps.forscience.whistlepunk.filemetadata;
 
 import androidx.annotation.VisibleForTesting;
-import android.util.Log;
 import com.google.android.apps.forscience.whistlepunk.accounts.AppAccount;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciLocalSyncStatus.ExperimentStatus;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciLocalSyncStatus.LocalSyncStatus;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciLocalSyncStatus.SyncedFile;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Manages the Sync Status for Science Journal All changes should be made using the getters and
@@ -32,9 +38,17 @@ import java.util.HashMap;
  */
 public class LocalSyncManager {
   private static final String TAG = "localSyncManager";
+
+  // Write the sync status file no more than once per every WRITE_DELAY_MS, unless flushed.
+  private static final long WRITE_DELAY_MS = 1000;
+
   private final HashMap<String, ExperimentSyncStatus> statusMap = new HashMap<>();
+  // Ids of the experiments whose dirty bit is set.
+  private final Set<String> dirtyExperiments = new HashSet<>();
   private long lastSyncedLibraryVersion = -1L;
   private final AppAccount account;
+  private final DebouncedFileWriter writer;
+  private boolean loaded = false;
 
   /** Constructor for an LocalSyncManager that creates a new LocalSyncStatus proto. */
   public LocalSyncManager(AppAccount account) {
@@ -45,6 +59,7 @@ public class LocalSyncManager {
   @VisibleForTesting
   public LocalSyncManager(LocalSyncStatus localSyncStatus, AppAccount account) {
     this.account = account;
+    this.writer = new DebouncedFileWriter(TAG, WRITE_DELAY_MS, this::writeLocalSyncStatus);
     if (localSyncStatus != null) {
       setLocalSyncStatus(localSyncStatus);
     }
@@ -55,11 +70,16 @@ public class LocalSyncManager {
    *
    * @param localSyncStatus The KicalSyncStatus to manage.
    */
-  public void setLocalSyncStatus(LocalSyncStatus localSyncStatus) {
+  public synchronized void setLocalSyncStatus(LocalSyncStatus localSyncStatus) {
+    loaded = true;
     lastSyncedLibraryVersion = localSyncStatus.getLastSyncedLibraryVersion();
     statusMap.clear();
+    dirtyExperiments.clear();
     for (ExperimentStatus status : localSyncStatus.getExperimentStatusList()) {
       statusMap.put(status.getExperimentId(), new ExperimentSyncStatus(status));
+      if (status.getDirty()) {
+        dirtyExperiments.add(status.getExperimentId());
+      }
     }
   }
 
@@ -68,7 +88,7 @@ public class LocalSyncManager {
    *
    * @param experimentId The id of the experiment to manage.
    */
-  public boolean hasExperiment(String experimentId) {
+  public synchronized boolean hasExperiment(String experimentId) {
     populateLocalSyncManager();
     return getExperimentStatus(experimentId) != null;
   }
@@ -78,11 +98,15 @@ public class LocalSyncManager {
    *
    * @param experimentId The id of the experiment to manage.
    */
-  public void addExperiment(String experimentId) {
+  public synchronized void addExperiment(String experimentId) {
     populateLocalSyncManager();
     if (!statusMap.containsKey(experimentId)) {
-      statusMap.put(experimentId, new ExperimentSyncStatus(experimentId));
-      writeLocalSyncStatus();
+      ExperimentSyncStatus status = new ExperimentSyncStatus(experimentId);
+      statusMap.put(experimentId, status);
+      if (status.isDirty()) {
+        dirtyExperiments.add(experimentId);
+      }
+      writer.schedule();
     }
   }
 
@@ -103,14 +127,17 @@ public class LocalSyncManager {
    *
    * @param experimentId The id of the experiment to set status for.
    */
-  public void setDirty(String experimentId, boolean dirty) {
+  public synchronized void setDirty(String experimentId, boolean dirty) {
     ExperimentSyncStatus status = getExperimentStatus(experimentId);
     if (status != null) {
       status.setDirty(dirty);
       if (dirty) {
+        dirtyExperiments.add(experimentId);
         lastSyncedLibraryVersion = 0L;
+      } else {
+        dirtyExperiments.remove(experimentId);
       }
-      writeLocalSyncStatus();
+      writer.schedule();
     }
   }
 
@@ -121,7 +148,7 @@ public class LocalSyncManager {
    * @param experimentId The id of the experiment to get status for.
    * @return Whether or not the experiment has local changes.
    */
-  public boolean getDirty(String experimentId) {
+  public synchronized boolean getDirty(String experimentId) {
     ExperimentSyncStatus status = getExperimentStatus(experimentId);
     if (status == null) {
       return false;
@@ -129,17 +156,27 @@ public class LocalSyncManager {
     return status.isDirty();
   }
 
+  /**
+   * Gets the experiments with local changes that must be synced to Drive.
+   *
+   * @return A copy of the ids of every experiment where dirty is true.
+   */
+  public synchronized Set<String> getDirtyExperiments() {
+    populateLocalSyncManager();
+    return new HashSet<>(dirtyExperiments);
+  }
+
   /**
    * Sets the last synced version of a given experiment id.
    *
    * @param experimentId The id of the experiment to set status for.
    * @param version The last version of the experiment synced to or from Drive.
    */
-  public void setLastSyncedVersion(String experimentId, long version) {
+  public synchronized void setLastSyncedVersion(String experimentId, long version) {
     ExperimentSyncStatus status = getExperimentStatus(experimentId);
     if (status != null) {
       status.setLastSyncedVersion(version);
-      writeLocalSyncStatus();
+      writer.schedule();
     }
   }
 
@@ -149,7 +186,7 @@ public class LocalSyncManager {
    * @param experimentId The id of the experiment to get status for.
    * @return The last version of the experiment synced to or from Drive.
    */
-  public long getLastSyncedVersion(String experimentId) {
+  public synchronized long getLastSyncedVersion(String experimentId) {
     ExperimentSyncStatus status = getExperimentStatus(experimentId);
     if (status == null) {
       return -1L;
@@ -163,11 +200,11 @@ public class LocalSyncManager {
    * @param experimentId The id of the experiment to set status for.
    * @param archived Whether the server says the experiment is archived.
    */
-  public void setServerArchived(String experimentId, boolean archived) {
+  public synchronized void setServerArchived(String experimentId, boolean archived) {
     ExperimentSyncStatus status = getExperimentStatus(experimentId);
     if (status != null) {
       status.setServerArchived(archived);
-      writeLocalSyncStatus();
+      writer.schedule();
     }
   }
 
@@ -177,7 +214,7 @@ public class LocalSyncManager {
    * @param experimentId The id of the experiment to get status for.
    * @return Whether the server says the experiment is archived.
    */
-  public boolean getServerArchived(String experimentId) {
+  public synchronized boolean getServerArchived(String experimentId) {
     ExperimentSyncStatus status = getExperimentStatus(experimentId);
     if (status == null) {
       return false;
@@ -191,11 +228,11 @@ public class LocalSyncManager {
    * @param experimentId The id of the experiment to get status for.
    * @param downloaded Whether the experiment is downloaded.
    */
-  public void setDownloaded(String experimentId, boolean downloaded) {
+  public synchronized void setDownloaded(String experimentId, boolean downloaded) {
     ExperimentSyncStatus status = getExperimentStatus(experimentId);
     if (status != null) {
       status.setDownloaded(downloaded);
-      writeLocalSyncStatus();
+      writer.schedule();
     }
   }
 
@@ -205,7 +242,7 @@ public class LocalSyncManager {
    * @param experimentId The id of the experiment to get status for.
    * @return Whether the experiment is downloaded.
    */
-  public boolean getDownloaded(String experimentId) {
+  public synchronized boolean getDownloaded(String experimentId) {
     ExperimentSyncStatus status = getExperimentStatus(experimentId);
     if (status == null) {
       return true;
@@ -213,40 +250,122 @@ public class LocalSyncManager {
     return status.isDownloaded();
   }
 
-  public long getLastSyncedLibraryVersion() {
+  /**
+   * Gets the state of a file when it was last synced.
+   *
+   * @param experimentId The id of the experiment the file belongs to.
+   * @param path The path of the file, relative to the experiment directory.
+   * @return The SyncedFile, or null if the file has not been synced.
+   */
+  public synchronized SyncedFile getSyncedFile(String experimentId, String path) {
+    ExperimentSyncStatus status = getExperimentStatus(experimentId);
+    if (status == null) {
+      return null;
+    }
+    return status.getSyncedFile(path);
+  }
+
+  /**
+   * Records the state of a file that was just uploaded or downloaded.
+   *
+   * @param experimentId The id of the experiment the file belongs to.
+   * @param syncedFile The state of the file. Replaces any earlier state for the same path.
+   */
+  public synchronized void setSyncedFile(String experimentId, SyncedFile syncedFile) {
+    ExperimentSyncStatus status = getExperimentStatus(experimentId);
+    if (status != null) {
+      status.putSyncedFile(syncedFile);
+      writer.schedule();
+    }
+  }
+
+  /**
+   * Gets the state of every file of an experiment when it was last synced.
+   *
+   * @param experimentId The id of the experiment the files belong to.
+   * @return The SyncedFiles, in the order they were first synced.
+   */
+  public synchronized List<SyncedFile> getSyncedFiles(String experimentId) {
+    ExperimentSyncStatus status = getExperimentStatus(experimentId);
+    if (status == null) {
+      return new ArrayList<>();
+    }
+    return status.getSyncedFiles();
+  }
+
+  /**
+   * Forgets the synced state of files that no longer exist.
+   *
+   * @param experimentId The id of the experiment the files belong to.
+   * @param paths The paths of the files, relative to the experiment directory.
+   */
+  public synchronized void removeSyncedFiles(String experimentId, Collection<String> paths) {
+    ExperimentSyncStatus status = getExperimentStatus(experimentId);
+    if (status != null && status.removeSyncedFiles(paths)) {
+      writer.schedule();
+    }
+  }
+
+  /**
+   * Forgets the synced state of all of an experiment's files, for example because the experiment
+   * was deleted.
+   *
+   * @param experimentId The id of the experiment the files belong to.
+   */
+  public synchronized void clearSyncedFiles(String experimentId) {
+    ExperimentSyncStatus status = getExperimentStatus(experimentId);
+    if (status != null && status.clearSyncedFiles()) {
+      writer.schedule();
+    }
+  }
+
+  /** Forgets the synced state of every experiment's files. */
+  public synchronized void clearAllSyncedFiles() {
+    populateLocalSyncManager();
+    boolean changed = false;
+    for (ExperimentSyncStatus status : statusMap.values()) {
+      changed |= status.clearSyncedFiles();
+    }
+    if (changed) {
+      writer.schedule();
+    }
+  }
+
+  public synchronized long getLastSyncedLibraryVersion() {
     populateLocalSyncManager();
     return lastSyncedLibraryVersion;
   }
 
-  public void setLastSyncedLibraryVersion(long version) {
+  public synchronized void setLastSyncedLibraryVersion(long version) {
     populateLocalSyncManager();
     this.lastSyncedLibraryVersion = version;
-    writeLocalSyncStatus();
+    writer.schedule();
   }
 
-  private void writeLocalSyncStatus() {
-    try {
-      FileMetadataUtil.getInstance().writeLocalSyncStatusFile(generateProto(), account);
-    } catch (IOException ioe) {
-      // Would like to do something else here, but not sure what else there really is to do.
-      if (Log.isLoggable(TAG, Log.ERROR)) {
-        Log.e(TAG, "LocalSyncStatus Write failed", ioe);
-      }
-    }
+  /**
+   * Writes any unsaved changes to the sync status file now, instead of waiting for the next
+   * scheduled write.
+   */
+  public void flush() {
+    writer.flush();
   }
 
-  // Reads the saved local sync status file from disk, if the Library has not already
-  // been set to a non-null value. This lets us move initialization of this object to the background
+  private void writeLocalSyncStatus() throws IOException {
+    FileMetadataUtil.getInstance().writeLocalSyncStatusFile(generateProto(), account);
+  }
+
+  // Reads the saved local sync status file from disk, if the status has not already
+  // been set or read. This lets us move initialization of this object to the background
   // thread.
   // TODO(b/111649596) Test this
   private void populateLocalSyncManager() {
-    if (statusMap.isEmpty()) {
+    if (!loaded) {
       LocalSyncStatus proto = FileMetadataUtil.getInstance().readLocalSyncStatusFile(account);
       setLocalSyncStatus(proto);
     }
   }
 
-  private LocalSyncStatus generateProto() {
+  private synchronized LocalSyncStatus generateProto() {
     LocalSyncStatus.Builder proto =
         LocalSyncStatus.newBuilder().setLastSyncedLibraryVersion(lastSyncedLibraryVersion);
 
@@ -264,6 +383,7 @@ class ExperimentSyncStatus {
   private long lastSyncedVersion = -1L;
   private boolean serverArchived = false;
   private boolean downloaded = false;
+  private final LinkedHashMap<String, SyncedFile> syncedFiles = new LinkedHashMap<>();
 
   public ExperimentSyncStatus(String id) {
     experimentId = id;
@@ -275,6 +395,9 @@ class ExperimentSyncStatus {
     lastSyncedVersion = status.getLastSyncedVersion();
     serverArchived = status.getServerArchived();
     downloaded = status.getDownloaded();
+    for (SyncedFile file : status.getSyncedFilesList()) {
+      syncedFiles.put(file.getPath(), file);
+    }
   }
 
   public String getExperimentId() {
@@ -317,6 +440,30 @@ class ExperimentSyncStatus {
     this.lastSyncedVersion = lastSyncedVersion;
   }
 
+  public SyncedFile getSyncedFile(String path) {
+    return syncedFiles.get(path);
+  }
+
+  public void putSyncedFile(SyncedFile syncedFile) {
+    syncedFiles.put(syncedFile.getPath(), syncedFile);
+  }
+
+  public List<SyncedFile> getSyncedFiles() {
+    return new ArrayList<>(syncedFiles.values());
+  }
+
+  /** @return whether any of the files were known */
+  public boolean removeSyncedFiles(Collection<String> paths) {
+    return syncedFiles.keySet().removeAll(paths);
+  }
+
+  /** @return whether there were any files */
+  public boolean clearSyncedFiles() {
+    boolean hadFiles = !syncedFiles.isEmpty();
+    syncedFiles.clear();
+    return hadFiles;
+  }
+
   public ExperimentStatus generateProto() {
     return ExperimentStatus.newBuilder()
         .setExperimentId(experimentId)
@@ -324,6 +471,7 @@ class ExperimentSyncStatus {
         .setLastSyncedVersion(lastSyncedVersion)
         .setServerArchived(serverArchived)
         .setDownloaded(downloaded)
+        .addAllSyncedFiles(syncedFiles.values())
         .build();
   }
 }
@@ -0,0 +1,84 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.filemetadata;
+
+import com.google.android.apps.forscience.whistlepunk.analytics.UsageTracker;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciLostExperimentScan.DirectoryFingerprint;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciLostExperimentScan.LostExperimentScan;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Fingerprints of experiment directories that the lost experiment recovery scan could not recover,
+ * so that it doesn't parse them again on every launch. A directory is scanned again once its
+ * experiment files change size or modification time. This class is not thread-safe.
+ */
+class LostExperimentFingerprints {
+  private final Map<String, DirectoryFingerprint> fingerprints = new HashMap<>();
+
+  /** Reads the fingerprints saved by the last scan, or returns none if there aren't any. */
+  static LostExperimentFingerprints readFrom(File file, UsageTracker tracker) {
+    LostExperimentFingerprints result = new LostExperimentFingerprints();
+    if (!file.exists()) {
+      return result;
+    }
+    LostExperimentScan scan =
+        new LiteProtoFileHelper<LostExperimentScan>()
+            .readFromFile(file, LostExperimentScan::parseFrom, tracker);
+    if (scan != null) {
+      for (DirectoryFingerprint fingerprint : scan.getUnrecoverableList()) {
+        result.fingerprints.put(fingerprint.getExperimentId(), fingerprint);
+      }
+    }
+    return result;
+  }
+
+  /** Whether the directory is unchanged since it was added. */
+  boolean matches(File experimentDirectory) {
+    DirectoryFingerprint saved = fingerprints.get(experimentDirectory.getName());
+    return saved != null && saved.equals(fingerprint(experimentDirectory));
+  }
+
+  void add(File experimentDirectory) {
+    fingerprints.put(experimentDirectory.getName(), fingerprint(experimentDirectory));
+  }
+
+  /** Whether this holds exactly the same fingerprints as {@code other}. */
+  boolean sameAs(LostExperimentFingerprints other) {
+    return fingerprints.equals(other.fingerprints);
+  }
+
+  boolean writeTo(File file, UsageTracker tracker) {
+    return new LiteProtoFileHelper<LostExperimentScan>()
+        .writeToFile(
+            file,
+            LostExperimentScan.newBuilder().addAllUnrecoverable(fingerprints.values()).build(),
+            tracker);
+  }
+
+  private static DirectoryFingerprint fingerprint(File experimentDirectory) {
+    File proto = new File(experimentDirectory, FileMetadataManager.EXPERIMENT_FILE);
+    File journal = new File(experimentDirectory, ExperimentJournal.JOURNAL_FILE);
+    // File.lastModified and File.length are 0 for missing files.
+    return DirectoryFingerprint.newBuilder()
+        .setExperimentId(experimentDirectory.getName())
+        .setLastModifiedMs(Math.max(proto.lastModified(), journal.lastModified()))
+        .setSizeBytes(proto.length() + journal.length())
+        .build();
+  }
+}
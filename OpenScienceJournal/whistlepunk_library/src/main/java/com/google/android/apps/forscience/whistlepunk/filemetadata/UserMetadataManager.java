@@ -17,7 +17,7 @@
 package com.google.android.apps.forscience.whistlepunk.filemetadata;
 
 import android.content.Context;
-import android.os.Handler;
+import android.util.Log;
 import androidx.annotation.VisibleForTesting;
 import com.google.android.apps.forscience.whistlepunk.WhistlePunkApplication;
 import com.google.android.apps.forscience.whistlepunk.accounts.AppAccount;
@@ -26,8 +26,7 @@ import com.google.android.apps.forscience.whistlepunk.metadata.GoosciUserMetadat
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
 
 /** Reads and writes ExperimentOverview lists */
 // TODO: Should this be a cache too?
@@ -43,11 +42,8 @@ public class UserMetadataManager {
   private static final int MINOR_VERSION = 1;
   private static final long WRITE_DELAY_MS = 500;
 
-  private final Runnable writeRunnable;
-  private final Handler handler;
-  private final ExecutorService backgroundWriteThread;
-  private final long writeDelayMs;
-  private boolean needsWrite = false;
+  // Writes the user metadata on the shared metadata write thread.
+  private final DebouncedFileWriter writer;
   private UserMetadataPojo userMetadata;
   private UsageTracker usageTracker;
 
@@ -65,46 +61,33 @@ public class UserMetadataManager {
   private FailureListener failureListener;
   private LiteProtoFileHelper<GoosciUserMetadata.UserMetadata> overviewProtoFileHelper;
   private File userMetadataFile;
+  private File overviewSnapshotFile;
+  private final ExperimentOverviewIndex overviewIndex;
 
   public UserMetadataManager(
       Context context, AppAccount appAccount, FailureListener failureListener) {
     this.failureListener = failureListener;
     overviewProtoFileHelper = new LiteProtoFileHelper<>();
     userMetadataFile = FileMetadataUtil.getInstance().getUserMetadataFile(appAccount);
-    backgroundWriteThread = Executors.newSingleThreadExecutor();
-    handler = new Handler();
-    writeRunnable =
-        () -> {
-          if (needsWrite) {
-            backgroundWriteThread.execute(() -> writeUserMetadata(userMetadata));
-          }
-        };
-    writeDelayMs = WRITE_DELAY_MS;
+    overviewSnapshotFile =
+        FileMetadataUtil.getInstance().getExperimentOverviewSnapshotFile(appAccount);
+    overviewIndex =
+        new ExperimentOverviewIndex(FileMetadataUtil.getInstance().getFilesDir(appAccount));
+    writer = new DebouncedFileWriter(TAG, WRITE_DELAY_MS, this::writeUserMetadataSnapshot);
     usageTracker = WhistlePunkApplication.getUsageTracker(context);
   }
 
   private void startWriteTimer() {
-    if (needsWrite) {
-      // The timer is already running.
-      return;
-    }
-    needsWrite = true;
-    handler.postDelayed(writeRunnable, writeDelayMs);
+    writer.schedule();
   }
 
+  /** Writes any unsaved changes now, on the calling thread. */
   public void saveImmediately() {
-    if (needsWrite) {
-      writeUserMetadata(userMetadata);
-      cancelWriteTimer();
-    }
-  }
-
-  private void cancelWriteTimer() {
-    handler.removeCallbacks(writeRunnable);
+    writer.flush();
   }
 
   /** Gets an experiment overview by experiment ID from the Shared Metadata. */
-  ExperimentOverviewPojo getExperimentOverview(String experimentId) {
+  synchronized ExperimentOverviewPojo getExperimentOverview(String experimentId) {
     userMetadata = getUserMetadata();
     if (userMetadata == null) {
       return null;
@@ -118,13 +101,26 @@ public class UserMetadataManager {
   }
 
   /** Updates an experiment overview in the Shared Metadata. */
-  void updateExperimentOverview(ExperimentOverviewPojo overviewToUpdate) {
+  synchronized void updateExperimentOverview(ExperimentOverviewPojo overviewToUpdate) {
     userMetadata = getUserMetadata();
     if (userMetadata == null) {
       return;
     }
     userMetadata.insertOverview(overviewToUpdate);
-    startWriteTimer();
+    if (overviewIndex.put(overviewToUpdate)) {
+      startWriteTimer();
+    }
+  }
+
+  /**
+   * Updates the overview of an experiment that was just written to disk, unless the experiment has
+   * been deleted since. Called on the experiment cache's write thread.
+   */
+  synchronized void onExperimentWritten(ExperimentOverviewPojo writtenOverview) {
+    if (!overviewIndex.isLoaded() || !overviewIndex.contains(writtenOverview.getExperimentId())) {
+      return;
+    }
+    updateExperimentOverview(writtenOverview);
   }
 
   /**
@@ -132,36 +128,83 @@ public class UserMetadataManager {
    *
    * @param experimentIdToDelete the ID of the overview to be deleted.
    */
-  void deleteExperimentOverview(String experimentIdToDelete) {
+  synchronized void deleteExperimentOverview(String experimentIdToDelete) {
     userMetadata = getUserMetadata();
     userMetadata.deleteOverview(experimentIdToDelete);
+    overviewIndex.remove(experimentIdToDelete);
     startWriteTimer();
   }
 
-  void deleteAllExperimentOverviews() {
+  synchronized void deleteAllExperimentOverviews() {
     userMetadata = getUserMetadata();
     if (userMetadata == null) {
       return;
     }
     userMetadata.clearOverviews();
+    overviewIndex.clear();
     startWriteTimer();
   }
 
   /**
-   * Gets all the experiment overviews
+   * Gets all the experiment overviews, most recently used first.
    *
    * @param includeArchived Whether to include the archived experiments.
    */
-  List<ExperimentOverviewPojo> getExperimentOverviews(boolean includeArchived) {
+  synchronized List<ExperimentOverviewPojo> getExperimentOverviews(boolean includeArchived) {
+    if (!loadOverviewIndex()) {
+      return null;
+    }
+    return overviewIndex.getAll(includeArchived);
+  }
+
+  /**
+   * Gets a page of the experiment overviews, most recently used first.
+   *
+   * @param includeArchived Whether to include the archived experiments.
+   * @param offset How many overviews to skip.
+   * @param limit The maximum number of overviews to return.
+   */
+  synchronized List<ExperimentOverviewPojo> getExperimentOverviews(
+      boolean includeArchived, int offset, int limit) {
+    if (!loadOverviewIndex()) {
+      return null;
+    }
+    return overviewIndex.getPage(includeArchived, offset, limit);
+  }
+
+  /** Gets the most recently used experiment overview, or null if there are none. */
+  synchronized ExperimentOverviewPojo getMostRecentExperimentOverview(boolean includeArchived) {
+    if (!loadOverviewIndex()) {
+      return null;
+    }
+    return overviewIndex.getMostRecent(includeArchived);
+  }
+
+  /**
+   * Fills the overview index, from the snapshot if it is up to date, otherwise from the user
+   * metadata. Returns false if neither could be read.
+   */
+  private boolean loadOverviewIndex() {
+    if (overviewIndex.isLoaded()) {
+      return true;
+    }
+    if (userMetadata == null
+        && overviewIndex.loadSnapshot(overviewSnapshotFile, userMetadataFile)) {
+      return true;
+    }
+    // getUserMetadata fills the index when it reads the file.
     userMetadata = getUserMetadata();
     if (userMetadata == null) {
-      return null;
+      return false;
+    }
+    if (!overviewIndex.isLoaded()) {
+      overviewIndex.reset(userMetadata.getOverviews(true));
     }
-    return userMetadata.getOverviews(includeArchived);
+    return true;
   }
 
   /** Adds a device to the user's list of devices if it is not yet added. */
-  public void addMyDevice(DeviceSpecPojo device) {
+  public synchronized void addMyDevice(DeviceSpecPojo device) {
     UserMetadataPojo userMetadata = getUserMetadata();
 
     if (userMetadata == null) {
@@ -174,7 +217,7 @@ public class UserMetadataManager {
     startWriteTimer();
   }
 
-  public void removeMyDevice(DeviceSpecPojo device) {
+  public synchronized void removeMyDevice(DeviceSpecPojo device) {
     UserMetadataPojo userMetadata = getUserMetadata();
 
     if (userMetadata == null) {
@@ -187,7 +230,7 @@ public class UserMetadataManager {
     startWriteTimer();
   }
 
-  public List<DeviceSpecPojo> getMyDevices() {
+  public synchronized List<DeviceSpecPojo> getMyDevices() {
     userMetadata = getUserMetadata();
 
     return userMetadata.getMyDevices();
@@ -220,6 +263,9 @@ public class UserMetadataManager {
       userMetadata = UserMetadataPojo.fromProto(userMetadataProto);
       upgradeUserMetadataVersionIfNeeded(userMetadata);
     }
+    if (!overviewIndex.isLoaded()) {
+      overviewIndex.reset(userMetadata.getOverviews(true));
+    }
     return userMetadata;
   }
 
@@ -284,20 +330,55 @@ public class UserMetadataManager {
     userMetadata.setMinorVersion(0);
   }
 
-  /** Writes the shared metadata object to the file. */
-  private void writeUserMetadata(UserMetadataPojo userMetadata) {
+  /**
+   * Writes a copy of the shared metadata taken while holding this object's lock. The lock is not
+   * held during the write, so callers on other threads only wait for the copy, not for the disk.
+   */
+  private void writeUserMetadataSnapshot() throws IOException {
+    GoosciUserMetadata.UserMetadata proto;
+    synchronized (this) {
+      if (userMetadata == null) {
+        return;
+      }
+      proto = toProtoForWrite(userMetadata);
+    }
+    if (!writeUserMetadataFile(proto)) {
+      throw new IOException("Could not write " + userMetadataFile);
+    }
+  }
+
+  /** Writes the shared metadata object to the file, and the overview snapshot next to it. */
+  private synchronized void writeUserMetadata(UserMetadataPojo userMetadata) {
+    writeUserMetadataFile(toProtoForWrite(userMetadata));
+  }
+
+  private GoosciUserMetadata.UserMetadata toProtoForWrite(UserMetadataPojo userMetadata) {
     if (userMetadata.getVersion() > VERSION
         || (userMetadata.getVersion() == VERSION
             && userMetadata.getMinorVersion() > MINOR_VERSION)) {
       // If the major version is too new, or the minor version is too new, we can't save this.
       failureListener.onNewerVersionDetected(); // TODO: Or should this throw onWriteFailed?
     }
+    return userMetadata.toProto();
+  }
+
+  private boolean writeUserMetadataFile(GoosciUserMetadata.UserMetadata proto) {
     createUserMetadataFileIfNeeded();
-    if (!overviewProtoFileHelper.writeToFile(
-        userMetadataFile, userMetadata.toProto(), usageTracker)) {
+    CRC32 crc = new CRC32();
+    if (!overviewProtoFileHelper.writeToFile(userMetadataFile, proto, usageTracker, crc)) {
       failureListener.onWriteFailed();
+      return false;
     } else {
-      needsWrite = false;
+      try {
+        ExperimentOverviewIndex.writeSnapshot(overviewSnapshotFile, proto, crc.getValue());
+      } catch (IOException e) {
+        // The snapshot is only an optimization: without a matching one, the next launch reads the
+        // user metadata instead.
+        if (Log.isLoggable(TAG, Log.WARN)) {
+          Log.w(TAG, "Could not write the experiment overview snapshot", e);
+        }
+      }
+      return true;
     }
   }
 
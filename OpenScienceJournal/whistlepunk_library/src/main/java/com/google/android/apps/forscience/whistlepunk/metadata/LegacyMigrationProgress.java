@@ -0,0 +1,47 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.metadata;
+
+/** How far the migration of experiments from the legacy database to files has got. */
+public class LegacyMigrationProgress {
+  private final int migratedCount;
+  private final int totalCount;
+
+  public LegacyMigrationProgress(int migratedCount, int totalCount) {
+    this.migratedCount = migratedCount;
+    this.totalCount = totalCount;
+  }
+
+  /** The number of experiments that have been moved to files. */
+  public int getMigratedCount() {
+    return migratedCount;
+  }
+
+  /** The number of experiments that were in the database when the migration started. */
+  public int getTotalCount() {
+    return totalCount;
+  }
+
+  public boolean isComplete() {
+    return migratedCount >= totalCount;
+  }
+
+  @Override
+  public String toString() {
+    return "LegacyMigrationProgress{" + migratedCount + "/" + totalCount + "}";
+  }
+}
@@ -53,6 +53,10 @@ public interface MetaDataManager {
   /** @return the list of all experiments. */
   List<ExperimentOverviewPojo> getExperimentOverviews(boolean includeArchived);
 
+  /** @return a page of the list of experiments, most recently used first. */
+  List<ExperimentOverviewPojo> getExperimentOverviews(
+      boolean includeArchived, int offset, int limit);
+
   /** Gets all the external sensors previously saved. */
   Map<String, ExternalSensorSpec> getExternalSensors(Map<String, SensorProvider> providerMap);
 
@@ -20,6 +20,7 @@ import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
@@ -75,6 +76,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -103,6 +105,7 @@ public class SimpleMetaDataManager implements MetaDataManager {
   private final ExperimentLibraryManager experimentLibraryManager;
   private final LocalSyncManager localSyncManager;
   private boolean recoverAlreadyAttempted;
+  private boolean legacyMigrationStarted;
 
   public void close() {
     dbHelper.close();
@@ -127,6 +130,7 @@ public class SimpleMetaDataManager implements MetaDataManager {
     String EXPERIMENT_SENSOR_LAYOUT = "experiment_sensor_layout";
     String SENSOR_TRIGGERS = "sensor_triggers";
     String MY_DEVICES = "my_devices";
+    String LEGACY_MIGRATION = "legacy_migration";
   }
 
   public SimpleMetaDataManager(Context context, AppAccount appAccount) {
@@ -148,16 +152,6 @@ public class SimpleMetaDataManager implements MetaDataManager {
             appAccount,
             filename,
             new DatabaseHelper.MetadataDatabaseUpgradeCallback() {
-              @Override
-              public void onMigrateProjectData(SQLiteDatabase db) {
-                migrateProjectData(db);
-              }
-
-              @Override
-              public void onMigrateExperimentsToFiles(SQLiteDatabase db) {
-                migrateExperimentsToFiles(db);
-              }
-
               @Override
               public void onMigrateMyDevicesToProto(SQLiteDatabase db) {
                 migrateMyDevicesToProto(db);
@@ -167,92 +161,258 @@ public class SimpleMetaDataManager implements MetaDataManager {
 
   private FileMetadataManager getFileMetadataManager() {
     synchronized (lock) {
-      // Call getWritableDatabase to force upgrade if needed. We don't need the returned db.
-      dbHelper.getWritableDatabase();
+      // Call getWritableDatabase to force upgrade if needed.
+      SQLiteDatabase db = dbHelper.getWritableDatabase();
+
+      // If an upgrade left experiments in the database, move them to files in the background.
+      if (!legacyMigrationStarted) {
+        legacyMigrationStarted = true;
+        if (getLegacyMigrationProgress(db) != null) {
+          startLegacyMigration();
+        }
+      }
 
-      // The first time we are going to use the fileMetadataManager, and while we are holding the
-      // lock, try to recover experiments lost due to b/129409993.
+      // The first time we are going to use the fileMetadataManager, try to recover experiments
+      // lost due to b/129409993.
       if (!recoverAlreadyAttempted) {
         recoverAlreadyAttempted = true;
-        try {
-          fileMetadataManager.recoverLostExperimentsIfNeeded(context.getApplicationContext());
-        } catch (Exception e) {
-          String labelFromStackTrace = TrackerConstants.createLabelFromStackTrace(e);
-          UsageTracker usageTracker = WhistlePunkApplication.getUsageTracker(context);
-          usageTracker.trackEvent(
-              TrackerConstants.CATEGORY_STORAGE,
-              TrackerConstants.ACTION_RECOVERY_FAILED,
-              labelFromStackTrace,
-              0);
-          usageTracker.trackEvent(
-              TrackerConstants.CATEGORY_FAILURE,
-              TrackerConstants.ACTION_RECOVERY_FAILED,
-              labelFromStackTrace,
-              0);
-        }
+        recoverLostExperimentsInBackground();
       }
 
       return fileMetadataManager;
     }
   }
 
+  /**
+   * Recovers lost experiments on a background thread, so that the experiment list can be shown
+   * right away. The list is told to reload as each experiment is recovered.
+   */
+  private void recoverLostExperimentsInBackground() {
+    Context applicationContext = context.getApplicationContext();
+    Thread recovery =
+        new Thread(
+            () -> {
+              try {
+                fileMetadataManager.recoverLostExperimentsIfNeeded(
+                    applicationContext,
+                    lock,
+                    overview ->
+                        AppSingleton.getInstance(applicationContext).notifyNewExperimentSynced());
+              } catch (Exception e) {
+                String labelFromStackTrace = TrackerConstants.createLabelFromStackTrace(e);
+                UsageTracker usageTracker =
+                    WhistlePunkApplication.getUsageTracker(applicationContext);
+                usageTracker.trackEvent(
+                    TrackerConstants.CATEGORY_STORAGE,
+                    TrackerConstants.ACTION_RECOVERY_FAILED,
+                    labelFromStackTrace,
+                    0);
+                usageTracker.trackEvent(
+                    TrackerConstants.CATEGORY_FAILURE,
+                    TrackerConstants.ACTION_RECOVERY_FAILED,
+                    labelFromStackTrace,
+                    0);
+              }
+            },
+            "RecoverLostExperiments");
+    recovery.setDaemon(true);
+    recovery.start();
+  }
+
+  /**
+   * Moves the data an upgrade left in the legacy database to files, on a background thread. Each
+   * project and each experiment is migrated in its own transaction, holding the lock only for that
+   * one, so the app stays usable and only one legacy experiment is in memory at a time. Progress is
+   * checkpointed in the database: an interrupted migration carries on from where it stopped the
+   * next time the app starts.
+   */
+  private void startLegacyMigration() {
+    Thread migration =
+        new Thread(
+            () -> {
+              try {
+                // Projects go first, because their data is folded into their experiments.
+                while (migrateNextProject()) {}
+                LegacyMigrationProgress progress;
+                while ((progress = migrateNextExperiment()) != null) {
+                  AppSingleton.getInstance(context).setLegacyMigrationProgress(progress);
+                }
+                finishLegacyMigration();
+              } catch (Exception e) {
+                // Whatever is left in the database is migrated on the next launch.
+                if (Log.isLoggable(TAG, Log.ERROR)) {
+                  Log.e(TAG, "Legacy migration failed", e);
+                }
+              }
+            },
+            "MigrateLegacyData");
+    migration.setDaemon(true);
+    migration.start();
+  }
+
   @VisibleForTesting
   void migrateExperimentsToFiles() {
+    while (migrateNextExperiment() != null) {}
+  }
+
+  /**
+   * Migrates one experiment from the database to files.
+   *
+   * <p>The files are written first, and then the experiment is deleted from the database in a
+   * single transaction with the progress checkpoint. The database rows are the commit point: until
+   * they are gone, the experiment is migrated again on the next attempt, which starts by deleting
+   * whatever files an interrupted attempt left behind.
+   *
+   * @return the progress after migrating it, or null if there are no experiments left to migrate.
+   */
+  private LegacyMigrationProgress migrateNextExperiment() {
+    synchronized (lock) {
+      final SQLiteDatabase db = dbHelper.getWritableDatabase();
+      String experimentId = getFirstDatabaseExperimentId(db);
+      if (experimentId == null) {
+        return null;
+      }
+      LegacyMigrationProgress progress = getLegacyMigrationProgress(db);
+      int migratedCount = progress == null ? 0 : progress.getMigratedCount();
+      Experiment experiment = writeExperimentFiles(db, experimentId, migratedCount);
+      db.beginTransaction();
+      try {
+        deleteDatabaseExperiment(db, experiment, context);
+        setLegacyMigratedCount(db, migratedCount + 1);
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+      int totalCount = progress == null ? 0 : progress.getTotalCount();
+      return new LegacyMigrationProgress(
+          migratedCount + 1, Math.max(totalCount, migratedCount + 1));
+    }
+  }
+
+  /**
+   * Writes the files for the first experiment in the database, as an attempt that is interrupted
+   * before the database is updated would.
+   */
+  @VisibleForTesting
+  void writeNextExperimentFilesOnly() {
     synchronized (lock) {
       final SQLiteDatabase db = dbHelper.getWritableDatabase();
-      migrateExperimentsToFiles(db);
+      writeExperimentFiles(db, getFirstDatabaseExperimentId(db), 0);
     }
   }
 
-  private void migrateExperimentsToFiles(SQLiteDatabase db) {
-    // For each experiment, migrate it over and delete it from the database.
-    List<String> experimentIds = getAllExperimentIds(db);
+  /** Writes the files for a database experiment, replacing any from an earlier attempt. */
+  private Experiment writeExperimentFiles(
+      SQLiteDatabase db, String experimentId, int migratedCount) {
+    // Clean up if a previous attempt at this experiment was not successful / complete.
+    fileMetadataManager.deleteAll(Collections.singletonList(experimentId));
 
-    // Clean up if a previous migration was not successful / complete.
-    fileMetadataManager.deleteAll(experimentIds);
+    Experiment experiment = getDatabaseExperimentById(db, experimentId, context, true);
 
-    int colorIndex = 0;
+    // Assign a color. This is based on the order that experiments are retrieved from
+    // the database so it might not be in any particular order.
     int colorCount = context.getResources().getIntArray(R.array.experiment_colors_array).length;
-    for (String experimentId : experimentIds) {
-      Experiment experiment = getDatabaseExperimentById(db, experimentId, context, true);
-
-      // Assign a color. This is based on the order that experiments are retrieved from
-      // the database so it might not be in any particular order.
-      experiment.getExperimentOverview().setColorIndex(colorIndex);
-      colorIndex = (colorIndex + 1) % colorCount;
-
-      // This prepares the file system for the new experiment.
-      fileMetadataManager.addExperiment(experiment);
-
-      // Remove experiment description, turn it into a text note.
-      if (!TextUtils.isEmpty(experiment.getDescription())) {
-        GoosciTextLabelValue.TextLabelValue descriptionValue =
-            GoosciTextLabelValue.TextLabelValue.newBuilder()
-                .setText(experiment.getDescription())
-                .build();
-        Label descriptionLabel =
-            Label.newLabelWithValue(
-                experiment.getCreationTimeMs() - 500, ValueType.TEXT, descriptionValue, null);
-        experiment.setDescription("");
-        experiment.addLabel(experiment, descriptionLabel);
-      }
-      // Migrate assets
-      for (int i = 0; i < experiment.getLabelCount(); i++) {
-        Label label = experiment.getLabels().get(i);
-        updateLabelPictureAssets(experiment, label);
-      }
-      for (Trial trial : experiment.getTrials()) {
-        // TODO: Also migrate any sensor specific assets needed to view this trial.
-        for (Label trialLabel : trial.getLabels()) {
-          updateLabelPictureAssets(experiment, trialLabel);
-        }
+    experiment.getExperimentOverview().setColorIndex(migratedCount % colorCount);
+
+    // This prepares the file system for the new experiment.
+    fileMetadataManager.addExperiment(experiment);
+
+    // Remove experiment description, turn it into a text note.
+    if (!TextUtils.isEmpty(experiment.getDescription())) {
+      GoosciTextLabelValue.TextLabelValue descriptionValue =
+          GoosciTextLabelValue.TextLabelValue.newBuilder()
+              .setText(experiment.getDescription())
+              .build();
+      Label descriptionLabel =
+          Label.newLabelWithValue(
+              experiment.getCreationTimeMs() - 500, ValueType.TEXT, descriptionValue, null);
+      experiment.setDescription("");
+      experiment.addLabel(experiment, descriptionLabel);
+    }
+    // Migrate assets
+    for (int i = 0; i < experiment.getLabelCount(); i++) {
+      Label label = experiment.getLabels().get(i);
+      updateLabelPictureAssets(experiment, label);
+    }
+    for (Trial trial : experiment.getTrials()) {
+      // TODO: Also migrate any sensor specific assets needed to view this trial.
+      for (Label trialLabel : trial.getLabels()) {
+        updateLabelPictureAssets(experiment, trialLabel);
+      }
+    }
+
+    // Now that all the labels have their assets in the right place, we can save them.
+    fileMetadataManager.updateExperiment(experiment, true);
+    fileMetadataManager.saveImmediately();
+    return experiment;
+  }
+
+  /** Ends the legacy migration once there is nothing left in the database to migrate. */
+  private void finishLegacyMigration() {
+    LegacyMigrationProgress progress;
+    synchronized (lock) {
+      final SQLiteDatabase db = dbHelper.getWritableDatabase();
+      progress = getLegacyMigrationProgress(db);
+      db.delete(Tables.LEGACY_MIGRATION, null, null);
+    }
+    if (progress != null) {
+      int migrated = progress.getMigratedCount();
+      AppSingleton.getInstance(context)
+          .setLegacyMigrationProgress(new LegacyMigrationProgress(migrated, migrated));
+    }
+  }
+
+  /** Returns the progress of the legacy migration, or null if none is in progress. */
+  private static LegacyMigrationProgress getLegacyMigrationProgress(SQLiteDatabase db) {
+    Cursor cursor = null;
+    try {
+      cursor =
+          db.query(
+              Tables.LEGACY_MIGRATION,
+              new String[] {
+                LegacyMigrationColumns.MIGRATED_COUNT, LegacyMigrationColumns.TOTAL_COUNT
+              },
+              null,
+              null,
+              null,
+              null,
+              null);
+      if (!cursor.moveToFirst()) {
+        return null;
+      }
+      return new LegacyMigrationProgress(cursor.getInt(0), cursor.getInt(1));
+    } finally {
+      if (cursor != null) {
+        cursor.close();
       }
+    }
+  }
 
-      // Now that all the labels have their assets in the right place, we can save them.
-      fileMetadataManager.updateExperiment(experiment, true);
-      fileMetadataManager.saveImmediately();
+  private static void setLegacyMigratedCount(SQLiteDatabase db, int migratedCount) {
+    ContentValues values = new ContentValues();
+    values.put(LegacyMigrationColumns.MIGRATED_COUNT, migratedCount);
+    db.update(Tables.LEGACY_MIGRATION, values, null, null);
+  }
 
-      deleteDatabaseExperiment(db, experiment, context);
+  /** Returns the ID of an experiment that is still in the database, or null if there are none. */
+  private static String getFirstDatabaseExperimentId(SQLiteDatabase db) {
+    Cursor cursor = null;
+    try {
+      cursor =
+          db.query(
+              Tables.EXPERIMENTS,
+              new String[] {ExperimentColumns.EXPERIMENT_ID},
+              null,
+              null,
+              null,
+              null,
+              BaseColumns._ID,
+              "1");
+      return cursor.moveToFirst() ? cursor.getString(0) : null;
+    } finally {
+      if (cursor != null) {
+        cursor.close();
+      }
     }
   }
 
@@ -336,89 +496,82 @@ public class SimpleMetaDataManager implements MetaDataManager {
     }
   }
 
-  private List<String> getAllExperimentIds(SQLiteDatabase db) {
-    List<String> experimentIds = new ArrayList<>();
-    Cursor cursor = null;
-    try {
-      cursor =
-          db.query(
-              Tables.EXPERIMENTS,
-              new String[] {ExperimentColumns.EXPERIMENT_ID},
-              null,
-              null,
-              null,
-              null,
-              null);
-      while (cursor.moveToNext()) {
-        experimentIds.add(cursor.getString(0));
-      }
-    } finally {
-      if (cursor != null) {
-        cursor.close();
-      }
-    }
-    return experimentIds;
-  }
-
   @VisibleForTesting
   void migrateProjectData() {
+    while (migrateNextProject()) {}
+  }
+
+  /**
+   * Migrates one project's data to its experiments, and deletes the project, in a single
+   * transaction.
+   *
+   * @return whether there was a project left to migrate.
+   */
+  private boolean migrateNextProject() {
     synchronized (lock) {
       final SQLiteDatabase db = dbHelper.getWritableDatabase();
-      migrateProjectData(db);
-    }
-  }
-
-  private void migrateProjectData(SQLiteDatabase db) {
-    // Get every project and migrate its data to its experiments.
-    List<Project> projects = getDatabaseProjects(db, true);
-    for (Project project : projects) {
-      List<Experiment> experiments = getAllDatabaseExperimentsForProject(db, project);
-      for (Experiment experiment : experiments) {
-        // Migrate project data
-        if (!TextUtils.isEmpty(project.getDescription())) {
-          // Create a label with the description at the start of the experiment.
-          // Because projects do not track their creation time, use the experiment
-          // creation time instead.
-          addDatabaseLabel(
-              db,
-              experiment.getExperimentId(),
-              RecorderController.NOT_RECORDING_RUN_ID,
-              Label.newLabel(experiment.getCreationTimeMs() - 2000, ValueType.TEXT),
-              TextLabelValue.fromText(project.getDescription()));
-        }
-        if (!TextUtils.isEmpty(project.getCoverPhoto())) {
-          // Create a label with the picture at the start of the experiment.
-          // TODO: Copy the project photo for each note. This helps us upgrade later.
-          addDatabaseLabel(
-              db,
-              experiment.getExperimentId(),
-              RecorderController.NOT_RECORDING_RUN_ID,
-              Label.newLabel(experiment.getCreationTimeMs() - 1000, ValueType.PICTURE),
-              PictureLabelValue.fromPicture(project.getCoverPhoto(), ""));
-        }
-        boolean needsWrite = false;
-        if (project.isArchived()) {
-          // If the project is archived, the experiment should be archived.
-          experiment.setArchived(context, appAccount, true);
-          needsWrite = true;
-        }
-        if (!TextUtils.isEmpty(project.getTitle())) {
-          // Experiment title prefixed with Project title, unless project title is not set
-          experiment.setTitle(
-              String.format(
-                  context.getResources().getString(R.string.project_experiment_title),
-                  project.getTitle(),
-                  experiment.getDisplayTitle(context)));
-          needsWrite = true;
-        }
-        if (needsWrite) {
-          updateDatabaseExperiment(db, experiment);
-        }
+      Project project = getFirstDatabaseProject(db);
+      if (project == null) {
+        return false;
       }
-      deleteProjectFromDb(db, project);
+      db.beginTransaction();
+      try {
+        migrateProjectData(db, project);
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+      return true;
     }
   }
 
+  private void migrateProjectData(SQLiteDatabase db, Project project) {
+    List<Experiment> experiments = getAllDatabaseExperimentsForProject(db, project);
+    for (Experiment experiment : experiments) {
+      // Migrate project data
+      if (!TextUtils.isEmpty(project.getDescription())) {
+        // Create a label with the description at the start of the experiment.
+        // Because projects do not track their creation time, use the experiment
+        // creation time instead.
+        addDatabaseLabel(
+            db,
+            experiment.getExperimentId(),
+            RecorderController.NOT_RECORDING_RUN_ID,
+            Label.newLabel(experiment.getCreationTimeMs() - 2000, ValueType.TEXT),
+            TextLabelValue.fromText(project.getDescription()));
+      }
+      if (!TextUtils.isEmpty(project.getCoverPhoto())) {
+        // Create a label with the picture at the start of the experiment.
+        // TODO: Copy the project photo for each note. This helps us upgrade later.
+        addDatabaseLabel(
+            db,
+            experiment.getExperimentId(),
+            RecorderController.NOT_RECORDING_RUN_ID,
+            Label.newLabel(experiment.getCreationTimeMs() - 1000, ValueType.PICTURE),
+            PictureLabelValue.fromPicture(project.getCoverPhoto(), ""));
+      }
+      boolean needsWrite = false;
+      if (project.isArchived()) {
+        // If the project is archived, the experiment should be archived.
+        experiment.setArchived(context, appAccount, true);
+        needsWrite = true;
+      }
+      if (!TextUtils.isEmpty(project.getTitle())) {
+        // Experiment title prefixed with Project title, unless project title is not set
+        experiment.setTitle(
+            String.format(
+                context.getResources().getString(R.string.project_experiment_title),
+                project.getTitle(),
+                experiment.getDisplayTitle(context)));
+        needsWrite = true;
+      }
+      if (needsWrite) {
+        updateDatabaseExperiment(db, experiment);
+      }
+    }
+    deleteProjectFromDb(db, project);
+  }
+
   /**
    * This function is only used as part of the database upgrade which deletes projects, so these
    * experiments returned do not contain their trials, labels, triggers, sensors, etc.
@@ -507,6 +660,28 @@ public class SimpleMetaDataManager implements MetaDataManager {
     return projects;
   }
 
+  /** Returns a project that is still in the database, or null if there are none. */
+  private static Project getFirstDatabaseProject(SQLiteDatabase db) {
+    Cursor cursor = null;
+    try {
+      cursor =
+          db.query(
+              Tables.PROJECTS,
+              ProjectColumns.GET_COLUMNS,
+              null,
+              null,
+              null,
+              null,
+              BaseColumns._ID,
+              "1");
+      return cursor.moveToFirst() ? createProjectFromCursor(cursor) : null;
+    } finally {
+      if (cursor != null) {
+        cursor.close();
+      }
+    }
+  }
+
   @VisibleForTesting
   @Deprecated
   Project newProject() {
@@ -776,6 +951,12 @@ public class SimpleMetaDataManager implements MetaDataManager {
     return getFileMetadataManager().getExperimentOverviews(includeArchived);
   }
 
+  @Override
+  public List<ExperimentOverviewPojo> getExperimentOverviews(
+      boolean includeArchived, int offset, int limit) {
+    return getFileMetadataManager().getExperimentOverviews(includeArchived, offset, limit);
+  }
+
   @VisibleForTesting
   List<ExperimentOverviewPojo> getDatabaseExperimentOverviews(boolean includeArchived) {
     List<ExperimentOverviewPojo> experiments = new ArrayList<>();
@@ -2181,19 +2362,22 @@ public class SimpleMetaDataManager implements MetaDataManager {
     String DEVICE_ID = "device_id";
   }
 
+  /** A single row, present only while a legacy migration is in progress. */
+  public interface LegacyMigrationColumns {
+    /** The number of experiments moved to files so far. */
+    String MIGRATED_COUNT = "migrated_count";
+
+    /** The number of experiments in the database when the migration started. */
+    String TOTAL_COUNT = "total_count";
+  }
+
   /** Manages the SQLite database backing the data for the entire app (per account). */
   private static class DatabaseHelper extends SQLiteOpenHelper {
-    private static final int DB_VERSION = 22;
+    private static final int DB_VERSION = 23;
     private static final String DB_NAME = "main.db";
 
     // Callbacks for database upgrades.
     interface MetadataDatabaseUpgradeCallback {
-      // Called when project data needs to be migrated.
-      void onMigrateProjectData(SQLiteDatabase db);
-
-      // Called when experiment data needs to be migrated.
-      void onMigrateExperimentsToFiles(SQLiteDatabase db);
-
       void onMigrateMyDevicesToProto(SQLiteDatabase db);
     }
 
@@ -2225,6 +2409,7 @@ public class SimpleMetaDataManager implements MetaDataManager {
       createExperimentSensorLayoutTable(db);
       createSensorTriggersTable(db);
       createMyDevicesTable(db);
+      createLegacyMigrationTable(db);
     }
 
     private void createExperimentsTable(SQLiteDatabase db) {
@@ -2256,6 +2441,7 @@ public class SimpleMetaDataManager implements MetaDataManager {
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
       int version = oldVersion;
+      boolean needsLegacyMigration = false;
 
       if ((version == 1 || version == 2) && version < newVersion) {
         // 1 -> 2: Recreate labels table with label_id field.
@@ -2456,18 +2642,33 @@ public class SimpleMetaDataManager implements MetaDataManager {
       }
 
       if (version == 20 && version < newVersion) {
-        // Projects are no longer used; need to tell the metadata manager to integrate that
-        // data into the experiment.
-        upgradeCallback.onMigrateProjectData(db);
+        // Projects are no longer used; the legacy migration integrates that data into the
+        // experiment.
+        needsLegacyMigration = true;
         version = 21;
       }
 
       if (version == 21 && version < newVersion) {
-        // Migrate experiment data into file-based system.
-        upgradeCallback.onMigrateExperimentsToFiles(db);
+        // The legacy migration moves experiment data into the file-based system. It runs in the
+        // background after the upgrade, so that it doesn't hold up opening the database.
+        needsLegacyMigration = true;
         version = 22;
       }
 
+      if (version == 22 && version < newVersion) {
+        createLegacyMigrationTable(db);
+        version = 23;
+      }
+
+      if (needsLegacyMigration) {
+        ContentValues values = new ContentValues();
+        values.put(LegacyMigrationColumns.MIGRATED_COUNT, 0);
+        values.put(
+            LegacyMigrationColumns.TOTAL_COUNT,
+            DatabaseUtils.queryNumEntries(db, Tables.EXPERIMENTS));
+        db.insert(Tables.LEGACY_MIGRATION, null, values);
+      }
+
       // TODO: upgrade my devices (once device spec population is complete and tested).
     }
 
@@ -2669,6 +2870,19 @@ public class SimpleMetaDataManager implements MetaDataManager {
               + MyDevicesColumns.DEVICE_ID
               + ") ON CONFLICT REPLACE)");
     }
+
+    private void createLegacyMigrationTable(SQLiteDatabase db) {
+      db.execSQL(
+          "CREATE TABLE "
+              + Tables.LEGACY_MIGRATION
+              + " ("
+              + BaseColumns._ID
+              + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+              + LegacyMigrationColumns.MIGRATED_COUNT
+              + " INTEGER NOT NULL, "
+              + LegacyMigrationColumns.TOTAL_COUNT
+              + " INTEGER NOT NULL)");
+    }
   }
 
   private static final String STABLE_ID_CHARS =
@@ -305,6 +305,21 @@ public class ExperimentListFragment extends Fragment
                     timing.dumpToLog();
                   });
             });
+    // Legacy experiments show up in the list as they are moved out of the database.
+    AppSingleton.getInstance(applicationContext)
+        .whenLegacyMigrationProgresses()
+        .takeUntil(paused.happens())
+        .subscribe(
+            progress -> {
+              Handler uiHandler = new Handler(applicationContext.getMainLooper());
+              uiHandler.post(
+                  () -> {
+                    if (isFragmentGone()) {
+                      return;
+                    }
+                    loadExperiments();
+                  });
+            });
     loadExperiments();
     syncNow("Sync On Resume");
   }
@@ -1245,7 +1260,7 @@ public class ExperimentListFragment extends Fragment
 
       if (!TextUtils.isEmpty(overview.getImagePath())) {
         PictureUtils.loadExperimentOverviewImage(
-            parentReference.get().appAccount, holder.experimentImage, overview.getImagePath());
+            parentReference.get().appAccount, holder.experimentImage, overview);
       } else {
         // Make sure the scale type is correct for the placeholder
         holder.experimentImage.setScaleType(ImageView.ScaleType.FIT_CENTER);
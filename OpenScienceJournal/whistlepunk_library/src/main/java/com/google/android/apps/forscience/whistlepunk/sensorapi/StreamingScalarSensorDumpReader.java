@@ -0,0 +1,340 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import androidx.annotation.VisibleForTesting;
+import com.google.android.apps.forscience.javalib.FailureListener;
+import com.google.android.apps.forscience.whistlepunk.BatchDataController;
+import com.google.android.apps.forscience.whistlepunk.BatchInsertScalarReading;
+import com.google.android.apps.forscience.whistlepunk.RecordingDataController;
+import com.google.protobuf.CodedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reads an exported {@code ScalarSensorData} proto incrementally from a stream and populates the
+ * database with its contents.
+ *
+ * <p>Unlike {@link ScalarSensorDumpReader}, the full proto is never materialized. Each sensor dump
+ * is decoded directly from the wire into primitive arrays, zoom tiers for several sensors are built
+ * in parallel, and all of the resulting readings are funneled through a single writer so that the
+ * database only ever sees bulk inserts from one thread.
+ */
+public class StreamingScalarSensorDumpReader {
+  // Wire tags (field number << 3 | wire type) from scalar_sensor_data.proto.
+  private static final int TAG_DATA_SENSORS = 10;
+  private static final int TAG_DUMP_TAG = 10;
+  private static final int TAG_DUMP_ROWS = 18;
+  private static final int TAG_DUMP_TRIAL_ID = 26;
+  private static final int TAG_ROW_TIMESTAMP = 8;
+  private static final int TAG_ROW_VALUE = 17;
+
+  private static final int INITIAL_ROW_CAPACITY = 1024;
+
+  // Only a few sensors are decoded ahead of the tier builders, which bounds memory use no matter
+  // how large the file is.
+  private static final int MAX_SENSORS_IN_FLIGHT = 4;
+
+  // Batches handed to the writer but not yet written. When the database is slower than parsing,
+  // tier builders wait for the writer here, and the reader in turn waits for the tier builders.
+  private static final int MAX_BATCHES_QUEUED = MAX_SENSORS_IN_FLIGHT * 2;
+
+  private static final int TIER_THREADS =
+      Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+
+  private static ExecutorService sharedTierExecutor;
+  private static ExecutorService sharedWriteExecutor;
+
+  private final RecordingDataController dataController;
+  private final Executor tierExecutor;
+  private final Executor writeExecutor;
+  private final int zoomBufferSize;
+
+  public StreamingScalarSensorDumpReader(RecordingDataController dataController) {
+    this(dataController, getSharedTierExecutor(), getSharedWriteExecutor());
+  }
+
+  /**
+   * @param tierExecutor builds zoom tiers; may run several sensors at once.
+   * @param writeExecutor must be serial. Every database write is issued from here.
+   */
+  @VisibleForTesting
+  public StreamingScalarSensorDumpReader(
+      RecordingDataController dataController, Executor tierExecutor, Executor writeExecutor) {
+    this.dataController = dataController;
+    this.tierExecutor = tierExecutor;
+    this.writeExecutor = writeExecutor;
+    zoomBufferSize = ScalarSensor.DEFAULT_ZOOM_LEVEL_BETWEEN_TIERS * 2;
+  }
+
+  private static synchronized ExecutorService getSharedTierExecutor() {
+    if (sharedTierExecutor == null) {
+      sharedTierExecutor = Executors.newFixedThreadPool(TIER_THREADS);
+    }
+    return sharedTierExecutor;
+  }
+
+  private static synchronized ExecutorService getSharedWriteExecutor() {
+    if (sharedWriteExecutor == null) {
+      sharedWriteExecutor = Executors.newSingleThreadExecutor();
+    }
+    return sharedWriteExecutor;
+  }
+
+  /**
+   * Reads every sensor dump in {@code in}, which must contain a serialized {@code
+   * ScalarSensorData}. Blocks until all of the data has been handed to the data controller.
+   *
+   * @param idMap maps the trial ids in the stream to the trial ids to store the data under.
+   * @throws IOException if the stream can't be read, or the data controller fails to write
+   */
+  public void readData(InputStream in, Map<String, String> idMap) throws IOException {
+    CodedInputStream input = CodedInputStream.newInstance(in);
+    // Sensor dumps can be much larger than the default 64MB limit.
+    input.setSizeLimit(Integer.MAX_VALUE);
+
+    Semaphore inFlight = new Semaphore(MAX_SENSORS_IN_FLIGHT);
+    SerialWriter writer = new SerialWriter(dataController, writeExecutor);
+    List<FutureTask<Void>> tierTasks = new ArrayList<>();
+    try {
+      // Once a write has failed, the import has failed, so stop reading.
+      while (!writer.hasFailed()) {
+        int tag = input.readTag();
+        if (tag == 0) {
+          break;
+        }
+        if (tag != TAG_DATA_SENSORS) {
+          input.skipField(tag);
+          continue;
+        }
+        inFlight.acquire();
+        SensorDump dump;
+        try {
+          dump = readSensorDump(input);
+        } catch (IOException e) {
+          inFlight.release();
+          throw e;
+        }
+        String trialId = idMap == null ? dump.trialId : idMap.get(dump.trialId);
+        FutureTask<Void> task =
+            new FutureTask<>(
+                () -> {
+                  try {
+                    buildTiersAndWrite(dump, trialId, writer);
+                  } finally {
+                    inFlight.release();
+                  }
+                  return null;
+                });
+        tierTasks.add(task);
+        tierExecutor.execute(task);
+      }
+      for (FutureTask<Void> task : tierTasks) {
+        task.get();
+      }
+      // The writer is serial, so once this runs every earlier batch has been written.
+      FutureTask<Void> barrier = new FutureTask<>(() -> null);
+      writeExecutor.execute(barrier);
+      barrier.get();
+      writer.throwIfFailed();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while importing sensor data");
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to import sensor data", e.getCause());
+    }
+  }
+
+  private SensorDump readSensorDump(CodedInputStream input) throws IOException {
+    int length = input.readRawVarint32();
+    int oldLimit = input.pushLimit(length);
+    SensorDump dump = new SensorDump();
+    while (true) {
+      int tag = input.readTag();
+      if (tag == 0) {
+        break;
+      }
+      switch (tag) {
+        case TAG_DUMP_TAG:
+          dump.tag = input.readString();
+          break;
+        case TAG_DUMP_TRIAL_ID:
+          dump.trialId = input.readString();
+          break;
+        case TAG_DUMP_ROWS:
+          readRow(input, dump);
+          break;
+        default:
+          input.skipField(tag);
+      }
+    }
+    input.popLimit(oldLimit);
+    return dump;
+  }
+
+  private void readRow(CodedInputStream input, SensorDump dump) throws IOException {
+    int length = input.readRawVarint32();
+    int oldLimit = input.pushLimit(length);
+    long timestampMillis = 0;
+    double value = 0;
+    while (true) {
+      int tag = input.readTag();
+      if (tag == 0) {
+        break;
+      }
+      switch (tag) {
+        case TAG_ROW_TIMESTAMP:
+          timestampMillis = input.readInt64();
+          break;
+        case TAG_ROW_VALUE:
+          value = input.readDouble();
+          break;
+        default:
+          input.skipField(tag);
+      }
+    }
+    input.popLimit(oldLimit);
+    dump.add(timestampMillis, value);
+  }
+
+  private void buildTiersAndWrite(SensorDump dump, String trialId, SerialWriter writer)
+      throws IOException {
+    ZoomRecorder zoomRecorder = new ZoomRecorder(dump.tag, zoomBufferSize, 1);
+    zoomRecorder.setTrialId(trialId);
+    try (BatchDataController batchController = new BatchDataController(writer)) {
+      // Matches ScalarSensorDumpReader, which starts from NO_DATA_RECORDED (-1).
+      long lastTimestampMillis = -1;
+      for (int i = 0; i < dump.size; i++) {
+        long timestampMillis = dump.timestamps[i];
+        // Same as ScalarSensorDumpReader: drop anything that would break the time series.
+        if (timestampMillis <= lastTimestampMillis) {
+          continue;
+        }
+        double value = dump.values[i];
+        zoomRecorder.addData(timestampMillis, value, batchController);
+        batchController.addScalarReading(trialId, dump.tag, 0, timestampMillis, value);
+        lastTimestampMillis = timestampMillis;
+      }
+      zoomRecorder.flushAllTiers(batchController);
+    }
+  }
+
+  /** One sensor's rows, stored as primitives rather than as row protos. */
+  private static class SensorDump {
+    String tag = "";
+    String trialId = "";
+    long[] timestamps = new long[INITIAL_ROW_CAPACITY];
+    double[] values = new double[INITIAL_ROW_CAPACITY];
+    int size = 0;
+
+    void add(long timestampMillis, double value) {
+      if (size == timestamps.length) {
+        timestamps = Arrays.copyOf(timestamps, size * 2);
+        values = Arrays.copyOf(values, size * 2);
+      }
+      timestamps[size] = timestampMillis;
+      values[size] = value;
+      size++;
+    }
+  }
+
+  /**
+   * Hands every batch of readings to the serial write executor, waiting while too many are queued,
+   * and remembers the first write that fails. Later writes are skipped.
+   */
+  private static class SerialWriter implements RecordingDataController {
+    private final RecordingDataController dataController;
+    private final Executor writeExecutor;
+    private final Semaphore queued = new Semaphore(MAX_BATCHES_QUEUED);
+    private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+    SerialWriter(RecordingDataController dataController, Executor writeExecutor) {
+      this.dataController = dataController;
+      this.writeExecutor = writeExecutor;
+    }
+
+    @Override
+    public void addScalarReading(
+        String trialId,
+        String sensorId,
+        int resolutionTier,
+        long timestampMillis,
+        double value) {
+      write(
+          () ->
+              dataController.addScalarReading(
+                  trialId, sensorId, resolutionTier, timestampMillis, value));
+    }
+
+    @Override
+    public void addScalarReadings(List<BatchInsertScalarReading> readings) {
+      if (readings.isEmpty()) {
+        return;
+      }
+      write(() -> dataController.addScalarReadings(readings));
+    }
+
+    private void write(Runnable write) {
+      queued.acquireUninterruptibly();
+      writeExecutor.execute(
+          () -> {
+            try {
+              if (failure.get() == null) {
+                write.run();
+              }
+            } catch (RuntimeException e) {
+              failure.compareAndSet(null, e);
+            } finally {
+              queued.release();
+            }
+          });
+    }
+
+    boolean hasFailed() {
+      return failure.get() != null;
+    }
+
+    void throwIfFailed() throws IOException {
+      RuntimeException e = failure.get();
+      if (e != null) {
+        throw new IOException("Failed to write sensor data", e);
+      }
+    }
+
+    @Override
+    public void setDataErrorListenerForSensor(String sensorId, FailureListener listener) {
+      dataController.setDataErrorListenerForSensor(sensorId, listener);
+    }
+
+    @Override
+    public void clearDataErrorListenerForSensor(String sensorId) {
+      dataController.clearDataErrorListenerForSensor(sensorId);
+    }
+  }
+}
@@ -65,6 +65,12 @@ public interface SensorDatabase {
   /** Deletes the scalar records for the given sensor for the given time range. */
   void deleteScalarReadings(String trialId, String sensorTag, TimeRange range);
 
+  /**
+   * Runs {@code work} in a single transaction, so that either all of the changes it makes are
+   * stored or none are. {@code work} must make them on the calling thread.
+   */
+  void runInTransaction(Runnable work);
+
   Observable<ScalarReading> createScalarObservable(
       String trialId, String[] sensorTags, TimeRange range, int resolutionTier);
 
@@ -21,6 +21,7 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import androidx.annotation.VisibleForTesting;
 import androidx.core.util.Pair;
 import com.google.android.apps.forscience.whistlepunk.BatchInsertScalarReading;
@@ -53,7 +54,7 @@ public class SensorDatabaseImpl implements SensorDatabase {
     public static final int CURRENT = V4_TRIALID;
   }
 
-  private static class ScalarSensorsTable {
+  static class ScalarSensorsTable {
     public static final String NAME = "scalar_sensors";
     public static final String DEFAULT_TRIAL_ID = "0";
 
@@ -83,6 +84,21 @@ public class SensorDatabaseImpl implements SensorDatabase {
 
     public static final String INDEX_SQL =
         "CREATE INDEX timestamp ON " + NAME + "(" + Column.TIMESTAMP_MILLIS + ");";
+
+    public static final String INSERT_SQL =
+        "INSERT INTO "
+            + NAME
+            + " ("
+            + Column.TRIAL_ID
+            + ", "
+            + Column.TAG
+            + ", "
+            + Column.TIMESTAMP_MILLIS
+            + ", "
+            + Column.VALUE
+            + ", "
+            + Column.RESOLUTION_TIER
+            + ") VALUES (?, ?, ?, ?, ?);";
   }
 
   private final SQLiteOpenHelper openHelper;
@@ -130,20 +146,36 @@ public class SensorDatabaseImpl implements SensorDatabase {
   @Override
   public void addScalarReadings(List<BatchInsertScalarReading> readings) {
     SQLiteDatabase db = openHelper.getWritableDatabase();
+    // A single compiled statement avoids building a ContentValues and re-parsing the insert SQL
+    // for every row, which dominates the cost of large imports.
+    SQLiteStatement insert = db.compileStatement(ScalarSensorsTable.INSERT_SQL);
     try {
       db.beginTransaction();
       for (BatchInsertScalarReading r : readings) {
-        ContentValues values = new ContentValues();
-        values.put(ScalarSensorsTable.Column.TRIAL_ID, r.trialId);
-        values.put(ScalarSensorsTable.Column.TAG, r.sensorId);
-        values.put(ScalarSensorsTable.Column.TIMESTAMP_MILLIS, r.timestampMillis);
-        values.put(ScalarSensorsTable.Column.VALUE, r.value);
-        values.put(ScalarSensorsTable.Column.RESOLUTION_TIER, r.resolutionTier);
-        db.insert(ScalarSensorsTable.NAME, null, values);
+        if (r.trialId == null) {
+          // Violates the NOT NULL constraint; SQLiteDatabase.insert used to drop these rows.
+          continue;
+        }
+        insert.clearBindings();
+        insert.bindString(1, r.trialId);
+        bindStringOrNull(insert, 2, r.sensorId);
+        insert.bindLong(3, r.timestampMillis);
+        insert.bindDouble(4, r.value);
+        insert.bindLong(5, r.resolutionTier);
+        insert.executeInsert();
       }
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
+      insert.close();
+    }
+  }
+
+  private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+    if (value == null) {
+      statement.bindNull(index);
+    } else {
+      statement.bindString(index, value);
     }
   }
 
@@ -448,6 +480,19 @@ public class SensorDatabaseImpl implements SensorDatabase {
     openHelper.getWritableDatabase().delete(ScalarSensorsTable.NAME, selection, selectionArgs);
   }
 
+  @Override
+  public void runInTransaction(Runnable work) {
+    // Transactions nest, so work can call methods like addScalarReadings that start their own.
+    SQLiteDatabase db = openHelper.getWritableDatabase();
+    db.beginTransaction();
+    try {
+      work.run();
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
   @Override
   public GoosciScalarSensorData.ScalarSensorData getScalarReadingProtosForTrial(
       GoosciExperiment.Experiment experiment, String trialId) {
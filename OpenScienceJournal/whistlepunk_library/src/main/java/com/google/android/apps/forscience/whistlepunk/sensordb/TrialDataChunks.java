@@ -0,0 +1,296 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import com.google.android.apps.forscience.whistlepunk.BatchInsertScalarReading;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorLayout.SensorLayout;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrialDataChunks.ChunkReference;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrialDataChunks.ChunkTier;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrialDataChunks.SensorChunks;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrialDataChunks.TrialDataChunk;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrialDataChunks.TrialDataManifest;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
+import com.google.common.collect.Range;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.math.LongMath;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Converts a trial's sensor data to and from the chunked sync format in trial_data_chunks.proto.
+ *
+ * <p>Chunk windows are aligned to multiples of {@link #CHUNK_DURATION_MS}, so data that hasn't
+ * changed always produces the same chunks. Each chunk carries every resolution tier, so applying
+ * it is a bulk insert with no zoom tiers to rebuild.
+ */
+public class TrialDataChunks {
+  public static final long CHUNK_DURATION_MS = 60 * 1000;
+
+  private static final String CHUNK_SUFFIX = ".chunk";
+
+  // ZoomRecorder keeps adding tiers while there is data to summarize; this is far more than any
+  // recording needs.
+  private static final int MAX_TIERS = 32;
+
+  private TrialDataChunks() {}
+
+  public static String getChunkFileName(String chunkId) {
+    return chunkId + CHUNK_SUFFIX;
+  }
+
+  /**
+   * Splits a trial's sensor data into chunks, and writes each chunk into {@code chunkDirectory}
+   * unless it is already there.
+   *
+   * @return the manifest listing the trial's chunks.
+   */
+  public static TrialDataManifest writeChunks(
+      SensorDatabase sensorDatabase, GoosciTrial.Trial trial, File chunkDirectory)
+      throws IOException {
+    TrialDataManifest.Builder manifest =
+        TrialDataManifest.newBuilder()
+            .setTrialId(trial.getTrialId())
+            .setChunkDurationMillis(CHUNK_DURATION_MS);
+    GoosciTrial.Range range = trial.getRecordingRange();
+    // Same as getScalarReadingProtosForTrial: this protects against corrupted trials with invalid
+    // range end times.
+    if (range.getEndMs() <= range.getStartMs()) {
+      return manifest.build();
+    }
+    if (!chunkDirectory.exists() && !chunkDirectory.mkdirs()) {
+      throw new IOException("Could not create " + chunkDirectory);
+    }
+    TimeRange timeRange = TimeRange.oldest(Range.closed(range.getStartMs(), range.getEndMs()));
+    for (SensorLayout sensor : trial.getSensorLayoutsList()) {
+      String tag = sensor.getSensorId();
+      String storedTrialId = trial.getTrialId();
+      if (sensorDatabase.getScalarReadings(storedTrialId, tag, timeRange, 0, 1).size() == 0) {
+        // Same fallback as getScalarReadingSensorProtos, for trials recorded before trial IDs
+        // were stored with the data.
+        storedTrialId = SensorDatabaseImpl.ScalarSensorsTable.DEFAULT_TRIAL_ID;
+      }
+
+      TreeMap<Long, TrialDataChunk.Builder> windows = new TreeMap<>();
+      for (int tier = 0; tier < MAX_TIERS; tier++) {
+        ScalarReadingList readings =
+            sensorDatabase.getScalarReadings(storedTrialId, tag, timeRange, tier, 0);
+        if (readings.size() == 0) {
+          break;
+        }
+        TierSplitter splitter = new TierSplitter(windows, tier);
+        readings.deliver(splitter);
+        splitter.finish();
+      }
+
+      SensorChunks.Builder sensorChunks = SensorChunks.newBuilder().setTag(tag);
+      for (Map.Entry<Long, TrialDataChunk.Builder> window : windows.entrySet()) {
+        byte[] bytes = window.getValue().build().toByteArray();
+        String chunkId = Hashing.sha256().hashBytes(bytes).toString();
+        writeChunkIfMissing(new File(chunkDirectory, getChunkFileName(chunkId)), bytes);
+        sensorChunks.addChunks(
+            ChunkReference.newBuilder()
+                .setChunkId(chunkId)
+                .setWindowStartMillis(window.getKey()));
+      }
+      manifest.addSensors(sensorChunks);
+    }
+    return manifest.build();
+  }
+
+  private static void writeChunkIfMissing(File file, byte[] bytes) throws IOException {
+    if (file.exists()) {
+      // Chunks are named by their contents, so an existing file already has these bytes.
+      return;
+    }
+    // Write to a temporary file first, so that a partly written chunk never has a valid name.
+    File temp = new File(file.getPath() + ".tmp");
+    try (FileOutputStream out = new FileOutputStream(temp)) {
+      out.write(bytes);
+    }
+    if (!temp.renameTo(file)) {
+      temp.delete();
+      throw new IOException("Could not write " + file);
+    }
+  }
+
+  /**
+   * Reads the chunk in {@code file}.
+   *
+   * @throws IOException if the file can't be read, or its contents don't match {@code chunkId}.
+   */
+  public static TrialDataChunk readChunk(File file, String chunkId) throws IOException {
+    byte[] bytes = Files.toByteArray(file);
+    if (!Hashing.sha256().hashBytes(bytes).toString().equals(chunkId)) {
+      throw new IOException("Chunk " + chunkId + " is corrupt");
+    }
+    return TrialDataChunk.parseFrom(bytes);
+  }
+
+  /** Returns the manifest in {@code file}, or null if there isn't a readable one. */
+  public static TrialDataManifest readManifest(File file) {
+    if (!file.canRead()) {
+      return null;
+    }
+    try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+      return TrialDataManifest.parseFrom(in);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  public static void writeManifest(TrialDataManifest manifest, File file) throws IOException {
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      manifest.writeTo(out);
+    }
+  }
+
+  /**
+   * Compares one sensor's chunks in two manifests.
+   *
+   * @param local the chunks that are already applied locally, or null if none are known.
+   * @return the start of each window whose chunk differs, mapped to the ID of the chunk in {@code
+   *     remote}, or to null if {@code remote} has no data in that window. Windows are in time
+   *     order.
+   */
+  public static Map<Long, String> getChangedWindows(SensorChunks remote, SensorChunks local) {
+    Map<Long, String> localChunks = new HashMap<>();
+    if (local != null) {
+      for (ChunkReference chunk : local.getChunksList()) {
+        localChunks.put(chunk.getWindowStartMillis(), chunk.getChunkId());
+      }
+    }
+    TreeMap<Long, String> changed = new TreeMap<>();
+    for (ChunkReference chunk : remote.getChunksList()) {
+      String localId = localChunks.remove(chunk.getWindowStartMillis());
+      if (!chunk.getChunkId().equals(localId)) {
+        changed.put(chunk.getWindowStartMillis(), chunk.getChunkId());
+      }
+    }
+    for (Long windowStart : localChunks.keySet()) {
+      changed.put(windowStart, null);
+    }
+    return changed;
+  }
+
+  /** Returns each sensor's chunks in {@code manifest}, by sensor tag. */
+  public static Map<String, SensorChunks> getSensorChunks(TrialDataManifest manifest) {
+    Map<String, SensorChunks> result = new LinkedHashMap<>();
+    if (manifest != null) {
+      for (SensorChunks sensor : manifest.getSensorsList()) {
+        result.put(sensor.getTag(), sensor);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Replaces the readings of one sensor in each window with the readings in that window's chunk,
+   * at every resolution tier. This happens in one transaction, so a failure leaves the old readings
+   * in place rather than a mix of old and new.
+   *
+   * @param chunks maps the start of each window to its chunk, or to null to clear the window.
+   */
+  public static void applyChunks(
+      SensorDatabase sensorDatabase,
+      String trialId,
+      String sensorTag,
+      long chunkDurationMillis,
+      Map<Long, TrialDataChunk> chunks) {
+    List<BatchInsertScalarReading> readings = new ArrayList<>();
+    for (TrialDataChunk chunk : chunks.values()) {
+      if (chunk == null) {
+        continue;
+      }
+      for (ChunkTier tier : chunk.getTiersList()) {
+        long timestamp = tier.getFirstTimestampMillis();
+        for (int i = 0; i < tier.getValuesCount(); i++) {
+          if (i > 0) {
+            timestamp += tier.getTimestampDeltas(i - 1);
+          }
+          readings.add(
+              new BatchInsertScalarReading(
+                  trialId, sensorTag, tier.getResolutionTier(), timestamp, tier.getValues(i)));
+        }
+      }
+    }
+    sensorDatabase.runInTransaction(
+        () -> {
+          for (long windowStart : chunks.keySet()) {
+            sensorDatabase.deleteScalarReadings(
+                trialId,
+                sensorTag,
+                TimeRange.oldest(Range.closed(windowStart, windowStart + chunkDurationMillis - 1)));
+          }
+          sensorDatabase.addScalarReadings(readings);
+        });
+  }
+
+  /** Splits one tier's readings, which arrive in time order, into the chunks of their windows. */
+  private static class TierSplitter implements StreamConsumer {
+    private final TreeMap<Long, TrialDataChunk.Builder> windows;
+    private final int tier;
+    private long currentWindow = Long.MIN_VALUE;
+    private ChunkTier.Builder current;
+    private TrialDataChunk.Builder currentChunk;
+    private long lastTimestamp;
+
+    TierSplitter(TreeMap<Long, TrialDataChunk.Builder> windows, int tier) {
+      this.windows = windows;
+      this.tier = tier;
+    }
+
+    @Override
+    public boolean addData(long timestampMillis, double value) {
+      long window = timestampMillis - LongMath.mod(timestampMillis, CHUNK_DURATION_MS);
+      if (current == null || window != currentWindow) {
+        finish();
+        currentWindow = window;
+        currentChunk = windows.get(window);
+        if (currentChunk == null) {
+          currentChunk = TrialDataChunk.newBuilder();
+          windows.put(window, currentChunk);
+        }
+        current =
+            ChunkTier.newBuilder().setResolutionTier(tier).setFirstTimestampMillis(timestampMillis);
+      } else {
+        current.addTimestampDeltas(timestampMillis - lastTimestamp);
+      }
+      current.addValues(value);
+      lastTimestamp = timestampMillis;
+      return true;
+    }
+
+    void finish() {
+      if (current != null) {
+        currentChunk.addTiers(current);
+        current = null;
+      }
+    }
+  }
+}
@@ -58,6 +58,11 @@ public class BleProtocolVersion {
     return patchVersion;
   }
 
+  /** Whether the device can send several readings per message, as a DataBatch (since 1.1.0). */
+  public boolean supportsDataBatches() {
+    return majorVersion > 1 || (majorVersion == 1 && minorVersion >= 1);
+  }
+
   @VisibleForTesting
   public int getMaxMajorVersion() {
     return MAJOR_MAX;
@@ -65,6 +65,12 @@ public class BluetoothSensor extends ScalarSensor {
   public static final BleServiceSpec[] SUPPORTED_SERVICES =
       new BleServiceSpec[] {ANNING_SERVICE_SPEC};
 
+  // Devices that can batch readings are asked for them at 200Hz, ten to a message, which keeps
+  // notifications to a rate BLE connections sustain.
+  private static final int BATCHED_INTERVAL_MS = 5;
+  private static final int BATCHED_SAMPLES_PER_FRAME = 10;
+  private static final int INTERVAL_MS = 20;
+
   private static final long DEFAULT_FREQUENCY_WINDOW = 2000;
   private static final float DEFAULT_FREQUENCY_FILTER = 0;
   private final BleSensorSpec sensor;
@@ -114,6 +120,9 @@ public class BluetoothSensor extends ScalarSensor {
                 }
               });
 
+      // The version the device was configured for from the cache, until the device confirms it.
+      byte[] assumedVersion = null;
+
       @Override
       public void onSuccess() {}
 
@@ -132,11 +141,22 @@ public class BluetoothSensor extends ScalarSensor {
         // For Value (UUID:555a0003), it's a protobuf
         // For Description (UUID:555a0002), it's a string desc (eg. "Goosci Windmill")
         if (characteristic.compareTo(serviceSpec.getVersionId()) == 0) {
+          flow.cacheFirmwareVersion(serviceSpec.getServiceId(), value);
           BleProtocolVersion protocolVersion = new BleProtocolVersion(value);
+          if (assumedVersion != null) {
+            boolean wasBatched = new BleProtocolVersion(assumedVersion).supportsDataBatches();
+            assumedVersion = null;
+            if (protocolVersion.supportsDataBatches() != wasBatched) {
+              // The firmware changed after all, so configure the device again.
+              writeConfig(flow, protocolVersion.supportsDataBatches());
+              BleFlow.run(flow);
+            }
+            return;
+          }
           switch (protocolVersion.getMajorVersion()) {
               // Currently no version requires a special connection sequence
             default:
-              writeConfigAndSetNotification(flow);
+              writeConfigAndSetNotification(flow, protocolVersion.supportsDataBatches(), false);
           }
         }
       }
@@ -171,11 +191,20 @@ public class BluetoothSensor extends ScalarSensor {
 
       @Override
       public void onServicesDiscovered() {
-        if (flow.isCharacteristicValid(serviceSpec.getServiceId(), serviceSpec.getVersionId())) {
+        if (!flow.isCharacteristicValid(serviceSpec.getServiceId(), serviceSpec.getVersionId())) {
+          writeConfigAndSetNotification(flow, false, false);
+          return;
+        }
+        byte[] cachedVersion = flow.getCachedFirmwareVersion(serviceSpec.getServiceId());
+        if (cachedVersion != null) {
+          // The device's services haven't changed since it was last connected, so it most
+          // likely has the same firmware: start it streaming, and check the version after.
+          assumedVersion = cachedVersion;
+          writeConfigAndSetNotification(
+              flow, new BleProtocolVersion(cachedVersion).supportsDataBatches(), true);
+        } else {
           flow.lookupCharacteristic(serviceSpec.getServiceId(), serviceSpec.getVersionId()).read();
           BleFlow.run(flow);
-        } else {
-          writeConfigAndSetNotification(flow);
         }
       }
     };
@@ -191,11 +220,18 @@ public class BluetoothSensor extends ScalarSensor {
     return deviceScaleTransform;
   }
 
-  private byte[] buildConfigProtoForDevice(BleSensorSpec sensor) {
+  @VisibleForTesting
+  static byte[] buildConfigProtoForDevice(BleSensorSpec sensor, boolean batched) {
     GoosciSensor.SensorDataRequest.Builder sdr =
         GoosciSensor.SensorDataRequest.newBuilder()
             .setTimestampKey(42) // arbitrary constant.  TMOLTUAE.
-            .setInterval(Interval.newBuilder().setCount(1).setFrequency(20));
+            .setInterval(
+                Interval.newBuilder()
+                    .setCount(1)
+                    .setFrequency(batched ? BATCHED_INTERVAL_MS : INTERVAL_MS));
+    if (batched) {
+      sdr.setMaxSamplesPerFrame(BATCHED_SAMPLES_PER_FRAME);
+    }
     Pin.Builder pin = Pin.newBuilder();
     String pinName = sensor.getPin();
     PinTypeProvider pinTypeProvider = new PinTypeProvider();
@@ -232,16 +268,24 @@ public class BluetoothSensor extends ScalarSensor {
     return outputStream.toByteArray();
   }
 
-  private void writeConfigAndSetNotification(BleFlow flow) {
-    byte[] sensorConfig = buildConfigProtoForDevice(sensor);
+  private void writeConfigAndSetNotification(
+      BleFlow flow, boolean batched, boolean thenReadVersion) {
+    writeConfig(flow, batched);
+    flow.lookupCharacteristic(serviceSpec.getServiceId(), serviceSpec.getValueId())
+        .enableNotification();
+    if (thenReadVersion) {
+      flow.lookupCharacteristic(serviceSpec.getServiceId(), serviceSpec.getVersionId()).read();
+    }
+    BleFlow.run(flow);
+  }
+
+  private void writeConfig(BleFlow flow, boolean batched) {
+    byte[] sensorConfig = buildConfigProtoForDevice(sensor, batched);
     if (sensorConfig != null
         && flow.isCharacteristicValid(serviceSpec.getServiceId(), serviceSpec.getSettingId())) {
       flow.lookupCharacteristic(serviceSpec.getServiceId(), serviceSpec.getSettingId())
           .write(sensorConfig);
     }
-    flow.lookupCharacteristic(serviceSpec.getServiceId(), serviceSpec.getValueId())
-        .enableNotification();
-    BleFlow.run(flow);
   }
 
   private void readConfigurationFrom(BleSensorSpec bleSensor) {
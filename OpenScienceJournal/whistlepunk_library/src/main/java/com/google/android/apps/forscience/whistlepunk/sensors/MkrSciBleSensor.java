@@ -12,6 +12,7 @@ import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorEnvironmen
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorRecorder;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorStatusListener;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
+import com.google.android.apps.forscience.whistlepunk.sensors.MkrSciValuePipeline.Channel;
 
 /** Class to get sensor data from a MkrSciBle sensor. */
 public class MkrSciBleSensor extends ScalarSensor {
@@ -42,7 +43,7 @@ public class MkrSciBleSensor extends ScalarSensor {
 
   private String characteristic;
 
-  private ValueHandler valueHandler;
+  private Channel channel;
 
   public MkrSciBleSensor(String sensorId, MkrSciBleSensorSpec spec) {
     super(sensorId);
@@ -54,16 +55,16 @@ public class MkrSciBleSensor extends ScalarSensor {
         characteristic = MkrSciBleManager.INPUT_1_UUID;
         switch (sensorHandler) {
           case HANDLER_TEMPERATURE_CELSIUS:
-            valueHandler = new TemperatureCelsiusValueHandler(0);
+            channel = Channel.TEMPERATURE_CELSIUS;
             break;
           case HANDLER_TEMPERATURE_FAHRENHEIT:
-            valueHandler = new TemperatureFahrenheitValueHandler(0);
+            channel = Channel.TEMPERATURE_FAHRENHEIT;
             break;
           case HANDLER_LIGHT:
-            valueHandler = new LightValueHandler(0);
+            channel = Channel.LIGHT;
             break;
           default:
-            valueHandler = new SimpleValueHandler(0);
+            channel = Channel.X;
             break;
         }
         break;
@@ -71,60 +72,60 @@ public class MkrSciBleSensor extends ScalarSensor {
         characteristic = MkrSciBleManager.INPUT_2_UUID;
         switch (sensorHandler) {
           case HANDLER_LIGHT:
-            valueHandler = new LightValueHandler(0);
+            channel = Channel.LIGHT;
             break;
           default:
-            valueHandler = new SimpleValueHandler(0);
+            channel = Channel.X;
             break;
         }
         break;
       case SENSOR_INPUT_3:
         characteristic = MkrSciBleManager.INPUT_3_UUID;
-        valueHandler = new SimpleValueHandler(0);
+        channel = Channel.X;
         break;
       case SENSOR_VOLTAGE:
         characteristic = MkrSciBleManager.VOLTAGE_UUID;
-        valueHandler = new SimpleValueHandler(0);
+        channel = Channel.X;
         break;
       case SENSOR_CURRENT:
         characteristic = MkrSciBleManager.CURRENT_UUID;
-        valueHandler = new SimpleValueHandler(0);
+        channel = Channel.X;
         break;
       case SENSOR_RESISTANCE:
         characteristic = MkrSciBleManager.RESISTANCE_UUID;
-        valueHandler = new ResistanceValueHandler(0);
+        channel = Channel.RESISTANCE;
         break;
       case SENSOR_ACCELEROMETER_X:
         characteristic = MkrSciBleManager.ACCELEROMETER_UUID;
-        valueHandler = new AccelerometerValueHandler(0);
+        channel = Channel.ACCELERATION_X;
         break;
       case SENSOR_ACCELEROMETER_Y:
         characteristic = MkrSciBleManager.ACCELEROMETER_UUID;
-        valueHandler = new AccelerometerValueHandler(1);
+        channel = Channel.ACCELERATION_Y;
         break;
       case SENSOR_ACCELEROMETER_Z:
         characteristic = MkrSciBleManager.ACCELEROMETER_UUID;
-        valueHandler = new AccelerometerValueHandler(2);
+        channel = Channel.ACCELERATION_Z;
         break;
       case SENSOR_LINEAR_ACCELEROMETER:
         characteristic = MkrSciBleManager.ACCELEROMETER_UUID;
-        valueHandler = new LinearAccelerometerValueHandler();
+        channel = Channel.ACCELERATION_MAGNITUDE;
         break;
       case SENSOR_GYROSCOPE_X:
         characteristic = MkrSciBleManager.GYROSCOPE_UUID;
-        valueHandler = new SimpleValueHandler(0);
+        channel = Channel.X;
         break;
       case SENSOR_GYROSCOPE_Y:
         characteristic = MkrSciBleManager.GYROSCOPE_UUID;
-        valueHandler = new SimpleValueHandler(1);
+        channel = Channel.Y;
         break;
       case SENSOR_GYROSCOPE_Z:
         characteristic = MkrSciBleManager.GYROSCOPE_UUID;
-        valueHandler = new SimpleValueHandler(2);
+        channel = Channel.Z;
         break;
       case SENSOR_MAGNETOMETER:
         characteristic = MkrSciBleManager.MAGNETOMETER_UUID;
-        valueHandler = new MagnetometerValueHandler();
+        channel = Channel.MAGNETIC_FIELD_MAGNITUDE;
         break;
       default:
         throw new RuntimeException("Unmanaged mkr sci ble sensor: " + sensorKind);
@@ -138,24 +139,22 @@ public class MkrSciBleSensor extends ScalarSensor {
       Context context,
       SensorStatusListener listener) {
     final Clock clock = environment.getDefaultClock();
-    final MkrSciBleManager.Listener mkrSciBleListener =
-        new MkrSciBleManager.Listener() {
+    final MkrSciValuePipeline.Listener pipelineListener =
+        new MkrSciValuePipeline.Listener() {
 
           private boolean connected = false;
 
           @Override
-          public void onFirmwareVersion(long firmwareVersion) {
-            valueHandler.setFirmwareVersion(firmwareVersion);
-          }
-
-          @Override
-          public void onValuesUpdated(double[] values) {
+          public void onChannelsUpdated(double[] channels) {
             if (!connected) {
               connected = true;
               handler.post(
                   () -> listener.onSourceStatus(getId(), SensorStatusListener.STATUS_CONNECTED));
             }
-            valueHandler.handle(c, clock.getNow(), values);
+            double value = channel.of(channels);
+            if (!Double.isNaN(value)) {
+              c.addData(clock.getNow(), value);
+            }
           }
         };
     return new AbstractSensorRecorder() {
@@ -163,152 +162,17 @@ public class MkrSciBleSensor extends ScalarSensor {
       public void startObserving() {
         handler.post(
             () -> listener.onSourceStatus(getId(), SensorStatusListener.STATUS_CONNECTING));
-        MkrSciBleManager.subscribe(context, address, characteristic, mkrSciBleListener);
+        MkrSciValuePipeline.subscribe(context, address, characteristic, pipelineListener, channel);
       }
 
       @Override
       public void stopObserving() {
-        MkrSciBleManager.unsubscribe(address, characteristic, mkrSciBleListener);
+        MkrSciValuePipeline.unsubscribe(address, characteristic, pipelineListener);
         listener.onSourceStatus(getId(), SensorStatusListener.STATUS_DISCONNECTED);
       }
     };
   }
 
-  private abstract static class ValueHandler {
-    long firmwareVersion = 0;
-
-    void setFirmwareVersion(long version) {
-      this.firmwareVersion = version;
-    }
-
-    abstract void handle(StreamConsumer c, long ts, double[] values);
-  }
-
-  private static class SimpleValueHandler extends ValueHandler {
-    private int index;
-
-    private SimpleValueHandler(int index) {
-      this.index = index;
-    }
-
-    @Override
-    public void handle(StreamConsumer c, long ts, double[] values) {
-      if (values.length > index) {
-        c.addData(ts, values[index]);
-      }
-    }
-  }
-
-  private static class TemperatureCelsiusValueHandler extends ValueHandler {
-    private int index;
-
-    private TemperatureCelsiusValueHandler(int index) {
-      this.index = index;
-    }
-
-    @Override
-    public void handle(StreamConsumer c, long ts, double[] values) {
-      if (values.length > index) {
-        c.addData(ts, (((values[index] * 3300d) / 1023d) - 500) * 0.1d);
-      }
-    }
-  }
-
-  private static class TemperatureFahrenheitValueHandler extends ValueHandler {
-    private int index;
-
-    private TemperatureFahrenheitValueHandler(int index) {
-      this.index = index;
-    }
-
-    @Override
-    public void handle(StreamConsumer c, long ts, double[] values) {
-      if (values.length > index) {
-        final double celsius = (((values[index] * 3300d) / 1023d) - 500) * 0.1d;
-        c.addData(ts, (celsius * (9d / 5d)) + 32d);
-      }
-    }
-  }
-
-  private static class LightValueHandler extends ValueHandler {
-    private int index;
-
-    private LightValueHandler(int index) {
-      this.index = index;
-    }
-
-    @Override
-    public void handle(StreamConsumer c, long ts, double[] values) {
-      if (values.length > index) {
-        c.addData(ts, ((values[index] * 3300d) / 1023d) * 0.5d);
-      }
-    }
-  }
-
-  private static class AccelerometerValueHandler extends ValueHandler {
-    private int index;
-
-    private AccelerometerValueHandler(int index) {
-      this.index = index;
-    }
-
-    @Override
-    public void handle(StreamConsumer c, long ts, double[] values) {
-      if (values.length > index) {
-        c.addData(ts, values[index] * (firmwareVersion < 2 ? 10 : 1));
-      }
-    }
-  }
-
-  private static class LinearAccelerometerValueHandler extends ValueHandler {
-    @Override
-    public void handle(StreamConsumer c, long ts, double[] values) {
-      if (values.length < 3) {
-        return;
-      }
-      c.addData(
-          ts,
-          Math.sqrt((values[0] * values[0]) + (values[1] * values[1]) + (values[2] * values[2]))
-              * (firmwareVersion < 2 ? 10 : 1));
-    }
-  }
-
-  private static class ResistanceValueHandler extends ValueHandler {
-
-    private int index;
-
-    private ResistanceValueHandler(int index) {
-      this.index = index;
-    }
-
-    @Override
-    public void handle(StreamConsumer c, long ts, double[] values) {
-      if (values.length > index) {
-        double v = values[index] / 1000D;
-        if (v > 1000D) {
-          c.addData(ts, 1000D);
-        } else if (v < 0D) {
-          c.addData(ts, 0D);
-        } else {
-          c.addData(ts, v);
-        }
-      }
-    }
-  }
-
-  private static class MagnetometerValueHandler extends ValueHandler {
-    @Override
-    public void handle(StreamConsumer c, long ts, double[] values) {
-      if (values.length < 3) {
-        return;
-      }
-      c.addData(
-          ts,
-          Math.sqrt((values[0] * values[0]) + (values[1] * values[1]) + (values[2] * values[2]))
-              * 100);
-    }
-  }
-
   public static MkrSciBleSensorSpec validateSpec(MkrSciBleSensorSpec spec) {
     String sensorKind = spec.getSensor();
     switch (sensorKind) {
@@ -0,0 +1,234 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensors;
+
+import android.content.Context;
+import androidx.annotation.VisibleForTesting;
+import com.google.android.apps.forscience.ble.MkrSciBleManager;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Turns the values that a characteristic of an MKR Sci board notifies into the channels sensors
+ * show: single axes, magnitudes, and readings converted to other units.
+ *
+ * <p>All the sensors reading one characteristic of a board share a pipeline, and with it a single
+ * subscription to {@link MkrSciBleManager}. For each notification, every channel that some
+ * listener wants is derived once, into an array that is reused for every notification, and then
+ * handed to all the listeners. A listener can want several channels, such as all three axes of the
+ * accelerometer, and gets them together.
+ */
+public class MkrSciValuePipeline implements MkrSciBleManager.Listener {
+  /** Values derived from a characteristic's notifications. */
+  public enum Channel {
+    /** The first value as notified; also the only value of single-value characteristics. */
+    X,
+    Y,
+    Z,
+    TEMPERATURE_CELSIUS,
+    TEMPERATURE_FAHRENHEIT,
+    LIGHT,
+    RESISTANCE,
+    ACCELERATION_X,
+    ACCELERATION_Y,
+    ACCELERATION_Z,
+    ACCELERATION_MAGNITUDE,
+    MAGNETIC_FIELD_MAGNITUDE;
+
+    /** @return this channel's value in {@code channels}, as passed to a {@link Listener} */
+    public double of(double[] channels) {
+      return channels[ordinal()];
+    }
+
+    /** @return the value of this channel, or NaN if {@code values} has too few values for it */
+    @VisibleForTesting
+    double derive(double[] values, long firmwareVersion) {
+      switch (this) {
+        case X:
+          return axis(values, 0);
+        case Y:
+          return axis(values, 1);
+        case Z:
+          return axis(values, 2);
+        case TEMPERATURE_CELSIUS:
+          return celsius(axis(values, 0));
+        case TEMPERATURE_FAHRENHEIT:
+          return (celsius(axis(values, 0)) * (9d / 5d)) + 32d;
+        case LIGHT:
+          return ((axis(values, 0) * 3300d) / 1023d) * 0.5d;
+        case RESISTANCE:
+          return Math.max(0D, Math.min(1000D, axis(values, 0) / 1000D));
+        case ACCELERATION_X:
+          return axis(values, 0) * accelerationScale(firmwareVersion);
+        case ACCELERATION_Y:
+          return axis(values, 1) * accelerationScale(firmwareVersion);
+        case ACCELERATION_Z:
+          return axis(values, 2) * accelerationScale(firmwareVersion);
+        case ACCELERATION_MAGNITUDE:
+          return magnitude(values) * accelerationScale(firmwareVersion);
+        case MAGNETIC_FIELD_MAGNITUDE:
+          return magnitude(values) * 100;
+        default:
+          return Double.NaN;
+      }
+    }
+
+    private static double axis(double[] values, int index) {
+      return values.length > index ? values[index] : Double.NaN;
+    }
+
+    private static double magnitude(double[] values) {
+      if (values.length < 3) {
+        return Double.NaN;
+      }
+      return Math.sqrt((values[0] * values[0]) + (values[1] * values[1]) + (values[2] * values[2]));
+    }
+
+    private static double celsius(double value) {
+      return (((value * 3300d) / 1023d) - 500) * 0.1d;
+    }
+
+    // Firmware before version 2 reports acceleration in tenths.
+    private static double accelerationScale(long firmwareVersion) {
+      return firmwareVersion < 2 ? 10 : 1;
+    }
+  }
+
+  /** Receives the channels derived from each notification. */
+  public interface Listener {
+    /**
+     * Called on the Bluetooth callback thread. {@code channels} is indexed by {@link
+     * Channel#ordinal()}; read the ones this listener subscribed to with {@link Channel#of}. A
+     * channel is NaN if the notification had too few values for it. The array is reused for the
+     * next notification, so copy anything that's needed after returning.
+     */
+    void onChannelsUpdated(double[] channels);
+  }
+
+  // address/characteristic > pipeline
+  private static final Map<String, MkrSciValuePipeline> pipelines = new HashMap<>();
+
+  /** Starts delivering {@code channels} from the board at {@code address}. */
+  public static void subscribe(
+      Context context,
+      String address,
+      String characteristic,
+      Listener listener,
+      Channel... channels) {
+    synchronized (pipelines) {
+      String key = address + "/" + characteristic;
+      MkrSciValuePipeline pipeline = pipelines.get(key);
+      if (pipeline == null) {
+        pipeline = new MkrSciValuePipeline();
+        pipelines.put(key, pipeline);
+        MkrSciBleManager.subscribe(context, address, characteristic, pipeline);
+      }
+      pipeline.add(listener, channels);
+    }
+  }
+
+  public static void unsubscribe(String address, String characteristic, Listener listener) {
+    synchronized (pipelines) {
+      String key = address + "/" + characteristic;
+      MkrSciValuePipeline pipeline = pipelines.get(key);
+      if (pipeline != null && pipeline.remove(listener)) {
+        pipelines.remove(key);
+        MkrSciBleManager.unsubscribe(address, characteristic, pipeline);
+      }
+    }
+  }
+
+  /** The listeners, and the channels they want between them. Replaced rather than modified. */
+  private static class State {
+    final Listener[] listeners;
+    final Channel[][] listenerChannels;
+    final Channel[] channels;
+
+    State(Listener[] listeners, Channel[][] listenerChannels) {
+      this.listeners = listeners;
+      this.listenerChannels = listenerChannels;
+      EnumSet<Channel> wanted = EnumSet.noneOf(Channel.class);
+      for (Channel[] some : listenerChannels) {
+        wanted.addAll(Arrays.asList(some));
+      }
+      channels = wanted.toArray(new Channel[0]);
+    }
+  }
+
+  // Read on every notification, so the listeners are only changed by replacing the state.
+  private volatile State state = new State(new Listener[0], new Channel[0][]);
+
+  // Only touched on the Bluetooth callback thread.
+  private final double[] derived = new double[Channel.values().length];
+
+  private volatile long firmwareVersion = 0;
+
+  @VisibleForTesting
+  MkrSciValuePipeline() {
+    Arrays.fill(derived, Double.NaN);
+  }
+
+  @VisibleForTesting
+  synchronized void add(Listener listener, Channel... channels) {
+    State old = state;
+    Listener[] listeners = Arrays.copyOf(old.listeners, old.listeners.length + 1);
+    Channel[][] listenerChannels =
+        Arrays.copyOf(old.listenerChannels, old.listenerChannels.length + 1);
+    listeners[old.listeners.length] = listener;
+    listenerChannels[old.listeners.length] = channels.clone();
+    state = new State(listeners, listenerChannels);
+  }
+
+  /** @return true if that was the last listener */
+  @VisibleForTesting
+  synchronized boolean remove(Listener listener) {
+    State old = state;
+    int index = Arrays.asList(old.listeners).indexOf(listener);
+    if (index < 0) {
+      return old.listeners.length == 0;
+    }
+    Listener[] listeners = new Listener[old.listeners.length - 1];
+    Channel[][] listenerChannels = new Channel[listeners.length][];
+    for (int i = 0, j = 0; i < old.listeners.length; i++) {
+      if (i != index) {
+        listeners[j] = old.listeners[i];
+        listenerChannels[j++] = old.listenerChannels[i];
+      }
+    }
+    state = new State(listeners, listenerChannels);
+    return listeners.length == 0;
+  }
+
+  @Override
+  public void onFirmwareVersion(long firmwareVersion) {
+    this.firmwareVersion = firmwareVersion;
+  }
+
+  @Override
+  public void onValuesUpdated(double[] values) {
+    State current = state;
+    long version = firmwareVersion;
+    for (Channel channel : current.channels) {
+      derived[channel.ordinal()] = channel.derive(values, version);
+    }
+    for (Listener listener : current.listeners) {
+      listener.onChannelsUpdated(derived);
+    }
+  }
+}
@@ -18,20 +18,84 @@ package com.google.android.apps.forscience.whistlepunk.sensors;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import com.google.android.apps.forscience.javalib.Delay;
 import com.google.android.apps.forscience.javalib.Scheduler;
+import com.google.android.apps.forscience.javalib.TimerWheel;
 
-/** Schedules tasks using built-in Android looper */
+/**
+ * Schedules tasks on the main thread.
+ *
+ * <p>Sensors reschedule refresh and timeout tasks very often (sometimes for every sample), so
+ * rather than a Handler message per task, all system schedulers share one {@link TimerWheel},
+ * which a single main-thread message drives.
+ */
 public class SystemScheduler implements Scheduler {
-  private final Handler handler = new Handler(Looper.getMainLooper());
+  private static final long TICK_MILLIS = 10;
+  private static final int WHEEL_SIZE = 512;
+
+  private static final MainThreadTimerWheel wheel = new MainThreadTimerWheel();
 
   @Override
   public void schedule(Delay delay, Runnable doThis) {
-    handler.postDelayed(doThis, delay.asMillis());
+    long millis = delay.asMillis();
+    // A deadline in the past is due right away, so that zero delays run on the next pass of the
+    // main looper, as with Handler.post, rather than waiting for the next tick.
+    wheel.schedule(millis == 0 ? 0 : SystemClock.uptimeMillis() + millis, doThis);
   }
 
   @Override
   public void unschedule(Runnable removeThis) {
-    handler.removeCallbacks(removeThis);
+    wheel.unschedule(removeThis);
+  }
+
+  private static class MainThreadTimerWheel implements Runnable {
+    private static final long NOT_POSTED = -1;
+
+    private final TimerWheel timers =
+        new TimerWheel(SystemClock.uptimeMillis(), TICK_MILLIS, WHEEL_SIZE);
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // The time this is posted to run at, or NOT_POSTED. Guarded by this.
+    private long postedAt = NOT_POSTED;
+
+    void schedule(long deadlineMillis, Runnable doThis) {
+      timers.schedule(deadlineMillis, doThis);
+      // The wheel only fires on tick boundaries, so there's no point running before the next one.
+      runBy((deadlineMillis + TICK_MILLIS - 1) / TICK_MILLIS * TICK_MILLIS);
+    }
+
+    void unschedule(Runnable removeThis) {
+      // If this leaves nothing scheduled, the posted message finds nothing to do and isn't
+      // reposted, which is cheaper than removing it on every unschedule.
+      timers.unschedule(removeThis);
+    }
+
+    @Override
+    public void run() {
+      synchronized (this) {
+        postedAt = NOT_POSTED;
+      }
+      long now = SystemClock.uptimeMillis();
+      Runnable due;
+      while ((due = timers.poll(now)) != null) {
+        due.run();
+      }
+      long next = timers.getNextDeadlineMillis();
+      if (next != TimerWheel.NO_DEADLINE) {
+        runBy(next);
+      }
+    }
+
+    /** Makes sure that this runs no later than {@code millis}. */
+    private synchronized void runBy(long millis) {
+      if (postedAt != NOT_POSTED && postedAt <= millis) {
+        // Pushing a deadline back, the common case, needs no message queue work at all.
+        return;
+      }
+      handler.removeCallbacks(this);
+      handler.postAtTime(this, millis);
+      postedAt = millis;
+    }
   }
 }
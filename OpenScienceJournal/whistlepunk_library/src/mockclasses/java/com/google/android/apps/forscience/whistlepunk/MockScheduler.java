@@ -42,9 +42,9 @@ public class MockScheduler implements Scheduler {
     }
   }
 
-  private long currentTime = 0;
+  protected long currentTime = 0;
   private TreeSet<QueuedRunnable> runnables = new TreeSet<>();
-  private int scheduleCount = 0;
+  protected int scheduleCount = 0;
 
   @Override
   public void schedule(Delay delay, Runnable doThis) {
@@ -29,6 +29,8 @@ import com.google.android.apps.forscience.whistlepunk.metadata.ExperimentSensors
 import com.google.android.apps.forscience.whistlepunk.metadata.ExternalSensorSpec;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrialDataChunks.TrialDataChunk;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrialDataChunks.TrialDataManifest;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
 import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
@@ -161,6 +163,13 @@ public class StubDataController implements DataController {
   public void getExperimentOverviews(
       boolean includeArchived, MaybeConsumer<List<ExperimentOverviewPojo>> onSuccess) {}
 
+  @Override
+  public void getExperimentOverviews(
+      boolean includeArchived,
+      int offset,
+      int limit,
+      MaybeConsumer<List<ExperimentOverviewPojo>> onSuccess) {}
+
   @Override
   public List<ExperimentOverviewPojo> blockingGetExperimentOverviews(boolean includeArchived) {
     return null;
@@ -229,4 +238,19 @@ public class StubDataController implements DataController {
   public void writeTrialProtoToFile(
       String experimentId, String trialId, final MaybeConsumer<File> onSuccess)
       throws IOException {}
+
+  @Override
+  public void writeTrialDataChunks(
+      String experimentId,
+      String trialId,
+      File chunkDirectory,
+      MaybeConsumer<TrialDataManifest> onSuccess) {}
+
+  @Override
+  public void applyTrialDataChunks(
+      String trialId,
+      String sensorTag,
+      long chunkDurationMillis,
+      Map<Long, TrialDataChunk> chunks,
+      MaybeConsumer<Success> onSuccess) {}
 }
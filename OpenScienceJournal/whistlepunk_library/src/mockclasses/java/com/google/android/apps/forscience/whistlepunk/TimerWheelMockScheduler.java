@@ -0,0 +1,71 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.android.apps.forscience.whistlepunk;
+
+import com.google.android.apps.forscience.javalib.Delay;
+import com.google.android.apps.forscience.javalib.TimerWheel;
+
+/**
+ * A MockScheduler backed by a {@link TimerWheel}, in virtual time, so that tests run the same
+ * timer code as {@link com.google.android.apps.forscience.whistlepunk.sensors.SystemScheduler},
+ * deterministically. Unlike MockScheduler, runnables run in deadline order, each seeing the clock
+ * at the tick it fired on.
+ */
+public class TimerWheelMockScheduler extends MockScheduler {
+  private final TimerWheel wheel;
+
+  public TimerWheelMockScheduler() {
+    this(1, 64);
+  }
+
+  public TimerWheelMockScheduler(long tickMillis, int wheelSize) {
+    wheel = new TimerWheel(currentTime, tickMillis, wheelSize);
+  }
+
+  @Override
+  public void schedule(Delay delay, Runnable doThis) {
+    scheduleCount++;
+    if (delay.asMillis() == 0) {
+      doThis.run();
+    } else {
+      wheel.schedule(currentTime + delay.asMillis(), doThis);
+    }
+  }
+
+  @Override
+  public void unschedule(Runnable removeThis) {
+    wheel.unschedule(removeThis);
+  }
+
+  @Override
+  public void incrementTime(long ms) {
+    long targetTime = currentTime + ms;
+    long next;
+    while ((next = wheel.getNextDeadlineMillis()) != TimerWheel.NO_DEADLINE
+        && next <= targetTime) {
+      currentTime = Math.max(currentTime, next);
+      Runnable due;
+      while ((due = wheel.poll(currentTime)) != null) {
+        due.run();
+      }
+    }
+    currentTime = targetTime;
+  }
+
+  public int getPendingCount() {
+    return wheel.size();
+  }
+}
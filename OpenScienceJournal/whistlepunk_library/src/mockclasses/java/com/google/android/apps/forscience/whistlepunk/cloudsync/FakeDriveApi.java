@@ -0,0 +1,532 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.cloudsync;
+
+import android.content.Context;
+import com.google.android.apps.forscience.whistlepunk.accounts.AppAccount;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciExperimentLibrary;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
+import com.google.android.apps.forscience.whistlepunk.metadata.Version.FileVersion;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * A DriveApi that keeps its files in a local directory, for testing and benchmarking sync without
+ * a Drive account.
+ *
+ * <p>Each DriveApi method makes the same number of simulated requests as GoogleDriveApiImpl makes
+ * real ones. Requests can be slowed down with a fixed latency and a bandwidth limit, and made to
+ * fail, and the fake counts calls, requests and bytes transferred. Several DriveSyncManagers can
+ * share one instance to simulate several devices syncing the same account.
+ */
+public class FakeDriveApi implements DriveApi {
+  private static final String APP_DATA_FOLDER = "appDataFolder";
+  private static final String ROOT_FOLDER = "root";
+  private static final String FOLDER_NAME = "Open Science Journal";
+  private static final String VERSION_PROTO_FILE = "version.proto";
+
+  private static class RemoteFile {
+    private final String id;
+    private final String parentId;
+    private final boolean folder;
+    private String title;
+    private long version;
+    private boolean trashed;
+
+    RemoteFile(String id, String title, String parentId, boolean folder) {
+      this.id = id;
+      this.title = title;
+      this.parentId = parentId;
+      this.folder = folder;
+    }
+  }
+
+  /** A snapshot of a file's metadata, like the File objects returned by the Drive API. */
+  private static class FileMetadata implements DriveFile {
+    private final String id;
+    private final String title;
+    private final long version;
+
+    FileMetadata(RemoteFile file) {
+      id = file.id;
+      title = file.title;
+      version = file.version;
+    }
+
+    @Override
+    public long getVersion() {
+      return version;
+    }
+
+    @Override
+    public String getId() {
+      return id;
+    }
+
+    @Override
+    public String getTitle() {
+      return title;
+    }
+  }
+
+  private final File rootDirectory;
+
+  private final Object lock = new Object();
+  private final Map<String, RemoteFile> files = new LinkedHashMap<>();
+  private int nextId = 1;
+  private long lastVersion = 0;
+
+  private volatile long latencyMillis = 0;
+  private volatile long bandwidthBytesPerSecond = 0;
+  private double failureRate = 0;
+  private Random random = new Random();
+  private int requestsToFail = 0;
+
+  private final Map<String, Integer> callCounts = new TreeMap<>();
+  private int requestCount = 0;
+  private int injectedFailureCount = 0;
+  private long bytesUploaded = 0;
+  private long bytesDownloaded = 0;
+
+  /** Creates an empty Drive that stores file contents in {@code rootDirectory}. */
+  public FakeDriveApi(File rootDirectory) {
+    this.rootDirectory = rootDirectory;
+    rootDirectory.mkdirs();
+  }
+
+  /** Sets how long each request takes, not counting the time to transfer its contents. */
+  public void setLatencyMillis(long latencyMillis) {
+    this.latencyMillis = latencyMillis;
+  }
+
+  /** Limits the speed of each transfer, or removes the limit if {@code bytesPerSecond} is 0. */
+  public void setBandwidthBytesPerSecond(long bytesPerSecond) {
+    this.bandwidthBytesPerSecond = bytesPerSecond;
+  }
+
+  /** Makes each request fail with the given probability, chosen by a generator seeded with seed. */
+  public void setFailureRate(double failureRate, long seed) {
+    synchronized (lock) {
+      this.failureRate = failureRate;
+      this.random = new Random(seed);
+    }
+  }
+
+  /** Makes the next {@code count} requests fail. */
+  public void failNextRequests(int count) {
+    synchronized (lock) {
+      requestsToFail = count;
+    }
+  }
+
+  /** Returns how many times each DriveApi method was called since the last reset. */
+  public Map<String, Integer> getCallCounts() {
+    synchronized (lock) {
+      return new TreeMap<>(callCounts);
+    }
+  }
+
+  /** Returns the number of simulated HTTP requests since the last reset. */
+  public int getRequestCount() {
+    synchronized (lock) {
+      return requestCount;
+    }
+  }
+
+  public int getInjectedFailureCount() {
+    synchronized (lock) {
+      return injectedFailureCount;
+    }
+  }
+
+  public long getBytesUploaded() {
+    synchronized (lock) {
+      return bytesUploaded;
+    }
+  }
+
+  public long getBytesDownloaded() {
+    synchronized (lock) {
+      return bytesDownloaded;
+    }
+  }
+
+  /** Resets the counters, but keeps the files. */
+  public void resetStats() {
+    synchronized (lock) {
+      callCounts.clear();
+      requestCount = 0;
+      injectedFailureCount = 0;
+      bytesUploaded = 0;
+      bytesDownloaded = 0;
+    }
+  }
+
+  private void countCall(String method) {
+    synchronized (lock) {
+      Integer count = callCounts.get(method);
+      callCounts.put(method, count == null ? 1 : count + 1);
+    }
+  }
+
+  /**
+   * Simulates one request that sends {@code bytesSent} and receives {@code bytesReceived}. Failed
+   * requests take as long as successful ones, and don't transfer anything.
+   */
+  private void request(long bytesSent, long bytesReceived) throws IOException {
+    boolean fail;
+    synchronized (lock) {
+      requestCount++;
+      fail = requestsToFail > 0 || (failureRate > 0 && random.nextDouble() < failureRate);
+      if (requestsToFail > 0) {
+        requestsToFail--;
+      }
+      if (fail) {
+        injectedFailureCount++;
+      }
+    }
+    long bandwidth = bandwidthBytesPerSecond;
+    long transferMillis = bandwidth > 0 ? (bytesSent + bytesReceived) * 1000 / bandwidth : 0;
+    try {
+      long millis = latencyMillis + transferMillis;
+      if (millis > 0) {
+        Thread.sleep(millis);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted during simulated request");
+    }
+    if (fail) {
+      throw new IOException("Simulated request failure");
+    }
+    synchronized (lock) {
+      bytesUploaded += bytesSent;
+      bytesDownloaded += bytesReceived;
+    }
+  }
+
+  private RemoteFile getFile(String fileId) throws FileNotFoundException {
+    synchronized (lock) {
+      RemoteFile file = files.get(fileId);
+      if (file == null) {
+        throw new FileNotFoundException("No file with ID " + fileId);
+      }
+      return file;
+    }
+  }
+
+  private RemoteFile findChild(String parentId, String title) {
+    synchronized (lock) {
+      for (RemoteFile file : files.values()) {
+        if (title.equals(file.title) && parentId.equals(file.parentId)) {
+          return file;
+        }
+      }
+      return null;
+    }
+  }
+
+  private File getContentFile(String fileId) {
+    return new File(rootDirectory, fileId);
+  }
+
+  private RemoteFile createFile(String title, String parentId, boolean folder) {
+    synchronized (lock) {
+      RemoteFile file = new RemoteFile("fake" + nextId++, title, parentId, folder);
+      file.version = ++lastVersion;
+      files.put(file.id, file);
+      return file;
+    }
+  }
+
+  private void writeContents(RemoteFile file, byte[] contents) throws IOException {
+    // Hold the lock while writing, so that readers never see partly written contents.
+    synchronized (lock) {
+      Files.write(contents, getContentFile(file.id));
+      file.version = ++lastVersion;
+    }
+  }
+
+  private String insertFile(File localFile, String parentId) throws IOException {
+    return insertFile(localFile.getName(), Files.toByteArray(localFile), parentId);
+  }
+
+  private String insertFile(String title, byte[] contents, String parentId) throws IOException {
+    request(contents.length, 0);
+    RemoteFile file = createFile(title, parentId, false);
+    writeContents(file, contents);
+    return file.id;
+  }
+
+  private void updateFile(String fileId, File localFile) throws IOException {
+    byte[] contents = Files.toByteArray(localFile);
+    request(contents.length, 0);
+    writeContents(getFile(fileId), contents);
+  }
+
+  private byte[] downloadFile(String fileId) throws IOException {
+    byte[] contents;
+    synchronized (lock) {
+      getFile(fileId);
+      contents = Files.toByteArray(getContentFile(fileId));
+    }
+    request(0, contents.length);
+    return contents;
+  }
+
+  private void patchTitle(String fileId, String title) throws IOException {
+    request(0, 0);
+    synchronized (lock) {
+      getFile(fileId).title = title;
+    }
+  }
+
+  @Override
+  public DriveApi init(
+      HttpTransport transport,
+      JsonFactory jsonFactory,
+      AppAccount appAccount,
+      Context applicationContext) {
+    return this;
+  }
+
+  @Override
+  public GoosciExperimentLibrary.ExperimentLibrary downloadExperimentLibraryFile(String fileId)
+      throws IOException {
+    countCall("downloadExperimentLibraryFile");
+    return GoosciExperimentLibrary.ExperimentLibrary.parseFrom(downloadFile(fileId));
+  }
+
+  @Override
+  public GoosciExperiment.Experiment downloadExperimentProtoFile(String fileId)
+      throws IOException {
+    countCall("downloadExperimentProtoFile");
+    return GoosciExperiment.Experiment.parseFrom(downloadFile(fileId));
+  }
+
+  @Override
+  public String getRemoteExperimentLibraryFileId() throws IOException {
+    countCall("getRemoteExperimentLibraryFileId");
+    request(0, 0);
+    RemoteFile library = findChild(APP_DATA_FOLDER, DriveSyncManager.EXPERIMENT_LIBRARY_PROTO);
+    return library == null ? null : library.id;
+  }
+
+  @Override
+  public void insertExperimentLibraryFile(File libraryFile) throws IOException {
+    countCall("insertExperimentLibraryFile");
+    insertFile(
+        DriveSyncManager.EXPERIMENT_LIBRARY_PROTO, Files.toByteArray(libraryFile), APP_DATA_FOLDER);
+  }
+
+  @Override
+  public void updateExperimentLibraryFile(File libraryFile, String fileId) throws IOException {
+    countCall("updateExperimentLibraryFile");
+    updateFile(fileId, libraryFile);
+  }
+
+  @Override
+  public File downloadExperimentAsset(String packageId, File experimentDirectory, String fileName)
+      throws IOException {
+    countCall("downloadExperimentAsset");
+    File outputFile = new File(experimentDirectory, fileName);
+    outputFile.getParentFile().mkdirs();
+    request(0, 0);
+    RemoteFile remote = findChild(packageId, outputFile.getName());
+    if (remote != null) {
+      Files.write(downloadFile(remote.id), outputFile);
+    }
+    return outputFile;
+  }
+
+  @Override
+  public String getExperimentPackageId(Context context, String directoryId) throws IOException {
+    countCall("getExperimentPackageId");
+    request(0, 0);
+    return createFile("Experiment", directoryId, true).id;
+  }
+
+  @Override
+  public boolean getFileExists(String fileId) throws IOException {
+    countCall("getFileExists");
+    request(0, 0);
+    synchronized (lock) {
+      RemoteFile file = files.get(fileId);
+      return file != null && !file.trashed;
+    }
+  }
+
+  @Override
+  public Map<String, Long> getAllDriveExperimentVersions() throws IOException {
+    countCall("getAllDriveExperimentVersions");
+    request(0, 0);
+    Map<String, Long> versionMap = new HashMap<>();
+    synchronized (lock) {
+      for (RemoteFile file : files.values()) {
+        // Drive reports the files in a trashed folder as trashed too.
+        RemoteFile parent = files.get(file.parentId);
+        if (DriveSyncManager.EXPERIMENT_PROTO_FILE.equals(file.title)
+            && !file.trashed
+            && (parent == null || !parent.trashed)) {
+          versionMap.put(file.parentId, file.version);
+        }
+      }
+    }
+    return versionMap;
+  }
+
+  @Override
+  public DriveFile getExperimentProtoMetadata(String packageId) throws IOException {
+    countCall("getExperimentProtoMetadata");
+    return getProtoMetadata(packageId);
+  }
+
+  private DriveFile getProtoMetadata(String packageId) throws IOException {
+    request(0, 0);
+    synchronized (lock) {
+      RemoteFile proto = findChild(packageId, DriveSyncManager.EXPERIMENT_PROTO_FILE);
+      return proto == null ? null : new FileMetadata(proto);
+    }
+  }
+
+  @Override
+  public long insertExperimentProto(File localFile, String packageId, String experimentTitle)
+      throws IOException {
+    countCall("insertExperimentProto");
+    insertFile(DriveSyncManager.EXPERIMENT_PROTO_FILE, Files.toByteArray(localFile), packageId);
+    patchTitle(packageId, experimentTitle);
+    FileVersion version = FileVersion.newBuilder().setMinorVersion(0).setVersion(1).build();
+    insertFile(VERSION_PROTO_FILE, version.toByteArray(), packageId);
+    return getProtoMetadata(packageId).getVersion();
+  }
+
+  @Override
+  public long updateExperimentProto(
+      File localFile,
+      DriveFile serverExperimentProtoMetadata,
+      String packageId,
+      String experimentTitle)
+      throws IOException {
+    countCall("updateExperimentProto");
+    updateFile(serverExperimentProtoMetadata.getId(), localFile);
+    patchTitle(packageId, experimentTitle);
+    return getProtoMetadata(packageId).getVersion();
+  }
+
+  @Override
+  public String createNewSJFolder() throws IOException {
+    countCall("createNewSJFolder");
+    request(0, 0);
+    return createFile(FOLDER_NAME, ROOT_FOLDER, true).id;
+  }
+
+  @Override
+  public void trashFileById(String fileId) throws IOException {
+    countCall("trashFileById");
+    request(0, 0);
+    synchronized (lock) {
+      getFile(fileId).trashed = true;
+    }
+  }
+
+  @Override
+  public void uploadFile(File localFile, String packageId) throws IOException {
+    countCall("uploadFile");
+    request(0, 0);
+    RemoteFile existing = findChild(packageId, localFile.getName());
+    if (existing != null) {
+      updateFile(existing.id, localFile);
+    } else {
+      insertFile(localFile, packageId);
+    }
+  }
+
+  @Override
+  public void deleteFileFromPackage(String fileName, String packageId) throws IOException {
+    countCall("deleteFileFromPackage");
+    request(0, 0);
+    RemoteFile existing = findChild(packageId, fileName);
+    if (existing == null) {
+      return;
+    }
+    request(0, 0);
+    synchronized (lock) {
+      files.remove(existing.id);
+      getContentFile(existing.id).delete();
+    }
+  }
+
+  @Override
+  public int getPackageVersion(String packageId) throws IOException {
+    countCall("getPackageVersion");
+    request(0, 0);
+    RemoteFile version = findChild(packageId, VERSION_PROTO_FILE);
+    if (version == null) {
+      // Same as GoogleDriveApiImpl: packages without version info are version 1.
+      return 1;
+    }
+    return FileVersion.parseFrom(downloadFile(version.id)).getVersion();
+  }
+
+  @Override
+  public long getFileVersion(String fileId) throws IOException {
+    countCall("getFileVersion");
+    request(0, 0);
+    synchronized (lock) {
+      return getFile(fileId).version;
+    }
+  }
+
+  @Override
+  public boolean sjFolderExists() throws IOException {
+    countCall("sjFolderExists");
+    request(0, 0);
+    synchronized (lock) {
+      for (RemoteFile file : files.values()) {
+        if (file.folder && FOLDER_NAME.equals(file.title)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  @Override
+  public int countSJExperiments() throws IOException {
+    countCall("countSJExperiments");
+    request(0, 0);
+    int count = 0;
+    synchronized (lock) {
+      for (RemoteFile file : files.values()) {
+        if (DriveSyncManager.EXPERIMENT_PROTO_FILE.equals(file.title)) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+}
@@ -22,17 +22,25 @@ import android.bluetooth.BluetoothGattService;
 import android.content.Context;
 import com.google.android.apps.forscience.ble.BleClient;
 import com.google.android.apps.forscience.ble.BleFlow;
+import com.google.android.apps.forscience.ble.GattLayoutCache;
+import com.google.android.apps.forscience.ble.GattOperationScheduler;
+import com.google.android.apps.forscience.whistlepunk.MockScheduler;
 import io.reactivex.Single;
 import java.util.UUID;
 
 public class FakeBleClient implements BleClient {
   public String expectedAddress = null;
   public String mostRecentAddress = null;
+  public final MockScheduler scheduler = new MockScheduler();
+  public final GattOperationScheduler operationScheduler =
+      new GattOperationScheduler(scheduler, scheduler.getClock());
 
   private Context context;
+  private GattLayoutCache layoutCache;
 
   public FakeBleClient(Context context) {
     this.context = context;
+    layoutCache = new GattLayoutCache(context);
   }
 
   @Override
@@ -86,4 +94,14 @@ public class FakeBleClient implements BleClient {
   public Single<BleClient> whenConnected() {
     return Single.just(this);
   }
+
+  @Override
+  public GattOperationScheduler getOperationScheduler() {
+    return operationScheduler;
+  }
+
+  @Override
+  public GattLayoutCache getLayoutCache() {
+    return layoutCache;
+  }
 }
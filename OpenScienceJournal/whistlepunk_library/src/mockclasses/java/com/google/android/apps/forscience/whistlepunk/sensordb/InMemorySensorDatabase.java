@@ -224,6 +224,11 @@ public class InMemorySensorDatabase implements SensorDatabase {
     }
   }
 
+  @Override
+  public void runInTransaction(Runnable work) {
+    work.run();
+  }
+
   @Override
   public Observable<ScalarReading> createScalarObservable(
       String trialId, String[] sensorTags, TimeRange range, int resolutionTier) {
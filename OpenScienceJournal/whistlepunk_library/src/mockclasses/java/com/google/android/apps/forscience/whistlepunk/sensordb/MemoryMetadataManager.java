@@ -37,6 +37,7 @@ import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -108,6 +109,16 @@ public class MemoryMetadataManager implements MetaDataManager {
     return result;
   }
 
+  @Override
+  public List<ExperimentOverviewPojo> getExperimentOverviews(
+      boolean includeArchived, int offset, int limit) {
+    List<ExperimentOverviewPojo> all = getExperimentOverviews(includeArchived);
+    Collections.sort(
+        all, (eo1, eo2) -> Long.compare(eo2.getLastUsedTimeMs(), eo1.getLastUsedTimeMs()));
+    int from = Math.min(offset, all.size());
+    return new ArrayList<>(all.subList(from, (int) Math.min((long) from + limit, all.size())));
+  }
+
   @Override
   public Experiment importExperimentFromZip(Uri zipUri, ContentResolver resolver) {
     return null;
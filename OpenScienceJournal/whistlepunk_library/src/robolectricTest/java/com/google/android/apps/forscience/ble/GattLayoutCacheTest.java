@@ -0,0 +1,68 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.ble;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+@RunWith(RobolectricTestRunner.class)
+public class GattLayoutCacheTest {
+  private static final UUID SERVICE = UUID.fromString("555a0001-0aaa-467a-9538-01f0652c74e8");
+  private static final UUID VALUE = UUID.fromString("555a0003-0aaa-467a-9538-01f0652c74e8");
+  private static final UUID VERSION = UUID.fromString("555a0011-0aaa-467a-9538-01f0652c74e8");
+  private static final byte[] FIRMWARE = new byte[] {0x40, (byte) 0x88};
+
+  @Test
+  public void testSameLayout() {
+    new GattLayoutCache(RuntimeEnvironment.application)
+        .put("address", SERVICE, list(VALUE, VERSION), FIRMWARE);
+
+    // Survives the cache object, and doesn't depend on the order characteristics are listed in.
+    GattLayoutCache cache = new GattLayoutCache(RuntimeEnvironment.application);
+    assertArrayEquals(FIRMWARE, cache.getFirmwareVersion("address", SERVICE, list(VERSION, VALUE)));
+  }
+
+  @Test
+  public void testDifferentLayout() {
+    GattLayoutCache cache = new GattLayoutCache(RuntimeEnvironment.application);
+    cache.put("address", SERVICE, list(VALUE, VERSION), FIRMWARE);
+    assertNull(cache.getFirmwareVersion("address", SERVICE, list(VALUE)));
+    assertNull(cache.getFirmwareVersion("other", SERVICE, list(VALUE, VERSION)));
+    assertNull(cache.getFirmwareVersion("address", VALUE, list(VALUE, VERSION)));
+  }
+
+  @Test
+  public void testReplace() {
+    GattLayoutCache cache = new GattLayoutCache(RuntimeEnvironment.application);
+    cache.put("address", SERVICE, list(VALUE, VERSION), FIRMWARE);
+    cache.put("address", SERVICE, list(VALUE), new byte[] {0x08});
+    assertNull(cache.getFirmwareVersion("address", SERVICE, list(VALUE, VERSION)));
+    assertArrayEquals(new byte[] {0x08}, cache.getFirmwareVersion("address", SERVICE, list(VALUE)));
+  }
+
+  private static List<UUID> list(UUID... ids) {
+    return Arrays.asList(ids);
+  }
+}
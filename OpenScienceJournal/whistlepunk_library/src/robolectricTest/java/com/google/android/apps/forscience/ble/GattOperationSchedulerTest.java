@@ -0,0 +1,186 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.ble;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.apps.forscience.ble.GattOperationScheduler.Kind;
+import com.google.android.apps.forscience.whistlepunk.MockScheduler;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.FakeBleClient;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+@RunWith(RobolectricTestRunner.class)
+public class GattOperationSchedulerTest {
+  private final MockScheduler scheduler = new MockScheduler();
+  private final List<String> started = new ArrayList<>();
+  private final List<String> timedOut = new ArrayList<>();
+
+  private class RecordingOperation implements GattOperationScheduler.Operation {
+    private final String name;
+    private final boolean startable;
+
+    RecordingOperation(String name) {
+      this(name, true);
+    }
+
+    RecordingOperation(String name, boolean startable) {
+      this.name = name;
+      this.startable = startable;
+    }
+
+    @Override
+    public boolean start() {
+      started.add(name);
+      return startable;
+    }
+
+    @Override
+    public void onTimeout() {
+      timedOut.add(name);
+    }
+  }
+
+  private GattOperationScheduler createOperations(int maxRunning, int maxConnecting) {
+    return new GattOperationScheduler(scheduler, scheduler.getClock(), maxRunning, maxConnecting);
+  }
+
+  @Test
+  public void testOneOperationPerDevice() {
+    GattOperationScheduler operations = createOperations(4, 1);
+    operations.submit("a", Kind.WRITE, new RecordingOperation("a1"));
+    operations.submit("a", Kind.SUBSCRIBE, new RecordingOperation("a2"));
+    operations.submit("b", Kind.WRITE, new RecordingOperation("b1"));
+    assertEquals(list("a1", "b1"), started);
+
+    operations.onComplete("a", Kind.WRITE);
+    assertEquals(list("a1", "b1", "a2"), started);
+  }
+
+  @Test
+  public void testIgnoresOtherEvents() {
+    GattOperationScheduler operations = createOperations(4, 1);
+    operations.submit("a", Kind.WRITE, new RecordingOperation("a1"));
+    operations.submit("a", Kind.READ, new RecordingOperation("a2"));
+    operations.onComplete("a", Kind.READ);
+    operations.onComplete("b", Kind.WRITE);
+    assertEquals(list("a1"), started);
+
+    operations.onDisconnected("a");
+    assertEquals(list("a1", "a2"), started);
+  }
+
+  @Test
+  public void testConnectsOneAtATime() {
+    GattOperationScheduler operations = createOperations(4, 1);
+    operations.submit("a", Kind.CONNECT, new RecordingOperation("a"));
+    operations.submit("b", Kind.CONNECT, new RecordingOperation("b"));
+    operations.submit("c", Kind.READ, new RecordingOperation("c"));
+    assertEquals(list("a", "c"), started);
+
+    operations.onComplete("a", Kind.CONNECT);
+    assertEquals(list("a", "c", "b"), started);
+  }
+
+  @Test
+  public void testPriority() {
+    GattOperationScheduler operations = createOperations(1, 1);
+    operations.submit("a", Kind.WRITE, new RecordingOperation("a"));
+    operations.submit("b", Kind.READ, new RecordingOperation("b"));
+    operations.submit("c", Kind.SUBSCRIBE, new RecordingOperation("c"));
+    operations.submit("d", Kind.READ, new RecordingOperation("d"));
+
+    operations.onComplete("a", Kind.WRITE);
+    operations.onComplete("c", Kind.SUBSCRIBE);
+    operations.onComplete("b", Kind.READ);
+    assertEquals(list("a", "c", "b", "d"), started);
+    assertEquals(2, operations.getMetrics(Kind.READ).getStarted());
+  }
+
+  @Test
+  public void testTimeout() {
+    GattOperationScheduler operations = createOperations(4, 1);
+    operations.submit("a", Kind.CONNECT, new RecordingOperation("a1"));
+    operations.submit("a", Kind.WRITE, new RecordingOperation("a2"));
+    operations.submit("b", Kind.CONNECT, new RecordingOperation("b"));
+
+    scheduler.incrementTime(9999);
+    assertEquals(list("a1"), started);
+    scheduler.incrementTime(1);
+    assertEquals(list("a1"), timedOut);
+    assertTrue(started.contains("a2"));
+    assertTrue(started.contains("b"));
+
+    // Events after the timeout don't complete what runs next.
+    operations.onComplete("a", Kind.CONNECT);
+    assertEquals(0, operations.getQueuedCount("a"));
+    GattOperationScheduler.Metrics metrics = operations.getMetrics(Kind.CONNECT);
+    assertEquals(1, metrics.getTimedOut());
+    assertEquals(10000, metrics.getMaxWaitMillis());
+  }
+
+  @Test
+  public void testFailedStartRunsNext() {
+    GattOperationScheduler operations = createOperations(4, 1);
+    operations.submit("a", Kind.CONNECT, new RecordingOperation("a1", false));
+    operations.submit("a", Kind.DISCOVER, new RecordingOperation("a2"));
+    operations.submit("b", Kind.CONNECT, new RecordingOperation("b"));
+    assertEquals(list("a1", "a2", "b"), started);
+    assertEquals(1, operations.getMetrics(Kind.CONNECT).getFailedToStart());
+  }
+
+  @Test
+  public void testCancel() {
+    GattOperationScheduler operations = createOperations(4, 1);
+    RecordingOperation second = new RecordingOperation("a2");
+    operations.submit("a", Kind.WRITE, new RecordingOperation("a1"));
+    operations.submit("a", Kind.WRITE, second);
+    operations.cancel("a", second);
+    operations.onComplete("a", Kind.WRITE);
+    assertEquals(list("a1"), started);
+  }
+
+  @Test
+  public void testFlowsConnectInTurn() {
+    FakeBleClient client = new FakeBleClient(RuntimeEnvironment.application);
+    client.expectedAddress = "a";
+    BleFlow first = client.createFlowFor("a").connect();
+    BleFlow second = client.createFlowFor("b").connect();
+    BleFlow.run(first);
+    BleFlow.run(second);
+    assertEquals("a", client.mostRecentAddress);
+
+    MyBleService.getBroadcastManager(RuntimeEnvironment.application)
+        .sendBroadcastSync(BleEvents.createIntent(BleEvents.GATT_CONNECT, "a"));
+    assertEquals("b", client.mostRecentAddress);
+    first.close();
+    second.close();
+  }
+
+  private static List<String> list(String... names) {
+    List<String> result = new ArrayList<>();
+    for (String name : names) {
+      result.add(name);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.ble;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import com.google.android.apps.forscience.ble.MkrSciBleManager.GattHandler;
+import com.google.android.apps.forscience.ble.MkrSciBleManager.ValueType;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/** Tests for {@link MkrSciBleManager} */
+@RunWith(RobolectricTestRunner.class)
+public class MkrSciBleManagerTest {
+  private static class RecordingListener implements MkrSciBleManager.Listener {
+    final List<double[]> values = new ArrayList<>();
+
+    @Override
+    public void onFirmwareVersion(long firmwareVersion) {}
+
+    @Override
+    public void onValuesUpdated(double[] values) {
+      this.values.add(values.clone());
+    }
+  }
+
+  @Test
+  public void testParse() {
+    assertArrayEquals(
+        new double[] {0x1234},
+        MkrSciBleManager.parse(ValueType.UINT16, new byte[] {0x34, 0x12}, null),
+        0);
+    assertArrayEquals(
+        new double[] {0xFFFFFFFFL},
+        MkrSciBleManager.parse(ValueType.UINT32, new byte[] {-1, -1, -1, -1}, null),
+        0);
+    assertArrayEquals(
+        new double[] {1.5, -2},
+        MkrSciBleManager.parse(ValueType.SFLOAT_ARR, floats(1.5f, -2f), null),
+        0);
+    assertNull(MkrSciBleManager.parse(ValueType.SFLOAT, new byte[] {0, 0}, null));
+  }
+
+  @Test
+  public void testParseReusesTarget() {
+    double[] target = new double[3];
+    assertSame(target, MkrSciBleManager.parse(ValueType.SFLOAT_ARR, floats(1f, 2f, 3f), target));
+    assertEquals(1, MkrSciBleManager.parse(ValueType.SFLOAT_ARR, floats(1f), target).length);
+  }
+
+  @Test
+  public void testDispatch() {
+    GattHandler gattHandler = new GattHandler(MoreExecutors.directExecutor());
+    RecordingListener first = new RecordingListener();
+    RecordingListener second = new RecordingListener();
+    gattHandler.subscribe(MkrSciBleManager.ACCELEROMETER_UUID, first);
+    gattHandler.subscribe(MkrSciBleManager.ACCELEROMETER_UUID, second);
+
+    BluetoothGattCharacteristic accelerometer =
+        new BluetoothGattCharacteristic(UUID.fromString(MkrSciBleManager.ACCELEROMETER_UUID), 0, 0);
+    accelerometer.setValue(floats(1f, 2f, 3e10f));
+    gattHandler.onCharacteristicChanged(null, accelerometer);
+    gattHandler.unsubscribe(MkrSciBleManager.ACCELEROMETER_UUID, first);
+    accelerometer.setValue(floats(4f, 5f, 6f));
+    gattHandler.onCharacteristicChanged(null, accelerometer);
+
+    assertEquals(1, first.values.size());
+    assertArrayEquals(new double[] {1, 2, 2000000000D}, first.values.get(0), 0);
+    assertEquals(2, second.values.size());
+    assertArrayEquals(new double[] {4, 5, 6}, second.values.get(1), 0);
+
+    List<MkrSciBleManager.NotificationRate> rates = gattHandler.getNotificationRates();
+    assertEquals(1, rates.size());
+    assertEquals(MkrSciBleManager.ACCELEROMETER_UUID, rates.get(0).characteristic);
+    assertEquals(2, rates.get(0).count);
+  }
+
+  private static byte[] floats(float... values) {
+    byte[] bytes = new byte[4 * values.length];
+    for (int i = 0; i < values.length; i++) {
+      int bits = Float.floatToIntBits(values[i]);
+      for (int b = 0; b < 4; b++) {
+        bytes[4 * i + b] = (byte) (bits >> (8 * b));
+      }
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.android.apps.forscience.javalib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.google.android.apps.forscience.whistlepunk.Clock;
+import com.google.android.apps.forscience.whistlepunk.TimerWheelMockScheduler;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class TimerWheelTest {
+  private static final Runnable NOTHING =
+      new Runnable() {
+        @Override
+        public void run() {}
+      };
+
+  @Test
+  public void pollInDeadlineOrderNeverEarly() {
+    TimerWheel wheel = new TimerWheel(0, 10, 8);
+    Runnable later = new TestRunnable();
+    Runnable sooner = new TestRunnable();
+    wheel.schedule(25, later);
+    wheel.schedule(15, sooner);
+    assertEquals(20, wheel.getNextDeadlineMillis());
+
+    assertNull(wheel.poll(19));
+    assertSame(sooner, wheel.poll(20));
+    assertNull(wheel.poll(20));
+    assertNull(wheel.poll(29));
+    assertSame(later, wheel.poll(30));
+    assertEquals(TimerWheel.NO_DEADLINE, wheel.getNextDeadlineMillis());
+  }
+
+  @Test
+  public void nextDeadlineFollowsScheduleAndUnschedule() {
+    TimerWheel wheel = new TimerWheel(0, 10, 8);
+    Runnable later = new TestRunnable();
+    Runnable sooner = new TestRunnable();
+    wheel.schedule(50, later);
+    assertEquals(50, wheel.getNextDeadlineMillis());
+    wheel.schedule(30, sooner);
+    assertEquals(30, wheel.getNextDeadlineMillis());
+    assertNull(wheel.poll(20));
+    assertEquals(30, wheel.getNextDeadlineMillis());
+    wheel.unschedule(sooner);
+    assertEquals(50, wheel.getNextDeadlineMillis());
+    assertSame(later, wheel.poll(50));
+    assertEquals(TimerWheel.NO_DEADLINE, wheel.getNextDeadlineMillis());
+  }
+
+  @Test
+  public void nextDeadlineNeverLaterThanFarTimers() {
+    TimerWheel wheel = new TimerWheel(0, 1, 4);
+    Runnable sooner = new TestRunnable();
+    wheel.schedule(10, NOTHING);
+    wheel.schedule(1, sooner);
+    wheel.unschedule(sooner);
+    // The wheel only looks one turn ahead, so it may answer early, but never late.
+    long next = wheel.getNextDeadlineMillis();
+    while (next < 10) {
+      assertNull(wheel.poll(next));
+      next = wheel.getNextDeadlineMillis();
+    }
+    assertEquals(10, next);
+    assertSame(NOTHING, wheel.poll(next));
+  }
+
+  @Test
+  public void farTimersWaitForTheirTurn() {
+    TimerWheel wheel = new TimerWheel(0, 1, 4);
+    wheel.schedule(10, NOTHING);
+    // Shares a slot with ticks 2 and 6, but isn't due until 10.
+    assertNull(wheel.poll(2));
+    assertNull(wheel.poll(6));
+    assertSame(NOTHING, wheel.poll(10));
+  }
+
+  @Test
+  public void overdueTimersFireAfterLongGap() {
+    TimerWheel wheel = new TimerWheel(0, 1, 4);
+    wheel.schedule(3, NOTHING);
+    wheel.schedule(5, NOTHING);
+    assertSame(NOTHING, wheel.poll(1000));
+    assertSame(NOTHING, wheel.poll(1000));
+    assertNull(wheel.poll(1000));
+  }
+
+  @Test
+  public void reschedulingReusesTimers() {
+    TimerWheel wheel = new TimerWheel(0, 10, 8);
+    for (int i = 0; i < 1000; i++) {
+      wheel.unschedule(NOTHING);
+      wheel.schedule(i, NOTHING);
+    }
+    assertEquals(1, wheel.size());
+    assertNull(wheel.poll(998));
+    assertSame(NOTHING, wheel.poll(1000));
+  }
+
+  @Test
+  public void unscheduleRemovesEveryTimerForRunnable() {
+    TimerWheel wheel = new TimerWheel(0, 10, 8);
+    Runnable other = new TestRunnable();
+    wheel.schedule(10, NOTHING);
+    wheel.schedule(20, other);
+    wheel.schedule(30, NOTHING);
+    assertSame(NOTHING, wheel.poll(10));
+    wheel.schedule(40, NOTHING);
+    wheel.unschedule(NOTHING);
+    assertEquals(1, wheel.size());
+    assertSame(other, wheel.poll(100));
+    assertNull(wheel.poll(100));
+  }
+
+  @Test
+  public void mockSchedulerRunsInVirtualTime() {
+    final TimerWheelMockScheduler scheduler = new TimerWheelMockScheduler();
+    final Clock clock = scheduler.getClock();
+    final List<Long> runTimes = new ArrayList<>();
+    Runnable recordTime =
+        new Runnable() {
+          @Override
+          public void run() {
+            runTimes.add(clock.getNow());
+          }
+        };
+    scheduler.schedule(Delay.millis(300), recordTime);
+    scheduler.schedule(Delay.millis(100), recordTime);
+    // Reschedules itself, like a refresh.
+    scheduler.schedule(
+        Delay.millis(150),
+        new Runnable() {
+          @Override
+          public void run() {
+            runTimes.add(-clock.getNow());
+            scheduler.schedule(Delay.millis(100), this);
+          }
+        });
+
+    scheduler.incrementTime(400);
+    assertEquals(400, clock.getNow());
+    assertEquals("[100, -150, -250, 300, -350]", runTimes.toString());
+    assertEquals(1, scheduler.getPendingCount());
+    assertEquals(6, scheduler.getScheduleCount());
+  }
+
+  private static class TestRunnable implements Runnable {
+    @Override
+    public void run() {}
+  }
+}
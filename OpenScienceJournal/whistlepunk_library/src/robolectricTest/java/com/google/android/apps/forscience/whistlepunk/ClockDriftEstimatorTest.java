@@ -0,0 +1,82 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class ClockDriftEstimatorTest {
+  @Test
+  public void testSingleObservation() {
+    ClockDriftEstimator estimator = new ClockDriftEstimator(10, 1000);
+    assertFalse(estimator.hasObservations());
+    estimator.addObservation(100, 5000);
+    assertTrue(estimator.hasObservations());
+    assertEquals(5000, estimator.toPhoneTime(100));
+    assertEquals(5050, estimator.toPhoneTime(150));
+  }
+
+  @Test
+  public void testKeepsLeastDelayedObservation() {
+    ClockDriftEstimator estimator = new ClockDriftEstimator(10, 1000);
+    estimator.addObservation(100, 5030);
+    estimator.addObservation(200, 5100);
+    estimator.addObservation(300, 5240);
+    assertEquals(5000, estimator.toPhoneTime(100));
+  }
+
+  @Test
+  public void testFollowsDrift() {
+    ClockDriftEstimator estimator = new ClockDriftEstimator(60, 1000);
+    // The device clock runs 200ppm slow, and every observation is delayed by up to 9ms.
+    long lastDeviceTime = 0;
+    for (int i = 0; i < 3000; i++) {
+      lastDeviceTime = i * 100;
+      estimator.addObservation(lastDeviceTime, trueTime(lastDeviceTime) + (i * 7) % 10);
+    }
+    assertEquals(trueTime(lastDeviceTime), estimator.toPhoneTime(lastDeviceTime), 1);
+    assertEquals(
+        trueTime(lastDeviceTime + 10000), estimator.toPhoneTime(lastDeviceTime + 10000), 1);
+  }
+
+  @Test
+  public void testDriftIsBounded() {
+    ClockDriftEstimator estimator = new ClockDriftEstimator(10, 100);
+    estimator.addObservation(0, 0);
+    estimator.addObservation(1000, 1500);
+    assertEquals(1001, estimator.toPhoneTime(2000) - estimator.toPhoneTime(1000), 1);
+  }
+
+  @Test
+  public void testDeviceRestart() {
+    ClockDriftEstimator estimator = new ClockDriftEstimator(10, 1000);
+    estimator.addObservation(50000, 60000);
+    estimator.addObservation(51000, 61000);
+    estimator.addObservation(10, 70000);
+    assertEquals(70000, estimator.toPhoneTime(10));
+  }
+
+  private static long trueTime(long deviceTime) {
+    return 1000 + Math.round(deviceTime * 1.0002);
+  }
+}
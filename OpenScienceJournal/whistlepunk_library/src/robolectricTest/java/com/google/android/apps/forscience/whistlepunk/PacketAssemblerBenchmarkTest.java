@@ -0,0 +1,175 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.android.apps.forscience.whistlepunk;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.util.Log;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciSensor.AnalogPin;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciSensor.AnalogValue;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciSensor.Data;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciSensor.FloatValue;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciSensor.Pin;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciSensor.SensorData;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciSensor.VirtualPin;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/**
+ * Benchmarks PacketAssembler's hand-written decoder against the protobuf parser it replaces for
+ * ordinary readings, on the same BLE frames, and checks that they agree.
+ *
+ * <p>The agreement check always runs, on a few frames. The benchmark only runs when {@code
+ * -DpacketBenchmark=true} is set, and logs wall time and, where the JVM can measure it, bytes
+ * allocated per reading. The number of readings is set with a system property, for example {@code
+ * -DpacketBenchmark.readings=1000000}. Add {@code -Drobolectric.logging=stdout} to see the results.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PacketAssemblerBenchmarkTest {
+  private static final String TAG = "packetBenchmark";
+  private static final boolean ENABLED = Boolean.getBoolean("packetBenchmark");
+  private static final int READINGS = Integer.getInteger("packetBenchmark.readings", 1000000);
+  private static final int CHECKED_READINGS = 1000;
+  // The payload of a BLE notification, after the two framing bytes.
+  private static final int CHUNK_SIZE = 18;
+
+  private static class SummingListener implements PacketAssembler.Listener {
+    int count = 0;
+    int errors = 0;
+    double valueSum = 0;
+    long timeSum = 0;
+
+    @Override
+    public void onError(int error, String errorMessage) {
+      errors++;
+    }
+
+    @Override
+    public void onDataParsed(long timeStampMs, double data) {
+      count++;
+      valueSum += data;
+      timeSum += timeStampMs;
+    }
+  }
+
+  private static List<byte[]> makeFrames(int readings) {
+    Random random = new Random(42);
+    List<byte[]> frames = new ArrayList<>();
+    for (int i = 0; i < readings; i++) {
+      Data.Builder data = Data.newBuilder();
+      if (i % 2 == 0) {
+        data.setPin(Pin.newBuilder().setAnalogPin(AnalogPin.newBuilder().setPin(0)))
+            .setAnalogValue(AnalogValue.newBuilder().setValue(random.nextInt(1024)));
+      } else {
+        data.setPin(Pin.newBuilder().setVirtualPin(VirtualPin.newBuilder().setPin(1)))
+            .setFloatValue(FloatValue.newBuilder().setValue(random.nextFloat()));
+      }
+      byte[] message =
+          SensorData.newBuilder().setTimestampKey(i * 10).setData(data).build().toByteArray();
+      for (int start = 0; start < message.length; start += CHUNK_SIZE) {
+        int length = Math.min(CHUNK_SIZE, message.length - start);
+        byte[] frame = new byte[length + 2];
+        frame[0] = (byte) length;
+        frame[1] = (byte) (start + length == message.length ? 1 : 0);
+        System.arraycopy(message, start, frame, 2, length);
+        frames.add(frame);
+      }
+    }
+    return frames;
+  }
+
+  private static SummingListener decode(List<byte[]> frames, boolean fastDecode) {
+    SummingListener listener = new SummingListener();
+    PacketAssembler assembler = new PacketAssembler(() -> 1000, listener);
+    assembler.setFastDecodeEnabled(fastDecode);
+    for (byte[] frame : frames) {
+      assembler.append(frame);
+    }
+    return listener;
+  }
+
+  private static SummingListener measure(String name, List<byte[]> frames, boolean fastDecode) {
+    // Warm up, so that the JIT has compiled both paths before they are measured.
+    decode(frames, fastDecode);
+
+    SummingListener listener = new SummingListener();
+    PacketAssembler assembler = new PacketAssembler(() -> 1000, listener);
+    assembler.setFastDecodeEnabled(fastDecode);
+    long allocatedBefore = getAllocatedBytes();
+    long start = System.nanoTime();
+    for (byte[] frame : frames) {
+      assembler.append(frame);
+    }
+    long elapsedNs = System.nanoTime() - start;
+    long allocated = getAllocatedBytes() - allocatedBefore;
+
+    Log.i(
+        TAG,
+        String.format(
+            Locale.US,
+            "%s: %d readings in %d ms, %.1f ns/reading, %s",
+            name,
+            listener.count,
+            elapsedNs / 1000000,
+            elapsedNs / (double) READINGS,
+            allocatedBefore < 0
+                ? "allocation unknown"
+                : String.format(Locale.US, "%.1f bytes/reading", allocated / (double) READINGS)));
+    return listener;
+  }
+
+  /** @return the bytes allocated by this thread so far, or -1 if the JVM can't tell. */
+  private static long getAllocatedBytes() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) bean)
+          .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  private static void assertAgree(SummingListener decoded, SummingListener parsed, int readings) {
+    assertThat(decoded.errors).isEqualTo(0);
+    assertThat(parsed.errors).isEqualTo(0);
+    assertThat(decoded.count).isEqualTo(readings);
+    assertThat(decoded.count).isEqualTo(parsed.count);
+    assertThat(decoded.valueSum).isEqualTo(parsed.valueSum);
+    assertThat(decoded.timeSum).isEqualTo(parsed.timeSum);
+  }
+
+  @Test
+  public void testDecoderAgreesWithParser() {
+    List<byte[]> frames = makeFrames(CHECKED_READINGS);
+    assertAgree(decode(frames, true), decode(frames, false), CHECKED_READINGS);
+  }
+
+  @Test
+  public void benchmarkDecode() {
+    Assume.assumeTrue(ENABLED);
+    List<byte[]> frames = makeFrames(READINGS);
+    SummingListener parsed = measure("protobuf parser", frames, false);
+    SummingListener decoded = measure("decoder", frames, true);
+    assertAgree(decoded, parsed, READINGS);
+  }
+}
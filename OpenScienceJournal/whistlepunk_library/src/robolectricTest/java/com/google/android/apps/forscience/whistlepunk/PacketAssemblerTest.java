@@ -21,6 +21,7 @@ import static org.junit.Assert.assertEquals;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciSensor;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciSensor.AnalogPin;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciSensor.AnalogValue;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciSensor.DataBatch;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciSensor.DigitalPin;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciSensor.DigitalValue;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciSensor.FloatValue;
@@ -31,6 +32,7 @@ import com.google.android.apps.forscience.whistlepunk.data.GoosciSensor.VirtualP
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorStatusListener;
 import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -498,4 +500,119 @@ public class PacketAssemblerTest {
     List<String> errors = tpal.getErrors();
     assertEquals(1, errors.size());
   }
+
+  @Test
+  public void testDecoderMatchesParser() {
+    List<byte[]> messages = new ArrayList<>();
+    messages.add(
+        new GoosciSensorBuilder().setAnalogPin().setAnalogValue(30, 5).commit().toByteArray());
+    messages.add(
+        new GoosciSensorBuilder().setDigitalPin().setDigitalValue(true, 6).commit().toByteArray());
+    messages.add(
+        new GoosciSensorBuilder().setVirtualPin().setFloatValue(-1.5f, 7).commit().toByteArray());
+    // Negative int32s and uint32s above 2^31 are both read into Java ints.
+    messages.add(
+        new GoosciSensorBuilder().setVirtualPin().setIntValue(-20, -16).commit().toByteArray());
+    messages.add(
+        new GoosciSensorBuilder().setAnalogPin().setAnalogValue(-1, 8).commit().toByteArray());
+    // These are reported by the parser.
+    messages.add(
+        new GoosciSensorBuilder().setVirtualPin().setStringValue("x", 9).commit().toByteArray());
+    messages.add(
+        new GoosciSensorBuilder().setAnalogPin().setFloatValue(1f, 10).commit().toByteArray());
+    messages.add(new byte[] {8, 11, 90, 2, 10, 0});
+    // An unknown field, which the parser skips.
+    byte[] known =
+        new GoosciSensorBuilder().setAnalogPin().setAnalogValue(31, 12).commit().toByteArray();
+    byte[] unknown = Arrays.copyOf(known, known.length + 3);
+    unknown[known.length] = (byte) 0xa0;
+    unknown[known.length + 1] = 0x06;
+    unknown[known.length + 2] = 1;
+    messages.add(unknown);
+    // The value before the pin.
+    messages.add(new byte[] {8, 13, 90, 10, 82, 2, 8, 32, 10, 4, 82, 2, 8, 0});
+    // An analog pin without its required pin number.
+    messages.add(new byte[] {8, 14, 90, 8, 82, 2, 8, 33, 10, 2, 82, 0});
+
+    TestPacketAssemblerListener decoded = new TestPacketAssemblerListener();
+    TestPacketAssemblerListener parsed = new TestPacketAssemblerListener();
+    PacketAssembler decoder = createPacketAssembler(decoded);
+    PacketAssembler parser = createPacketAssembler(parsed);
+    parser.setFastDecodeEnabled(false);
+    for (byte[] message : messages) {
+      fakeFramedSensorData(decoder, message, message.length + 1, 1);
+      fakeFramedSensorData(parser, message, message.length + 1, 1);
+    }
+
+    assertEquals(parsed.getErrors(), decoded.getErrors());
+    assertEquals(4, decoded.getErrors().size());
+    assertEquals(parsed.getData().size(), decoded.getData().size());
+    for (int i = 0; i < parsed.getData().size(); i++) {
+      assertEquals(parsed.getData().get(i).x, decoded.getData().get(i).x);
+      assertEquals(parsed.getData().get(i).y, decoded.getData().get(i).y, 0);
+    }
+  }
+
+  @Test
+  public void testDataBatch() {
+    final TestPacketAssemblerListener tpal = new TestPacketAssemblerListener();
+    final PacketAssembler pa = createPacketAssembler(tpal);
+
+    AnalogPin analogPin = AnalogPin.newBuilder().setPin(0).build();
+    DataBatch batch =
+        DataBatch.newBuilder()
+            .setPin(Pin.newBuilder().setAnalogPin(analogPin))
+            .addTimeDelta(0)
+            .addTimeDelta(5)
+            .addTimeDelta(5)
+            .addTimeDelta(5)
+            .addAnalogValue(10)
+            .addAnalogValue(11)
+            .addAnalogValue(12)
+            .addAnalogValue(13)
+            .build();
+    byte[] value =
+        GoosciSensor.SensorData.newBuilder()
+            .setTimestampKey(100)
+            .setDataBatch(batch)
+            .build()
+            .toByteArray();
+
+    fakeFramedSensorData(pa, value, 18, (int) Math.ceil(value.length / 18.0));
+
+    // The last reading arrived at testTime, and the others are spaced back from it.
+    List<Point> points = tpal.getData();
+    assertEquals(4, points.size());
+    for (int i = 0; i < 4; i++) {
+      assertEquals(testTime - 5 * (3 - i), points.get(i).x);
+      assertEquals(10 + i, points.get(i).y, 0);
+    }
+    assertEquals(0, tpal.getErrors().size());
+  }
+
+  @Test
+  public void testDataBatchMismatchedValues() {
+    final TestPacketAssemblerListener tpal = new TestPacketAssemblerListener();
+    final PacketAssembler pa = createPacketAssembler(tpal);
+
+    AnalogPin analogPin = AnalogPin.newBuilder().setPin(0).build();
+    DataBatch batch =
+        DataBatch.newBuilder()
+            .setPin(Pin.newBuilder().setAnalogPin(analogPin))
+            .addTimeDelta(0)
+            .addTimeDelta(5)
+            .addAnalogValue(10)
+            .build();
+    byte[] value =
+        GoosciSensor.SensorData.newBuilder()
+            .setTimestampKey(100)
+            .setDataBatch(batch)
+            .build()
+            .toByteArray();
+
+    fakeFramedSensorData(pa, value, value.length + 1, 1);
+
+    assertEquals(0, tpal.getData().size());
+    assertEquals(1, tpal.getErrors().size());
+  }
 }
@@ -81,6 +81,45 @@ public class ScalarInputProviderTest {
     TestData.fromPoints(dataToSend).checkObserver(observer);
   }
 
+  @Test
+  public void grabBatchedDataFromService() {
+    grabBatchedData(0);
+  }
+
+  @Test
+  public void ignoreOverstatedBatchCount() {
+    grabBatchedData(10);
+  }
+
+  private void grabBatchedData(int batchCountOverstatement) {
+    final List<ChartData.DataPoint> dataToSend = makeData();
+    long value = dataToSend.get(0).getX();
+    dataToSend.add(new ChartData.DataPoint(value + 1, value + 1));
+    dataToSend.add(new ChartData.DataPoint(value + 2, value + 2));
+    final String sensorId = Arbitrary.string();
+    final String sensorAddress = Arbitrary.string();
+    final String serviceId = Arbitrary.string();
+
+    Consumer<AppDiscoveryCallbacks> finder =
+        new Consumer<AppDiscoveryCallbacks>() {
+          @Override
+          public void take(AppDiscoveryCallbacks adc) {
+            TestConnector connector =
+                new TestConnector(dataToSend, sensorAddress, true)
+                    .overstateBatchCount(batchCountOverstatement);
+            adc.onServiceFound(serviceId, new TestDiscoverer(connector));
+          }
+        };
+    SensorProvider provider = new ScalarInputProvider(finder, null, executor, new MockScheduler());
+
+    SensorChoice sensor = provider.buildSensor(sensorId, makeSpec(sensorAddress, serviceId));
+    SensorRecorder recorder = createRecorder(sensor);
+    recorder.startObserving();
+    recorder.stopObserving();
+    listener.assertNoErrors();
+    TestData.fromPoints(dataToSend).checkObserver(observer);
+  }
+
   @Test
   public void reportErrors() {
     final String sensorId = Arbitrary.string();
@@ -17,12 +17,19 @@
 package com.google.android.apps.forscience.whistlepunk.api.scalarinput;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
-import android.content.ComponentName;
+import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.pm.ResolveInfo;
+import android.content.pm.ServiceInfo;
 import android.os.Bundle;
-import java.util.HashMap;
+import android.os.IBinder;
+import android.os.RemoteException;
+import com.google.android.apps.forscience.whistlepunk.MockScheduler;
+import java.util.ArrayList;
 import java.util.List;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -31,14 +38,14 @@ import org.robolectric.RuntimeEnvironment;
 
 @RunWith(RobolectricTestRunner.class)
 public class ScalarSensorServiceFinderTest {
+  private final MockScheduler scheduler = new MockScheduler();
+
   @Test
   public void testUseFlattenedComponentName() {
     RecordingCallbacks callbacks = new RecordingCallbacks();
-    ComponentName name = new ComponentName("packageName", "packageName.MyClass");
-    ServiceConnection connection =
-        ScalarSensorServiceFinder.makeServiceConnection(
-            new HashMap<String, ServiceConnection>(), name, callbacks, null);
-    connection.onServiceConnected(name, new TestSensorDiscoverer("serviceName"));
+    TestServiceFinder finder = new TestServiceFinder(service("packageName", "MyClass", null));
+    finder.take(callbacks);
+    finder.connect(0, new TestSensorDiscoverer("serviceName"));
     assertEquals("packageName/.MyClass", callbacks.serviceId);
   }
 
@@ -47,34 +54,29 @@ public class ScalarSensorServiceFinderTest {
     RecordingCallbacks callbacks = new RecordingCallbacks();
     Bundle metaData = new Bundle();
     metaData.putString(ScalarSensorServiceFinder.METADATA_KEY_CLASS_NAME_OVERRIDE, "YourClass");
-    ComponentName name = new ComponentName("packageName", "packageName.MyClass");
-    ServiceConnection connection =
-        ScalarSensorServiceFinder.makeServiceConnection(
-            new HashMap<String, ServiceConnection>(), name, callbacks, metaData);
-    connection.onServiceConnected(name, new TestSensorDiscoverer("serviceName"));
+    TestServiceFinder finder = new TestServiceFinder(service("packageName", "MyClass", metaData));
+    finder.take(callbacks);
+    finder.connect(0, new TestSensorDiscoverer("serviceName"));
     assertEquals("packageName/YourClass", callbacks.serviceId);
   }
 
   @Test
   public void testDontGarbageCollectSecondServiceInSamePackage() {
-    RecordingCallbacks callbacks = new RecordingCallbacks();
-    HashMap<String, ServiceConnection> connections = new HashMap<>();
-
-    ComponentName name1 = new ComponentName("packageName", "packageName.Class1");
-    ServiceConnection connection1 =
-        ScalarSensorServiceFinder.makeServiceConnection(connections, name1, callbacks, null);
-    assertEquals(1, connections.size());
-
-    ComponentName name2 = new ComponentName("packageName", "packageName.Class2");
-    ServiceConnection connection2 =
-        ScalarSensorServiceFinder.makeServiceConnection(connections, name2, callbacks, null);
-    assertEquals(2, connections.size());
-
-    connection1.onServiceDisconnected(name1);
-    assertEquals(1, connections.size());
+    TestServiceFinder finder =
+        new TestServiceFinder(
+            service("packageName", "Class1", null), service("packageName", "Class2", null));
+    finder.take(new RecordingCallbacks());
+    assertEquals(2, finder.getBindingCount());
+    finder.connect(0, new TestSensorDiscoverer("service1"));
+    finder.connect(1, new TestSensorDiscoverer("service2"));
 
-    connection2.onServiceDisconnected(name2);
-    assertEquals(0, connections.size());
+    // Losing one service leaves the other connected.
+    finder.connections.get(0).onServiceDisconnected(null);
+    assertEquals(2, finder.getBindingCount());
+    RecordingCallbacks callbacks = new RecordingCallbacks();
+    finder.take(callbacks);
+    assertEquals("packageName/.Class2", callbacks.serviceId);
+    assertFalse(callbacks.isDone);
   }
 
   @Test
@@ -90,15 +92,151 @@ public class ScalarSensorServiceFinderTest {
     finder.take(new RecordingCallbacks());
   }
 
+  @Test
+  public void testReuseBinding() {
+    TestServiceFinder finder = new TestServiceFinder(service("packageName", "MyClass", null));
+    RecordingCallbacks first = new RecordingCallbacks();
+    finder.take(first);
+    assertNull(first.serviceId);
+    assertFalse(first.isDone);
+    finder.connect(0, new TestSensorDiscoverer("serviceName"));
+    assertTrue(first.isDone);
+
+    RecordingCallbacks second = new RecordingCallbacks();
+    finder.take(second);
+    assertEquals("packageName/.MyClass", second.serviceId);
+    assertTrue(second.isDone);
+    assertEquals(1, finder.connections.size());
+  }
+
+  @Test
+  public void testDiscoveryDeadline() {
+    TestServiceFinder finder =
+        new TestServiceFinder(
+            service("packageName", "Class1", null), service("packageName", "Class2", null));
+    RecordingCallbacks callbacks = new RecordingCallbacks();
+    finder.take(callbacks);
+    finder.connect(0, new TestSensorDiscoverer("service1"));
+    assertFalse(callbacks.isDone);
+
+    scheduler.incrementTime(ScalarSensorServiceFinder.DISCOVERY_DEADLINE.asMillis());
+    assertTrue(callbacks.isDone);
+
+    // Connecting late still warms the binding, but this discovery is over.
+    finder.connect(1, new TestSensorDiscoverer("service2"));
+    assertEquals("packageName/.Class1", callbacks.serviceId);
+    assertEquals(1, callbacks.found);
+  }
+
+  @Test
+  public void testUnbindWhenIdle() throws RemoteException {
+    TestServiceFinder finder = new TestServiceFinder(service("packageName", "MyClass", null));
+    RecordingCallbacks callbacks = new RecordingCallbacks();
+    finder.take(callbacks);
+    finder.connect(0, new ObservableDiscoverer());
+
+    ISensorConnector connector = callbacks.service.getConnector();
+    connector.startObserving("address", null, null, null);
+    scheduler.incrementTime(ScalarSensorServiceFinder.IDLE_TIMEOUT.asMillis());
+    assertEquals(1, finder.getBindingCount());
+
+    connector.stopObserving("address");
+    scheduler.incrementTime(ScalarSensorServiceFinder.IDLE_TIMEOUT.asMillis() - 1);
+    assertEquals(1, finder.getBindingCount());
+    scheduler.incrementTime(1);
+    assertEquals(0, finder.getBindingCount());
+    assertEquals(finder.connections, finder.unbound);
+  }
+
+  private static ResolveInfo service(String packageName, String className, Bundle metaData) {
+    ResolveInfo info = new ResolveInfo();
+    info.serviceInfo = new ServiceInfo();
+    info.serviceInfo.packageName = packageName;
+    info.serviceInfo.name = packageName + "." + className;
+    info.serviceInfo.metaData = metaData;
+    return info;
+  }
+
+  private class TestServiceFinder extends ScalarSensorServiceFinder {
+    private final List<ResolveInfo> resolveInfos = new ArrayList<>();
+    final List<ServiceConnection> connections = new ArrayList<>();
+    final List<ServiceConnection> unbound = new ArrayList<>();
+
+    TestServiceFinder(ResolveInfo... infos) {
+      super(RuntimeEnvironment.application.getApplicationContext(), scheduler);
+      for (ResolveInfo info : infos) {
+        resolveInfos.add(info);
+      }
+    }
+
+    void connect(int index, ISensorDiscoverer.Stub service) {
+      connections.get(index).onServiceConnected(null, service);
+    }
+
+    @Override
+    protected List<ResolveInfo> getResolveInfos() {
+      return resolveInfos;
+    }
+
+    @Override
+    protected boolean versionCheck(String packageName) {
+      return true;
+    }
+
+    @Override
+    protected boolean bindService(Intent intent, ServiceConnection connection) {
+      connections.add(connection);
+      return true;
+    }
+
+    @Override
+    protected void unbindService(ServiceConnection connection) {
+      unbound.add(connection);
+    }
+  }
+
+  private static class ObservableDiscoverer extends TestSensorDiscoverer {
+    ObservableDiscoverer() {
+      super("serviceName");
+    }
+
+    @Override
+    public ISensorConnector getConnector() throws RemoteException {
+      return new ISensorConnector() {
+        @Override
+        public void startObserving(
+            String sensorAddress,
+            ISensorObserver observer,
+            ISensorStatusListener listener,
+            String settingsKey) {}
+
+        @Override
+        public void stopObserving(String sensorAddress) {}
+
+        @Override
+        public IBinder asBinder() {
+          return null;
+        }
+      };
+    }
+  }
+
   private static class RecordingCallbacks implements AppDiscoveryCallbacks {
     public String serviceId;
+    public ISensorDiscoverer service;
+    public int found = 0;
+    public boolean isDone = false;
 
     @Override
     public void onServiceFound(String serviceId, ISensorDiscoverer service) {
       this.serviceId = serviceId;
+      this.service = service;
+      found++;
     }
 
     @Override
-    public void onDiscoveryDone() {}
+    public void onDiscoveryDone() {
+      isDone = true;
+    }
   }
 }
@@ -26,12 +26,29 @@ import java.util.List;
 class TestConnector extends ISensorConnector.Stub {
   private final List<ChartData.DataPoint> dataToSend;
   private final String sensorId;
+  private final boolean batched;
+  private int batchCountOverstatement = 0;
   private ISensorObserver observer = null;
   private ISensorStatusListener listener;
 
   public TestConnector(List<ChartData.DataPoint> dataToSend, String sensorId) {
+    this(dataToSend, sensorId, false);
+  }
+
+  /** @param batched whether to send the data with one call to onNewDataBatch */
+  public TestConnector(List<ChartData.DataPoint> dataToSend, String sensorId, boolean batched) {
     this.dataToSend = dataToSend;
     this.sensorId = sensorId;
+    this.batched = batched;
+  }
+
+  /**
+   * Claims {@code extra} more samples in the batch than the arrays hold, as a misbehaving service
+   * might.
+   */
+  public TestConnector overstateBatchCount(int extra) {
+    batchCountOverstatement = extra;
+    return this;
   }
 
   @Override
@@ -49,8 +66,21 @@ class TestConnector extends ISensorConnector.Stub {
   public void stopObserving(String sensorId) throws RemoteException {
     assertEquals(this.sensorId, sensorId);
     assertNotNull(observer);
-    for (ChartData.DataPoint point : dataToSend) {
-      observer.onNewData(point.getX(), point.getY());
+    if (batched) {
+      // Leave room at the end, as a service reusing its buffers would, unless the count is
+      // overstated, in which case the arrays must end with the data.
+      int room = batchCountOverstatement > 0 ? 0 : 1;
+      long[] timestamps = new long[dataToSend.size() + room];
+      double[] values = new double[dataToSend.size() + room];
+      for (int i = 0; i < dataToSend.size(); i++) {
+        timestamps[i] = dataToSend.get(i).getX();
+        values[i] = dataToSend.get(i).getY();
+      }
+      observer.onNewDataBatch(timestamps, values, dataToSend.size() + batchCountOverstatement);
+    } else {
+      for (ChartData.DataPoint point : dataToSend) {
+        observer.onNewData(point.getX(), point.getY());
+      }
     }
     listener.onSensorDisconnected();
     listener = null;
@@ -0,0 +1,421 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.cloudsync;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.util.Log;
+import com.google.android.apps.forscience.whistlepunk.AppSingleton;
+import com.google.android.apps.forscience.whistlepunk.BatchInsertScalarReading;
+import com.google.android.apps.forscience.whistlepunk.CurrentTimeClock;
+import com.google.android.apps.forscience.whistlepunk.DataControllerImpl;
+import com.google.android.apps.forscience.whistlepunk.RxDataController;
+import com.google.android.apps.forscience.whistlepunk.accounts.AbstractAccount;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorLayout.SensorLayout;
+import com.google.android.apps.forscience.whistlepunk.devicemanager.ConnectableSensor;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.Experiment;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.ExperimentLibraryManager;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.FileMetadataUtil;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.Label;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.LocalSyncManager;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciLabel.Label.ValueType;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciPictureLabelValue.PictureLabelValue;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTextLabelValue.TextLabelValue;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
+import com.google.android.apps.forscience.whistlepunk.metadata.SimpleMetaDataManager;
+import com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabaseImpl;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+/**
+ * Benchmarks DriveSyncManager against a FakeDriveApi, so that sync changes can be measured on any
+ * machine, without a Drive account.
+ *
+ * <p>Two devices signed in to the same account share the fake Drive. Each scenario logs its wall
+ * time, the DriveApi calls it made and the bytes it transferred. The benchmark only runs when
+ * {@code -DsyncBenchmark=true} is set, and the generated library and the simulated network are
+ * sized with system properties, for example {@code -DsyncBenchmark.experiments=20
+ * -DsyncBenchmark.latencyMs=50}. Add {@code -Drobolectric.logging=stdout} to see the results.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DriveSyncBenchmarkTest {
+  private static final String TAG = "syncBenchmark";
+  private static final boolean ENABLED = Boolean.getBoolean("syncBenchmark");
+  private static final int EXPERIMENTS = Integer.getInteger("syncBenchmark.experiments", 3);
+  private static final int TRIALS = Integer.getInteger("syncBenchmark.trials", 2);
+  private static final int PHOTOS = Integer.getInteger("syncBenchmark.photos", 2);
+  private static final int READINGS_PER_TRIAL =
+      Integer.getInteger("syncBenchmark.readingsPerTrial", 600);
+  private static final int PHOTO_BYTES = Integer.getInteger("syncBenchmark.photoBytes", 32 * 1024);
+  private static final long LATENCY_MS = Long.getLong("syncBenchmark.latencyMs", 0);
+  private static final long BYTES_PER_SECOND = Long.getLong("syncBenchmark.bytesPerSecond", 0);
+  private static final double FAILURE_RATE =
+      Double.parseDouble(System.getProperty("syncBenchmark.failureRate", "0"));
+
+  private static final String SENSOR_ID = "benchmarkSensor";
+  // Readings have to start after the epoch for their trials to be valid.
+  private static final long FIRST_TIMESTAMP = 1000000;
+  private static final long READING_INTERVAL_MS = 100;
+
+  /** A signed-in account with its own files, standing in for one device signed in to Drive. */
+  private static class DeviceAccount extends AbstractAccount {
+    private final String key;
+    private final File filesDir;
+
+    DeviceAccount(Context context, String key, File filesDir) {
+      super(context);
+      this.key = key;
+      this.filesDir = filesDir;
+    }
+
+    @Override
+    public Account getAccount() {
+      return null;
+    }
+
+    @Override
+    public String getAccountName() {
+      return key;
+    }
+
+    @Override
+    public String getAccountKey() {
+      return "benchmark:" + key;
+    }
+
+    @Override
+    public boolean isSignedIn() {
+      return true;
+    }
+
+    @Override
+    public File getFilesDir() {
+      return filesDir;
+    }
+
+    @Override
+    public String getDatabaseFileName(String name) {
+      return key + "_" + name;
+    }
+
+    @Override
+    public String getSharedPreferencesName() {
+      return key + "_preferences";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof DeviceAccount && key.equals(((DeviceAccount) o).key);
+    }
+
+    @Override
+    public int hashCode() {
+      return key.hashCode();
+    }
+  }
+
+  /** One device syncing the account. */
+  private class Device {
+    private final DeviceAccount account;
+    private final DataControllerImpl dc;
+    private final DriveSyncManager syncManager;
+
+    Device(String name) {
+      // AppSingleton caches sync state by account, so every run needs new accounts.
+      String key = name + "_" + UUID.randomUUID();
+      account = new DeviceAccount(getContext(), key, new File(root, key));
+      dc =
+          new DataControllerImpl(
+              getContext(),
+              account,
+              new SensorDatabaseImpl(getContext(), account, "sensors.db"),
+              MoreExecutors.directExecutor(),
+              Executors.newSingleThreadExecutor(),
+              Executors.newSingleThreadExecutor(),
+              new SimpleMetaDataManager(getContext(), account),
+              new CurrentTimeClock(),
+              new HashMap<>(),
+              new ConnectableSensor.Connector(new HashMap<>()));
+      syncManager = new DriveSyncManager(account, dc, drive, dc);
+    }
+
+    void sync() throws IOException {
+      ExperimentLibraryManager elm =
+          AppSingleton.getInstance(getContext()).getExperimentLibraryManager(account);
+      LocalSyncManager lsm = AppSingleton.getInstance(getContext()).getLocalSyncManager(account);
+      syncManager.syncExperimentLibraryInBackgroundThread(getContext(), elm, lsm);
+    }
+
+    Experiment getExperiment(String experimentId) {
+      return RxDataController.getExperimentById(dc, experimentId).blockingGet();
+    }
+
+    void save(Experiment experiment) {
+      RxDataController.updateExperimentEvenIfNotActive(
+              dc, experiment, System.currentTimeMillis(), true)
+          .blockingAwait();
+      RxDataController.saveImmediately(dc).blockingAwait();
+    }
+  }
+
+  private interface Scenario {
+    void run() throws IOException;
+  }
+
+  private static class Result {
+    final long elapsedMs;
+    final long bytesUploaded;
+    final long bytesDownloaded;
+
+    Result(long elapsedMs, long bytesUploaded, long bytesDownloaded) {
+      this.elapsedMs = elapsedMs;
+      this.bytesUploaded = bytesUploaded;
+      this.bytesDownloaded = bytesDownloaded;
+    }
+  }
+
+  private final Random random = new Random(42);
+  private File root;
+  private FakeDriveApi drive;
+
+  private static Context getContext() {
+    return RuntimeEnvironment.application.getApplicationContext();
+  }
+
+  @Before
+  public void setUp() {
+    Assume.assumeTrue(ENABLED);
+    root = new File(getContext().getFilesDir(), "syncBenchmark");
+    drive = new FakeDriveApi(new File(root, "drive"));
+    drive.setLatencyMillis(LATENCY_MS);
+    drive.setBandwidthBytesPerSecond(BYTES_PER_SECOND);
+  }
+
+  @After
+  public void tearDown() {
+    if (root != null) {
+      deleteRecursively(root);
+    }
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+
+  private Result measure(String name, Scenario scenario) throws IOException {
+    drive.resetStats();
+    drive.setFailureRate(FAILURE_RATE, 42);
+    long start = System.nanoTime();
+    String outcome = "ok";
+    try {
+      scenario.run();
+    } catch (IOException e) {
+      if (FAILURE_RATE == 0) {
+        throw e;
+      }
+      outcome = "failed: " + e.getMessage();
+    } finally {
+      drive.setFailureRate(0, 42);
+    }
+    Result result =
+        new Result(
+            (System.nanoTime() - start) / 1000000,
+            drive.getBytesUploaded(),
+            drive.getBytesDownloaded());
+    int calls = 0;
+    for (int count : drive.getCallCounts().values()) {
+      calls += count;
+    }
+    Log.i(
+        TAG,
+        String.format(
+            Locale.US,
+            "%s (%s): %d ms, %d calls, %d requests, %d injected failures, "
+                + "%d bytes up, %d bytes down",
+            name,
+            outcome,
+            result.elapsedMs,
+            calls,
+            drive.getRequestCount(),
+            drive.getInjectedFailureCount(),
+            result.bytesUploaded,
+            result.bytesDownloaded));
+    Log.i(TAG, "  calls: " + drive.getCallCounts());
+    return result;
+  }
+
+  private List<String> populate(Device device) throws IOException {
+    List<String> experimentIds = new ArrayList<>();
+    for (int i = 0; i < EXPERIMENTS; i++) {
+      Experiment experiment = RxDataController.createExperiment(device.dc).blockingGet();
+      experiment.setTitle("Experiment " + i);
+      for (int t = 0; t < TRIALS; t++) {
+        long startMs = FIRST_TIMESTAMP + t * READINGS_PER_TRIAL * READING_INTERVAL_MS;
+        addTrial(device, experiment, startMs);
+      }
+      for (int p = 0; p < PHOTOS; p++) {
+        addPhoto(device, experiment);
+      }
+      device.save(experiment);
+      experimentIds.add(experiment.getExperimentId());
+    }
+    return experimentIds;
+  }
+
+  private void addTrial(Device device, Experiment experiment, long startMs) {
+    long endMs = startMs + (READINGS_PER_TRIAL - 1) * READING_INTERVAL_MS;
+    GoosciTrial.Trial proto =
+        GoosciTrial.Trial.newBuilder()
+            .setTrialId(UUID.randomUUID().toString())
+            .setCreationTimeMs(startMs)
+            .setRecordingRange(GoosciTrial.Range.newBuilder().setStartMs(startMs).setEndMs(endMs))
+            .addSensorLayouts(SensorLayout.newBuilder().setSensorId(SENSOR_ID))
+            .build();
+    List<BatchInsertScalarReading> readings = new ArrayList<>();
+    for (int i = 0; i < READINGS_PER_TRIAL; i++) {
+      readings.add(
+          new BatchInsertScalarReading(
+              proto.getTrialId(),
+              SENSOR_ID,
+              0,
+              startMs + i * READING_INTERVAL_MS,
+              random.nextGaussian()));
+    }
+    device.dc.addScalarReadings(readings);
+    experiment.addTrial(Trial.fromTrial(proto));
+  }
+
+  private void addPhoto(Device device, Experiment experiment) throws IOException {
+    String path = "assets/" + UUID.randomUUID().toString() + ".jpg";
+    File photo =
+        new File(
+            FileMetadataUtil.getInstance()
+                .getExperimentDirectory(device.account, experiment.getExperimentId()),
+            path);
+    photo.getParentFile().mkdirs();
+    byte[] contents = new byte[PHOTO_BYTES];
+    random.nextBytes(contents);
+    Files.write(contents, photo);
+    experiment.addLabel(
+        experiment,
+        Label.newLabelWithValue(
+            System.currentTimeMillis(),
+            ValueType.PICTURE,
+            PictureLabelValue.newBuilder().setFilePath(path).build(),
+            null));
+  }
+
+  private static void addNote(Experiment experiment, String text) {
+    experiment.addLabel(
+        experiment,
+        Label.newLabelWithValue(
+            System.currentTimeMillis(),
+            ValueType.TEXT,
+            TextLabelValue.newBuilder().setText(text).build(),
+            null));
+  }
+
+  private static List<String> getNotes(Experiment experiment) {
+    List<String> notes = new ArrayList<>();
+    for (Label label : experiment.getLabels()) {
+      if (label.getType() == ValueType.TEXT) {
+        notes.add(label.getTextLabelValue().getText());
+      }
+    }
+    return notes;
+  }
+
+  @Test
+  public void benchmarkSync() throws IOException {
+    Device first = new Device("first");
+    Device second = new Device("second");
+    List<String> experimentIds = populate(first);
+    Log.i(
+        TAG,
+        String.format(
+            Locale.US,
+            "%d experiments, %d trials of %d readings and %d photos of %d bytes "
+                + "each, %d ms latency, %d bytes/s, %.2f failure rate",
+            EXPERIMENTS,
+            TRIALS,
+            READINGS_PER_TRIAL,
+            PHOTOS,
+            PHOTO_BYTES,
+            LATENCY_MS,
+            BYTES_PER_SECOND,
+            FAILURE_RATE));
+
+    Result initialUpload = measure("initial sync, upload", first::sync);
+    Result initialDownload = measure("initial sync, download", second::sync);
+    if (FAILURE_RATE == 0) {
+      assertThat(second.dc.blockingGetExperimentOverviews(true)).hasSize(EXPERIMENTS);
+    }
+
+    String editedId = experimentIds.get(0);
+    Experiment edited = first.getExperiment(editedId);
+    addNote(edited, "incremental");
+    addPhoto(first, edited);
+    first.save(edited);
+    Result incrementalUpload = measure("incremental sync, upload", first::sync);
+    Result incrementalDownload = measure("incremental sync, download", second::sync);
+    if (FAILURE_RATE == 0) {
+      assertThat(incrementalUpload.bytesUploaded).isLessThan(initialUpload.bytesUploaded);
+      assertThat(incrementalDownload.bytesDownloaded).isLessThan(initialDownload.bytesDownloaded);
+    }
+
+    // Both devices edit the same experiment before either of them syncs.
+    Experiment firstCopy = first.getExperiment(editedId);
+    addNote(firstCopy, "from first");
+    first.save(firstCopy);
+    Experiment secondCopy = second.getExperiment(editedId);
+    addNote(secondCopy, "from second");
+    second.save(secondCopy);
+    measure("conflicting edit, upload", first::sync);
+    measure("conflict merge", second::sync);
+    if (FAILURE_RATE == 0) {
+      List<String> notes = getNotes(second.getExperiment(editedId));
+      assertThat(notes).contains("incremental");
+      assertThat(notes).contains("from first");
+      assertThat(notes).contains("from second");
+    }
+  }
+}
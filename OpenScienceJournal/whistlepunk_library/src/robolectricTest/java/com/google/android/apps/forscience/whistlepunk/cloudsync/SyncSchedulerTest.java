@@ -0,0 +1,186 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.cloudsync;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/** Tests for the SyncScheduler class. */
+@RunWith(RobolectricTestRunner.class)
+public class SyncSchedulerTest {
+  private ExecutorService pool;
+  private final List<Long> sleeps = Collections.synchronizedList(new ArrayList<>());
+
+  @Before
+  public void setUp() {
+    pool = Executors.newFixedThreadPool(2);
+  }
+
+  @After
+  public void tearDown() {
+    pool.shutdownNow();
+  }
+
+  private SyncScheduler makeScheduler(SyncScheduler.ProgressListener listener) {
+    return new SyncScheduler(pool, 3, 100, sleeps::add, listener);
+  }
+
+  @Test
+  public void testTasksWithSameKeyRunInOrder() throws IOException {
+    SyncScheduler scheduler = makeScheduler(null);
+    List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+    for (int i = 0; i < 20; i++) {
+      int index = i;
+      scheduler.submit("experiment", () -> order.add(index));
+    }
+    scheduler.awaitCompletion();
+
+    List<Integer> expected = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      expected.add(i);
+    }
+    assertThat(order).isEqualTo(expected);
+  }
+
+  @Test
+  public void testTasksWithDifferentKeysRunInParallel() throws IOException {
+    SyncScheduler scheduler = makeScheduler(null);
+    CountDownLatch bothStarted = new CountDownLatch(2);
+    AtomicInteger timedOut = new AtomicInteger();
+    SyncScheduler.Task task =
+        () -> {
+          bothStarted.countDown();
+          try {
+            if (!bothStarted.await(5, TimeUnit.SECONDS)) {
+              timedOut.incrementAndGet();
+            }
+          } catch (InterruptedException e) {
+            throw new IOException(e);
+          }
+        };
+    scheduler.submit("first", task);
+    scheduler.submit("second", task);
+    scheduler.awaitCompletion();
+    assertThat(timedOut.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void testFailedTaskIsRetriedWithBackoff() throws IOException {
+    SyncScheduler scheduler = makeScheduler(null);
+    AtomicInteger attempts = new AtomicInteger();
+    scheduler.submitRequired(
+        "experiment",
+        () -> {
+          if (attempts.incrementAndGet() < 3) {
+            throw new IOException("transient");
+          }
+        });
+    scheduler.awaitCompletion();
+
+    assertThat(attempts.get()).isEqualTo(3);
+    assertThat(sleeps).containsExactly(100L, 200L).inOrder();
+    assertThat(scheduler.getFailedCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testMissingFileIsNotRetried() throws IOException {
+    SyncScheduler scheduler = makeScheduler(null);
+    AtomicInteger attempts = new AtomicInteger();
+    scheduler.submit(
+        "experiment",
+        () -> {
+          attempts.incrementAndGet();
+          throw new FileNotFoundException();
+        });
+    scheduler.awaitCompletion();
+
+    assertThat(attempts.get()).isEqualTo(1);
+    assertThat(sleeps).isEmpty();
+    assertThat(scheduler.getFailedCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testNotRetryableFailureIsNotRetried() throws IOException {
+    SyncScheduler scheduler = makeScheduler(null);
+    AtomicInteger attempts = new AtomicInteger();
+    scheduler.submit(
+        "experiment",
+        () -> {
+          attempts.incrementAndGet();
+          throw new SyncScheduler.NotRetryableException(new IOException("timed out"));
+        });
+    scheduler.awaitCompletion();
+
+    assertThat(attempts.get()).isEqualTo(1);
+    assertThat(sleeps).isEmpty();
+    assertThat(scheduler.getFailedCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testRequiredFailureIsRethrown() {
+    SyncScheduler scheduler = makeScheduler(null);
+    IOException failure = new FileNotFoundException("required");
+    AtomicInteger otherTaskRuns = new AtomicInteger();
+    scheduler.submitRequired(
+        "experiment",
+        () -> {
+          throw failure;
+        });
+    scheduler.submit("experiment", otherTaskRuns::incrementAndGet);
+    try {
+      scheduler.awaitCompletion();
+      fail("Expected the required task's failure");
+    } catch (IOException e) {
+      assertThat(e).isSameAs(failure);
+    }
+    assertThat(otherTaskRuns.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testAwaitsTasksSubmittedByTasks() throws IOException {
+    List<String> progress = Collections.synchronizedList(new ArrayList<>());
+    SyncScheduler scheduler =
+        makeScheduler((finished, submitted) -> progress.add(finished + "/" + submitted));
+    AtomicInteger transfers = new AtomicInteger();
+    scheduler.submitRequired(
+        "experiment",
+        () -> {
+          scheduler.submit("experiment", transfers::incrementAndGet);
+          scheduler.submit("experiment", transfers::incrementAndGet);
+        });
+    scheduler.awaitCompletion();
+
+    assertThat(transfers.get()).isEqualTo(2);
+    assertThat(progress).containsExactly("1/3", "2/3", "3/3").inOrder();
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.cloudsync;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.android.apps.forscience.whistlepunk.data.GoosciLocalSyncStatus.SyncedFile;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorLayout;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.FileMetadataUtil;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
+import com.google.common.collect.ImmutableSet;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+/** Tests for the SyncedFiles class. */
+@RunWith(RobolectricTestRunner.class)
+public class SyncedFilesTest {
+  private File file;
+
+  @Before
+  public void setUp() {
+    file = new File(RuntimeEnvironment.application.getFilesDir(), "picture.jpg");
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  private void writeFile(byte[] contents, long lastModified) throws IOException {
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(contents);
+    }
+    file.setLastModified(lastModified);
+  }
+
+  private static Trial makeTrial(long endMs, String... sensorIds) {
+    GoosciTrial.Trial.Builder proto =
+        GoosciTrial.Trial.newBuilder()
+            .setTrialId("trialId")
+            .setRecordingRange(GoosciTrial.Range.newBuilder().setStartMs(1000).setEndMs(endMs));
+    for (String sensorId : sensorIds) {
+      proto.addSensorLayouts(GoosciSensorLayout.SensorLayout.newBuilder().setSensorId(sensorId));
+    }
+    return Trial.fromTrial(proto.build());
+  }
+
+  @Test
+  public void testUntouchedFile() throws IOException {
+    writeFile(new byte[] {1, 2, 3}, 10000);
+    SyncedFile synced = SyncedFiles.describe(file, "picture.jpg", "package", null);
+
+    assertThat(SyncedFiles.isUntouched(synced, file, "package")).isTrue();
+    assertThat(SyncedFiles.isUntouched(synced, file, "otherPackage")).isFalse();
+    assertThat(SyncedFiles.isUntouched(null, file, "package")).isFalse();
+
+    writeFile(new byte[] {1, 2, 3}, 20000);
+    assertThat(SyncedFiles.isUntouched(synced, file, "package")).isFalse();
+  }
+
+  @Test
+  public void testRewrittenFileWithSameContents() throws IOException {
+    writeFile(new byte[] {1, 2, 3}, 10000);
+    SyncedFile synced = SyncedFiles.describe(file, "picture.jpg", "package", null);
+
+    writeFile(new byte[] {1, 2, 3}, 20000);
+    SyncedFile current = SyncedFiles.describe(file, "picture.jpg", "package", null);
+    assertThat(SyncedFiles.hasSameContents(synced, current)).isTrue();
+
+    writeFile(new byte[] {1, 2, 4}, 30000);
+    current = SyncedFiles.describe(file, "picture.jpg", "package", null);
+    assertThat(SyncedFiles.hasSameContents(synced, current)).isFalse();
+
+    current = SyncedFiles.describe(file, "picture.jpg", "otherPackage", null);
+    assertThat(SyncedFiles.hasSameContents(null, current)).isFalse();
+  }
+
+  @Test
+  public void testStalePaths() throws IOException {
+    writeFile(new byte[] {1}, 10000);
+    FileMetadataUtil util = FileMetadataUtil.getInstance();
+    String liveChunk = FileMetadataUtil.CHUNK_DIRECTORY + "/live";
+    String deadChunk = FileMetadataUtil.CHUNK_DIRECTORY + "/dead";
+    List<SyncedFile> synced = new ArrayList<>();
+    for (String path :
+        new String[] {
+          "picture.jpg",
+          "deleted.jpg",
+          util.getTrialProtoFileName("kept"),
+          util.getTrialDataManifestFileName("kept"),
+          util.getTrialProtoFileName("deleted"),
+          util.getTrialDataManifestFileName("deleted"),
+          liveChunk,
+          deadChunk
+        }) {
+      synced.add(SyncedFile.newBuilder().setPath(path).build());
+    }
+
+    List<String> stale =
+        SyncedFiles.getStalePaths(
+            synced,
+            ImmutableSet.of(
+                util.getTrialProtoFileName("kept"), util.getTrialDataManifestFileName("kept")),
+            ImmutableSet.of(liveChunk),
+            file.getParentFile());
+
+    assertThat(stale)
+        .containsExactly(
+            "deleted.jpg",
+            util.getTrialProtoFileName("deleted"),
+            util.getTrialDataManifestFileName("deleted"),
+            deadChunk);
+  }
+
+  @Test
+  public void testTrialFingerprintChangesWithRecordingAndCrop() {
+    Trial trial = makeTrial(5000, "sensor");
+    assertThat(SyncedFiles.getTrialFingerprint(makeTrial(5000, "sensor")))
+        .isEqualTo(SyncedFiles.getTrialFingerprint(trial));
+    assertThat(SyncedFiles.getTrialFingerprint(makeTrial(6000, "sensor")))
+        .isNotEqualTo(SyncedFiles.getTrialFingerprint(trial));
+    assertThat(SyncedFiles.getTrialFingerprint(makeTrial(5000, "sensor", "other")))
+        .isNotEqualTo(SyncedFiles.getTrialFingerprint(trial));
+
+    Trial cropped = makeTrial(5000, "sensor");
+    cropped.setCropRange(GoosciTrial.Range.newBuilder().setStartMs(2000).setEndMs(4000).build());
+    assertThat(SyncedFiles.getTrialFingerprint(cropped))
+        .isNotEqualTo(SyncedFiles.getTrialFingerprint(trial));
+
+    // Retitling a trial doesn't change its data.
+    trial.setTitle("new title");
+    assertThat(SyncedFiles.getTrialFingerprint(trial))
+        .isEqualTo(SyncedFiles.getTrialFingerprint(makeTrial(5000, "sensor")));
+  }
+}
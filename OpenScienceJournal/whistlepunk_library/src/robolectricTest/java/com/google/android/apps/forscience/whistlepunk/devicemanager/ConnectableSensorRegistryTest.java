@@ -19,6 +19,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import androidx.annotation.NonNull;
+import com.google.android.apps.forscience.javalib.FailureListener;
 import com.google.android.apps.forscience.javalib.Scheduler;
 import com.google.android.apps.forscience.javalib.Success;
 import com.google.android.apps.forscience.whistlepunk.AppSingleton;
@@ -465,6 +466,54 @@ public class ConnectableSensorRegistryTest {
     assertEquals(3, availableDevices.size());
   }
 
+  @Test
+  public void testFoundSensorsShownOncePerFrame() {
+    MockScheduler mockScheduler = new MockScheduler();
+    DelayedDiscoverer discoverer =
+        new DelayedDiscoverer(
+            new BleSensorSpec("address1", "name1"), new BleSensorSpec("address2", "name2"));
+    Map<String, SensorDiscoverer> discoverers = new HashMap<>();
+    discoverers.put(BleSensorSpec.TYPE, discoverer);
+    ConnectableSensorRegistry registry =
+        new ConnectableSensorRegistry(
+            makeDataController(),
+            discoverers,
+            presenter,
+            mockScheduler,
+            new CurrentTimeClock(),
+            optionsListener,
+            null,
+            appearanceProvider,
+            UsageTracker.STUB,
+            ConnectableSensor.Connector.fromDiscoverers(discoverers));
+
+    registry.startScanningInDiscoverers(false);
+    discoverer.deliver();
+    assertEquals(0, availableDevices.size());
+
+    mockScheduler.incrementTime(16);
+    assertEquals(2, availableDevices.size());
+  }
+
+  /** Finds its sensors when told to, after scanning has started. */
+  private static class DelayedDiscoverer extends EnumeratedDiscoverer {
+    private ScanListener listener;
+
+    DelayedDiscoverer(ExternalSensorSpec... specs) {
+      super(specs);
+    }
+
+    @Override
+    public boolean startScanning(ScanListener listener, FailureListener onScanError) {
+      this.listener = listener;
+      return true;
+    }
+
+    void deliver() {
+      super.startScanning(listener, null);
+    }
+  }
+
   @NonNull
   private DataController makeDataController() {
     return new InMemorySensorDatabase().makeSimpleController(metadataManager, providerMap);
@@ -0,0 +1,117 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.filemetadata;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/** Tests for the DebouncedFileWriter class. */
+@RunWith(RobolectricTestRunner.class)
+public class DebouncedFileWriterTest {
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testFlushWritesOnceForManyChanges() {
+    AtomicInteger writes = new AtomicInteger();
+    DebouncedFileWriter writer =
+        new DebouncedFileWriter("test", 60 * 1000, writes::incrementAndGet, executor);
+    for (int i = 0; i < 100; i++) {
+      writer.schedule();
+    }
+    assertTrue(writer.hasPendingWrite());
+    assertEquals(0, writes.get());
+
+    writer.flush();
+    assertEquals(1, writes.get());
+    assertFalse(writer.hasPendingWrite());
+
+    // Nothing changed since the last write.
+    writer.flush();
+    assertEquals(1, writes.get());
+  }
+
+  @Test
+  public void testTimerWrites() throws InterruptedException {
+    CountDownLatch written = new CountDownLatch(1);
+    DebouncedFileWriter writer = new DebouncedFileWriter("test", 10, written::countDown, executor);
+    writer.schedule();
+    writer.schedule();
+    assertTrue(written.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testFailedWriteStaysPending() {
+    AtomicInteger attempts = new AtomicInteger();
+    DebouncedFileWriter writer =
+        new DebouncedFileWriter(
+            "test",
+            60 * 1000,
+            () -> {
+              if (attempts.incrementAndGet() == 1) {
+                throw new IOException("disk full");
+              }
+            },
+            executor);
+    writer.schedule();
+    writer.flush();
+    assertTrue(writer.hasPendingWrite());
+
+    writer.flush();
+    assertEquals(2, attempts.get());
+    assertFalse(writer.hasPendingWrite());
+  }
+
+  @Test
+  public void testFailedWriteIsRetried() throws InterruptedException {
+    CountDownLatch written = new CountDownLatch(1);
+    AtomicInteger attempts = new AtomicInteger();
+    DebouncedFileWriter writer =
+        new DebouncedFileWriter(
+            "test",
+            10,
+            () -> {
+              if (attempts.incrementAndGet() < 3) {
+                throw new IOException("disk full");
+              }
+              written.countDown();
+            },
+            executor);
+    writer.schedule();
+
+    // No further changes are needed for the write to be tried again.
+    assertTrue(written.await(5, TimeUnit.SECONDS));
+    assertEquals(3, attempts.get());
+    assertFalse(writer.hasPendingWrite());
+  }
+}
@@ -32,6 +32,13 @@ import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
 import com.google.android.apps.forscience.whistlepunk.metadata.Version;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -198,6 +205,79 @@ public class ExperimentCacheTest {
     assertEquals("Title", cache.getActiveExperimentForTests().getTitle());
   }
 
+  @Test
+  public void testSwitchingBetweenCachedExperimentsDoesNotReload() {
+    Experiment experiment = Experiment.newExperiment(10, "exp_localId", 0);
+    cache.createNewExperiment(experiment);
+    Experiment second = Experiment.newExperiment(20, "exp_secondId", 0);
+    cache.createNewExperiment(second);
+
+    // The same objects come back, with their changes still waiting to be written.
+    assertTrue(experiment == cache.getExperiment(experiment.getExperimentOverview()));
+    assertTrue(second == cache.getExperiment(second.getExperimentOverview()));
+    assertTrue(experiment == cache.getExperiment(experiment.getExperimentOverview()));
+    assertTrue(cache.needsWrite());
+  }
+
+  @Test
+  public void testEvictionWritesLeastRecentlyUsed() {
+    Experiment experiment = Experiment.newExperiment(10, "exp_localId", 0);
+    elm.addExperiment(experiment.getExperimentId());
+    lsm.addExperiment(experiment.getExperimentId());
+    cache.createNewExperiment(experiment);
+    experiment.setTitle("Title");
+    cache.updateExperiment(experiment, false);
+
+    for (int i = 0; i < ExperimentCache.MAX_CACHED_EXPERIMENTS; i++) {
+      cache.createNewExperiment(Experiment.newExperiment(20 + i, "exp_other" + i, 0));
+    }
+    assertFalse(cache.isCachedForTests(experiment.getExperimentId()));
+
+    // The evicted experiment was written before it was dropped.
+    Experiment reloaded = cache.getExperiment(experiment.getExperimentOverview());
+    assertFalse(experiment == reloaded);
+    assertEquals("Title", reloaded.getTitle());
+    assertTrue(cache.isCachedForTests(experiment.getExperimentId()));
+    assertFalse(cache.isCachedForTests("exp_other0"));
+  }
+
+  @Test
+  public void testTimerWritesOffTheMainThread() throws InterruptedException {
+    ScheduledExecutorService writeExecutor = Executors.newSingleThreadScheduledExecutor();
+    List<Boolean> writesOnMainThread = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch written = new CountDownLatch(1);
+    DiskWriteMonitor.setListener(
+        (file, onMainThread) -> {
+          writesOnMainThread.add(onMainThread);
+          written.countDown();
+        });
+    try {
+      cache =
+          new ExperimentCache(
+              getContext(),
+              appAccount,
+              getFailureFailsListener(),
+              true /* enableAutoWrite */,
+              elm,
+              lsm,
+              writeExecutor);
+      Experiment experiment = Experiment.newExperiment(10, "exp_localId", 0);
+      cache.createNewExperiment(experiment);
+      experiment.setTitle("Title");
+      cache.updateExperiment(experiment, false);
+      // Tests run on the main thread, so nothing has been written yet.
+      assertTrue(writesOnMainThread.isEmpty());
+
+      assertTrue(written.await(5, TimeUnit.SECONDS));
+    } finally {
+      writeExecutor.shutdown();
+      writeExecutor.awaitTermination(5, TimeUnit.SECONDS);
+      DiskWriteMonitor.setListener(null);
+    }
+    assertFalse(writesOnMainThread.contains(true));
+    assertFalse(cache.needsWrite());
+  }
+
   @Test
   public void testUpgradeStartsWriteTimer() {
     GoosciExperiment.Experiment.Builder proto = createExperimentProto().toBuilder();
@@ -0,0 +1,232 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.filemetadata;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciLabel;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+/** Tests for the ExperimentJournal class. */
+@RunWith(RobolectricTestRunner.class)
+public class ExperimentJournalTest {
+  private File directory;
+
+  @Before
+  public void setUp() {
+    directory = new File(RuntimeEnvironment.application.getFilesDir(), "journalTest");
+    directory.mkdirs();
+  }
+
+  @After
+  public void tearDown() {
+    ExperimentCache.deleteRecursive(directory);
+  }
+
+  private File getJournalFile() {
+    return new File(directory, ExperimentJournal.JOURNAL_FILE);
+  }
+
+  private static GoosciTrial.Trial makeTrial(String id, String title) {
+    return GoosciTrial.Trial.newBuilder().setTrialId(id).setTitle(title).build();
+  }
+
+  private static GoosciLabel.Label makeLabel(String id, long timestamp) {
+    return GoosciLabel.Label.newBuilder().setLabelId(id).setTimestampMs(timestamp).build();
+  }
+
+  private static GoosciExperiment.Change makeChange(String id) {
+    return GoosciExperiment.Change.newBuilder().setChangeId(id).build();
+  }
+
+  private static GoosciExperiment.Experiment makeExperiment() {
+    return GoosciExperiment.Experiment.newBuilder()
+        .setTitle("title")
+        .addTrials(makeTrial("t1", "one"))
+        .addTrials(makeTrial("t2", "two"))
+        .addLabels(makeLabel("l1", 10))
+        .addChanges(makeChange("c1"))
+        .build();
+  }
+
+  @Test
+  public void testEditsAreAppendedAndReplayed() {
+    ExperimentJournal journal = new ExperimentJournal("id", directory);
+    GoosciExperiment.Experiment first = makeExperiment();
+    assertThat(journal.write(first, null)).isTrue();
+    assertThat(journal.hasJournal()).isFalse();
+
+    GoosciExperiment.Experiment second =
+        first
+            .toBuilder()
+            .setTitle("new title")
+            .setTrials(0, makeTrial("t1", "renamed"))
+            .removeTrials(1)
+            .addTrials(makeTrial("t3", "three"))
+            .addLabels(makeLabel("l2", 20))
+            .addChanges(makeChange("c2"))
+            .build();
+    assertThat(journal.write(second, null)).isTrue();
+    assertThat(journal.hasJournal()).isTrue();
+
+    GoosciExperiment.Experiment third =
+        second.toBuilder().removeLabels(0).addChanges(makeChange("c3")).build();
+    assertThat(journal.write(third, null)).isTrue();
+
+    assertThat(new ExperimentJournal("id", directory).read(null)).isEqualTo(third);
+  }
+
+  @Test
+  public void testReplacedChangeLog() {
+    ExperimentJournal journal = new ExperimentJournal("id", directory);
+    GoosciExperiment.Experiment first = makeExperiment();
+    journal.write(first, null);
+
+    GoosciExperiment.Experiment merged =
+        first.toBuilder().clearChanges().addChanges(makeChange("remote")).build();
+    journal.write(merged, null);
+    assertThat(journal.hasJournal()).isTrue();
+
+    assertThat(new ExperimentJournal("id", directory).read(null)).isEqualTo(merged);
+  }
+
+  @Test
+  public void testCompactedChangesOnlyJournaledWhenChanged() {
+    ExperimentJournal journal = new ExperimentJournal("id", directory);
+    GoosciExperiment.CompactedChanges.Builder compacted =
+        GoosciExperiment.CompactedChanges.newBuilder();
+    for (int i = 0; i < 100; i++) {
+      compacted.addClientSequences(
+          GoosciExperiment.ClientSequence.newBuilder().setClientId("client" + i).setSequence(i));
+    }
+    GoosciExperiment.Experiment first =
+        makeExperiment().toBuilder().addCompactedChanges(compacted).build();
+    journal.write(first, null);
+
+    GoosciExperiment.Experiment second = first.toBuilder().setTitle("edited").build();
+    journal.write(second, null);
+    long firstRecordLength = getJournalFile().length();
+    assertThat(firstRecordLength).isLessThan((long) compacted.build().getSerializedSize());
+
+    GoosciExperiment.Experiment third =
+        second
+            .toBuilder()
+            .setCompactedChanges(
+                0,
+                compacted.addClientSequences(
+                    GoosciExperiment.ClientSequence.newBuilder()
+                        .setClientId("another")
+                        .setSequence(1)))
+            .build();
+    journal.write(third, null);
+    assertThat(getJournalFile().length() - firstRecordLength)
+        .isGreaterThan((long) compacted.build().getSerializedSize());
+
+    assertThat(new ExperimentJournal("id", directory).read(null)).isEqualTo(third);
+  }
+
+  @Test
+  public void testUnchangedExperimentWritesNothing() {
+    ExperimentJournal journal = new ExperimentJournal("id", directory);
+    GoosciExperiment.Experiment experiment = makeExperiment();
+    journal.write(experiment, null);
+    journal.write(experiment, null);
+    assertThat(journal.hasJournal()).isFalse();
+  }
+
+  @Test
+  public void testSnapshotDiscardsJournal() {
+    ExperimentJournal journal = new ExperimentJournal("id", directory);
+    GoosciExperiment.Experiment first = makeExperiment();
+    journal.write(first, null);
+    journal.write(first.toBuilder().setTitle("edited").build(), null);
+    assertThat(journal.hasJournal()).isTrue();
+
+    GoosciExperiment.Experiment snapshot = first.toBuilder().setTitle("snapshot").build();
+    assertThat(journal.writeSnapshot(snapshot, null)).isTrue();
+    assertThat(getJournalFile().exists()).isFalse();
+    assertThat(new ExperimentJournal("id", directory).read(null)).isEqualTo(snapshot);
+  }
+
+  @Test
+  public void testStaleJournalIsIgnored() throws IOException {
+    ExperimentJournal journal = new ExperimentJournal("id", directory);
+    GoosciExperiment.Experiment first = makeExperiment();
+    journal.write(first, null);
+    journal.write(first.toBuilder().setTitle("edited").build(), null);
+    File staleCopy = new File(directory, "stale");
+    assertThat(getJournalFile().renameTo(staleCopy)).isTrue();
+
+    // Rewrite the snapshot, then put the old journal back as if deleting it had failed.
+    GoosciExperiment.Experiment snapshot = first.toBuilder().setTitle("snapshot").build();
+    journal.writeSnapshot(snapshot, null);
+    assertThat(staleCopy.renameTo(getJournalFile())).isTrue();
+
+    assertThat(new ExperimentJournal("id", directory).read(null)).isEqualTo(snapshot);
+    assertThat(getJournalFile().exists()).isFalse();
+  }
+
+  @Test
+  public void testTornRecordIsDropped() throws IOException {
+    ExperimentJournal journal = new ExperimentJournal("id", directory);
+    GoosciExperiment.Experiment first = makeExperiment();
+    journal.write(first, null);
+    GoosciExperiment.Experiment second = first.toBuilder().setTitle("edited").build();
+    journal.write(second, null);
+    long goodLength = getJournalFile().length();
+
+    // Simulate a record that was only partly written when the app died.
+    try (FileOutputStream out = new FileOutputStream(getJournalFile(), true)) {
+      out.write(new byte[] {(byte) 0x7f, 1, 2, 3});
+    }
+
+    assertThat(new ExperimentJournal("id", directory).read(null)).isEqualTo(second);
+    assertThat(getJournalFile().length()).isEqualTo(goodLength);
+  }
+
+  @Test
+  public void testLargeJournalIsCompacted() {
+    ExperimentJournal journal = new ExperimentJournal("id", directory);
+    GoosciExperiment.Experiment experiment = makeExperiment();
+    journal.write(experiment, null);
+
+    char[] padding = new char[1024];
+    Arrays.fill(padding, 'x');
+    String description = new String(padding);
+    int i = 0;
+    while (getJournalFile().length() <= ExperimentJournal.MIN_COMPACTION_BYTES) {
+      experiment = experiment.toBuilder().setDescription(description + i++).build();
+      journal.write(experiment, null);
+    }
+    experiment = experiment.toBuilder().setTitle("compacted").build();
+    journal.write(experiment, null);
+
+    assertThat(journal.hasJournal()).isFalse();
+    assertThat(new ExperimentJournal("id", directory).read(null)).isEqualTo(experiment);
+  }
+}
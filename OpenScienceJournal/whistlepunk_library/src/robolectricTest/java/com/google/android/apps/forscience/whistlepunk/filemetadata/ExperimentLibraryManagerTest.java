@@ -280,4 +280,24 @@ public class ExperimentLibraryManagerTest {
     manager.setFolderId("FolderId");
     assertEquals("FolderId", manager.getFolderId());
   }
+
+  @Test
+  public void testGetExperimentIdForFileId() {
+    ExperimentLibraryManager manager =
+        getTestManager(
+            ExperimentLibrary.newBuilder()
+                .addSyncExperiment(
+                    SyncExperiment.newBuilder().setExperimentId("loaded").setFileId("loadedFile"))
+                .build());
+    manager.addExperiment("id");
+    assertEquals("loaded", manager.getExperimentIdForFileId("loadedFile"));
+    assertNull(manager.getExperimentIdForFileId("file"));
+
+    manager.setFileId("id", "file");
+    assertEquals("id", manager.getExperimentIdForFileId("file"));
+
+    manager.setFileId("id", "newFile");
+    assertNull(manager.getExperimentIdForFileId("file"));
+    assertEquals("id", manager.getExperimentIdForFileId("newFile"));
+  }
 }
@@ -0,0 +1,181 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.filemetadata;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciUserMetadata.ExperimentOverview;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciUserMetadata.UserMetadata;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+/** Tests for the ExperimentOverviewIndex class. */
+@RunWith(RobolectricTestRunner.class)
+public class ExperimentOverviewIndexTest {
+  private File dir;
+  private File sourceFile;
+  private File snapshotFile;
+
+  @Before
+  public void setUp() {
+    dir = RuntimeEnvironment.application.getFilesDir();
+    sourceFile = new File(dir, "source.proto");
+    snapshotFile = new File(dir, "source.snapshot");
+  }
+
+  @After
+  public void tearDown() {
+    sourceFile.delete();
+    snapshotFile.delete();
+  }
+
+  private static ExperimentOverviewPojo makeOverview(String id, long lastUsed, boolean archived) {
+    return ExperimentOverviewPojo.fromProto(
+        ExperimentOverview.newBuilder()
+            .setExperimentId(id)
+            .setLastUsedTimeMs(lastUsed)
+            .setIsArchived(archived)
+            .build());
+  }
+
+  private static List<String> getIds(List<ExperimentOverviewPojo> overviews) {
+    List<String> ids = new ArrayList<>();
+    for (ExperimentOverviewPojo overview : overviews) {
+      ids.add(overview.getExperimentId());
+    }
+    return ids;
+  }
+
+  private static ExperimentOverviewPojo makeOverview(String id, String imagePath) {
+    ExperimentOverviewPojo overview = makeOverview(id, 10, false);
+    overview.setImagePath(imagePath);
+    return overview;
+  }
+
+  private ExperimentOverviewIndex makeIndex() {
+    ExperimentOverviewIndex index = new ExperimentOverviewIndex(dir);
+    index.put(makeOverview("a", 10, false));
+    index.put(makeOverview("b", 30, true));
+    index.put(makeOverview("c", 20, false));
+    index.put(makeOverview("d", 40, false));
+    return index;
+  }
+
+  // Writes source as the user metadata file, and returns its CRC32.
+  private long writeSource(UserMetadata source) throws IOException {
+    byte[] bytes = source.toByteArray();
+    try (FileOutputStream out = new FileOutputStream(sourceFile)) {
+      out.write(bytes);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    return crc.getValue();
+  }
+
+  @Test
+  public void testPagesAreMostRecentFirst() {
+    ExperimentOverviewIndex index = makeIndex();
+    assertThat(getIds(index.getAll(true))).containsExactly("d", "b", "c", "a").inOrder();
+    assertThat(getIds(index.getPage(true, 1, 2))).containsExactly("b", "c").inOrder();
+    assertThat(getIds(index.getPage(false, 1, 2))).containsExactly("c", "a").inOrder();
+    assertThat(index.getPage(false, 3, 2)).isEmpty();
+    assertThat(index.size(true)).isEqualTo(4);
+    assertThat(index.size(false)).isEqualTo(3);
+  }
+
+  @Test
+  public void testUpdatesMoveOverviews() {
+    ExperimentOverviewIndex index = makeIndex();
+    assertThat(index.put(makeOverview("a", 10, false))).isFalse();
+    assertThat(index.put(makeOverview("a", 50, false))).isTrue();
+    assertThat(index.getMostRecent(false).getExperimentId()).isEqualTo("a");
+
+    index.put(makeOverview("a", 50, true));
+    assertThat(index.getMostRecent(false).getExperimentId()).isEqualTo("d");
+    assertThat(index.size(false)).isEqualTo(2);
+
+    index.remove("d");
+    assertThat(getIds(index.getAll(false))).containsExactly("c");
+  }
+
+  @Test
+  public void testSnapshotRoundTrip() throws IOException {
+    UserMetadata source =
+        UserMetadata.newBuilder()
+            .addExperiments(makeOverview("a", 10, false).toProto())
+            .addExperiments(makeOverview("b", 30, true).toProto())
+            .build();
+    ExperimentOverviewIndex.writeSnapshot(snapshotFile, source, writeSource(source));
+
+    ExperimentOverviewIndex index = new ExperimentOverviewIndex(dir);
+    assertThat(index.loadSnapshot(snapshotFile, sourceFile)).isTrue();
+    assertThat(index.isLoaded()).isTrue();
+    assertThat(getIds(index.getAll(true))).containsExactly("b", "a").inOrder();
+    assertThat(index.getPage(true, 0, 1).get(0).isArchived()).isTrue();
+  }
+
+  @Test
+  public void testStaleSnapshotIsIgnored() throws IOException {
+    UserMetadata source =
+        UserMetadata.newBuilder().addExperiments(makeOverview("a", 10, false).toProto()).build();
+    ExperimentOverviewIndex.writeSnapshot(snapshotFile, source, writeSource(source));
+    // Same length, different contents.
+    writeSource(
+        source.toBuilder().setExperiments(0, makeOverview("a", 11, false).toProto()).build());
+
+    ExperimentOverviewIndex index = new ExperimentOverviewIndex(dir);
+    assertThat(index.loadSnapshot(snapshotFile, sourceFile)).isFalse();
+    assertThat(index.isLoaded()).isFalse();
+  }
+
+  @Test
+  public void testImagesAreResolved() throws IOException {
+    File image = new File(dir, "experiments/a/assets/image.jpg");
+    image.getParentFile().mkdirs();
+    try (FileOutputStream out = new FileOutputStream(image)) {
+      out.write(1);
+    }
+    image.setLastModified(1000);
+    try {
+      ExperimentOverviewIndex index = new ExperimentOverviewIndex(dir);
+      index.put(makeOverview("a", "experiments/a/assets/image.jpg"));
+      index.put(makeOverview("b", ""));
+      ExperimentOverviewPojo withImage = index.getPage(true, 0, 2).get(0);
+      assertThat(withImage.getExperimentId()).isEqualTo("a");
+      assertThat(withImage.getFullImagePath()).isEqualTo(image.getPath());
+      assertThat(withImage.getImageLastModifiedMs()).isEqualTo(1000);
+      assertThat(index.getPage(true, 1, 1).get(0).getFullImagePath()).isNull();
+
+      // Replacing the image under the same name is picked up by the next put.
+      image.setLastModified(2000);
+      assertThat(index.put(makeOverview("a", "experiments/a/assets/image.jpg"))).isFalse();
+      assertThat(index.getPage(true, 0, 1).get(0).getImageLastModifiedMs()).isEqualTo(2000);
+    } finally {
+      image.delete();
+    }
+  }
+}
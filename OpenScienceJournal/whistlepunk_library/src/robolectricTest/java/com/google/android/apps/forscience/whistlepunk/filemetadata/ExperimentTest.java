@@ -461,6 +461,95 @@ public class ExperimentTest {
     assertThat(experimentServer.getChanges()).hasSize(2);
   }
 
+  @Test
+  public void testMergeCompactsSupersededChanges() {
+    Experiment experimentServer = Experiment.newExperiment(1, "experimentId", 1);
+    for (int i = 0; i < ChangeLog.MIN_CHANGES_TO_COMPACT; i++) {
+      experimentServer.setTitle("Title" + i);
+    }
+    Experiment experimentClient =
+        Experiment.fromExperiment(
+            experimentServer.getExperimentProto(), experimentServer.getExperimentOverview());
+
+    experimentServer.mergeFrom(experimentClient, getContext(), getAppAccount(), false);
+
+    // Only the latest title change stays in the log, and older clients can no longer write it.
+    assertThat(experimentServer.getChanges()).hasSize(1);
+    GoosciExperiment.Experiment proto = experimentServer.getExperimentProto();
+    assertThat(proto.getFileVersion().getMinorVersion())
+        .isEqualTo(ExperimentCache.MINOR_VERSION_COMPACTED_CHANGES);
+    assertThat(proto.getCompactedChangesCount()).isEqualTo(1);
+    assertThat(proto.getCompactedChanges(0).getClientSequencesCount()).isEqualTo(1);
+    assertThat(proto.getCompactedChanges(0).getClientSequences(0).getSequence())
+        .isEqualTo(ChangeLog.MIN_CHANGES_TO_COMPACT - 1);
+
+    // A client that still has the full log sees nothing new, and neither does the server.
+    FileSyncCollection sync =
+        experimentClient.mergeFrom(experimentServer, getContext(), getAppAccount(), false);
+    assertThat(sync.getImageUploads()).isEmpty();
+    assertThat(sync.getTrialUploads()).isEmpty();
+    assertThat(experimentClient.getChanges()).hasSize(1);
+
+    Experiment reloadedServer =
+        Experiment.fromExperiment(proto, experimentServer.getExperimentOverview());
+    Experiment otherClient =
+        Experiment.fromExperiment(
+            experimentServer.getExperimentProto(), experimentServer.getExperimentOverview());
+    otherClient.setTitle("New title");
+    reloadedServer.mergeFrom(otherClient, getContext(), getAppAccount(), false);
+    assertThat(reloadedServer.getTitle()).isEqualTo("New title");
+    assertThat(reloadedServer.getChanges()).hasSize(2);
+  }
+
+  @Test
+  public void testMergeWithoutCompactingKeepsMinorVersion() {
+    Experiment experimentServer = Experiment.newExperiment(1, "experimentId", 1);
+    for (int i = 0; i < ChangeLog.MIN_CHANGES_TO_COMPACT - 1; i++) {
+      experimentServer.setTitle("Title" + i);
+    }
+    Experiment experimentClient =
+        Experiment.fromExperiment(
+            experimentServer.getExperimentProto(), experimentServer.getExperimentOverview());
+
+    experimentServer.mergeFrom(experimentClient, getContext(), getAppAccount(), false);
+
+    assertThat(experimentServer.getChanges()).hasSize(ChangeLog.MIN_CHANGES_TO_COMPACT - 1);
+    GoosciExperiment.Experiment proto = experimentServer.getExperimentProto();
+    assertThat(proto.getCompactedChangesCount()).isEqualTo(0);
+    assertThat(proto.getFileVersion().getMinorVersion())
+        .isEqualTo(ExperimentCache.MINOR_VERSION_UNCOMPACTED_CHANGES);
+  }
+
+  @Test
+  public void testMergeRemovesChangesSupersededElsewhere() {
+    Experiment experimentServer = Experiment.newExperiment(1, "experimentId", 1);
+    for (int i = 0; i < ChangeLog.MIN_CHANGES_TO_COMPACT; i++) {
+      experimentServer.setTitle("Title" + i);
+    }
+    Experiment experimentClient =
+        Experiment.fromExperiment(
+            experimentServer.getExperimentProto(), experimentServer.getExperimentOverview());
+    experimentServer.mergeFrom(experimentClient, getContext(), getAppAccount(), false);
+    experimentServer.setTitle("New title");
+
+    // The client takes the server's compaction when merging, and moves to its minor version.
+    experimentClient.mergeFrom(experimentServer, getContext(), getAppAccount(), false);
+
+    assertThat(experimentClient.getTitle()).isEqualTo("New title");
+    GoosciExperiment.Experiment proto = experimentClient.getExperimentProto();
+    assertThat(proto.getFileVersion().getMinorVersion())
+        .isEqualTo(ExperimentCache.MINOR_VERSION_COMPACTED_CHANGES);
+    // Only the change the server kept when compacting and the new title change are left.
+    assertThat(proto.getChangesCount()).isEqualTo(2);
+    assertThat(proto.getCompactedChanges(0).getClientSequences(0).getSequence())
+        .isEqualTo(ChangeLog.MIN_CHANGES_TO_COMPACT - 1);
+
+    // Merging again finds nothing new on either side.
+    experimentServer.mergeFrom(experimentClient, getContext(), getAppAccount(), false);
+    assertThat(experimentServer.getChanges()).hasSize(2);
+    assertThat(experimentServer.getTitle()).isEqualTo("New title");
+  }
+
   @Test
   public void testMergeChangedExperimentTitleChange() {
     Experiment experimentServer = Experiment.newExperiment(1, "experimentId", 1);
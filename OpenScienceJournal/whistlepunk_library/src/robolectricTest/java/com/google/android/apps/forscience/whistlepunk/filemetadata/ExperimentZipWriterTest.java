@@ -0,0 +1,120 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.filemetadata;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import com.google.common.io.ByteStreams;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+/** Tests for the ExperimentZipWriter class. */
+@RunWith(RobolectricTestRunner.class)
+public class ExperimentZipWriterTest {
+  private File getDir() {
+    return new File(RuntimeEnvironment.application.getFilesDir(), "zipTest");
+  }
+
+  @After
+  public void cleanUp() {
+    File[] files = getDir().listFiles();
+    if (files != null) {
+      for (File f : files) {
+        f.delete();
+      }
+    }
+    getDir().delete();
+  }
+
+  @Test
+  public void testDoesNotRecompressMediaAndDeflatesProtos() throws IOException {
+    File dir = getDir();
+    dir.mkdirs();
+    byte[] picture = new byte[100000];
+    new Random(42).nextBytes(picture);
+    byte[] proto = new byte[5000];
+    // Highly compressible, unlike the picture.
+    File pictureFile = writeFile(new File(dir, "picture.jpg"), picture);
+    File protoFile = writeFile(new File(dir, "experiment.proto"), proto);
+    File zipFile = new File(dir, "out.sj");
+
+    long[] lastProgress = {0, 0};
+    try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zipFile))) {
+      ExperimentZipWriter writer =
+          new ExperimentZipWriter(
+              zos,
+              (written, total) -> {
+                lastProgress[0] = written;
+                lastProgress[1] = total;
+              });
+      writer.addFileToEstimate(pictureFile, "assets/picture.jpg");
+      writer.addFileToEstimate(protoFile, "experiment.proto");
+      writer.putFile(pictureFile, "assets/picture.jpg");
+      zos.closeEntry();
+      writer.putFile(protoFile, "experiment.proto");
+      zos.closeEntry();
+    }
+    assertEquals(picture.length + proto.length, lastProgress[0]);
+    assertTrue(lastProgress[1] >= lastProgress[0]);
+
+    try (ZipFile zip = new ZipFile(zipFile)) {
+      ZipEntry pictureEntry = zip.getEntry("assets/picture.jpg");
+      // Not compressed again, beyond a few bytes of framing per 64KB block.
+      assertTrue(pictureEntry.getCompressedSize() < picture.length + 100);
+      assertTrue(Arrays.equals(picture, readEntry(zip, pictureEntry)));
+
+      ZipEntry protoEntry = zip.getEntry("experiment.proto");
+      assertTrue(protoEntry.getCompressedSize() < proto.length / 10);
+      assertTrue(Arrays.equals(proto, readEntry(zip, protoEntry)));
+    }
+  }
+
+  @Test
+  public void testIsAlreadyCompressed() {
+    assertTrue(ExperimentZipWriter.isAlreadyCompressed("assets/ExperimentCoverImage.jpg"));
+    assertTrue(ExperimentZipWriter.isAlreadyCompressed("assets/photo.JPEG"));
+    assertFalse(ExperimentZipWriter.isAlreadyCompressed("experiment.proto"));
+    assertFalse(ExperimentZipWriter.isAlreadyCompressed("sensorData.proto"));
+  }
+
+  private static File writeFile(File file, byte[] contents) throws IOException {
+    try (FileOutputStream fos = new FileOutputStream(file)) {
+      fos.write(contents);
+    }
+    return file;
+  }
+
+  private static byte[] readEntry(ZipFile zip, ZipEntry entry) throws IOException {
+    try (InputStream in = zip.getInputStream(entry)) {
+      return ByteStreams.toByteArray(in);
+    }
+  }
+}
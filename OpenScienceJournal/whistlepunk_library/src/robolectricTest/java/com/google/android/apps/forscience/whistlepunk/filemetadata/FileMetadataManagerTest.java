@@ -184,6 +184,9 @@ public class FileMetadataManagerTest {
     assertTrue(fileMetadataUtil.canImportFromVersion(fileVersion.build()));
 
     fileVersion.setMinorVersion(3);
+    assertTrue(fileMetadataUtil.canImportFromVersion(fileVersion.build()));
+
+    fileVersion.setMinorVersion(4);
     assertFalse(fileMetadataUtil.canImportFromVersion(fileVersion.build()));
 
     fileVersion.setVersion(2).setMinorVersion(1);
@@ -94,4 +94,25 @@ public class LiteProtoFileHelperTest {
         helper.readFromFile(file, GoosciUserMetadata.UserMetadata::parseFrom, null);
     assertEquals(42, result.getVersion());
   }
+
+  @Test
+  public void testFailedWriteLeavesNoTempFile() {
+    File file = getFile();
+    GoosciUserMetadata.UserMetadata.Builder metadata = GoosciUserMetadata.UserMetadata.newBuilder();
+    metadata.setVersion(42);
+    LiteProtoFileHelper<GoosciUserMetadata.UserMetadata> helper = new LiteProtoFileHelper<>();
+    // The target file does not need to exist beforehand.
+    assertTrue(helper.writeToFile(file, metadata.build(), null));
+
+    metadata.setVersion(64);
+    assertFalse(helper.writeToFile(file, metadata.build(), true, UsageTracker.STUB));
+
+    File[] siblings = file.getParentFile().listFiles();
+    for (File sibling : siblings) {
+      assertFalse(sibling.getName().endsWith(".tmp"));
+    }
+    GoosciUserMetadata.UserMetadata result =
+        helper.readFromFile(file, GoosciUserMetadata.UserMetadata::parseFrom, null);
+    assertEquals(42, result.getVersion());
+  }
 }
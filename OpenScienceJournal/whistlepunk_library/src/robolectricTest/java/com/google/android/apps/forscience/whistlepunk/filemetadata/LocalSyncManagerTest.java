@@ -18,10 +18,14 @@ package com.google.android.apps.forscience.whistlepunk.filemetadata;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.assertTrue;
 
 import com.google.android.apps.forscience.whistlepunk.accounts.NonSignedInAccount;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciLocalSyncStatus.ExperimentStatus;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciLocalSyncStatus.LocalSyncStatus;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciLocalSyncStatus.SyncedFile;
+import java.util.Collections;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
@@ -89,4 +93,83 @@ public class LocalSyncManagerTest {
     manager.setDownloaded("id", true);
     assertTrue(manager.getDownloaded("id"));
   }
+
+  @Test
+  public void testSetSyncedFile() {
+    LocalSyncManager manager =
+        new LocalSyncManager(
+            LocalSyncStatus.getDefaultInstance(),
+            NonSignedInAccount.getInstance(RuntimeEnvironment.application.getApplicationContext()));
+    manager.addExperiment("id");
+    assertNull(manager.getSyncedFile("id", "assets/picture.jpg"));
+
+    SyncedFile first =
+        SyncedFile.newBuilder().setPath("assets/picture.jpg").setPackageId("p").setSize(1).build();
+    manager.setSyncedFile("id", first);
+    assertEquals(first, manager.getSyncedFile("id", "assets/picture.jpg"));
+
+    SyncedFile second = first.toBuilder().setSize(2).build();
+    manager.setSyncedFile("id", second);
+    assertEquals(second, manager.getSyncedFile("id", "assets/picture.jpg"));
+
+    // Synced files survive a round trip through the status proto.
+    LocalSyncManager reloaded =
+        new LocalSyncManager(
+            LocalSyncStatus.newBuilder()
+                .addExperimentStatus(
+                    ExperimentStatus.newBuilder().setExperimentId("id").addSyncedFiles(second))
+                .build(),
+            NonSignedInAccount.getInstance(RuntimeEnvironment.application.getApplicationContext()));
+    assertEquals(second, reloaded.getSyncedFile("id", "assets/picture.jpg"));
+  }
+
+  @Test
+  public void testRemoveSyncedFiles() {
+    LocalSyncManager manager =
+        new LocalSyncManager(
+            LocalSyncStatus.getDefaultInstance(),
+            NonSignedInAccount.getInstance(RuntimeEnvironment.application.getApplicationContext()));
+    manager.addExperiment("id");
+    manager.addExperiment("other");
+    SyncedFile first = SyncedFile.newBuilder().setPath("first").build();
+    SyncedFile second = SyncedFile.newBuilder().setPath("second").build();
+    manager.setSyncedFile("id", first);
+    manager.setSyncedFile("id", second);
+    manager.setSyncedFile("other", first);
+
+    manager.removeSyncedFiles("id", Collections.singletonList("first"));
+    assertNull(manager.getSyncedFile("id", "first"));
+    assertEquals(Collections.singletonList(second), manager.getSyncedFiles("id"));
+
+    manager.clearSyncedFiles("id");
+    assertTrue(manager.getSyncedFiles("id").isEmpty());
+    assertEquals(first, manager.getSyncedFile("other", "first"));
+
+    manager.clearAllSyncedFiles();
+    assertTrue(manager.getSyncedFiles("other").isEmpty());
+  }
+
+  @Test
+  public void testGetDirtyExperiments() {
+    LocalSyncManager manager =
+        new LocalSyncManager(
+            LocalSyncStatus.newBuilder()
+                .addExperimentStatus(ExperimentStatus.newBuilder().setExperimentId("clean"))
+                .addExperimentStatus(
+                    ExperimentStatus.newBuilder().setExperimentId("dirty").setDirty(true))
+                .build(),
+            NonSignedInAccount.getInstance(RuntimeEnvironment.application.getApplicationContext()));
+    assertEquals(1, manager.getDirtyExperiments().size());
+    assertTrue(manager.getDirtyExperiments().contains("dirty"));
+
+    // New experiments start out dirty.
+    manager.addExperiment("id");
+    assertTrue(manager.getDirtyExperiments().contains("id"));
+
+    manager.setDirty("id", false);
+    manager.setDirty("dirty", false);
+    manager.setDirty("clean", true);
+    assertEquals(1, manager.getDirtyExperiments().size());
+    assertTrue(manager.getDirtyExperiments().contains("clean"));
+  }
 }
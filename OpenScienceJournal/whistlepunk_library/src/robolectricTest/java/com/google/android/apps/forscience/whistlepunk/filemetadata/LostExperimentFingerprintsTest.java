@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.filemetadata;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.android.apps.forscience.whistlepunk.analytics.UsageTracker;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+/** Tests for the LostExperimentFingerprints class. */
+@RunWith(RobolectricTestRunner.class)
+public class LostExperimentFingerprintsTest {
+  private File experimentDirectory;
+  private File fingerprintFile;
+
+  @Before
+  public void setUp() throws IOException {
+    File dir = RuntimeEnvironment.application.getFilesDir();
+    experimentDirectory = new File(dir, "exp_lost");
+    experimentDirectory.mkdirs();
+    Files.write(new byte[] {1, 2, 3}, experimentFile());
+    fingerprintFile = new File(dir, "lost_experiment_scan.proto");
+  }
+
+  @After
+  public void tearDown() {
+    ExperimentCache.deleteRecursive(experimentDirectory);
+    fingerprintFile.delete();
+  }
+
+  private File experimentFile() {
+    return new File(experimentDirectory, FileMetadataManager.EXPERIMENT_FILE);
+  }
+
+  @Test
+  public void testUnchangedDirectoryMatches() {
+    LostExperimentFingerprints fingerprints = new LostExperimentFingerprints();
+    assertThat(fingerprints.matches(experimentDirectory)).isFalse();
+
+    fingerprints.add(experimentDirectory);
+    assertThat(fingerprints.matches(experimentDirectory)).isTrue();
+  }
+
+  @Test
+  public void testChangedDirectoryDoesNotMatch() throws IOException {
+    LostExperimentFingerprints fingerprints = new LostExperimentFingerprints();
+    fingerprints.add(experimentDirectory);
+
+    Files.write(new byte[] {1, 2, 3, 4}, experimentFile());
+    assertThat(fingerprints.matches(experimentDirectory)).isFalse();
+  }
+
+  @Test
+  public void testRoundTrip() {
+    UsageTracker tracker = UsageTracker.STUB;
+    LostExperimentFingerprints missing =
+        LostExperimentFingerprints.readFrom(fingerprintFile, tracker);
+    assertThat(missing.matches(experimentDirectory)).isFalse();
+
+    LostExperimentFingerprints fingerprints = new LostExperimentFingerprints();
+    fingerprints.add(experimentDirectory);
+    assertThat(fingerprints.writeTo(fingerprintFile, tracker)).isTrue();
+
+    LostExperimentFingerprints read = LostExperimentFingerprints.readFrom(fingerprintFile, tracker);
+    assertThat(read.matches(experimentDirectory)).isTrue();
+    assertThat(read.sameAs(fingerprints)).isTrue();
+  }
+}
@@ -28,6 +28,7 @@ import com.google.android.apps.forscience.whistlepunk.metadata.GoosciUserMetadat
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciUserMetadata.ExperimentOverview;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciUserMetadata.UserMetadata;
 import java.io.File;
+import java.util.List;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -91,6 +92,7 @@ public class UserMetadataManagerTest {
   private void cleanUp() {
     File sharedMetadataFile = FileMetadataUtil.getInstance().getUserMetadataFile(getAppAccount());
     sharedMetadataFile.delete();
+    FileMetadataUtil.getInstance().getExperimentOverviewSnapshotFile(getAppAccount()).delete();
     failureCount = 0;
   }
 
@@ -146,6 +148,33 @@ public class UserMetadataManagerTest {
     assertThat(smm.getExperimentOverviews(true)).hasSize(2);
   }
 
+  @Test
+  public void testOverviewsAreMostRecentFirstAfterReload() {
+    UserMetadataManager smm =
+        new UserMetadataManager(getContext(), getAppAccount(), getFailureFailsListener());
+    for (int i = 0; i < 5; i++) {
+      smm.addExperimentOverview(
+          ExperimentOverviewPojo.fromProto(
+              ExperimentOverview.newBuilder()
+                  .setExperimentId("exp" + i)
+                  .setLastUsedTimeMs(i)
+                  .setIsArchived(i == 3)
+                  .build()));
+    }
+    smm.saveImmediately();
+    File snapshotFile =
+        FileMetadataUtil.getInstance().getExperimentOverviewSnapshotFile(getAppAccount());
+    assertThat(snapshotFile.exists()).isTrue();
+
+    UserMetadataManager reloaded =
+        new UserMetadataManager(getContext(), getAppAccount(), getFailureFailsListener());
+    List<ExperimentOverviewPojo> page = reloaded.getExperimentOverviews(false, 1, 2);
+    assertThat(page).hasSize(2);
+    assertThat(page.get(0).getExperimentId()).isEqualTo("exp2");
+    assertThat(page.get(1).getExperimentId()).isEqualTo("exp1");
+    assertThat(reloaded.getMostRecentExperimentOverview(true).getExperimentId()).isEqualTo("exp4");
+  }
+
   @Test
   public void testUpgrade() {
     // This test is not very interesting but more can be added as upgrades get more complex.
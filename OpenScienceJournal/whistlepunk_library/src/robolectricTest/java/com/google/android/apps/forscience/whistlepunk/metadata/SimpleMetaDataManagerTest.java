@@ -671,6 +671,44 @@ public class SimpleMetaDataManagerTest {
         50, metaDataManager.getExperimentById(experiment.getExperimentId()).getLabelCount());
   }
 
+  @Test
+  public void testMigrateExperimentsToFilesMovesEachExperiment() {
+    List<String> ids = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      ids.add(metaDataManager.newDatabaseExperiment().getExperimentId());
+    }
+    metaDataManager.migrateExperimentsToFiles();
+    for (String id : ids) {
+      assertNotNull(metaDataManager.getExperimentById(id));
+    }
+    // Migrating again is a no-op, because nothing is left in the database.
+    metaDataManager.migrateExperimentsToFiles();
+    assertEquals(3, metaDataManager.getExperimentOverviews(true).size());
+  }
+
+  @Test
+  public void testInterruptedMigrationIsRedone() {
+    Experiment experiment = metaDataManager.newDatabaseExperiment();
+    metaDataManager.newDatabaseExperiment();
+    GoosciPictureLabelValue.PictureLabelValue labelValue =
+        GoosciPictureLabelValue.PictureLabelValue.newBuilder().setFilePath("fake/path").build();
+    metaDataManager.addDatabaseLabel(
+        experiment.getExperimentId(),
+        RecorderController.NOT_RECORDING_RUN_ID,
+        Label.newLabelWithValue(1000, ValueType.PICTURE, labelValue, null),
+        PictureLabelValue.fromPicture(labelValue.getFilePath(), ""));
+
+    // The files are written, but the migration stops before the database is updated.
+    metaDataManager.writeNextExperimentFilesOnly();
+    assertNotNull(metaDataManager.getDatabaseExperimentById(experiment.getExperimentId()));
+
+    metaDataManager.migrateExperimentsToFiles();
+    assertNull(metaDataManager.getDatabaseExperimentById(experiment.getExperimentId()));
+    assertEquals(2, metaDataManager.getExperimentOverviews(true).size());
+    assertEquals(
+        1, metaDataManager.getExperimentById(experiment.getExperimentId()).getLabelCount());
+  }
+
   private static List<String> getIds(List<SensorLayoutPojo> layouts) {
     List<String> ids = new ArrayList<>();
     for (SensorLayoutPojo layout : layouts) {
@@ -0,0 +1,223 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.android.apps.forscience.javalib.FailureListener;
+import com.google.android.apps.forscience.whistlepunk.BatchInsertScalarReading;
+import com.google.android.apps.forscience.whistlepunk.RecordingDataController;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData.ScalarSensorDataDump;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData.ScalarSensorDataRow;
+import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
+import com.google.android.apps.forscience.whistlepunk.sensordb.MemoryMetadataManager;
+import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
+import com.google.common.collect.Range;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class StreamingScalarSensorDumpReaderTest {
+  private final MemoryMetadataManager metadata = new MemoryMetadataManager();
+  private InMemorySensorDatabase db = new InMemorySensorDatabase();
+  private final RecordingDataController recordingController =
+      db.makeSimpleRecordingController(metadata);
+
+  @Test
+  public void testMatchesNonStreamingReader() throws IOException {
+    HashMap<String, String> idMap = new HashMap<>();
+    idMap.put("id", "newId");
+    GoosciScalarSensorData.ScalarSensorData data =
+        GoosciScalarSensorData.ScalarSensorData.newBuilder()
+            .addSensors(makeSensor("foo", "id", 10000))
+            .build();
+
+    StreamingScalarSensorDumpReader reader =
+        new StreamingScalarSensorDumpReader(
+            recordingController,
+            MoreExecutors.directExecutor(),
+            MoreExecutors.directExecutor());
+    reader.readData(new ByteArrayInputStream(data.toByteArray()), idMap);
+
+    assertEquals(10000, countReadings("newId", "foo", 0));
+    assertEquals(500, countReadings("newId", "foo", 1));
+    assertEquals(26, countReadings("newId", "foo", 2));
+    assertEquals(2, countReadings("newId", "foo", 3));
+    assertEquals(0, countReadings("newId", "foo", 4));
+  }
+
+  @Test
+  public void testParallelTierBuilding() throws IOException {
+    HashMap<String, String> idMap = new HashMap<>();
+    GoosciScalarSensorData.ScalarSensorData.Builder data =
+        GoosciScalarSensorData.ScalarSensorData.newBuilder();
+    for (int i = 0; i < 8; i++) {
+      idMap.put("trial" + i, "trial" + i);
+      data.addSensors(makeSensor("sensor" + i, "trial" + i, 1000 * (i + 1)));
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(3);
+    try {
+      StreamingScalarSensorDumpReader reader =
+          new StreamingScalarSensorDumpReader(
+              recordingController, pool, Executors.newSingleThreadExecutor());
+      reader.readData(new ByteArrayInputStream(data.build().toByteArray()), idMap);
+    } finally {
+      pool.shutdown();
+    }
+
+    for (int i = 0; i < 8; i++) {
+      assertEquals(1000 * (i + 1), countReadings("trial" + i, "sensor" + i, 0));
+    }
+  }
+
+  @Test
+  public void testOutOfOrderRowsDropped() throws IOException {
+    ScalarSensorDataDump sensor =
+        ScalarSensorDataDump.newBuilder()
+            .setTag("foo")
+            .setTrialId("id")
+            .addRows(ScalarSensorDataRow.newBuilder().setTimestampMillis(5).setValue(1))
+            .addRows(ScalarSensorDataRow.newBuilder().setTimestampMillis(3).setValue(2))
+            .addRows(ScalarSensorDataRow.newBuilder().setTimestampMillis(7).setValue(3))
+            .build();
+    HashMap<String, String> idMap = new HashMap<>();
+    idMap.put("id", "id");
+
+    StreamingScalarSensorDumpReader reader =
+        new StreamingScalarSensorDumpReader(
+            recordingController,
+            MoreExecutors.directExecutor(),
+            MoreExecutors.directExecutor());
+    reader.readData(
+        new ByteArrayInputStream(
+            GoosciScalarSensorData.ScalarSensorData.newBuilder()
+                .addSensors(sensor)
+                .build()
+                .toByteArray()),
+        idMap);
+
+    assertEquals(2, countReadings("id", "foo", 0));
+  }
+
+  @Test
+  public void testWriteQueueBounded() throws IOException {
+    HashMap<String, String> idMap = new HashMap<>();
+    GoosciScalarSensorData.ScalarSensorData.Builder data =
+        GoosciScalarSensorData.ScalarSensorData.newBuilder();
+    for (int i = 0; i < 30; i++) {
+      idMap.put("trial" + i, "trial" + i);
+      data.addSensors(makeSensor("sensor" + i, "trial" + i, 100));
+    }
+
+    // A database much slower than parsing.
+    ExecutorService writeThread = Executors.newSingleThreadExecutor();
+    AtomicInteger queued = new AtomicInteger();
+    AtomicInteger maxQueued = new AtomicInteger();
+    Executor slowWriter =
+        command -> {
+          maxQueued.set(Math.max(maxQueued.get(), queued.incrementAndGet()));
+          writeThread.execute(
+              () -> {
+                try {
+                  Thread.sleep(5);
+                } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                }
+                command.run();
+                queued.decrementAndGet();
+              });
+        };
+    try {
+      new StreamingScalarSensorDumpReader(
+              recordingController, MoreExecutors.directExecutor(), slowWriter)
+          .readData(new ByteArrayInputStream(data.build().toByteArray()), idMap);
+    } finally {
+      writeThread.shutdown();
+    }
+
+    assertEquals(100, countReadings("trial29", "sensor29", 0));
+    // Eight batches, and the final barrier.
+    assertTrue(String.valueOf(maxQueued.get()), maxQueued.get() <= 9);
+  }
+
+  @Test
+  public void testWriteFailureReported() {
+    GoosciScalarSensorData.ScalarSensorData data =
+        GoosciScalarSensorData.ScalarSensorData.newBuilder()
+            .addSensors(makeSensor("foo", "id", 10))
+            .build();
+    RecordingDataController failing =
+        new RecordingDataController() {
+          @Override
+          public void addScalarReading(
+              String trialId,
+              String sensorId,
+              int resolutionTier,
+              long timestampMillis,
+              double value) {
+            throw new IllegalStateException("disk full");
+          }
+
+          @Override
+          public void addScalarReadings(List<BatchInsertScalarReading> readings) {
+            throw new IllegalStateException("disk full");
+          }
+
+          @Override
+          public void setDataErrorListenerForSensor(String sensorId, FailureListener listener) {}
+
+          @Override
+          public void clearDataErrorListenerForSensor(String sensorId) {}
+        };
+
+    try {
+      new StreamingScalarSensorDumpReader(
+              failing, MoreExecutors.directExecutor(), Executors.newSingleThreadExecutor())
+          .readData(new ByteArrayInputStream(data.toByteArray()), new HashMap<>());
+      fail("Expected the import to fail");
+    } catch (IOException expected) {
+      assertEquals("disk full", expected.getCause().getMessage());
+    }
+  }
+
+  private int countReadings(String trialId, String tag, int tier) {
+    return db.getScalarReadings(trialId, tag, TimeRange.oldest(Range.all()), tier, 0).size();
+  }
+
+  private static ScalarSensorDataDump makeSensor(String tag, String trialId, int rowCount) {
+    ScalarSensorDataDump.Builder sensor =
+        ScalarSensorDataDump.newBuilder().setTag(tag).setTrialId(trialId);
+    for (int x = 1; x <= rowCount; x++) {
+      sensor.addRows(ScalarSensorDataRow.newBuilder().setTimestampMillis(x).setValue(x * 100));
+    }
+    return sensor.build();
+  }
+}
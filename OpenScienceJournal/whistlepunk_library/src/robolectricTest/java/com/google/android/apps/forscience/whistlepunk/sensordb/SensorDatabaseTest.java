@@ -375,6 +375,28 @@ public class SensorDatabaseTest {
     assertEquals(2, data.getSensors(0).getRowsCount());
   }
 
+  @Test
+  public void testFailedTransactionIsRolledBack() {
+    SensorDatabaseImpl db =
+        new SensorDatabaseImpl(getContext(), getAppAccount(), TEST_DATABASE_NAME);
+    db.addScalarReading("id", "tag", 0, 1, 1.0);
+    TimeRange all = TimeRange.oldest(Range.closed(0L, 10L));
+    try {
+      db.runInTransaction(
+          () -> {
+            db.deleteScalarReadings("id", "tag", all);
+            db.addScalarReading("id", "tag", 0, 2, 2.0);
+            throw new IllegalStateException("failed midway");
+          });
+      fail("Expected the failure to be rethrown");
+    } catch (IllegalStateException expected) {
+      // The delete and the insert are both undone.
+    }
+    assertEquals(
+        Arrays.asList(new ScalarReading(1, 1.0)),
+        ScalarReading.slurp(db.getScalarReadings("id", "tag", all, 0, 0)));
+  }
+
   @Test
   public void testGetScalarReadingSensorProtos() {
     SensorDatabaseImpl db =
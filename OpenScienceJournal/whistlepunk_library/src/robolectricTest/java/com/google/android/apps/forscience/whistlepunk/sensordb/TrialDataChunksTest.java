@@ -0,0 +1,155 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorLayout;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrialDataChunks.ChunkReference;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrialDataChunks.SensorChunks;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrialDataChunks.TrialDataChunk;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrialDataChunks.TrialDataManifest;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+/** Tests for the TrialDataChunks class. */
+@RunWith(RobolectricTestRunner.class)
+public class TrialDataChunksTest {
+  private static final String TRIAL_ID = "trialId";
+  private static final String TAG = "sensor";
+
+  private File chunkDir;
+
+  @Before
+  public void setUp() {
+    chunkDir = new File(RuntimeEnvironment.application.getFilesDir(), "chunks");
+  }
+
+  @After
+  public void tearDown() {
+    File[] files = chunkDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    chunkDir.delete();
+  }
+
+  private static GoosciTrial.Trial makeTrial(long endMs) {
+    return GoosciTrial.Trial.newBuilder()
+        .setTrialId(TRIAL_ID)
+        .setRecordingRange(GoosciTrial.Range.newBuilder().setStartMs(0).setEndMs(endMs))
+        .addSensorLayouts(GoosciSensorLayout.SensorLayout.newBuilder().setSensorId(TAG))
+        .build();
+  }
+
+  private static void addReadings(InMemorySensorDatabase db, long fromMs, long toMs) {
+    for (long t = fromMs; t < toMs; t += 1000) {
+      db.addScalarReading(TRIAL_ID, TAG, 0, t, t / 1000.0);
+      if (t % 10000 == 0) {
+        db.addScalarReading(TRIAL_ID, TAG, 1, t, -t);
+      }
+    }
+  }
+
+  private Map<Long, TrialDataChunk> readChunks(SensorChunks sensor) throws IOException {
+    Map<Long, TrialDataChunk> chunks = new HashMap<>();
+    for (ChunkReference chunk : sensor.getChunksList()) {
+      File file = new File(chunkDir, TrialDataChunks.getChunkFileName(chunk.getChunkId()));
+      chunks.put(chunk.getWindowStartMillis(), TrialDataChunks.readChunk(file, chunk.getChunkId()));
+    }
+    return chunks;
+  }
+
+  @Test
+  public void testRoundTripRestoresEveryTier() throws IOException {
+    InMemorySensorDatabase source = new InMemorySensorDatabase();
+    addReadings(source, 0, 150 * 1000);
+    TrialDataManifest manifest =
+        TrialDataChunks.writeChunks(source, makeTrial(150 * 1000), chunkDir);
+
+    assertThat(manifest.getSensorsCount()).isEqualTo(1);
+    SensorChunks sensor = manifest.getSensors(0);
+    assertThat(sensor.getTag()).isEqualTo(TAG);
+    assertThat(sensor.getChunksCount()).isEqualTo(3);
+
+    InMemorySensorDatabase target = new InMemorySensorDatabase();
+    TrialDataChunks.applyChunks(
+        target, TRIAL_ID, TAG, manifest.getChunkDurationMillis(), readChunks(sensor));
+    assertThat(target.getReadings(0)).containsExactlyElementsIn(source.getReadings(0));
+    assertThat(target.getReadings(1)).containsExactlyElementsIn(source.getReadings(1));
+  }
+
+  @Test
+  public void testAppendedDataOnlyChangesLaterWindows() throws IOException {
+    InMemorySensorDatabase db = new InMemorySensorDatabase();
+    addReadings(db, 0, 90 * 1000);
+    SensorChunks before =
+        TrialDataChunks.writeChunks(db, makeTrial(90 * 1000), chunkDir).getSensors(0);
+
+    addReadings(db, 90 * 1000, 150 * 1000);
+    SensorChunks after =
+        TrialDataChunks.writeChunks(db, makeTrial(150 * 1000), chunkDir).getSensors(0);
+
+    Map<Long, String> changed = TrialDataChunks.getChangedWindows(after, before);
+    assertThat(changed.keySet()).containsExactly(60 * 1000L, 120 * 1000L).inOrder();
+    assertThat(TrialDataChunks.getChangedWindows(after, after)).isEmpty();
+  }
+
+  @Test
+  public void testRemovedWindowsMapToNull() throws IOException {
+    InMemorySensorDatabase db = new InMemorySensorDatabase();
+    addReadings(db, 0, 150 * 1000);
+    SensorChunks local =
+        TrialDataChunks.writeChunks(db, makeTrial(150 * 1000), chunkDir).getSensors(0);
+    SensorChunks remote = local.toBuilder().removeChunks(2).build();
+
+    Map<Long, String> changed = TrialDataChunks.getChangedWindows(remote, local);
+    assertThat(changed).containsExactly(120 * 1000L, null);
+  }
+
+  @Test
+  public void testCorruptChunkIsRejected() throws IOException {
+    InMemorySensorDatabase db = new InMemorySensorDatabase();
+    addReadings(db, 0, 30 * 1000);
+    ChunkReference chunk =
+        TrialDataChunks.writeChunks(db, makeTrial(30 * 1000), chunkDir).getSensors(0).getChunks(0);
+    File file = new File(chunkDir, TrialDataChunks.getChunkFileName(chunk.getChunkId()));
+    try (FileOutputStream out = new FileOutputStream(file, true)) {
+      out.write(0);
+    }
+
+    try {
+      TrialDataChunks.readChunk(file, chunk.getChunkId());
+      fail("Expected the corrupt chunk to be rejected");
+    } catch (IOException expected) {
+      // Expected.
+    }
+  }
+}
@@ -16,6 +16,8 @@
 package com.google.android.apps.forscience.whistlepunk.sensors;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -108,4 +110,12 @@ public class BleProtocolVersionTest {
     assertEquals(versionDecoder.getMaxMinorVersion(), versionDecoder.getMinorVersion());
     assertEquals(versionDecoder.getMaxPatchVersion(), versionDecoder.getPatchVersion());
   }
+
+  @Test
+  public void testSupportsDataBatches() {
+    assertFalse(new BleProtocolVersion(new byte[] {0x00, 0x08}).supportsDataBatches());
+    assertFalse(new BleProtocolVersion(new byte[] {0x3F, 0x08}).supportsDataBatches());
+    assertTrue(new BleProtocolVersion(new byte[] {0x40, 0x08}).supportsDataBatches());
+    assertTrue(new BleProtocolVersion(new byte[] {0x00, 0x10}).supportsDataBatches());
+  }
 }
@@ -25,6 +25,7 @@ import android.content.Context;
 import com.google.android.apps.forscience.whistlepunk.MemorySensorHistoryStorage;
 import com.google.android.apps.forscience.whistlepunk.accounts.AppAccount;
 import com.google.android.apps.forscience.whistlepunk.accounts.NonSignedInAccount;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciSensor.SensorDataRequest;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorConfig;
 import com.google.android.apps.forscience.whistlepunk.devicemanager.SensorTypeProvider;
 import com.google.android.apps.forscience.whistlepunk.metadata.BleSensorSpec;
@@ -34,6 +35,7 @@ import com.google.android.apps.forscience.whistlepunk.sensorapi.RecordingSensorO
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorRecorder;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.StubStatusListener;
 import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
+import java.util.Arrays;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
@@ -92,6 +94,29 @@ public class BluetoothSensorTest {
     assertEquals("address", bleClient.mostRecentAddress);
   }
 
+  @Test
+  public void testBatchedConfig() throws Exception {
+    BleSensorSpec sensor = new BleSensorSpec("address", "name");
+    sensor.setSensorType(SensorTypeProvider.TYPE_CUSTOM);
+    sensor.setCustomPin("A0");
+
+    SensorDataRequest single =
+        parseConfig(BluetoothSensor.buildConfigProtoForDevice(sensor, false));
+    assertFalse(single.hasMaxSamplesPerFrame());
+    SensorDataRequest batched =
+        parseConfig(BluetoothSensor.buildConfigProtoForDevice(sensor, true));
+    assertTrue(batched.getMaxSamplesPerFrame() > 1);
+    assertTrue(batched.getInterval().getFrequency() < single.getInterval().getFrequency());
+    assertEquals(single.getPinList(), batched.getPinList());
+  }
+
+  private static SensorDataRequest parseConfig(byte[] config) throws Exception {
+    // The request is written as a single frame: its length, then 1 for the last packet.
+    assertEquals(config.length - 2, config[0]);
+    assertEquals(1, config[1]);
+    return SensorDataRequest.parseFrom(Arrays.copyOfRange(config, 2, config.length));
+  }
+
   private static Context getContext() {
     return RuntimeEnvironment.application.getApplicationContext();
   }
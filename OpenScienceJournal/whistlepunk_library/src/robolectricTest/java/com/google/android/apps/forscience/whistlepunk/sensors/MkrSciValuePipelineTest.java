@@ -0,0 +1,122 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.apps.forscience.whistlepunk.sensors.MkrSciValuePipeline.Channel;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class MkrSciValuePipelineTest {
+  private static class RecordingListener implements MkrSciValuePipeline.Listener {
+    private final Channel[] channels;
+    final List<double[]> values = new ArrayList<>();
+    double[] lastArray;
+
+    RecordingListener(Channel... channels) {
+      this.channels = channels;
+    }
+
+    @Override
+    public void onChannelsUpdated(double[] derived) {
+      double[] copy = new double[channels.length];
+      for (int i = 0; i < channels.length; i++) {
+        copy[i] = channels[i].of(derived);
+      }
+      values.add(copy);
+      lastArray = derived;
+    }
+  }
+
+  @Test
+  public void testAllAxesAtOnce() {
+    MkrSciValuePipeline pipeline = new MkrSciValuePipeline();
+    RecordingListener axes =
+        new RecordingListener(
+            Channel.ACCELERATION_X,
+            Channel.ACCELERATION_Y,
+            Channel.ACCELERATION_Z,
+            Channel.ACCELERATION_MAGNITUDE);
+    RecordingListener y = new RecordingListener(Channel.ACCELERATION_Y);
+    pipeline.add(axes, axes.channels);
+    pipeline.add(y, y.channels);
+
+    pipeline.onFirmwareVersion(2);
+    pipeline.onValuesUpdated(new double[] {3, 4, 12});
+    assertEquals(1, axes.values.size());
+    assertEquals(3, axes.values.get(0)[0], 0);
+    assertEquals(4, axes.values.get(0)[1], 0);
+    assertEquals(12, axes.values.get(0)[2], 0);
+    assertEquals(13, axes.values.get(0)[3], 0);
+    assertEquals(4, y.values.get(0)[0], 0);
+
+    // Everyone gets the same array, every time.
+    pipeline.onValuesUpdated(new double[] {1, 2, 3});
+    assertSame(axes.lastArray, y.lastArray);
+    assertEquals(2, y.values.get(1)[0], 0);
+  }
+
+  @Test
+  public void testFirmwareVersion() {
+    MkrSciValuePipeline pipeline = new MkrSciValuePipeline();
+    RecordingListener x = new RecordingListener(Channel.ACCELERATION_X);
+    pipeline.add(x, x.channels);
+    pipeline.onFirmwareVersion(1);
+    pipeline.onValuesUpdated(new double[] {0.5, 0, 0});
+    assertEquals(5, x.values.get(0)[0], 0);
+  }
+
+  @Test
+  public void testTooFewValues() {
+    MkrSciValuePipeline pipeline = new MkrSciValuePipeline();
+    RecordingListener magnitude = new RecordingListener(Channel.MAGNETIC_FIELD_MAGNITUDE);
+    pipeline.add(magnitude, magnitude.channels);
+    pipeline.onValuesUpdated(new double[] {1, 2});
+    assertTrue(Double.isNaN(magnitude.values.get(0)[0]));
+  }
+
+  @Test
+  public void testConversions() {
+    assertEquals(30, Channel.TEMPERATURE_CELSIUS.derive(new double[] {248}, 0), 0.1);
+    assertEquals(86, Channel.TEMPERATURE_FAHRENHEIT.derive(new double[] {248}, 0), 0.2);
+    assertEquals(1000, Channel.RESISTANCE.derive(new double[] {2e6}, 0), 0);
+    assertEquals(0, Channel.RESISTANCE.derive(new double[] {-5}, 0), 0);
+  }
+
+  @Test
+  public void testRemove() {
+    MkrSciValuePipeline pipeline = new MkrSciValuePipeline();
+    RecordingListener first = new RecordingListener(Channel.X);
+    RecordingListener second = new RecordingListener(Channel.Y);
+    pipeline.add(first, first.channels);
+    pipeline.add(second, second.channels);
+
+    assertFalse(pipeline.remove(first));
+    pipeline.onValuesUpdated(new double[] {1, 2, 3});
+    assertEquals(0, first.values.size());
+    assertEquals(1, second.values.size());
+    assertTrue(pipeline.remove(second));
+  }
+}
@@ -73,6 +73,7 @@ public class AllNativeSensorProvider extends ScalarSensorService {
           DeviceSettingsPopupActivity.getPendingIntent(AllNativeSensorProvider.this, sensor);
 
       final int sensorType = sensor.getType();
+      final boolean highRate = sensorType == Sensor.TYPE_ACCELEROMETER;
       if (sensorType == Sensor.TYPE_ACCELEROMETER) {
         appearance.iconId = android.R.drawable.ic_media_ff;
         appearance.units = "ms/2";
@@ -111,14 +112,22 @@ public class AllNativeSensorProvider extends ScalarSensorService {
               return true;
             }
 
+            // The accelerometer streams as fast as the hardware allows, which can be hundreds of
+            // samples a second; when Science Journal supports it, those go through shared memory.
+            @Override
+            protected boolean useSampleRing() {
+              return highRate;
+            }
+
             @Override
             protected void streamData(final DataConsumer c) {
               final int index =
                   DeviceSettingsPopupActivity.getIndexForSensorType(
                       sensorType, AllNativeSensorProvider.this);
               mSensorEventListener = new HardwareEventListener(sensorType, index, c);
-              getSensorManager()
-                  .registerListener(mSensorEventListener, sensor, SensorManager.SENSOR_DELAY_UI);
+              int delay =
+                  highRate ? SensorManager.SENSOR_DELAY_FASTEST : SensorManager.SENSOR_DELAY_UI;
+              getSensorManager().registerListener(mSensorEventListener, sensor, delay);
             }
 
             @Override
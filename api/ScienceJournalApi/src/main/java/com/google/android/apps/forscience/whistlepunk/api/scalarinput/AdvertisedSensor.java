@@ -15,8 +15,12 @@
  */
 package com.google.android.apps.forscience.whistlepunk.api.scalarinput;
 
+import android.os.Build;
 import android.os.DeadObjectException;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.RemoteException;
+import android.system.ErrnoException;
 import android.util.Log;
 
 /**
@@ -27,9 +31,17 @@ import android.util.Log;
  */
 public abstract class AdvertisedSensor {
   private static final String TAG = "AdvertisedSensor";
+
+  // Batches are sent when full, or this long after their first sample, whichever is first.
+  private static final int MAX_BATCH_SIZE = 64;
+  private static final int MAX_BATCH_DELAY_MILLIS = 50;
+
+  private static final int SAMPLE_RING_CAPACITY = 4096;
+
   private final String address;
   private final String name;
   private ISensorStatusListener listener = null;
+  private SampleSender sender = null;
 
   protected AdvertisedSensor(String address, String name) {
     this.address = address;
@@ -69,6 +81,15 @@ public abstract class AdvertisedSensor {
     public void onNewData(long timestamp, double value);
   }
 
+  /**
+   * Override to return true if this sensor produces data at very high rates (hundreds of samples a
+   * second or more). If Science Journal supports it, samples will be passed through a ring in
+   * shared memory, rather than copied into binder transactions.
+   */
+  protected boolean useSampleRing() {
+    return false;
+  }
+
   /**
    * Stream data by calling {@link DataConsumer#onNewData(long, double)} as often as new data is
    * available, until {@link DataConsumer#isReceiving()} returns false.
@@ -81,7 +102,12 @@ public abstract class AdvertisedSensor {
    */
   protected abstract void disconnect();
 
-  final void startObserving(final ISensorObserver observer, final ISensorStatusListener listener)
+  /**
+   * @param apiVersion the scalar API version negotiated with Science Journal; from {@link
+   *     Versions#BATCH_SCALAR_API_VERSION}, samples are sent in batches.
+   */
+  final void startObserving(
+      final ISensorObserver observer, final ISensorStatusListener listener, int apiVersion)
       throws RemoteException {
     listener.onSensorConnecting();
     try {
@@ -99,6 +125,12 @@ public abstract class AdvertisedSensor {
     listener.onSensorConnected();
     this.listener = listener;
 
+    if (apiVersion >= Versions.BATCH_SCALAR_API_VERSION) {
+      sender = new SampleSender(observer, maybeCreateSampleRing(observer));
+      streamData(sender);
+      return;
+    }
+
     streamData(
         new DataConsumer() {
           @Override
@@ -122,8 +154,30 @@ public abstract class AdvertisedSensor {
         });
   }
 
+  private SampleRing maybeCreateSampleRing(ISensorObserver observer) throws RemoteException {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O_MR1 || !useSampleRing()) {
+      return null;
+    }
+    SampleRing ring;
+    try {
+      ring = SampleRing.create(address, SAMPLE_RING_CAPACITY);
+    } catch (ErrnoException e) {
+      // Batches over binder still work, just with more copying.
+      if (Log.isLoggable(TAG, Log.ERROR)) {
+        Log.e(TAG, "Could not create sample ring", e);
+      }
+      return null;
+    }
+    observer.onSampleRingCreated(ring.getSharedMemory());
+    return ring;
+  }
+
   final void stopObserving() throws RemoteException {
     disconnect();
+    if (sender != null) {
+      sender.close();
+      sender = null;
+    }
     if (listener != null) {
       listener.onSensorDisconnected();
       listener = null;
@@ -143,4 +197,97 @@ public abstract class AdvertisedSensor {
       Log.e(TAG, "error sending data", e);
     }
   }
+
+  /**
+   * Collects samples and sends them to Science Journal a batch at a time, either as arrays or, if
+   * {@code ring} is not null, through the sample ring.
+   */
+  private class SampleSender implements DataConsumer, Runnable {
+    private final ISensorObserver observer;
+    private final SampleRing ring;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final int batchSize;
+
+    // All guarded by this
+    private final long[] timestamps;
+    private final double[] values;
+    private int count = 0;
+    private boolean flushScheduled = false;
+    private boolean closed = false;
+
+    SampleSender(ISensorObserver observer, SampleRing ring) {
+      this.observer = observer;
+      this.ring = ring;
+      batchSize = ring == null ? MAX_BATCH_SIZE : ring.getCapacity() / 4;
+      timestamps = ring == null ? new long[batchSize] : null;
+      values = ring == null ? new double[batchSize] : null;
+    }
+
+    @Override
+    public boolean isReceiving() {
+      return listener != null;
+    }
+
+    @Override
+    public synchronized void onNewData(long timestamp, double value) {
+      if (closed) {
+        return;
+      }
+      if (ring != null) {
+        ring.write(timestamp, value);
+      } else {
+        timestamps[count] = timestamp;
+        values[count] = value;
+      }
+      count++;
+      if (count >= batchSize) {
+        flush();
+      } else if (!flushScheduled) {
+        flushScheduled = true;
+        handler.postDelayed(this, MAX_BATCH_DELAY_MILLIS);
+      }
+    }
+
+    @Override
+    public synchronized void run() {
+      flushScheduled = false;
+      flush();
+    }
+
+    /** Sends whatever is pending, and releases the ring. */
+    synchronized void close() {
+      if (closed) {
+        return;
+      }
+      handler.removeCallbacks(this);
+      flushScheduled = false;
+      flush();
+      closed = true;
+      if (ring != null) {
+        ring.close();
+      }
+    }
+
+    private void flush() {
+      if (count == 0) {
+        return;
+      }
+      int sending = count;
+      count = 0;
+      try {
+        try {
+          if (ring != null) {
+            observer.onSampleRingWritten();
+          } else {
+            observer.onNewDataBatch(timestamps, values, sending);
+          }
+        } catch (DeadObjectException e) {
+          reportError(e);
+          stopObserving();
+        }
+      } catch (RemoteException e) {
+        reportError(e);
+      }
+    }
+  }
 }
@@ -0,0 +1,153 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.android.apps.forscience.whistlepunk.api.scalarinput;
+
+import android.os.Build;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import androidx.annotation.RequiresApi;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+/**
+ * A single-writer ring of samples in shared memory, for services that produce data faster than it
+ * is practical to send over binder, even in batches.
+ *
+ * <p>The service writes each sample into the ring, and calls {@link
+ * ISensorObserver#onSampleRingWritten()} every so often to tell Science Journal to read what is
+ * new. A reader that falls a full ring behind loses the oldest samples.
+ *
+ * <p>Layout: the total number of samples ever written (a long), then the capacity (an int), then
+ * the samples themselves, each a long timestamp followed by a double value. The writer publishes
+ * the count only after the samples it covers, and the reader reads them only after the count.
+ */
+@RequiresApi(Build.VERSION_CODES.O_MR1)
+public class SampleRing implements Closeable {
+  private static final int WRITTEN_OFFSET = 0;
+  private static final int CAPACITY_OFFSET = 8;
+  private static final int HEADER_SIZE = 16;
+  private static final int SAMPLE_SIZE = 16;
+
+  private final SharedMemory memory;
+  private final ByteBuffer buffer;
+  private final int capacity;
+
+  // Writer: the number of samples written. Reader: the number of samples read (or skipped).
+  private long position = 0;
+  // Only written and read by fence().
+  private volatile int fenceField;
+
+  private SampleRing(SharedMemory memory, ByteBuffer buffer, int capacity) {
+    this.memory = memory;
+    this.buffer = buffer;
+    this.capacity = capacity;
+  }
+
+  /** Creates a new, empty ring for a service to write into. */
+  public static SampleRing create(String name, int capacity) throws ErrnoException {
+    SharedMemory memory = SharedMemory.create(name, HEADER_SIZE + capacity * SAMPLE_SIZE);
+    ByteBuffer buffer = memory.mapReadWrite();
+    buffer.putLong(WRITTEN_OFFSET, 0);
+    buffer.putInt(CAPACITY_OFFSET, capacity);
+    return new SampleRing(memory, buffer, capacity);
+  }
+
+  /** Maps a ring that a service created, for reading. */
+  public static SampleRing map(SharedMemory memory) throws ErrnoException {
+    ByteBuffer buffer = memory.mapReadOnly();
+    int capacity = buffer.getInt(CAPACITY_OFFSET);
+    if (capacity <= 0 || HEADER_SIZE + (long) capacity * SAMPLE_SIZE > buffer.capacity()) {
+      SharedMemory.unmap(buffer);
+      memory.close();
+      throw new IllegalArgumentException("Malformed sample ring, capacity " + capacity);
+    }
+    return new SampleRing(memory, buffer, capacity);
+  }
+
+  public SharedMemory getSharedMemory() {
+    return memory;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /** Writes one sample. Only the service that created the ring may call this. */
+  public void write(long timestamp, double value) {
+    int offset = sampleOffset(position);
+    buffer.putLong(offset, timestamp);
+    buffer.putDouble(offset + 8, value);
+    position++;
+    // Published after the sample, so a reader never sees a count that includes a partial sample.
+    fence();
+    buffer.putLong(WRITTEN_OFFSET, position);
+    // And before the next sample overwrites an old one, so a reader that sees part of that write
+    // also sees this count.
+    fence();
+  }
+
+  /**
+   * Copies the oldest unread samples into the arrays, up to their length.
+   *
+   * @return the number of samples copied; 0 once the reader has caught up.
+   */
+  public int read(long[] timestamps, double[] values) {
+    long written = buffer.getLong(WRITTEN_OFFSET);
+    // The samples that count includes are only read after it.
+    fence();
+    long from = Math.max(position, written - capacity);
+    int count = (int) Math.min(written - from, Math.min(timestamps.length, values.length));
+    for (int i = 0; i < count; i++) {
+      int offset = sampleOffset(from + i);
+      timestamps[i] = buffer.getLong(offset);
+      values[i] = buffer.getDouble(offset + 8);
+    }
+    position = from + count;
+
+    // The writer may have lapped the samples we were copying; drop any it could have overwritten,
+    // including the one it may be overwriting now.
+    fence();
+    long overwritten = buffer.getLong(WRITTEN_OFFSET) + 1 - capacity - from;
+    int skip = (int) Math.max(0, Math.min(count, overwritten));
+    if (skip > 0) {
+      count -= skip;
+      System.arraycopy(timestamps, skip, timestamps, 0, count);
+      System.arraycopy(values, skip, values, 0, count);
+    }
+    return count;
+  }
+
+  /**
+   * Keeps the buffer accesses before this call from being reordered with those after it, by the
+   * compiler or the CPU. The buffer is plain memory to Java, and VarHandle's fences aren't
+   * available at this API level, but a volatile write followed by a volatile read orders
+   * everything around them.
+   */
+  private void fence() {
+    fenceField = 0;
+    int unused = fenceField;
+  }
+
+  private int sampleOffset(long index) {
+    return HEADER_SIZE + (int) (index % capacity) * SAMPLE_SIZE;
+  }
+
+  @Override
+  public void close() {
+    SharedMemory.unmap(buffer);
+    memory.close();
+  }
+}
@@ -152,6 +152,31 @@ public abstract class ScalarSensorService extends Service {
     return false;
   }
 
+  /**
+   * @return the newest scalar API version that both this service and the binding app understand.
+   *     <p>Like {@link #binderHasAllowedSignature()}, this only returns valid results when called
+   *     from within methods defined on the Binder class.
+   */
+  protected int negotiateBinderApiVersion() {
+    int myVersion = Versions.getMaxScalarApiVersion(getPackageName(), getResources());
+    PackageManager pm = getPackageManager();
+    String bindingName = pm.getNameForUid(Binder.getCallingUid());
+    if (bindingName == null) {
+      // The binding app's uid is unknown to the package manager.
+      return Versions.FIRST_RELEASE_SCALAR_API_VERSION;
+    }
+    try {
+      int bindingVersion =
+          Versions.getMaxScalarApiVersion(bindingName, pm.getResourcesForApplication(bindingName));
+      return Versions.negotiate(myVersion, bindingVersion);
+    } catch (PackageManager.NameNotFoundException e) {
+      if (Log.isLoggable(TAG, Log.ERROR)) {
+        Log.e(TAG, "Unknown package name: " + bindingName);
+      }
+      return Versions.FIRST_RELEASE_SCALAR_API_VERSION;
+    }
+  }
+
   /**
    * @return The set of allowed app signatures. By default, this only includes Science Journal as
    *     installed from the Play Store, but extenders may add other trusted apps.
@@ -231,13 +256,14 @@ public abstract class ScalarSensorService extends Service {
             String settingsKey)
             throws RemoteException {
           if (clientAllowed()) {
+            int apiVersion = negotiateBinderApiVersion();
             AdvertisedSensor sensor = sensors.get(sensorId);
             // TODO: write tests for this
             if (sensor != null) {
-              sensor.startObserving(observer, listener);
+              sensor.startObserving(observer, listener, apiVersion);
             } else {
               // TODO: create scanner class?
-              findAndStartObserving(sensorId, observer, listener);
+              findAndStartObserving(sensorId, observer, listener, apiVersion);
             }
           }
         }
@@ -252,7 +278,8 @@ public abstract class ScalarSensorService extends Service {
         private void findAndStartObserving(
             final String sensorId,
             final ISensorObserver observer,
-            final ISensorStatusListener listener)
+            final ISensorStatusListener listener,
+            final int apiVersion)
             throws RemoteException {
           scanDevices(
               new IDeviceConsumer.Stub() {
@@ -271,7 +298,7 @@ public abstract class ScalarSensorService extends Service {
                             SensorAppearanceResources appearance)
                             throws RemoteException {
                           if (sensorAddress.equals(sensorId)) {
-                            sensors.get(sensorId).startObserving(observer, listener);
+                            sensors.get(sensorId).startObserving(observer, listener, apiVersion);
                           }
                         }
 
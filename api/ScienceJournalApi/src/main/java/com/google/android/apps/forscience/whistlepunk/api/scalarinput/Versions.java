@@ -20,6 +20,12 @@ import android.content.res.Resources;
 public class Versions {
   public static int FIRST_RELEASE_SCALAR_API_VERSION = 1;
 
+  /**
+   * Services may deliver samples with {@link ISensorObserver#onNewDataBatch} and the shared-memory
+   * sample ring, instead of one {@link ISensorObserver#onNewData} call per sample.
+   */
+  public static final int BATCH_SCALAR_API_VERSION = 2;
+
   public static int getScalarApiVersion(String packageName, Resources resources) {
     try {
       int identifier = resources.getIdentifier("scalar_api_version", "integer", packageName);
@@ -31,4 +37,25 @@ public class Versions {
     }
     return FIRST_RELEASE_SCALAR_API_VERSION;
   }
+
+  /**
+   * @return the newest scalar API version that the package understands. Packages built before
+   *     this was introduced understand only their {@link #getScalarApiVersion}.
+   */
+  public static int getMaxScalarApiVersion(String packageName, Resources resources) {
+    try {
+      int identifier = resources.getIdentifier("scalar_api_max_version", "integer", packageName);
+      if (identifier != 0) {
+        return resources.getInteger(identifier);
+      }
+    } catch (Resources.NotFoundException e) {
+      // Fall through to the compatibility version
+    }
+    return getScalarApiVersion(packageName, resources);
+  }
+
+  /** @return the newest version that both sides of a connection understand. */
+  public static int negotiate(int myMaxVersion, int theirMaxVersion) {
+    return Math.min(myMaxVersion, theirMaxVersion);
+  }
 }